@@ -0,0 +1,157 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.benchmark;
+
+import edp.core.common.audit.QueryAuditor;
+import edp.core.common.buffer.QueryMemoryAccountant;
+import edp.core.common.jdbc.JdbcDataSource;
+import edp.core.common.jdbc.MetadataCache;
+import edp.core.common.jdbc.QueryLifecycleManager;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.utils.RedisUtils;
+import edp.core.utils.SqlUtils;
+import edp.davinci.core.enums.SourceTypeEnum;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.utils.SourcePasswordEncryptUtils;
+import edp.davinci.runner.LoadSupportDataSourceRunner;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResultSet 到 PaginateWithQueryColumns 的物化
+ * <p>
+ * 默认使用内嵌 H2（MySQL 模式），-Dbench.jdbc.url 可指向本地 MySQL 兼容库；
+ * 经 SqlUtils 公开的分页查询入口执行，包含 Druid 连接池与 wall filter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MaterializeBenchmark {
+
+    private static final String[] REGIONS = {"east", "west", "north", "south"};
+
+    private static final String QUERY_SQL = "SELECT f.id, f.region, f.product, f.stat_date, f.amount, f.quantity FROM bench_fact f";
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "10000", "100000"})
+    private int rows;
+
+    private AnnotationConfigApplicationContext context;
+
+    private SingleConnectionDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private SqlUtils sqlUtils;
+
+    private Set<String> excludeColumns;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String url = System.getProperty("bench.jdbc.url", "jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        String username = System.getProperty("bench.jdbc.username", "sa");
+        String password = System.getProperty("bench.jdbc.password", "");
+
+        DriverManagerDataSource driverManagerDataSource = new DriverManagerDataSource(url, username, password);
+        dataSource = new SingleConnectionDataSource(driverManagerDataSource.getConnection(), true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        jdbcTemplate.execute("DROP TABLE IF EXISTS bench_fact");
+        jdbcTemplate.execute("CREATE TABLE bench_fact (id BIGINT PRIMARY KEY, region VARCHAR(32), product VARCHAR(64), " +
+                "stat_date DATE, amount DECIMAL(18,2), quantity INT)");
+
+        List<Object[]> batch = new ArrayList<>();
+        long day = 24L * 60 * 60 * 1000;
+        long start = Date.valueOf("2019-01-01").getTime();
+        for (int i = 0; i < rows; i++) {
+            batch.add(new Object[]{(long) i, REGIONS[i % REGIONS.length], "product_" + (i % 500),
+                    new Date(start + (i % 365) * day), BigDecimal.valueOf(i % 10000, 2), i % 100});
+            if (batch.size() == 1000) {
+                jdbcTemplate.batchUpdate("INSERT INTO bench_fact VALUES (?, ?, ?, ?, ?, ?)", batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            jdbcTemplate.batchUpdate("INSERT INTO bench_fact VALUES (?, ?, ?, ?, ?, ?)", batch);
+        }
+
+        // 只装配 SqlUtils 依赖的组件，连接池参数与 application.yml.example 一致
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", sourceProperties()));
+        context.register(SourcePasswordEncryptUtils.class, JdbcDataSource.class, QueryAuditor.class, QueryLifecycleManager.class,
+                RedisUtils.class, DomainEventBus.class, MetadataCache.class, QueryMemoryAccountant.class, SqlUtils.class);
+        context.refresh();
+
+        new LoadSupportDataSourceRunner().run(null);
+        sqlUtils = context.getBean(SqlUtils.class)
+                .init("bench", SourceTypeEnum.JDBC.getType(), url, username, password, null, null, false);
+        excludeColumns = new HashSet<>();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        jdbcTemplate.execute("DROP TABLE IF EXISTS bench_fact");
+        dataSource.destroy();
+    }
+
+    private static Map<String, Object> sourceProperties() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("file.userfiles-path", System.getProperty("java.io.tmpdir"));
+        properties.put("source.initial-size", 1);
+        properties.put("source.min-idle", 1);
+        properties.put("source.max-wait", 30000);
+        properties.put("source.max-active", 10);
+        properties.put("source.time-between-eviction-runs-millis", 2000);
+        properties.put("source.min-evictable-idle-time-millis", 600000);
+        properties.put("source.max-evictable-idle-time-millis", 900000);
+        properties.put("source.time-between-connect-error-millis", 60000);
+        properties.put("source.test-while-idle", true);
+        properties.put("source.test-on-borrow", false);
+        properties.put("source.test-on-return", false);
+        properties.put("source.validation-query", "select 1");
+        properties.put("source.validation-query-timeout", 10);
+        properties.put("source.filters", "stat");
+        return properties;
+    }
+
+    @Benchmark
+    public PaginateWithQueryColumns materialize() throws Exception {
+        return sqlUtils.syncQuery4Paginate(QUERY_SQL, null, null, null, -1, excludeColumns);
+    }
+
+    @Benchmark
+    public PaginateWithQueryColumns materializePage() throws Exception {
+        return sqlUtils.syncQuery4Paginate(QUERY_SQL, 2, PAGE_SIZE, rows, -1, excludeColumns);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.benchmark;
+
+import edp.core.utils.SqlUtils;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.Order;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.model.Source;
+import edp.davinci.service.impl.ViewServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询sql生成：sqlTemplate 渲染与 count sql 改写
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuerySqlBenchmark {
+
+    private static final String VIEW_SQL = "SELECT f.region, f.product, f.stat_date, f.amount, f.quantity, d.category " +
+            "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product WHERE f.stat_date >= '2019-01-01'";
+
+    private ViewServiceImpl viewService;
+
+    private Source source;
+
+    private ViewExecuteParam executeParam;
+
+    private String querySql;
+
+    @Setup
+    public void setup() {
+        // buildQuerySql 只依赖静态的关键字前后缀，不需要 spring 容器
+        viewService = new ViewServiceImpl();
+
+        source = new Source();
+        source.setConfig("{\"url\":\"jdbc:mysql://127.0.0.1:3306/bench\",\"username\":\"root\",\"password\":\"\"}");
+
+        executeParam = new ViewExecuteParam();
+        executeParam.setGroups(Arrays.asList("region", "product", "category"));
+        executeParam.setAggregators(Arrays.asList(new Aggregator("amount", "sum"), new Aggregator("quantity", "avg")));
+        executeParam.setOrders(Arrays.asList(new Order("region", "ASC"), new Order("amount", "DESC")));
+        executeParam.setFilters(Arrays.asList(
+                "{\"name\":\"region\",\"type\":\"filter\",\"value\":[\"'east'\",\"'west'\"],\"sqlType\":\"VARCHAR\",\"operator\":\"in\"}",
+                "{\"name\":\"quantity\",\"type\":\"filter\",\"value\":\"10\",\"sqlType\":\"INT\",\"operator\":\">\"}"));
+
+        List<String> querySqlList = new ArrayList<>();
+        querySqlList.add(VIEW_SQL);
+        viewService.buildQuerySql(querySqlList, source, executeParam);
+        querySql = querySqlList.get(0);
+    }
+
+    @Benchmark
+    public List<String> buildQuerySql() {
+        List<String> querySqlList = new ArrayList<>();
+        querySqlList.add(VIEW_SQL);
+        viewService.buildQuerySql(querySqlList, source, executeParam);
+        return querySqlList;
+    }
+
+    @Benchmark
+    public String getCountSql() {
+        return SqlUtils.getCountSql(querySql);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.benchmark;
+
+import edp.core.utils.StringZipUtil;
+import edp.davinci.service.share.ShareFactor;
+import edp.davinci.service.share.ShareMode;
+import edp.davinci.service.share.ShareType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分享 token 的生成与解析（json + AES + 压缩）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShareTokenBenchmark {
+
+    private static final String SECRET = "bench-share-secret";
+
+    private ShareFactor shareFactor;
+
+    private String token;
+
+    private String encrypted;
+
+    @Setup
+    public void setup() {
+        Set<Long> viewers = new HashSet<>();
+        for (long i = 1; i <= 50; i++) {
+            viewers.add(i);
+        }
+        shareFactor = ShareFactor.Builder.shareFactor()
+                .withMode(ShareMode.AUTH)
+                .withType(ShareType.DASHBOARD)
+                .withEntityId(1024L)
+                .withSharerId(1L)
+                .withViewers(viewers)
+                .withExpired(new Date(System.currentTimeMillis() + 7L * 24 * 60 * 60 * 1000))
+                .build();
+        token = shareFactor.toShareResult(SECRET).getToken();
+        encrypted = StringZipUtil.decompress(token);
+    }
+
+    @Benchmark
+    public String encode() {
+        return shareFactor.toShareResult(SECRET).getToken();
+    }
+
+    @Benchmark
+    public ShareFactor decode() {
+        return ShareFactor.parseShareFactor(token, SECRET);
+    }
+
+    @Benchmark
+    public String compress() {
+        return StringZipUtil.compress(encrypted);
+    }
+
+    @Benchmark
+    public String decompress() {
+        return StringZipUtil.decompress(token);
+    }
+}
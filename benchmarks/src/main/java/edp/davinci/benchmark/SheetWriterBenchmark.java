@@ -0,0 +1,121 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.benchmark;
+
+import edp.core.model.QueryColumn;
+import edp.davinci.service.excel.AbstractSheetWriter;
+import edp.davinci.service.excel.SheetContext;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * xlsx sheet 写入：表头、逐行写入与列宽计算，输出丢弃
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SheetWriterBenchmark {
+
+    private static final String[] REGIONS = {"east", "west", "north", "south"};
+
+    @Param({"1000", "10000"})
+    private int rows;
+
+    private List<QueryColumn> queryColumns;
+
+    private List<Map<String, Object>> dataList;
+
+    @Setup
+    public void setup() {
+        queryColumns = Arrays.asList(
+                new QueryColumn("id", "BIGINT"),
+                new QueryColumn("region", "VARCHAR"),
+                new QueryColumn("product", "VARCHAR"),
+                new QueryColumn("stat_date", "DATE"),
+                new QueryColumn("amount", "DECIMAL"),
+                new QueryColumn("quantity", "INT"));
+
+        dataList = new ArrayList<>(rows);
+        long day = 24L * 60 * 60 * 1000;
+        long start = Date.valueOf("2019-01-01").getTime();
+        for (int i = 0; i < rows; i++) {
+            Map<String, Object> dataMap = new HashMap<>();
+            dataMap.put("id", (long) i);
+            dataMap.put("region", REGIONS[i % REGIONS.length]);
+            dataMap.put("product", "product_" + (i % 500));
+            dataMap.put("stat_date", new Date(start + (i % 365) * day));
+            dataMap.put("amount", BigDecimal.valueOf(i % 10000, 2));
+            dataMap.put("quantity", i % 100);
+            dataList.add(dataMap);
+        }
+    }
+
+    @Benchmark
+    public int writeSheet() throws Exception {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(1000);
+        try {
+            SheetContext context = SheetContext.SheetContextBuilder.newBuilder()
+                    .withWorkbook(workbook)
+                    .withSheet(workbook.createSheet("Sheet1"))
+                    .withQueryColumns(new ArrayList<>(queryColumns))
+                    .withIsTable(false)
+                    .withContain(false)
+                    .build();
+            new BenchSheetWriter().write(context, dataList);
+            workbook.write(new DiscardOutputStream());
+            return context.getSheet().getLastRowNum();
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    private static class BenchSheetWriter extends AbstractSheetWriter {
+
+        void write(SheetContext context, List<Map<String, Object>> dataList) throws Exception {
+            init(context);
+            writeHeader(context);
+            for (Map<String, Object> dataMap : dataList) {
+                writeLine(context, dataMap);
+            }
+            refreshHeightWidth(context);
+        }
+    }
+
+    private static class DiscardOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
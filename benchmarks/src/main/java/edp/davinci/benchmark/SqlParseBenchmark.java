@@ -0,0 +1,95 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.benchmark;
+
+import edp.davinci.core.model.SqlEntity;
+import edp.davinci.core.utils.SqlParseUtils;
+import edp.davinci.model.SqlVariable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * view sql 解析：变量解析、参数替换与拆分
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SqlParseBenchmark {
+
+    private static final String DELIMITER = "$";
+
+    private static final String VIEW_SQL = "SET @tz = '+08:00';\n" +
+            "SELECT f.region, f.product, f.stat_date, SUM(f.amount) AS amount, SUM(f.quantity) AS quantity\n" +
+            "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product\n" +
+            "WHERE f.stat_date >= $startDate$ AND f.stat_date < $endDate$\n" +
+            "AND f.region IN ($regions$) AND d.category = $category$\n" +
+            "GROUP BY f.region, f.product, f.stat_date";
+
+    private SqlParseUtils sqlParseUtils;
+
+    private List<SqlVariable> variables;
+
+    private SqlEntity sqlEntity;
+
+    @Setup
+    public void setup() throws Exception {
+        sqlParseUtils = new SqlParseUtils();
+
+        variables = new ArrayList<>();
+        variables.add(queryVariable("startDate", "date", "2019-01-01"));
+        variables.add(queryVariable("endDate", "date", "2019-12-31"));
+        variables.add(queryVariable("regions", "string", "east", "west", "north", "south"));
+        variables.add(queryVariable("category", "string", "electronics"));
+
+        sqlEntity = sqlParseUtils.parseSql(VIEW_SQL, variables, DELIMITER, null, true);
+    }
+
+    @Benchmark
+    public SqlEntity parseSql() throws Exception {
+        return sqlParseUtils.parseSql(VIEW_SQL, variables, DELIMITER, null, true);
+    }
+
+    @Benchmark
+    public String replaceParams() {
+        return sqlParseUtils.replaceParams(sqlEntity.getSql(), sqlEntity.getQueryParams(), sqlEntity.getAuthParams(), DELIMITER);
+    }
+
+    @Benchmark
+    public List<String> getSqls() {
+        return sqlParseUtils.getSqls(sqlParseUtils.replaceParams(sqlEntity.getSql(), sqlEntity.getQueryParams(),
+                sqlEntity.getAuthParams(), DELIMITER), true);
+    }
+
+    private static SqlVariable queryVariable(String name, String valueType, Object... defaultValues) {
+        SqlVariable variable = new SqlVariable();
+        variable.setName(name);
+        variable.setType("query");
+        variable.setValueType(valueType);
+        variable.setDefaultValues(new ArrayList<>(Arrays.asList(defaultValues)));
+        return variable;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.audit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多生产者单消费者的无锁环形队列，队列满时直接丢弃
+ */
+class AuditRingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(0L);
+
+    /**
+     * 只由消费线程写入
+     */
+    private volatile long head = 0L;
+
+    AuditRingBuffer(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    boolean offer(T element) {
+        while (true) {
+            long t = tail.get();
+            if (t - head >= slots.length()) {
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                slots.lazySet((int) (t & mask), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 只允许单线程调用，槽位已被占用但尚未写入时返回null
+     *
+     * @return
+     */
+    T poll() {
+        int index = (int) (head & mask);
+        T element = slots.get(index);
+        if (null == element) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head = head + 1;
+        return element;
+    }
+}
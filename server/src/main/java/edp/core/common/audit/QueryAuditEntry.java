@@ -0,0 +1,81 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.audit;
+
+import edp.core.utils.QueryTrace;
+import lombok.Data;
+
+/**
+ * 一次sql执行的审计记录，只保存原始sql，格式化在后台完成
+ */
+@Data
+public class QueryAuditEntry {
+
+    public static final String EXECUTE = "execute";
+
+    public static final String QUERY = "query";
+
+    public static final String EXPORT = "export";
+
+    private String type;
+
+    private String sql;
+
+    private long time;
+
+    private long elapsed;
+
+    private long totalCount;
+
+    private int pageSize;
+
+    private Long userId;
+
+    private Long viewId;
+
+    private Long sourceId;
+
+    /**
+     * 用户、view与数据源取自当前线程的 {@link QueryTrace}
+     *
+     * @param type
+     * @param sql
+     * @param before     开始时间
+     * @param totalCount
+     * @param pageSize
+     * @return
+     */
+    public static QueryAuditEntry of(String type, String sql, long before, long totalCount, int pageSize) {
+        QueryAuditEntry entry = new QueryAuditEntry();
+        entry.type = type;
+        entry.sql = sql;
+        entry.time = before;
+        entry.elapsed = System.currentTimeMillis() - before;
+        entry.totalCount = totalCount;
+        entry.pageSize = pageSize;
+        QueryTrace trace = QueryTrace.current();
+        if (null != trace) {
+            entry.userId = trace.getUserId();
+            entry.viewId = trace.getViewId();
+            entry.sourceId = trace.getSourceId();
+        }
+        return entry;
+    }
+}
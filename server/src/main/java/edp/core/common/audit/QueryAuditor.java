@@ -0,0 +1,138 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.audit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.utils.DateUtils;
+import edp.core.utils.MD5Util;
+import edp.core.utils.SqlUtils;
+import edp.davinci.core.enums.LogNameEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * sql审计日志
+ * <p>
+ * 请求线程只把原始sql放入环形队列，后台线程计算指纹并写入 BUSINESS_SQL 日志；
+ * 同一指纹的sql只格式化输出一次，之后的记录只带指纹
+ */
+@Slf4j
+@Component
+public class QueryAuditor {
+
+    private static final Logger sqlLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_SQL.getName());
+
+    @Value("${source.enable-query-log:false}")
+    private boolean enable;
+
+    @Value("${source.query-audit.buffer-size:8192}")
+    private int bufferSize;
+
+    @Value("${source.query-audit.fingerprint-cache-size:10000}")
+    private long fingerprintCacheSize;
+
+    @Value("${source.query-audit.flush-interval-millis:200}")
+    private long flushIntervalMillis;
+
+    private AuditRingBuffer<QueryAuditEntry> buffer;
+
+    private Cache<String, Boolean> fingerprints;
+
+    private ScheduledExecutorService consumer;
+
+    private final AtomicLong dropped = new AtomicLong(0L);
+
+    private long reportedDropped = 0L;
+
+    @PostConstruct
+    public void init() {
+        buffer = new AuditRingBuffer<>(bufferSize);
+        fingerprints = CacheBuilder.newBuilder().maximumSize(fingerprintCacheSize).build();
+        consumer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Query-audit-%d").setDaemon(true).build());
+        consumer.scheduleWithFixedDelay(this::drain, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        consumer.shutdown();
+        consumer.awaitTermination(5, TimeUnit.SECONDS);
+        drain();
+    }
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 提交审计记录，不阻塞，队列满时丢弃
+     *
+     * @param entry
+     */
+    public void submit(QueryAuditEntry entry) {
+        if (!enable || null == buffer) {
+            return;
+        }
+        if (!buffer.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        try {
+            QueryAuditEntry entry;
+            while (null != (entry = buffer.poll())) {
+                write(entry);
+            }
+
+            long droppedCount = dropped.get();
+            if (droppedCount > reportedDropped) {
+                log.warn("Query audit buffer is full, {} entries dropped", droppedCount - reportedDropped);
+                reportedDropped = droppedCount;
+            }
+        } catch (Throwable e) {
+            log.error("Query audit drain error:{}", e.getMessage());
+        }
+    }
+
+    private void write(QueryAuditEntry entry) {
+        String fingerprint = MD5Util.getMD5(entry.getSql(), true, 16);
+        if (null == fingerprints.getIfPresent(fingerprint)) {
+            fingerprints.put(fingerprint, Boolean.TRUE);
+            sqlLogger.info("{} sql:{}", fingerprint, SqlUtils.formatSql(entry.getSql()));
+        }
+
+        sqlLogger.info("{} {} at {} for {} ms, total count:{}, page size:{}, user:{}, view:{}, source:{}",
+                fingerprint, entry.getType(), DateUtils.toyyyyMMddHHmmss(entry.getTime()), entry.getElapsed(),
+                entry.getTotalCount(), entry.getPageSize(), entry.getUserId(), entry.getViewId(), entry.getSourceId());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.buffer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 查询结果内存的全局额度
+ * <p>
+ * 结果缓冲在内存中保存行时按块占用额度，单次查询超过请求额度或全局额度不足时，其余行写入磁盘；
+ * 额度在所属的 {@link ResultScope} 关闭（响应写出后）时归还，不在作用域内的缓冲在结果不再被引用时归还
+ */
+@Slf4j
+@Component
+public class QueryMemoryAccountant {
+
+    private static final long MB = 1024L * 1024L;
+
+    @Value("${source.result-buffer.enable:true}")
+    private boolean enable;
+
+    @Value("${source.result-buffer.request-budget-mb:64}")
+    private long requestBudgetMb;
+
+    @Value("${source.result-buffer.global-budget-mb:512}")
+    private long globalBudgetMb;
+
+    @Value("${source.result-buffer.spill-path:}")
+    private String spillPath;
+
+    private long globalBudget;
+
+    private File spillDir;
+
+    private final AtomicLong inFlight = new AtomicLong(0L);
+
+    private final AtomicLong peak = new AtomicLong(0L);
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    private final Set<Reservation> reservations = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder spilledBuffers = new LongAdder();
+
+    private final LongAdder spilledRows = new LongAdder();
+
+    private final LongAdder spilledBytes = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        globalBudget = Math.max(globalBudgetMb, 1L) * MB;
+        spillDir = new File(spillPath == null || spillPath.trim().isEmpty() ? System.getProperty("java.io.tmpdir") : spillPath.trim());
+        if (!spillDir.exists() && !spillDir.mkdirs()) {
+            log.warn("Result buffer spill path {} is not available", spillDir.getAbsolutePath());
+        }
+    }
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 创建结果缓冲，登记到当前线程的 {@link ResultScope}，随作用域关闭
+     *
+     * @param keys 列名，与行中的顺序一致
+     * @return
+     */
+    public ResultBuffer newBuffer(List<String> keys) {
+        ResultBuffer buffer = new ResultBuffer(keys, this, Math.max(requestBudgetMb, 1L) * MB, spillDir);
+        ResultScope.register(buffer);
+        return buffer;
+    }
+
+    /**
+     * 占用额度，全局额度不足时返回false
+     *
+     * @param bytes
+     * @return
+     */
+    boolean tryReserve(long bytes) {
+        expunge();
+        long current;
+        do {
+            current = inFlight.get();
+            if (current + bytes > globalBudget) {
+                rejected.increment();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + bytes));
+
+        long max;
+        while ((max = peak.get()) < current + bytes && !peak.compareAndSet(max, current + bytes)) {
+            // retry
+        }
+        return true;
+    }
+
+    void release(long bytes) {
+        if (bytes > 0L) {
+            inFlight.addAndGet(-bytes);
+        }
+    }
+
+    /**
+     * 将已占用的额度与内存中的行绑定，缓冲未关闭而行不再被引用时由下一次占用归还
+     *
+     * @param referent
+     * @param bytes
+     * @return
+     */
+    Reservation track(Object referent, long bytes) {
+        if (bytes <= 0L) {
+            return null;
+        }
+        Reservation reservation = new Reservation(referent, bytes);
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    void spilled(long rows, long bytes) {
+        spilledBuffers.increment();
+        spilledRows.add(rows);
+        spilledBytes.add(bytes);
+    }
+
+    private void expunge() {
+        Reference<?> reference;
+        while (null != (reference = queue.poll())) {
+            ((Reservation) reference).release();
+        }
+    }
+
+    public long getInFlightBytes() {
+        expunge();
+        return inFlight.get();
+    }
+
+    public void write(PrintWriter writer) {
+        writeMetric(writer, "davinci_result_memory_bytes", "Heap bytes held by in-flight query results", "gauge", getInFlightBytes());
+        writeMetric(writer, "davinci_result_memory_peak_bytes", "Peak heap bytes held by query results", "gauge", peak.get());
+        writeMetric(writer, "davinci_result_memory_budget_bytes", "Global budget for query results", "gauge", globalBudget);
+        writeMetric(writer, "davinci_result_memory_rejected_total", "Reservations rejected by the global budget", "counter", rejected.sum());
+        writeMetric(writer, "davinci_result_spilled_total", "Query results spilled to disk", "counter", spilledBuffers.sum());
+        writeMetric(writer, "davinci_result_spilled_rows_total", "Rows spilled to disk", "counter", spilledRows.sum());
+        writeMetric(writer, "davinci_result_spilled_bytes_total", "Bytes spilled to disk", "counter", spilledBytes.sum());
+        writer.flush();
+    }
+
+    private void writeMetric(PrintWriter writer, String name, String help, String type, long value) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " " + type);
+        writer.println(name + " " + value);
+    }
+
+    final class Reservation extends PhantomReference<Object> {
+
+        private final long bytes;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Reservation(Object referent, long bytes) {
+            super(referent, queue);
+            this.bytes = bytes;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                reservations.remove(this);
+                QueryMemoryAccountant.this.release(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,661 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.buffer;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.google.common.io.CountingOutputStream;
+import edp.core.exception.ServerException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 查询结果缓冲
+ * <p>
+ * 行在请求额度内保存在内存中，超出后按列顺序编码写入临时文件；
+ * 写入完成后文件以只读方式映射，读取时按行偏移解码，不会把全部结果加载到堆内存。
+ * 关闭时归还额度、解除映射并删除文件，关闭后落盘的行不可再读取。
+ * <p>
+ * 只有能按原类型读回的值才会落盘，遇到其他类型（如 Clob 或驱动私有类型）时已落盘的行读回内存，
+ * 该结果不再落盘，保证同一查询是否超出额度返回的取值类型一致
+ */
+@Slf4j
+@JsonSerialize(using = ResultBufferSerializer.class)
+public class ResultBuffer extends AbstractList<Map<String, Object>> implements RandomAccess, Closeable {
+
+    private static final long RESERVE_CHUNK = 1024L * 1024L;
+
+    private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte DECIMAL = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte TIMESTAMP = 8;
+    private static final byte SQL_DATE = 9;
+    private static final byte SQL_TIME = 10;
+    private static final byte DATE = 11;
+    private static final byte SHORT = 12;
+    private static final byte BYTE = 13;
+    private static final byte BIG_INTEGER = 14;
+    private static final byte LOCAL_DATE_TIME = 15;
+    private static final byte LOCAL_DATE = 16;
+    private static final byte LOCAL_TIME = 17;
+    private static final byte OFFSET_DATE_TIME = 18;
+    private static final byte UUID_VALUE = 19;
+
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    private static final Method CLEANER;
+
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            try {
+                // Java 8
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception ex) {
+                log.warn("Mapped result buffers can not be unmapped explicitly: {}", ex.getMessage());
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+    private final List<String> keys;
+
+    private final QueryMemoryAccountant accountant;
+
+    private final long budget;
+
+    private final File spillDir;
+
+    private final List<Map<String, Object>> rows = new ArrayList<>();
+
+    private long usedBytes;
+
+    private long reservedBytes;
+
+    private File file;
+
+    private CountingOutputStream counter;
+
+    private DataOutputStream out;
+
+    private long[] offsets = new long[1024];
+
+    private int spilledRows;
+
+    private ByteBuffer[] segments;
+
+    private long[] segmentStarts;
+
+    private int[] segmentFirstRows;
+
+    private QueryMemoryAccountant.Reservation reservation;
+
+    private boolean inMemory;
+
+    private volatile boolean sealed;
+
+    private volatile boolean closed;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    ResultBuffer(List<String> keys, QueryMemoryAccountant accountant, long budget, File spillDir) {
+        this.keys = keys;
+        this.accountant = accountant;
+        this.budget = budget;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * 追加一行，键需与创建缓冲时的列名一致
+     *
+     * @param row
+     */
+    public void append(Map<String, Object> row) {
+        if (sealed || closed) {
+            throw new IllegalStateException("Result buffer is " + (closed ? "closed" : "sealed"));
+        }
+
+        if (null == out) {
+            long size = estimate(row);
+            if (inMemory || usedBytes + size <= budget && reserve(usedBytes + size)) {
+                rows.add(row);
+                usedBytes += size;
+                return;
+            }
+        }
+
+        Object unsupported = findUnsupported(row);
+        if (null != unsupported) {
+            keepInMemory(unsupported);
+            append(row);
+            return;
+        }
+
+        if (null == out) {
+            openSpill();
+        }
+
+        try {
+            if (spilledRows == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[spilledRows] = counter.getCount();
+            for (String key : keys) {
+                writeValue(out, row.get(key));
+            }
+            spilledRows++;
+        } catch (IOException e) {
+            close();
+            throw new ServerException("Write result buffer error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 写入完成，之后只读
+     *
+     * @return
+     */
+    public ResultBuffer seal() {
+        if (closed) {
+            throw new IllegalStateException("Result buffer is closed");
+        }
+        if (sealed) {
+            return this;
+        }
+        sealed = true;
+        reservation = accountant.track(rows, reservedBytes);
+        reservedBytes = 0L;
+
+        if (null == out) {
+            return this;
+        }
+
+        try {
+            out.close();
+            long size = counter.getCount();
+            map(size);
+            accountant.spilled(spilledRows, size);
+            log.info("Result buffer spilled {} of {} rows ({} bytes) to disk", spilledRows, size(), size);
+        } catch (IOException e) {
+            close();
+            throw new ServerException("Map result buffer error: " + e.getMessage(), e);
+        }
+
+        // 映射中的文件在部分系统（如Windows）上不能删除，留到关闭时解除映射后删除
+        if (file.delete()) {
+            file = null;
+        }
+        return this;
+    }
+
+    public boolean isSpilled() {
+        return spilledRows > 0;
+    }
+
+    /**
+     * 结果是否为落盘的缓冲，这类结果关闭后不可读取，不能放入缓存
+     *
+     * @param list
+     * @return
+     */
+    public static boolean isSpilled(List<?> list) {
+        return list instanceof ResultBuffer && ((ResultBuffer) list).isSpilled();
+    }
+
+    /**
+     * 内存中的行，未落盘时即为全部结果
+     *
+     * @return
+     */
+    public List<Map<String, Object>> getRows() {
+        return rows;
+    }
+
+    @Override
+    public Map<String, Object> get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        if (index < rows.size()) {
+            return rows.get(index);
+        }
+
+        // 读取期间不能解除映射
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Result buffer is closed");
+            }
+            if (null == segments) {
+                throw new IllegalStateException("Result buffer is not sealed");
+            }
+
+            int row = index - rows.size();
+            int segment = Arrays.binarySearch(segmentFirstRows, row);
+            if (segment < 0) {
+                segment = -segment - 2;
+            }
+            ByteBuffer buffer = segments[segment].duplicate();
+            buffer.position((int) (offsets[row] - segmentStarts[segment]));
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (String key : keys) {
+                map.put(key, readValue(buffer));
+            }
+            return map;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return rows.size() + spilledRows;
+    }
+
+    /**
+     * 归还内存额度，解除映射并删除临时文件；内存中的行仍可读取
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (null != reservation) {
+                reservation.release();
+            }
+            accountant.release(reservedBytes);
+            reservedBytes = 0L;
+
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.warn("Close result buffer error: {}", e.getMessage());
+                }
+            }
+
+            if (null != segments) {
+                for (ByteBuffer segment : segments) {
+                    unmap(segment);
+                }
+                segments = null;
+            }
+            deleteFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 放弃落盘，已落盘的行读回内存
+     */
+    private void keepInMemory(Object unsupported) {
+        inMemory = true;
+        log.warn("Result buffer keeps {} rows in memory, value type {} can not be spilled", size() + 1, unsupported.getClass().getName());
+        if (null == out) {
+            return;
+        }
+
+        try {
+            out.close();
+            if (spilledRows > 0) {
+                map(counter.getCount());
+                List<Map<String, Object>> spilled = new ArrayList<>(spilledRows);
+                for (int i = rows.size(); i < size(); i++) {
+                    Map<String, Object> row = get(i);
+                    usedBytes += estimate(row);
+                    spilled.add(row);
+                }
+                rows.addAll(spilled);
+            }
+        } catch (IOException e) {
+            close();
+            throw new ServerException("Read result buffer error: " + e.getMessage(), e);
+        } finally {
+            if (null != segments) {
+                for (ByteBuffer segment : segments) {
+                    unmap(segment);
+                }
+                segments = null;
+            }
+            out = null;
+            counter = null;
+            spilledRows = 0;
+            deleteFile();
+        }
+    }
+
+    private boolean reserve(long required) {
+        while (reservedBytes < required) {
+            if (!accountant.tryReserve(RESERVE_CHUNK)) {
+                return false;
+            }
+            reservedBytes += RESERVE_CHUNK;
+        }
+        return true;
+    }
+
+    private void openSpill() {
+        try {
+            file = File.createTempFile("result-", ".buf", spillDir);
+            counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            out = new DataOutputStream(counter);
+        } catch (IOException e) {
+            deleteFile();
+            throw new ServerException("Create result buffer error: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 按行边界分段映射，每段不超过2G
+     */
+    private void map(long size) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        List<Long> starts = new ArrayList<>();
+        List<Integer> firstRows = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int row = 0;
+            while (row < spilledRows) {
+                long start = offsets[row];
+                int next;
+                if (size - start <= MAX_SEGMENT) {
+                    next = spilledRows;
+                } else {
+                    int index = Arrays.binarySearch(offsets, row + 1, spilledRows, start + MAX_SEGMENT);
+                    next = Math.max(index >= 0 ? index : -index - 2, row + 1);
+                }
+                long end = next < spilledRows ? offsets[next] : size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                buffers.add(buffer);
+                starts.add(start);
+                firstRows.add(row);
+                row = next;
+            }
+        }
+
+        segments = buffers.toArray(new ByteBuffer[0]);
+        segmentStarts = new long[starts.size()];
+        segmentFirstRows = new int[firstRows.size()];
+        for (int i = 0; i < segmentStarts.length; i++) {
+            segmentStarts[i] = starts.get(i);
+            segmentFirstRows[i] = firstRows.get(i);
+        }
+    }
+
+    private void deleteFile() {
+        if (null != file) {
+            if (!file.delete() && file.exists()) {
+                log.warn("Delete result buffer file {} failed", file.getAbsolutePath());
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * 立即解除映射，不等待GC回收
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            if (null != INVOKE_CLEANER) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (null != CLEANER) {
+                Object cleaner = CLEANER.invoke(buffer);
+                if (null != cleaner) {
+                    CLEAN.invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Unmap result buffer error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 行在堆中的近似大小
+     */
+    private static long estimate(Map<String, Object> row) {
+        long size = 64L;
+        for (Object value : row.values()) {
+            size += 48L;
+            if (value instanceof String) {
+                size += 40L + 2L * ((String) value).length();
+            } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+                size += 64L;
+            } else if (null != value) {
+                size += 24L;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 行中第一个不能按原类型编码的值，全部可编码时返回null
+     */
+    private Object findUnsupported(Map<String, Object> row) {
+        for (String key : keys) {
+            Object value = row.get(key);
+            if (null != value && !isSupported(value)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSupported(Object value) {
+        if (value instanceof Date) {
+            // 子类按父类编码会丢失类型，只接受JDBC的日期类型
+            Class<?> type = value.getClass();
+            return type == Timestamp.class || type == java.sql.Date.class || type == Time.class || type == Date.class;
+        }
+        return value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Double || value instanceof Float || value instanceof BigDecimal
+                || value instanceof Boolean || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger || value instanceof LocalDateTime || value instanceof LocalDate
+                || value instanceof LocalTime || value instanceof OffsetDateTime || value instanceof UUID;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (null == value) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            out.writeByte(DECIMAL);
+            out.writeInt(decimal.scale());
+            writeBytes(out, decimal.unscaledValue().toByteArray());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((java.sql.Date) value).getTime());
+        } else if (value instanceof Time) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((Time) value).getTime());
+        } else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) value).toByteArray());
+        } else if (value instanceof LocalDateTime) {
+            LocalDateTime dateTime = (LocalDateTime) value;
+            out.writeByte(LOCAL_DATE_TIME);
+            out.writeLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(dateTime.getNano());
+        } else if (value instanceof LocalDate) {
+            out.writeByte(LOCAL_DATE);
+            out.writeLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof LocalTime) {
+            out.writeByte(LOCAL_TIME);
+            out.writeLong(((LocalTime) value).toNanoOfDay());
+        } else if (value instanceof OffsetDateTime) {
+            OffsetDateTime dateTime = (OffsetDateTime) value;
+            out.writeByte(OFFSET_DATE_TIME);
+            out.writeLong(dateTime.toLocalDateTime().toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(dateTime.getNano());
+            out.writeInt(dateTime.getOffset().getTotalSeconds());
+        } else if (value instanceof UUID) {
+            out.writeByte(UUID_VALUE);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else {
+            throw new IllegalArgumentException("Unsupported value type in result buffer: " + value.getClass().getName());
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Object readValue(ByteBuffer buffer) {
+        byte type = buffer.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(readBytes(buffer), StandardCharsets.UTF_8);
+            case INTEGER:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case DOUBLE:
+                return buffer.getDouble();
+            case FLOAT:
+                return buffer.getFloat();
+            case DECIMAL:
+                int scale = buffer.getInt();
+                return new BigDecimal(new BigInteger(readBytes(buffer)), scale);
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(buffer.getLong());
+                timestamp.setNanos(buffer.getInt());
+                return timestamp;
+            case SQL_DATE:
+                return new java.sql.Date(buffer.getLong());
+            case SQL_TIME:
+                return new Time(buffer.getLong());
+            case DATE:
+                return new Date(buffer.getLong());
+            case SHORT:
+                return buffer.getShort();
+            case BYTE:
+                return buffer.get();
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(buffer));
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(buffer.getLong());
+            case LOCAL_TIME:
+                return LocalTime.ofNanoOfDay(buffer.getLong());
+            case OFFSET_DATE_TIME:
+                LocalDateTime local = LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+                return OffsetDateTime.of(local, ZoneOffset.ofTotalSeconds(buffer.getInt()));
+            case UUID_VALUE:
+                return new UUID(buffer.getLong(), buffer.getLong());
+            default:
+                throw new IllegalStateException("Unknown value type in result buffer: " + type);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.buffer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.WritableTypeId;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * 缓存编码时逐行写出结果缓冲，类型信息按 ArrayList 写入，读取缓存时还原为普通列表
+ */
+public class ResultBufferSerializer extends StdSerializer<ResultBuffer> {
+
+    public ResultBufferSerializer() {
+        super(ResultBuffer.class);
+    }
+
+    @Override
+    public void serialize(ResultBuffer value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartArray();
+        for (Map<String, Object> row : value) {
+            provider.defaultSerializeValue(row, gen);
+        }
+        gen.writeEndArray();
+    }
+
+    @Override
+    public void serializeWithType(ResultBuffer value, JsonGenerator gen, SerializerProvider provider, TypeSerializer typeSer) throws IOException {
+        WritableTypeId typeId = typeSer.writeTypePrefix(gen, typeSer.typeId(value, ArrayList.class, JsonToken.START_ARRAY));
+        for (Map<String, Object> row : value) {
+            if (null == row) {
+                provider.defaultSerializeNull(gen);
+            } else {
+                provider.findTypedValueSerializer(row.getClass(), true, null).serialize(row, gen, provider);
+            }
+        }
+        typeSer.writeTypeSuffix(gen, typeId);
+    }
+}
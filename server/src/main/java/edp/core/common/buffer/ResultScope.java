@@ -0,0 +1,117 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.buffer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次请求内创建的结果缓冲
+ * <p>
+ * 由请求线程开启，工作线程通过 {@link #attach(ResultScope)} 继续登记；
+ * 响应写出后关闭，归还内存额度并释放落盘结果的映射。不在任何作用域内创建的缓冲只能由GC回收
+ */
+public class ResultScope implements Closeable {
+
+    private static final ThreadLocal<ResultScope> CURRENT = new ThreadLocal<>();
+
+    private final List<ResultBuffer> buffers = new ArrayList<>();
+
+    private boolean closed = false;
+
+    public static ResultScope begin() {
+        ResultScope scope = new ResultScope();
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * 在工作线程中继续登记请求线程开启的作用域
+     *
+     * @param scope
+     */
+    public static void attach(ResultScope scope) {
+        if (null != scope) {
+            CURRENT.set(scope);
+        }
+    }
+
+    public static ResultScope current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 解除当前线程的作用域，不关闭其中的缓冲
+     */
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * 登记到当前线程的作用域，没有作用域或作用域已关闭时返回false
+     *
+     * @param buffer
+     * @return
+     */
+    static boolean register(ResultBuffer buffer) {
+        ResultScope scope = CURRENT.get();
+        return null != scope && scope.add(buffer);
+    }
+
+    private synchronized boolean add(ResultBuffer buffer) {
+        if (closed) {
+            return false;
+        }
+        buffers.add(buffer);
+        return true;
+    }
+
+    /**
+     * 是否持有落盘的结果
+     *
+     * @return
+     */
+    public synchronized boolean hasSpilled() {
+        for (ResultBuffer buffer : buffers) {
+            if (buffer.isSpilled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 关闭作用域内的全部缓冲，之后落盘的结果不可再读取
+     */
+    @Override
+    public void close() {
+        List<ResultBuffer> list;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            list = new ArrayList<>(buffers);
+            buffers.clear();
+        }
+        list.forEach(ResultBuffer::close);
+    }
+}
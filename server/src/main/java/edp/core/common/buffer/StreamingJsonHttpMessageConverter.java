@@ -0,0 +1,78 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.buffer;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.serializer.JSONSerializer;
+import com.alibaba.fastjson.serializer.SerializeFilter;
+import com.alibaba.fastjson.serializer.SerializeWriter;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.alibaba.fastjson.support.config.FastJsonConfig;
+import com.alibaba.fastjson.support.spring.FastJsonHttpMessageConverter;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * 响应包含落盘的查询结果时，边序列化边写出响应体
+ * <p>
+ * {@link FastJsonHttpMessageConverter} 先把整个响应体序列化到内存再写出，落盘的结果会因此被整体读回堆内存；
+ * 这类响应改为分块写出，不再设置 Content-Length，其余响应保持原有行为
+ */
+public class StreamingJsonHttpMessageConverter extends FastJsonHttpMessageConverter {
+
+    @Override
+    protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        ResultScope scope = ResultScope.current();
+        if (null == scope || !scope.hasSpilled()) {
+            super.writeInternal(object, outputMessage);
+            return;
+        }
+
+        FastJsonConfig config = getFastJsonConfig();
+        Writer writer = new OutputStreamWriter(outputMessage.getBody(), config.getCharset());
+        // 带 writer 的 SerializeWriter 在缓冲区写满时写出，不会扩容到整个响应体
+        SerializeWriter out = new SerializeWriter(writer, JSON.DEFAULT_GENERATE_FEATURE, config.getSerializerFeatures());
+        try {
+            JSONSerializer serializer = new JSONSerializer(out, config.getSerializeConfig());
+            String dateFormat = config.getDateFormat();
+            if (null != dateFormat && !dateFormat.isEmpty()) {
+                serializer.setDateFormat(dateFormat);
+                serializer.config(SerializerFeature.WriteDateUseDateFormat, true);
+            }
+            if (null != config.getSerializeFilters()) {
+                for (SerializeFilter filter : config.getSerializeFilters()) {
+                    serializer.addFilter(filter);
+                }
+            }
+            serializer.write(object);
+            out.flush();
+            writer.flush();
+        } catch (JSONException e) {
+            throw new HttpMessageNotWritableException("Could not write JSON: " + e.getMessage(), e);
+        } finally {
+            out.close();
+        }
+    }
+}
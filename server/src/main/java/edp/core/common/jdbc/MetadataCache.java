@@ -0,0 +1,167 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.jdbc;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edp.core.model.JdbcSourceInfo;
+import edp.core.model.QueryColumn;
+import edp.core.model.TableInfo;
+import edp.core.utils.MD5Util;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.SourceChanged;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static edp.core.consts.Consts.AT_SYMBOL;
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 数据源元数据缓存
+ * <p>
+ * 缓存表结构（DatabaseMetaData）与查询结果列（按sql指纹），避免每次导出、查看表结构、写入统计数据时重复探测；
+ * 数据源重连或修改时按 {@link SourceChanged} 事件失效
+ */
+@Slf4j
+@Component
+public class MetadataCache {
+
+    private static final String TABLE = "T";
+
+    private static final String QUERY = "Q";
+
+    @Autowired
+    private DomainEventBus domainEventBus;
+
+    @Value("${source.metadata-cache.enable:true}")
+    private boolean enable;
+
+    @Value("${source.metadata-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${source.metadata-cache.max-entries:10000}")
+    private long maxEntries;
+
+    private Cache<String, Entry> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+        domainEventBus.subscribe(SourceChanged.class, event -> invalidateSource(event.getEntityId()));
+    }
+
+    public TableInfo getTableInfo(JdbcSourceInfo sourceInfo, String dbName, String tableName) {
+        Object value = get(getTableKey(sourceInfo, dbName, tableName));
+        if (!(value instanceof TableInfo)) {
+            return null;
+        }
+        // 调用方会按权限移除隐藏列，返回副本
+        TableInfo tableInfo = (TableInfo) value;
+        return new TableInfo(tableInfo.getTableName(), new ArrayList<>(tableInfo.getPrimaryKeys()), new ArrayList<>(tableInfo.getColumns()));
+    }
+
+    public void putTableInfo(JdbcSourceInfo sourceInfo, String dbName, String tableName, TableInfo tableInfo) {
+        if (null == tableInfo) {
+            return;
+        }
+        put(getTableKey(sourceInfo, dbName, tableName), sourceInfo,
+                new TableInfo(tableInfo.getTableName(), new ArrayList<>(tableInfo.getPrimaryKeys()), new ArrayList<>(tableInfo.getColumns())));
+    }
+
+    /**
+     * 查询结果的全部列（未排除隐藏列）
+     *
+     * @param sourceInfo
+     * @param sql
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public List<QueryColumn> getQueryColumns(JdbcSourceInfo sourceInfo, String sql) {
+        Object value = get(getQueryKey(sourceInfo, sql));
+        return value instanceof List ? new ArrayList<>((List<QueryColumn>) value) : null;
+    }
+
+    public void putQueryColumns(JdbcSourceInfo sourceInfo, String sql, List<QueryColumn> columns) {
+        put(getQueryKey(sourceInfo, sql), sourceInfo, new ArrayList<>(columns));
+    }
+
+    /**
+     * 清除数据源的全部元数据
+     *
+     * @param sourceInfo
+     */
+    public void invalidate(JdbcSourceInfo sourceInfo) {
+        String prefix = getSourceKey(sourceInfo);
+        cache.asMap().keySet().removeIf(key -> key.substring(2).startsWith(prefix));
+    }
+
+    public void invalidateSource(Long sourceId) {
+        String prefix = sourceId + AT_SYMBOL;
+        cache.asMap().values().removeIf(entry -> null != entry.sourceName && entry.sourceName.startsWith(prefix));
+    }
+
+    private Object get(String key) {
+        if (!enable) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(key);
+        return null == entry ? null : entry.value;
+    }
+
+    private void put(String key, JdbcSourceInfo sourceInfo, Object value) {
+        if (!enable || null == value) {
+            return;
+        }
+        cache.put(key, new Entry(sourceInfo.getName(), value));
+    }
+
+    private String getTableKey(JdbcSourceInfo sourceInfo, String dbName, String tableName) {
+        return TABLE + MINUS + getSourceKey(sourceInfo) + MINUS + dbName + MINUS + tableName;
+    }
+
+    private String getQueryKey(JdbcSourceInfo sourceInfo, String sql) {
+        return QUERY + MINUS + getSourceKey(sourceInfo) + MINUS + MD5Util.getMD5(sql, true, 32);
+    }
+
+    private String getSourceKey(JdbcSourceInfo sourceInfo) {
+        return MD5Util.getMD5(sourceInfo.getJdbcUrl() + MINUS + sourceInfo.getUsername() + MINUS + sourceInfo.getDbVersion(), true, 32);
+    }
+
+    private static class Entry {
+        private final String sourceName;
+        private final Object value;
+
+        Entry(String sourceName, Object value) {
+            this.sourceName = sourceName;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.jdbc;
+
+/**
+ * 当前线程所属的数据请求，用于关联执行中的查询
+ */
+public class QueryContext {
+
+    private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<>();
+
+    private final String requestId;
+
+    private final Long userId;
+
+    private final String queryKey;
+
+    private QueryContext(String requestId, Long userId, String queryKey) {
+        this.requestId = requestId;
+        this.userId = userId;
+        this.queryKey = queryKey;
+    }
+
+    public static QueryContext begin(String requestId, Long userId, String queryKey) {
+        QueryContext context = new QueryContext(requestId, userId, queryKey);
+        CURRENT.set(context);
+        return context;
+    }
+
+    public static QueryContext current() {
+        return CURRENT.get();
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * 暂时脱离当前请求，如执行多个请求合并后的查询
+     *
+     * @return 脱离前的上下文
+     */
+    public static QueryContext suspend() {
+        QueryContext context = CURRENT.get();
+        CURRENT.remove();
+        return context;
+    }
+
+    public static void resume(QueryContext context) {
+        if (null != context) {
+            CURRENT.set(context);
+        }
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public String getQueryKey() {
+        return queryKey;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.jdbc;
+
+import com.alibaba.druid.util.StringUtils;
+import edp.core.exception.ServerException;
+import edp.core.model.Dict;
+import edp.core.utils.CollectionUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 查询生命周期管理
+ * <p>
+ * 登记执行中的statement及其所属请求与用户；客户端断开、同一widget发起新请求或被管理员终止时，
+ * 调用 {@link java.sql.Statement#cancel()} 释放连接与数据源资源
+ */
+@Slf4j
+@Component
+public class QueryLifecycleManager {
+
+    private static final String TIMEOUT_PROPERTY = "davinci.query-timeout-seconds";
+
+    @Value("${source.query-lifecycle.statement-timeout-seconds:0}")
+    private int statementTimeoutSeconds;
+
+    private final Map<String, RunningQuery> queries = new ConcurrentHashMap<>();
+
+    /**
+     * 进行中的请求，value 表示是否已被取消
+     */
+    private final Map<String, Boolean> requests = new ConcurrentHashMap<>();
+
+    /**
+     * 用户与请求标识对应的最新请求，标识由页面生成，包含页面id
+     */
+    private final Map<String, String> latestRequests = new ConcurrentHashMap<>();
+
+    /**
+     * 开始一个数据请求，同一用户同一请求标识（同一页面的同一widget）的旧请求被取消
+     *
+     * @param requestId
+     * @param userId
+     * @param queryKey
+     */
+    public void beginRequest(String requestId, Long userId, String queryKey) {
+        requests.put(requestId, false);
+        if (StringUtils.isEmpty(queryKey)) {
+            return;
+        }
+        String previous = latestRequests.put(userId + MINUS + queryKey, requestId);
+        if (null != previous && !previous.equals(requestId)) {
+            int count = cancelRequest(previous);
+            if (count > 0) {
+                log.info("User({}) query({}) superseded, {} statements cancelled", userId, queryKey, count);
+            }
+        }
+    }
+
+    public void endRequest(String requestId, Long userId, String queryKey) {
+        requests.remove(requestId);
+        if (!StringUtils.isEmpty(queryKey)) {
+            latestRequests.remove(userId + MINUS + queryKey, requestId);
+        }
+    }
+
+    /**
+     * 取消请求及其执行中的查询
+     *
+     * @param requestId
+     * @return 被取消的statement数
+     */
+    public int cancelRequest(String requestId) {
+        requests.computeIfPresent(requestId, (id, cancelled) -> true);
+        int count = 0;
+        for (RunningQuery query : queries.values()) {
+            if (requestId.equals(query.getRequestId())) {
+                query.cancel();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 登记即将执行的查询，所属请求已被取消时抛出异常
+     *
+     * @param source
+     * @param sql
+     * @return
+     * @throws ServerException
+     */
+    public RunningQuery start(String source, String sql) throws ServerException {
+        QueryContext context = QueryContext.current();
+        if (null != context && Boolean.TRUE.equals(requests.get(context.getRequestId()))) {
+            throw new ServerException("Query cancelled");
+        }
+        RunningQuery query = new RunningQuery(UUID.randomUUID().toString().replace(MINUS, ""), context, source, sql);
+        queries.put(query.getId(), query);
+        return query;
+    }
+
+    public void finish(RunningQuery query) {
+        queries.remove(query.getId());
+    }
+
+
+    /**
+     * 终止查询
+     *
+     * @param id
+     * @param userId 为null时不校验所属用户
+     * @return
+     */
+    public boolean kill(String id, Long userId) {
+        RunningQuery query = queries.get(id);
+        if (null == query || (null != userId && !userId.equals(query.getUserId()))) {
+            return false;
+        }
+        query.cancel();
+        log.info("Query({}) on {} killed after {} ms", id, query.getSource(), query.getElapsedMillis());
+        return true;
+    }
+
+    /**
+     * 执行中的查询，按开始时间排序
+     *
+     * @param userId 为null时返回全部
+     * @return
+     */
+    public List<RunningQuery> list(Long userId) {
+        return queries.values().stream()
+                .filter(query -> null == userId || userId.equals(query.getUserId()))
+                .sorted(Comparator.comparingLong(RunningQuery::getStartTime))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * statement超时秒数，数据源属性可覆盖默认值，0 表示不设置
+     *
+     * @param properties
+     * @return
+     */
+    public int getTimeoutSeconds(List<Dict> properties) {
+        if (!CollectionUtils.isEmpty(properties)) {
+            Optional<Dict> optional = properties.stream().filter(d -> TIMEOUT_PROPERTY.equalsIgnoreCase(d.getKey())).findFirst();
+            if (optional.isPresent()) {
+                try {
+                    return Integer.parseInt(optional.get().getValue().trim());
+                } catch (Exception e) {
+                    log.warn("Invalid {}: {}", TIMEOUT_PROPERTY, optional.get().getValue());
+                }
+            }
+        }
+        return statementTimeoutSeconds;
+    }
+}
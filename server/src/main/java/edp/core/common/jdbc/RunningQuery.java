@@ -0,0 +1,112 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.jdbc;
+
+import com.alibaba.fastjson.annotation.JSONField;
+import edp.core.utils.MD5Util;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * 正在执行的查询
+ */
+@Slf4j
+@Getter
+public class RunningQuery {
+
+    private final String id;
+
+    private final String requestId;
+
+    private final Long userId;
+
+    private final String queryKey;
+
+    private final String source;
+
+    /**
+     * 原始sql可能包含其它用户的过滤值与数据权限条件，不对外输出
+     */
+    @JSONField(serialize = false)
+    private final String sql;
+
+    /**
+     * sql指纹，用于与查询日志对应；输出查询列表时才计算，不占用执行查询的线程
+     */
+    private volatile String sqlDigest;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile boolean cancelled = false;
+
+    @JSONField(serialize = false)
+    private Statement statement;
+
+    RunningQuery(String id, QueryContext context, String source, String sql) {
+        this.id = id;
+        this.requestId = null == context ? null : context.getRequestId();
+        this.userId = null == context ? null : context.getUserId();
+        this.queryKey = null == context ? null : context.getQueryKey();
+        this.source = source;
+        this.sql = sql;
+    }
+
+    public String getSqlDigest() {
+        if (null == sqlDigest) {
+            sqlDigest = MD5Util.getMD5(sql, true, 32);
+        }
+        return sqlDigest;
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * 关联执行中的statement，查询已被取消时直接中止
+     *
+     * @param statement
+     * @throws SQLException
+     */
+    public synchronized void attach(Statement statement) throws SQLException {
+        if (cancelled) {
+            throw new SQLException("Query cancelled");
+        }
+        this.statement = statement;
+    }
+
+    synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (null != statement) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                log.warn("Cancel query({}) error:{}", id, e.getMessage());
+            }
+        }
+    }
+}
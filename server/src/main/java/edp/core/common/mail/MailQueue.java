@@ -0,0 +1,485 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.mail;
+
+import com.alibaba.druid.util.StringUtils;
+import com.alibaba.fastjson.JSON;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.exception.ServerException;
+import edp.core.model.MailContent;
+import edp.core.model.MailEnvelope;
+import edp.core.utils.CollectionUtils;
+import edp.core.utils.MailUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 外发邮件队列
+ * <p>
+ * 邮件渲染后写入磁盘队列目录，重启后继续投递；后台按批次复用SMTP连接发送，
+ * 失败按指数退避重试，部分投递时只重投未送达的地址，超过最大次数或收件地址全部无效时移入 failed 目录。
+ * 附件按内容sha256去重存放
+ */
+@Slf4j
+@Component
+public class MailQueue {
+
+    private static final String PENDING_DIR = "pending";
+
+    private static final String FAILED_DIR = "failed";
+
+    private static final String ATTACHMENT_DIR = "attachments";
+
+    private static final String SPOOL_SUFFIX = ".json";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long ATTACHMENT_GC_GRACE_MILLIS = 60_000L;
+
+    @Autowired
+    private MailUtils mailUtils;
+
+    @Autowired
+    private JavaMailSender javaMailSender;
+
+    @Value("${mail-queue.enable:false}")
+    private boolean enable;
+
+    @Value("${mail-queue.spool-path:${file.userfiles-path}/mail_spool/}")
+    private String spoolPath;
+
+    @Value("${mail-queue.connections:2}")
+    private int connections;
+
+    @Value("${mail-queue.batch-size:20}")
+    private int batchSize;
+
+    @Value("${mail-queue.max-attempts:6}")
+    private int maxAttempts;
+
+    @Value("${mail-queue.backoff-seconds:30}")
+    private long backoffSeconds;
+
+    @Value("${mail-queue.max-backoff-seconds:1800}")
+    private long maxBackoffSeconds;
+
+    @Value("${mail-queue.idle-seconds:60}")
+    private long idleSeconds;
+
+    @Value("${mail-queue.poll-interval-millis:1000}")
+    private long pollIntervalMillis;
+
+    private Path pendingDir;
+
+    private Path failedDir;
+
+    private Path attachmentDir;
+
+    private SmtpTransportPool transportPool;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService senders;
+
+    private final Map<String, SpooledMail> pending = new ConcurrentHashMap<>();
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder enqueued = new LongAdder();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder deduplicated = new LongAdder();
+
+    private final LongAdder sendCount = new LongAdder();
+
+    private final LongAdder sendNanos = new LongAdder();
+
+    private long lastAttachmentGc = 0L;
+
+    @PostConstruct
+    public void init() {
+        if (!enable) {
+            return;
+        }
+
+        if (!(javaMailSender instanceof JavaMailSenderImpl)) {
+            log.warn("Mail queue requires JavaMailSenderImpl, fallback to synchronous sending");
+            enable = false;
+            return;
+        }
+
+        try {
+            Path root = Paths.get(spoolPath);
+            pendingDir = Files.createDirectories(root.resolve(PENDING_DIR));
+            failedDir = Files.createDirectories(root.resolve(FAILED_DIR));
+            attachmentDir = Files.createDirectories(root.resolve(ATTACHMENT_DIR));
+        } catch (IOException e) {
+            log.error("Mail queue spool path {} is not writable, fallback to synchronous sending:{}", spoolPath, e.getMessage());
+            enable = false;
+            return;
+        }
+
+        load();
+
+        transportPool = new SmtpTransportPool((JavaMailSenderImpl) javaMailSender, idleSeconds * 1000L);
+        senders = Executors.newFixedThreadPool(Math.max(connections, 1),
+                new ThreadFactoryBuilder().setNameFormat("Mail-sender-%d").setDaemon(true).build());
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Mail-queue-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::drain, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (null == scheduler) {
+            return;
+        }
+        scheduler.shutdown();
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+        transportPool.close();
+    }
+
+    /**
+     * 提交邮件，队列未开启时同步发送
+     * <p>
+     * 返回前邮件与附件已落盘，调用方可立即清理原附件
+     *
+     * @param mailContent
+     * @param customLogger
+     * @throws ServerException
+     */
+    public void submit(MailContent mailContent, Logger customLogger) throws ServerException {
+        if (!enable) {
+            mailUtils.sendMail(mailContent, customLogger);
+            return;
+        }
+
+        MailEnvelope envelope = mailUtils.prepare(mailContent, customLogger);
+
+        SpooledMail mail = new SpooledMail();
+        mail.setId(System.currentTimeMillis() + "_" + UUID.randomUUID().toString().replace("-", ""));
+        mail.setEnvelope(envelope);
+        mail.setCreateTime(System.currentTimeMillis());
+        mail.setNextAttemptTime(mail.getCreateTime());
+
+        try {
+            for (MailEnvelope.Attachment attachment : envelope.getAttachments()) {
+                attachment.setPath(spoolAttachment(new File(attachment.getPath())));
+            }
+            write(pendingDir, mail);
+        } catch (IOException e) {
+            if (customLogger != null) {
+                customLogger.error("Spool mail error:{}", e.getMessage());
+            }
+            throw new ServerException("Spool mail error: " + e.getMessage());
+        }
+
+        pending.put(mail.getId(), mail);
+        enqueued.increment();
+        if (customLogger != null) {
+            customLogger.info("Email spooled({}) content:{}", mail.getId(), envelope.toString());
+        }
+    }
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 投递统计，Prometheus 文本格式
+     *
+     * @param writer
+     */
+    public void write(PrintWriter writer) {
+        writeMetric(writer, "davinci_mail_enqueued_total", "Mails accepted by the queue", "counter", enqueued.sum());
+        writeMetric(writer, "davinci_mail_sent_total", "Mails delivered to the smtp server", "counter", sent.sum());
+        writeMetric(writer, "davinci_mail_retries_total", "Mail delivery attempts scheduled for retry", "counter", retries.sum());
+        writeMetric(writer, "davinci_mail_failed_total", "Mails moved to the failed directory", "counter", failed.sum());
+        writeMetric(writer, "davinci_mail_pending", "Mails waiting in the spool", "gauge", pending.size());
+        writeMetric(writer, "davinci_mail_connections_opened_total", "Smtp connections opened", "counter",
+                null == transportPool ? 0L : transportPool.getOpened());
+        writeMetric(writer, "davinci_mail_attachments_deduplicated_total", "Attachments reused from the spool", "counter", deduplicated.sum());
+        writer.println("# HELP davinci_mail_send_seconds Time spent sending a single mail");
+        writer.println("# TYPE davinci_mail_send_seconds summary");
+        writer.println("davinci_mail_send_seconds_sum " + sendNanos.sum() / 1e9);
+        writer.println("davinci_mail_send_seconds_count " + sendCount.sum());
+        writer.flush();
+    }
+
+    private void writeMetric(PrintWriter writer, String name, String help, String type, long value) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " " + type);
+        writer.println(name + " " + value);
+    }
+
+    private void drain() {
+        try {
+            transportPool.evictIdle();
+            collectAttachments();
+
+            long now = System.currentTimeMillis();
+            List<SpooledMail> due = pending.values().stream()
+                    .filter(mail -> mail.getNextAttemptTime() <= now && !inFlight.contains(mail.getId()))
+                    .sorted(Comparator.comparingLong(SpooledMail::getNextAttemptTime))
+                    .collect(Collectors.toList());
+
+            int size = Math.max(batchSize, 1);
+            for (int i = 0; i < due.size(); i += size) {
+                List<SpooledMail> batch = due.subList(i, Math.min(i + size, due.size()));
+                batch.forEach(mail -> inFlight.add(mail.getId()));
+                try {
+                    senders.execute(() -> send(batch));
+                } catch (RejectedExecutionException e) {
+                    batch.forEach(mail -> inFlight.remove(mail.getId()));
+                    return;
+                }
+            }
+        } catch (Throwable e) {
+            log.error("Mail queue drain error:{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 同一批次的邮件复用一个SMTP连接
+     */
+    private void send(List<SpooledMail> batch) {
+        Transport transport = null;
+        try {
+            for (SpooledMail mail : batch) {
+                long before = System.nanoTime();
+                try {
+                    if (null == transport) {
+                        transport = transportPool.borrow();
+                    }
+                    MimeMessage message = mailUtils.createMimeMessage(mail.getEnvelope(), null);
+                    transport.sendMessage(message, getRecipients(mail, message));
+                    delivered(mail);
+                } catch (SendFailedException e) {
+                    Address[] validSent = e.getValidSentAddresses();
+                    Address[] validUnsent = e.getValidUnsentAddresses();
+                    if (null == validUnsent || validUnsent.length == 0) {
+                        if (null != validSent && validSent.length > 0) {
+                            log.warn("Email({}) delivered without invalid addresses:{}", mail.getId(), Arrays.toString(e.getInvalidAddresses()));
+                            delivered(mail);
+                        } else {
+                            giveUp(mail, e);
+                        }
+                    } else {
+                        if (null != validSent && validSent.length > 0) {
+                            log.warn("Email({}) partially delivered to {}, requeue:{}", mail.getId(),
+                                    Arrays.toString(validSent), Arrays.toString(validUnsent));
+                        }
+                        mail.setRecipients(Arrays.stream(validUnsent).map(Address::toString).toArray(String[]::new));
+                        retry(mail, e);
+                    }
+                } catch (Exception e) {
+                    retry(mail, e);
+                    transportPool.release(transport, true);
+                    transport = null;
+                } finally {
+                    sendNanos.add(System.nanoTime() - before);
+                    sendCount.increment();
+                    inFlight.remove(mail.getId());
+                }
+            }
+        } finally {
+            transportPool.release(transport, false);
+        }
+    }
+
+    /**
+     * 部分投递后只重投剩余的收件地址，信头保持不变
+     */
+    private Address[] getRecipients(SpooledMail mail, MimeMessage message) throws MessagingException {
+        if (null == mail.getRecipients() || mail.getRecipients().length == 0) {
+            return message.getAllRecipients();
+        }
+        Address[] addresses = new Address[mail.getRecipients().length];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = new InternetAddress(mail.getRecipients()[i]);
+        }
+        return addresses;
+    }
+
+    private void delivered(SpooledMail mail) {
+        pending.remove(mail.getId());
+        delete(pendingDir.resolve(mail.getId() + SPOOL_SUFFIX));
+        sent.increment();
+        log.info("Email({}) sent, attempts:{}, content:{}", mail.getId(), mail.getAttempts() + 1, mail.getEnvelope().toString());
+    }
+
+    private void retry(SpooledMail mail, Exception e) {
+        mail.setAttempts(mail.getAttempts() + 1);
+        mail.setLastError(e.getMessage());
+        if (mail.getAttempts() >= maxAttempts) {
+            giveUp(mail, e);
+            return;
+        }
+
+        long backoff = backoffSeconds * (1L << Math.min(mail.getAttempts() - 1, 20));
+        mail.setNextAttemptTime(System.currentTimeMillis() + Math.min(backoff, maxBackoffSeconds) * 1000L);
+        try {
+            write(pendingDir, mail);
+        } catch (IOException ioe) {
+            log.warn("Email({}) update spool error:{}", mail.getId(), ioe.getMessage());
+        }
+        retries.increment();
+        log.warn("Email({}) send error, attempts:{}, next attempt at {}:{}", mail.getId(), mail.getAttempts(),
+                new Date(mail.getNextAttemptTime()), e.getMessage());
+    }
+
+    private void giveUp(SpooledMail mail, Exception e) {
+        mail.setLastError(e.getMessage());
+        pending.remove(mail.getId());
+        try {
+            write(failedDir, mail);
+        } catch (IOException ioe) {
+            log.warn("Email({}) write failed spool error:{}", mail.getId(), ioe.getMessage());
+        }
+        delete(pendingDir.resolve(mail.getId() + SPOOL_SUFFIX));
+        failed.increment();
+        log.error("Email({}) send failed after {} attempts, content:{}, error:{}", mail.getId(), mail.getAttempts(),
+                mail.getEnvelope().toString(), e.getMessage());
+    }
+
+    /**
+     * 附件以内容sha256命名，已存在时只刷新修改时间
+     */
+    private String spoolAttachment(File file) throws IOException {
+        String name = file.getName();
+        int index = name.lastIndexOf('.');
+        String hash = com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256()).toString();
+        Path target = attachmentDir.resolve(index > 0 ? hash + name.substring(index) : hash);
+
+        if (Files.exists(target)) {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+            deduplicated.increment();
+        } else {
+            Path temp = attachmentDir.resolve(hash + "_" + UUID.randomUUID() + TEMP_SUFFIX);
+            Files.copy(file.toPath(), temp);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return target.toAbsolutePath().toString();
+    }
+
+    /**
+     * 清理不再被待发邮件引用的附件
+     */
+    private void collectAttachments() {
+        long now = System.currentTimeMillis();
+        if (now - lastAttachmentGc < ATTACHMENT_GC_GRACE_MILLIS) {
+            return;
+        }
+        lastAttachmentGc = now;
+
+        Set<String> referenced = new HashSet<>();
+        pending.values().forEach(mail -> mail.getEnvelope().getAttachments()
+                .forEach(attachment -> referenced.add(attachment.getPath())));
+
+        try (Stream<Path> files = Files.list(attachmentDir)) {
+            files.filter(path -> !referenced.contains(path.toAbsolutePath().toString()))
+                    .filter(path -> now - path.toFile().lastModified() > ATTACHMENT_GC_GRACE_MILLIS)
+                    .forEach(this::delete);
+        } catch (IOException e) {
+            log.warn("Mail queue collect attachments error:{}", e.getMessage());
+        }
+    }
+
+    private void load() {
+        try (Stream<Path> files = Files.list(pendingDir)) {
+            files.filter(path -> path.toString().endsWith(SPOOL_SUFFIX)).forEach(path -> {
+                try {
+                    SpooledMail mail = JSON.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), SpooledMail.class);
+                    if (null == mail || StringUtils.isEmpty(mail.getId()) || null == mail.getEnvelope()) {
+                        throw new IOException("incomplete spool file");
+                    }
+                    if (null == mail.getEnvelope().getAttachments()) {
+                        mail.getEnvelope().setAttachments(new ArrayList<>());
+                    }
+                    pending.put(mail.getId(), mail);
+                } catch (Exception e) {
+                    log.error("Mail queue load {} error:{}", path.getFileName(), e.getMessage());
+                    try {
+                        Files.move(path, failedDir.resolve(path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException ioe) {
+                        log.warn("Mail queue move {} error:{}", path.getFileName(), ioe.getMessage());
+                    }
+                }
+            });
+        } catch (IOException e) {
+            log.error("Mail queue load spool error:{}", e.getMessage());
+        }
+
+        if (!CollectionUtils.isEmpty(pending)) {
+            log.info("Mail queue loaded {} pending mails from {}", pending.size(), pendingDir);
+        }
+    }
+
+    private void write(Path dir, SpooledMail mail) throws IOException {
+        Path temp = dir.resolve(mail.getId() + TEMP_SUFFIX);
+        Files.write(temp, JSON.toJSONString(mail).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, dir.resolve(mail.getId() + SPOOL_SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Mail queue delete {} error:{}", path.getFileName(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.mail;
+
+import com.alibaba.druid.util.StringUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 已认证的SMTP连接池，连接在批次之间复用，空闲超时后关闭
+ */
+@Slf4j
+class SmtpTransportPool {
+
+    private static final String DEFAULT_PROTOCOL = "smtp";
+
+    private final JavaMailSenderImpl sender;
+
+    private final long idleMillis;
+
+    private final BlockingQueue<PooledTransport> idle = new LinkedBlockingQueue<>();
+
+    private final LongAdder opened = new LongAdder();
+
+    SmtpTransportPool(JavaMailSenderImpl sender, long idleMillis) {
+        this.sender = sender;
+        this.idleMillis = idleMillis;
+    }
+
+    Transport borrow() throws MessagingException {
+        PooledTransport pooled;
+        while (null != (pooled = idle.poll())) {
+            if (pooled.transport.isConnected()) {
+                return pooled.transport;
+            }
+            close(pooled.transport);
+        }
+
+        String protocol = StringUtils.isEmpty(sender.getProtocol()) ? DEFAULT_PROTOCOL : sender.getProtocol();
+        Transport transport = sender.getSession().getTransport(protocol);
+        transport.connect(sender.getHost(), sender.getPort(),
+                StringUtils.isEmpty(sender.getUsername()) ? null : sender.getUsername(),
+                StringUtils.isEmpty(sender.getPassword()) ? null : sender.getPassword());
+        opened.increment();
+        return transport;
+    }
+
+    /**
+     * 归还连接，发送过程中出现连接级异常的连接直接关闭
+     *
+     * @param transport
+     * @param broken
+     */
+    void release(Transport transport, boolean broken) {
+        if (null == transport) {
+            return;
+        }
+        if (broken || !transport.isConnected()) {
+            close(transport);
+            return;
+        }
+        idle.offer(new PooledTransport(transport));
+    }
+
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        idle.removeIf(pooled -> {
+            if (now - pooled.lastUsed > idleMillis || !pooled.transport.isConnected()) {
+                close(pooled.transport);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    void close() {
+        PooledTransport pooled;
+        while (null != (pooled = idle.poll())) {
+            close(pooled.transport);
+        }
+    }
+
+    long getOpened() {
+        return opened.sum();
+    }
+
+    private void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            log.debug("Close smtp transport error:{}", e.getMessage());
+        }
+    }
+
+    private static class PooledTransport {
+        private final Transport transport;
+        private final long lastUsed = System.currentTimeMillis();
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.common.mail;
+
+import edp.core.model.MailEnvelope;
+import lombok.Data;
+
+/**
+ * 落盘等待投递的邮件
+ */
+@Data
+public class SpooledMail {
+    private String id;
+    private MailEnvelope envelope;
+    /**
+     * 待投递的收件地址，部分投递后只含剩余地址，为空时投递给全部收件人
+     */
+    private String[] recipients;
+    private int attempts;
+    private long createTime;
+    private long nextAttemptTime;
+    private String lastError;
+}
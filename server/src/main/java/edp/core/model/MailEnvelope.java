@@ -0,0 +1,70 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.model;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 校验并渲染完成、可直接投递的邮件
+ */
+@Data
+public class MailEnvelope {
+    private String from;
+    private String displayName;
+    private String subject;
+    private String[] to;
+    private String[] cc;
+    private String[] bcc;
+    private String html;
+    private boolean multipart;
+    private List<Attachment> attachments = new ArrayList<>();
+
+    @Override
+    public String toString() {
+        return "MailEnvelope{" +
+                "from='" + from + '\'' +
+                ", subject='" + subject + '\'' +
+                ", to=" + Arrays.toString(to) +
+                ", cc=" + Arrays.toString(cc) +
+                ", bcc=" + Arrays.toString(bcc) +
+                ", attachments.size=" + (null == attachments ? 0 : attachments.size()) +
+                '}';
+    }
+
+    @Data
+    public static class Attachment {
+        private String name;
+        private String path;
+        private boolean image;
+
+        public Attachment() {
+        }
+
+        public Attachment(String name, String path, boolean image) {
+            this.name = name;
+            this.path = path;
+            this.image = image;
+        }
+    }
+}
@@ -17,18 +17,26 @@
  *
  */
 
+
 package edp.core.utils;
 
-import java.util.concurrent.ConcurrentHashMap;
+import edp.davinci.core.enums.LockType;
+
+import java.util.UUID;
 
+/**
+ * 带过期时间的租约锁
+ * <p>
+ * 每个锁实例有唯一的持有者标识，只有持有者可以释放或续期；获取成功后 {@link #getToken()} 返回单调递增的fencing token，
+ * 写入方可以据此拒绝过期持有者的写入
+ */
 public abstract class BaseLock {
 
-	public static class CacheLock extends BaseLock {
+	static final LocalLeaseTable LOCAL_LEASES = new LocalLeaseTable();
 
-		private static final ConcurrentHashMap<String, Long> LOCKS = new ConcurrentHashMap<>();
-		private static final ConcurrentHashMap<String, Long> TTLS = new ConcurrentHashMap<>();
+	private static final long RETRY_INTERVAL_MILLIS = 20L;
 
-		private long timestamp;
+	public static class CacheLock extends BaseLock {
 
 		public CacheLock(String key, int timeout) {
 			super(key, timeout);
@@ -36,54 +44,31 @@ public abstract class BaseLock {
 
 		@Override
 		public boolean getLock() {
-			synchronized (key) {
-				timestamp = System.currentTimeMillis();
-				long ttl = timestamp + timeout * 1000L;
-
-				if (!LOCKS.containsKey(key)) {
-					return null == LOCKS.putIfAbsent(key, timestamp) && null == TTLS.putIfAbsent(key, ttl);
-				}
-
-				if (TTLS.get(key) < timestamp) {
-					long exTimestamp = LOCKS.get(key);
-					long exTtl = TTLS.get(key);
-					return exTimestamp == LOCKS.replace(key, timestamp) && exTtl == TTLS.replace(key, ttl);
-				}
-
-				return false;
-			}
+			long before = System.nanoTime();
+			long token = LOCAL_LEASES.acquire(key, owner, timeout * 1000L);
+			return acquired(LockType.LOCAL, token, before);
 		}
 
 		@Override
 		public boolean release() {
-			synchronized (key) {
-				long ttl = timestamp + timeout * 1000L;
-				if (isHolding()) {
-					return timestamp == LOCKS.remove(key) && ttl == TTLS.remove(key);
-				}
-				return false;
-			}
+			boolean released = LOCAL_LEASES.release(key, owner);
+			LockMetrics.released(LockType.LOCAL, !released);
+			return released;
 		}
 
 		@Override
-		public boolean isHolding() {
-
-			if (!LOCKS.containsKey(key) || !TTLS.containsKey(key)) {
-				return false;
-			}
-
-			if (timestamp == LOCKS.get(key)) {
-				return true;
-			}
+		public boolean renew() {
+			return LOCAL_LEASES.renew(key, owner, timeout * 1000L);
+		}
 
-			return false;
+		@Override
+		public boolean isHolding() {
+			return LOCAL_LEASES.isHolding(key, owner);
 		}
 	}
 
 	public static class RedisLock extends BaseLock {
 
-		private long currentTime;
-
 		RedisUtils redisUtils;
 
 		public RedisLock(RedisUtils redisUtils, String key, int timeout) {
@@ -93,47 +78,101 @@ public abstract class BaseLock {
 
 		@Override
 		public boolean getLock() {
-			currentTime = System.currentTimeMillis();
-			return redisUtils.setIfAbsent(key, currentTime, timeout);
+			long before = System.nanoTime();
+			long token = redisUtils.acquireLease(key, owner, timeout * 1000L);
+			return acquired(LockType.REDIS, token, before);
 		}
 
 		@Override
 		public boolean release() {
-			if (isHolding()) {
-				return redisUtils.delete(key);
-			}
-			return false;
+			boolean released = redisUtils.releaseLease(key, owner);
+			LockMetrics.released(LockType.REDIS, !released);
+			return released;
 		}
 
 		@Override
-		public boolean isHolding() {
-
-			Long value = (Long) redisUtils.get(key);
-
-			if (value == null) {
-				return false;
-			}
-
-			if (currentTime == value) {
-				return true;
-			}
-
-			return false;
+		public boolean renew() {
+			return redisUtils.renewLease(key, owner, timeout * 1000L);
 		}
 
+		@Override
+		public boolean isHolding() {
+			return owner.equals(redisUtils.get(key));
+		}
 	}
 
 	protected final String key;
 	protected final int timeout;
+	protected final String owner;
+	private long token;
 
 	public BaseLock(String key, int timeout) {
 		this.key = key;
 		this.timeout = timeout;
+		this.owner = UUID.randomUUID().toString().replace("-", "");
 	}
 
+	/**
+	 * 尝试获取锁，不等待
+	 *
+	 * @return
+	 */
 	public abstract boolean getLock();
 
 	public abstract boolean release();
 
+	/**
+	 * 仍持有锁时按timeout续期
+	 *
+	 * @return
+	 */
+	public abstract boolean renew();
+
 	public abstract boolean isHolding();
+
+	/**
+	 * 在等待时间内重试获取锁
+	 *
+	 * @param waitMillis
+	 * @return
+	 */
+	public boolean tryLock(long waitMillis) {
+		long deadline = System.currentTimeMillis() + waitMillis;
+		while (!getLock()) {
+			if (System.currentTimeMillis() + RETRY_INTERVAL_MILLIS > deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(RETRY_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 最近一次获取成功时的fencing token，未获取时为0
+	 *
+	 * @return
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	protected boolean acquired(LockType type, long token, long beforeNanos) {
+		long waitNanos = System.nanoTime() - beforeNanos;
+		if (token > 0L) {
+			this.token = token;
+			LockMetrics.acquired(type, waitNanos);
+			return true;
+		}
+		LockMetrics.contended(type, waitNanos);
+		return false;
+	}
 }
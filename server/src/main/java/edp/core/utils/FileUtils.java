@@ -20,32 +20,21 @@
 package edp.core.utils;
 
 import com.alibaba.druid.util.StringUtils;
-import com.sun.image.codec.jpeg.JPEGCodec;
-import com.sun.image.codec.jpeg.JPEGImageEncoder;
 import edp.davinci.core.enums.ActionEnum;
 import edp.davinci.core.enums.FileTypeEnum;
-import edp.davinci.core.enums.LogNameEnum;
 import edp.davinci.service.excel.MsgWrapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.charset.Charset;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Matcher;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static edp.core.consts.Consts.*;
 
@@ -53,8 +42,6 @@ import static edp.core.consts.Consts.*;
 @Component
 public class FileUtils {
 
-    private static final Logger scheduleLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_SCHEDULE.getName());
-
     @Value("${file.userfiles-path}")
     public String fileBasePath;
 
@@ -224,104 +211,13 @@ public class FileUtils {
      * @param files
      * @param targetFile
      */
-    public static void zipFile(List<File> files, File targetFile) {
-
-        byte[] bytes = new byte[1024];
-        ZipOutputStream out = null;
-        FileInputStream in = null;
-        try {
-            out = new ZipOutputStream(new FileOutputStream(targetFile));
+    public static void zipFile(List<File> files, File targetFile) throws IOException {
+        try (StreamingZipWriter writer = new StreamingZipWriter(new FileOutputStream(targetFile))) {
             for (File file : files) {
-                try {
-                    in = new FileInputStream(file);
-                    out.putNextEntry(new ZipEntry(file.getName()));
-                    int length;
-                    while ((length = in.read(bytes)) > 0) {
-                        out.write(bytes, 0, length);
-                    }
-                    out.closeEntry();
-                    closeCloseable(in);
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
-                finally {
-                    closeCloseable(in);
-                }
-            }
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }finally {
-            closeCloseable(out);
-        }
-    }
-
-    /**
-     * 图片压缩，图片比例按原比例输出
-     * tips: 压缩后的图片会替换原有的图片
-     * @param filepath
-     */
-    public static File compressedImage(String filepath) {
-        try {
-            File file = new File(filepath);
-            BufferedImage img_dest= null;
-
-            BufferedImage img_src = ImageIO.read(file);
-            int width = img_src.getWidth();
-            int height = img_src.getHeight();
-            long imageLength = file.length();
-
-            // 如果首次压缩图片还大于2M，则继续压缩
-            while (imageLength > (2 * 1024 * 1024)) {
-                // 开始读取文件并进行压缩
-
-                // 压缩模式设置
-                img_dest = new BufferedImage( width,  height, BufferedImage.TYPE_INT_RGB);
-                img_dest.getGraphics().drawImage(img_src.getScaledInstance(width, height, Image.SCALE_SMOOTH), 0, 0, null);
-
-                // 缩小
-                ImageIO.write(img_dest, "jpg", file);
-
-                // 计算图片压缩率
-                float rate = calcCompressedRate(imageLength, file.length());
-                // 如果压缩率小于10%，则不再进行压缩
-                if (rate < 10) {
-                    scheduleLogger.warn("Forced interruption, compression rate is less than {}",rate);
-                    break;
-                }
-
-                imageLength = file.length();
-                scheduleLogger.warn("File size after compression {},Compress again",imageLength);
+                writer.addFile(file.getName(), file);
             }
-            imageLength = file.length();
-            scheduleLogger.warn("Final compressed file size {}",imageLength);
-
-            FileOutputStream output = new FileOutputStream(filepath);
-            //将图片按JPEG压缩
-            JPEGImageEncoder encoder = JPEGCodec.createJPEGEncoder(output);
-            encoder.encode(img_dest);
-            output.close();
-
-            return new File(filepath);
-        } catch (Exception e) {
-            scheduleLogger.error("Image compression failed",e);
+            writer.finish();
         }
-        return null;
-    }
-
-    /**
-     * 计算图片压缩率
-     * @param originLength
-     * @param compressedLength
-     * @return
-     */
-    public static float calcCompressedRate(long originLength, long compressedLength) {
-        DecimalFormat df = new DecimalFormat("0.000");
-        String rate = df.format((float)compressedLength  / originLength);
-        float result=  Float.valueOf(rate) * 100;
-        scheduleLogger.info("Compression {}/{}={}%",compressedLength,originLength,result);
-        return result;
     }
 
     public String getFilePath(FileTypeEnum type, MsgWrapper msgWrapper) {
@@ -0,0 +1,141 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地租约表
+ * <p>
+ * 按key的hash分段加锁，每段定期清理过期租约；获取成功时返回单调递增的fencing token
+ */
+final class LocalLeaseTable {
+
+	private static final int STRIPES = 64;
+
+	private static final long PURGE_INTERVAL_MILLIS = 1000L;
+
+	private static final AtomicLong TOKENS = new AtomicLong(0L);
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	LocalLeaseTable() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * 获取租约，已被他人持有且未过期时返回0
+	 */
+	long acquire(String key, String owner, long ttlMillis) {
+		Stripe stripe = stripeOf(key);
+		long now = System.currentTimeMillis();
+		synchronized (stripe) {
+			stripe.purge(now);
+			Lease lease = stripe.leases.get(key);
+			if (null != lease && lease.expireTime > now && !lease.owner.equals(owner)) {
+				return 0L;
+			}
+			long token = TOKENS.incrementAndGet();
+			stripe.leases.put(key, new Lease(owner, now + ttlMillis));
+			return token;
+		}
+	}
+
+	boolean release(String key, String owner) {
+		Stripe stripe = stripeOf(key);
+		synchronized (stripe) {
+			Lease lease = stripe.leases.get(key);
+			if (null == lease || !lease.owner.equals(owner)) {
+				return false;
+			}
+			stripe.leases.remove(key);
+			return lease.expireTime > System.currentTimeMillis();
+		}
+	}
+
+	boolean renew(String key, String owner, long ttlMillis) {
+		Stripe stripe = stripeOf(key);
+		long now = System.currentTimeMillis();
+		synchronized (stripe) {
+			Lease lease = stripe.leases.get(key);
+			if (null == lease || !lease.owner.equals(owner) || lease.expireTime <= now) {
+				return false;
+			}
+			lease.expireTime = now + ttlMillis;
+			return true;
+		}
+	}
+
+	boolean isHolding(String key, String owner) {
+		Stripe stripe = stripeOf(key);
+		synchronized (stripe) {
+			Lease lease = stripe.leases.get(key);
+			return null != lease && lease.owner.equals(owner) && lease.expireTime > System.currentTimeMillis();
+		}
+	}
+
+	int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.leases.size();
+			}
+		}
+		return size;
+	}
+
+	private Stripe stripeOf(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (STRIPES - 1)];
+	}
+
+	private static class Stripe {
+
+		private final Map<String, Lease> leases = new HashMap<>();
+
+		private long nextPurgeTime = 0L;
+
+		void purge(long now) {
+			if (now < nextPurgeTime) {
+				return;
+			}
+			leases.values().removeIf(lease -> lease.expireTime <= now);
+			nextPurgeTime = now + PURGE_INTERVAL_MILLIS;
+		}
+	}
+
+	private static class Lease {
+
+		private final String owner;
+
+		private long expireTime;
+
+		Lease(String owner, long expireTime) {
+			this.owner = owner;
+			this.expireTime = expireTime;
+		}
+	}
+}
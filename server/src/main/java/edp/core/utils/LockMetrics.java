@@ -0,0 +1,101 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.utils;
+
+import edp.davinci.core.enums.LockType;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * 锁的获取耗时与竞争统计，输出为 Prometheus 文本格式
+ */
+public final class LockMetrics {
+
+	private static final Map<LockType, Counters> COUNTERS = new EnumMap<>(LockType.class);
+
+	static {
+		for (LockType type : LockType.values()) {
+			COUNTERS.put(type, new Counters());
+		}
+	}
+
+	private LockMetrics() {
+	}
+
+	static void acquired(LockType type, long waitNanos) {
+		Counters counters = COUNTERS.get(type);
+		counters.acquired.increment();
+		counters.waitNanos.add(waitNanos);
+	}
+
+	static void contended(LockType type, long waitNanos) {
+		Counters counters = COUNTERS.get(type);
+		counters.contended.increment();
+		counters.waitNanos.add(waitNanos);
+	}
+
+	static void released(LockType type, boolean expired) {
+		Counters counters = COUNTERS.get(type);
+		counters.released.increment();
+		if (expired) {
+			counters.expired.increment();
+		}
+	}
+
+	public static void write(PrintWriter writer) {
+		writeCounters(writer, "davinci_lock_acquired_total", "Locks acquired", c -> c.acquired.sum());
+		writeCounters(writer, "davinci_lock_contended_total", "Lock attempts rejected because the lock was held", c -> c.contended.sum());
+		writeCounters(writer, "davinci_lock_released_total", "Locks released by their holder", c -> c.released.sum());
+		writeCounters(writer, "davinci_lock_expired_total", "Locks found expired or taken over at release", c -> c.expired.sum());
+		writer.println("# HELP davinci_lock_wait_seconds_total Time spent acquiring locks");
+		writer.println("# TYPE davinci_lock_wait_seconds_total counter");
+		COUNTERS.forEach((type, counters) ->
+				writer.println("davinci_lock_wait_seconds_total{type=\"" + type.getType() + "\"} " + counters.waitNanos.sum() / 1e9));
+		writer.println("# HELP davinci_lock_local_leases Leases held in the local lease table");
+		writer.println("# TYPE davinci_lock_local_leases gauge");
+		writer.println("davinci_lock_local_leases " + BaseLock.LOCAL_LEASES.size());
+		writer.flush();
+	}
+
+	private static void writeCounters(PrintWriter writer, String name, String help, ToLongFunction<Counters> value) {
+		writer.println("# HELP " + name + " " + help);
+		writer.println("# TYPE " + name + " counter");
+		COUNTERS.forEach((type, counters) ->
+				writer.println(name + "{type=\"" + type.getType() + "\"} " + value.applyAsLong(counters)));
+	}
+
+	private static class Counters {
+
+		private final LongAdder acquired = new LongAdder();
+
+		private final LongAdder contended = new LongAdder();
+
+		private final LongAdder released = new LongAdder();
+
+		private final LongAdder expired = new LongAdder();
+
+		private final LongAdder waitNanos = new LongAdder();
+	}
+}
@@ -23,6 +23,7 @@ import com.alibaba.druid.util.StringUtils;
 import com.google.common.base.Stopwatch;
 import edp.core.exception.ServerException;
 import edp.core.model.MailContent;
+import edp.core.model.MailEnvelope;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,6 +36,8 @@ import org.thymeleaf.context.Context;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -68,6 +71,29 @@ public class MailUtils {
 
     public void sendMail(MailContent mailContent, Logger customLogger) throws ServerException {
         Stopwatch watch = Stopwatch.createStarted();
+        MailEnvelope envelope = prepare(mailContent, customLogger);
+        try {
+            javaMailSender.send(createMimeMessage(envelope, customLogger));
+            if (customLogger != null) {
+                customLogger.info("Email sending content:{}, cost:{}", mailContent.toString(), watch.elapsed(TimeUnit.MILLISECONDS));
+            }
+        } catch (Exception e) {
+            if (customLogger != null) {
+                customLogger.error("Send mail error:{}", e.getMessage());
+            }
+             throw new ServerException(e.getMessage());
+        } 
+    }
+
+    /**
+     * 校验邮件内容并渲染正文
+     *
+     * @param mailContent
+     * @param customLogger
+     * @return
+     * @throws ServerException
+     */
+    public MailEnvelope prepare(MailContent mailContent, Logger customLogger) throws ServerException {
         if (mailContent == null) {
             if (customLogger != null) {
                 customLogger.error("Email content is null");
@@ -110,7 +136,6 @@ public class MailUtils {
         boolean multipart = false;
         boolean emptyAttachments = CollectionUtils.isEmpty(mailContent.getAttachments());
         String mailContentTemplate = null;
-        String contentHtml = null;
         Context context = new Context();
         switch (mailContent.getMailContentType()) {
             case TEXT:
@@ -145,63 +170,78 @@ public class MailUtils {
                 break;
         }
 
-        try {
-            MimeMessage message = javaMailSender.createMimeMessage();
-            MimeMessageHelper messageHelper = new MimeMessageHelper(message, multipart);
-
-            messageHelper.setFrom(from, displayName);
-            messageHelper.setSubject(mailContent.getSubject());
-            messageHelper.setTo(mailContent.getTo());
-            if (null != mailContent.getCc() && mailContent.getCc().length > 0) {
-                messageHelper.setCc(mailContent.getCc());
-            }
-            if (null != mailContent.getBcc() && mailContent.getBcc().length > 0) {
-                messageHelper.setBcc(mailContent.getBcc());
-            }
+        MailEnvelope envelope = new MailEnvelope();
+        envelope.setFrom(from);
+        envelope.setDisplayName(displayName);
+        envelope.setSubject(mailContent.getSubject());
+        envelope.setTo(mailContent.getTo());
+        envelope.setCc(mailContent.getCc());
+        envelope.setBcc(mailContent.getBcc());
+        envelope.setMultipart(multipart);
+
+        List<String> imageContentIds = new ArrayList<>();
+
+        if (!emptyAttachments) {
+            mailContent.getAttachments().forEach(attachment -> {
+                if (attachment.isImage()) {
+                    imageContentIds.add(attachment.getName());
+                }
+                envelope.getAttachments().add(new MailEnvelope.Attachment(attachment.getName(),
+                        attachment.getFile().getAbsolutePath(), attachment.isImage()));
+            });
+        }
 
-            List<String> imageContentIds = new ArrayList<>();
+        if (!CollectionUtils.isEmpty(imageContentIds)) {
+            context.setVariable("images", imageContentIds);
+        }
 
-            if (!emptyAttachments) {
-                mailContent.getAttachments().forEach(attachment -> {
-                    if (attachment.isImage()) {
-                        imageContentIds.add(attachment.getName());
-                    }
-                });
-            }
+        envelope.setHtml(templateEngine.process(mailContentTemplate, context));
+        return envelope;
+    }
 
-            if (!CollectionUtils.isEmpty(imageContentIds)) {
-                context.setVariable("images", imageContentIds);
-            }
+    /**
+     * 由渲染完成的邮件构造 MimeMessage，附件不可读时跳过
+     *
+     * @param envelope
+     * @param customLogger
+     * @return
+     * @throws MessagingException
+     * @throws UnsupportedEncodingException
+     */
+    public MimeMessage createMimeMessage(MailEnvelope envelope, Logger customLogger) throws MessagingException, UnsupportedEncodingException {
+        MimeMessage message = javaMailSender.createMimeMessage();
+        MimeMessageHelper messageHelper = new MimeMessageHelper(message, envelope.isMultipart());
+
+        messageHelper.setFrom(envelope.getFrom(), envelope.getDisplayName());
+        messageHelper.setSubject(envelope.getSubject());
+        messageHelper.setTo(envelope.getTo());
+        if (null != envelope.getCc() && envelope.getCc().length > 0) {
+            messageHelper.setCc(envelope.getCc());
+        }
+        if (null != envelope.getBcc() && envelope.getBcc().length > 0) {
+            messageHelper.setBcc(envelope.getBcc());
+        }
 
-            contentHtml = templateEngine.process(mailContentTemplate, context);
-            messageHelper.setText(contentHtml, true);
-
-            if (!emptyAttachments) {
-                mailContent.getAttachments().forEach(attachment -> {
-                    try {
-                        if (attachment.isImage()) {
-                            messageHelper.addInline(attachment.getName(), attachment.getFile());
-                        } else {
-                            messageHelper.addAttachment(attachment.getName(), attachment.getFile());
-                        }
-                    } catch (MessagingException e) {
-                        log.warn(e.getMessage());
-                        if (customLogger != null) {
-                            log.warn(e.getMessage());
-                        }
+        messageHelper.setText(envelope.getHtml(), true);
+
+        if (!CollectionUtils.isEmpty(envelope.getAttachments())) {
+            envelope.getAttachments().forEach(attachment -> {
+                try {
+                    if (attachment.isImage()) {
+                        messageHelper.addInline(attachment.getName(), new File(attachment.getPath()));
+                    } else {
+                        messageHelper.addAttachment(attachment.getName(), new File(attachment.getPath()));
                     }
-                });
-            }
+                } catch (MessagingException e) {
+                    log.warn(e.getMessage());
+                    if (customLogger != null) {
+                        customLogger.warn(e.getMessage());
+                    }
+                }
+            });
+        }
 
-            javaMailSender.send(message);
-            if (customLogger != null) {
-                customLogger.info("Email sending content:{}, cost:{}", mailContent.toString(), watch.elapsed(TimeUnit.MILLISECONDS));
-            }
-        } catch (Exception e) {
-            if (customLogger != null) {
-                customLogger.error("Send mail error:{}", e.getMessage());
-            }
-             throw new ServerException(e.getMessage());
-        } 
+        message.saveChanges();
+        return message;
     }
 }
@@ -0,0 +1,261 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edp.davinci.core.utils.SqlParseUtils;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 单条sql的解析结果
+ * <p>
+ * 同一sql文本只解析一次并缓存（按原sql、重写sql与count sql的字符数限制总量的LRU），
+ * 包括 WITH 片段重写、语句类型、from/join 列前缀、count sql 以及结果集列名到输出列名的映射
+ */
+public class QueryAnalysis {
+
+    private static final long MAX_CACHED_CHARS = 8_000_000L;
+
+    private static final Cache<String, QueryAnalysis> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_CHARS)
+            .weigher((String sql, QueryAnalysis analysis) -> analysis.weight())
+            .build();
+
+    private final String sql;
+
+    private volatile String rebuiltSql;
+
+    private volatile Boolean query;
+
+    private volatile String[][] columnPrefixes;
+
+    private volatile String countSql;
+
+    private volatile ColumnMapping columnMapping;
+
+    private QueryAnalysis(String sql) {
+        this.sql = sql;
+    }
+
+    public static QueryAnalysis of(String sql) {
+        QueryAnalysis analysis = CACHE.getIfPresent(sql);
+        if (null == analysis) {
+            analysis = new QueryAnalysis(sql);
+            CACHE.put(sql, analysis);
+        }
+        return analysis;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * WITH 片段前置后的sql
+     *
+     * @return
+     */
+    public String getRebuiltSql() {
+        if (null == rebuiltSql) {
+            rebuiltSql = SqlParseUtils.rewriteWithFragment(sql);
+            reweigh();
+        }
+        return rebuiltSql;
+    }
+
+    /**
+     * 是否为查询语句
+     *
+     * @return
+     */
+    public boolean isQuery() {
+        if (null == query) {
+            query = SqlParseUtils.isQuery(sql);
+        }
+        return query;
+    }
+
+    public String getCountSql() {
+        if (null == countSql) {
+            countSql = SqlUtils.buildCountSql(sql);
+            reweigh();
+        }
+        return countSql;
+    }
+
+    /**
+     * 缓存权重，按已生成的sql文本总字符数计算
+     *
+     * @return
+     */
+    int weight() {
+        long weight = sql.length();
+        String rebuilt = rebuiltSql;
+        if (null != rebuilt && rebuilt != sql) {
+            weight += rebuilt.length();
+        }
+        String count = countSql;
+        if (null != count) {
+            weight += count.length();
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 懒加载的sql生成后重新计算权重，已被淘汰的不再放回
+     */
+    private void reweigh() {
+        CACHE.asMap().replace(sql, this, this);
+    }
+
+    /**
+     * from/join 中表名或别名形成的列前缀，每个前缀依次为原样、小写、大写
+     *
+     * @return
+     */
+    public String[][] getColumnPrefixes() {
+        if (null == columnPrefixes) {
+            Set<String> prefixes = SqlUtils.getQueryFromsAndJoins(sql);
+            List<String[]> list = new ArrayList<>(prefixes.size());
+            for (String prefix : prefixes) {
+                list.add(new String[]{prefix, prefix.toLowerCase(), prefix.toUpperCase()});
+            }
+            columnPrefixes = list.toArray(new String[0][]);
+        }
+        return columnPrefixes;
+    }
+
+    /**
+     * 结果集列到输出列名的映射，同一sql的结果集列相同时复用
+     *
+     * @param metaData
+     * @return
+     * @throws SQLException
+     */
+    public ColumnMapping getColumnMapping(ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        String[] labels = new String[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+        }
+
+        ColumnMapping mapping = columnMapping;
+        if (null != mapping && Arrays.equals(mapping.labels, labels)) {
+            return mapping;
+        }
+
+        mapping = new ColumnMapping(labels, getColumnPrefixes());
+        columnMapping = mapping;
+        return mapping;
+    }
+
+    /**
+     * 去掉列名中的表名或别名前缀
+     *
+     * @param columnPrefixes
+     * @param columnLabel
+     * @return
+     */
+    static String getOutputKey(String[][] columnPrefixes, String columnLabel) {
+        for (String[] variants : columnPrefixes) {
+            for (String prefix : variants) {
+                if (columnLabel.startsWith(prefix)) {
+                    return columnLabel.substring(prefix.length());
+                }
+            }
+        }
+        return columnLabel;
+    }
+
+    public static class ColumnMapping {
+
+        private final String[] labels;
+
+        private final String[] keys;
+
+        private final int[] valueIndexes;
+
+        ColumnMapping(String[] labels, String[][] columnPrefixes) {
+            this.labels = labels;
+            this.keys = new String[labels.length];
+            this.valueIndexes = new int[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                keys[i] = getOutputKey(columnPrefixes, labels[i]);
+                // 与按列名取值一致，同名列取第一列的值
+                int index = i;
+                for (int j = 0; j < i; j++) {
+                    if (labels[j].equalsIgnoreCase(labels[i])) {
+                        index = j;
+                        break;
+                    }
+                }
+                valueIndexes[i] = index + 1;
+            }
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        /**
+         * 输出列名
+         *
+         * @param i 从0开始
+         * @return
+         */
+        public String getKey(int i) {
+            return keys[i];
+        }
+
+        /**
+         * 取值的列序号
+         *
+         * @param i 从0开始
+         * @return 从1开始
+         */
+        public int getValueIndex(int i) {
+            return valueIndexes[i];
+        }
+
+        /**
+         * 被排除的列，与 {@link #getKey(int)} 一一对应
+         *
+         * @param excludeColumns
+         * @return
+         */
+        public boolean[] getExcluded(Set<String> excludeColumns) {
+            boolean[] excluded = new boolean[keys.length];
+            if (!CollectionUtils.isEmpty(excludeColumns)) {
+                for (int i = 0; i < keys.length; i++) {
+                    excluded[i] = excludeColumns.contains(keys[i]);
+                }
+            }
+            return excluded;
+        }
+    }
+}
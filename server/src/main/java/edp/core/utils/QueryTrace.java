@@ -0,0 +1,174 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.utils;
+
+import edp.core.enums.QueryStageEnum;
+
+/**
+ * 单次数据请求的分阶段耗时记录
+ * <p>
+ * 由请求线程开启，只在开启的线程内记录，未开启时各方法均为空操作
+ */
+public class QueryTrace {
+
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+
+    private final long startNanos = System.nanoTime();
+
+    private final long[] stageNanos = new long[QueryStageEnum.values().length];
+
+    private Long viewId;
+
+    private Long sourceId;
+
+    private Long userId;
+
+    private long rows = -1L;
+
+    private long serializeStartNanos;
+
+    public static QueryTrace begin() {
+        QueryTrace trace = new QueryTrace();
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * 在工作线程中继续记录请求线程开启的记录
+     *
+     * @param trace
+     */
+    public static void attach(QueryTrace trace) {
+        if (null != trace) {
+            CURRENT.set(trace);
+        }
+    }
+
+    public static QueryTrace current() {
+        return CURRENT.get();
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * 阶段开始时间，未开启记录时返回0
+     *
+     * @return
+     */
+    public static long start() {
+        return null == CURRENT.get() ? 0L : System.nanoTime();
+    }
+
+    /**
+     * 记录阶段耗时，同一阶段多次记录时累加
+     *
+     * @param stage
+     * @param startNanos {@link #start()} 的返回值
+     */
+    public static void record(QueryStageEnum stage, long startNanos) {
+        QueryTrace trace = CURRENT.get();
+        if (null != trace && startNanos > 0L) {
+            trace.stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+        }
+    }
+
+    public static void view(Long viewId, Long sourceId) {
+        QueryTrace trace = CURRENT.get();
+        if (null != trace) {
+            trace.viewId = viewId;
+            trace.sourceId = sourceId;
+        }
+    }
+
+    public static void user(Long userId) {
+        QueryTrace trace = CURRENT.get();
+        if (null != trace) {
+            trace.userId = userId;
+        }
+    }
+
+    public static void rows(long rows) {
+        QueryTrace trace = CURRENT.get();
+        if (null != trace) {
+            trace.rows = Math.max(trace.rows, 0L) + rows;
+        }
+    }
+
+    /**
+     * 标记开始序列化响应
+     */
+    public static void markSerialize() {
+        QueryTrace trace = CURRENT.get();
+        if (null != trace && trace.serializeStartNanos == 0L) {
+            trace.serializeStartNanos = System.nanoTime();
+        }
+    }
+
+    public long getSerializeStartNanos() {
+        return serializeStartNanos;
+    }
+
+    public long getStageNanos(QueryStageEnum stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public Long getViewId() {
+        return viewId;
+    }
+
+    public Long getSourceId() {
+        return sourceId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Server-Timing 响应头
+     *
+     * @return
+     */
+    public String toServerTiming() {
+        StringBuilder builder = new StringBuilder();
+        for (QueryStageEnum stage : QueryStageEnum.values()) {
+            long nanos = stageNanos[stage.ordinal()];
+            if (nanos > 0L) {
+                builder.append(stage.getStage()).append(";dur=").append(toMillis(nanos)).append(", ");
+            }
+        }
+        builder.append("total;dur=").append(toMillis(getElapsedNanos()));
+        return builder.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.valueOf(nanos / 10_000L / 100.0);
+    }
+}
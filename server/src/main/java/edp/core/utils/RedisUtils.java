@@ -20,6 +20,7 @@
 package edp.core.utils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -43,6 +44,17 @@ public class RedisUtils {
 
 	private final String script = "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 then return redis.call('expire', KEYS[1], ARGV[2]) else return 0 end";
 
+	private final String leaseAcquireScript = "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then "
+			+ "local token = redis.call('incr', KEYS[2]) redis.call('expire', KEYS[2], ARGV[3]) return token else return 0 end";
+
+	private final String leaseReleaseScript = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+	private final String leaseRenewScript = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+
+	private static final String FENCE_SUFFIX = ":fence";
+
+	private static final long FENCE_EXPIRE_SECONDS = 86400L;
+
 	public boolean isRedisEnable() {
 		return isRedisEnable;
 	}
@@ -136,6 +148,63 @@ public class RedisUtils {
 		return 1L == (Long) redisTemplate.execute(RedisScript.of(script, Long.class), keys, values);
 	}
 
+	/**
+	 * 获取租约，成功时返回该key单调递增的fencing token，已被持有时返回0
+	 *
+	 * @param key
+	 * @param owner
+	 * @param ttlMillis
+	 * @return
+	 */
+	public long acquireLease(String key, String owner, long ttlMillis) {
+
+		if (!isRedisEnable) {
+			throw new RuntimeException("Redis is disabled");
+		}
+
+		List<String> keys = new ArrayList<>();
+		keys.add(key);
+		keys.add(key + FENCE_SUFFIX);
+
+		Long token = (Long) redisTemplate.execute(RedisScript.of(leaseAcquireScript, Long.class), keys, owner, ttlMillis, FENCE_EXPIRE_SECONDS);
+		return null == token ? 0L : token;
+	}
+
+	/**
+	 * 仅当租约仍属于owner时删除
+	 *
+	 * @param key
+	 * @param owner
+	 * @return
+	 */
+	public boolean releaseLease(String key, String owner) {
+
+		if (!isRedisEnable) {
+			throw new RuntimeException("Redis is disabled");
+		}
+
+		Long result = (Long) redisTemplate.execute(RedisScript.of(leaseReleaseScript, Long.class), Collections.singletonList(key), owner);
+		return null != result && 1L == result;
+	}
+
+	/**
+	 * 仅当租约仍属于owner时续期
+	 *
+	 * @param key
+	 * @param owner
+	 * @param ttlMillis
+	 * @return
+	 */
+	public boolean renewLease(String key, String owner, long ttlMillis) {
+
+		if (!isRedisEnable) {
+			throw new RuntimeException("Redis is disabled");
+		}
+
+		Long result = (Long) redisTemplate.execute(RedisScript.of(leaseRenewScript, Long.class), Collections.singletonList(key), owner, ttlMillis);
+		return null != result && 1L == result;
+	}
+
 	public boolean setIfAbsent(String key, Object value) {
 
 		if (!isRedisEnable) {
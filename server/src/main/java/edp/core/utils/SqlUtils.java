@@ -20,14 +20,21 @@ package edp.core.utils;
 
 import com.alibaba.druid.sql.SQLUtils;
 import com.alibaba.druid.util.StringUtils;
+import edp.core.common.audit.QueryAuditEntry;
+import edp.core.common.audit.QueryAuditor;
+import edp.core.common.buffer.QueryMemoryAccountant;
+import edp.core.common.buffer.ResultBuffer;
 import edp.core.common.jdbc.JdbcDataSource;
+import edp.core.common.jdbc.MetadataCache;
+import edp.core.common.jdbc.QueryLifecycleManager;
+import edp.core.common.jdbc.RunningQuery;
 import edp.core.consts.Consts;
 import edp.core.enums.DataTypeEnum;
+import edp.core.enums.QueryStageEnum;
 import edp.core.enums.SqlTypeEnum;
 import edp.core.exception.ServerException;
 import edp.core.exception.SourceException;
 import edp.core.model.*;
-import edp.davinci.core.enums.LogNameEnum;
 import edp.davinci.core.enums.SqlColumnEnum;
 import edp.davinci.core.utils.SourcePasswordEncryptUtils;
 import edp.davinci.core.utils.SqlParseUtils;
@@ -41,12 +48,15 @@ import net.sf.jsqlparser.schema.Table;
 import net.sf.jsqlparser.statement.Statement;
 import net.sf.jsqlparser.statement.select.*;
 import org.joda.time.DateTime;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.StatementCallback;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.stereotype.Component;
 
 import javax.sql.DataSource;
@@ -54,6 +64,7 @@ import java.math.BigDecimal;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 
 import static edp.core.consts.Consts.*;
@@ -64,11 +75,21 @@ import static edp.core.enums.DataTypeEnum.*;
 @Scope("prototype")
 public class SqlUtils {
 
-    private static final Logger sqlLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_SQL.getName());
-
     @Autowired
     private JdbcDataSource jdbcDataSource;
 
+    @Autowired
+    private QueryAuditor queryAuditor;
+
+    @Autowired
+    private QueryLifecycleManager queryLifecycleManager;
+
+    @Autowired
+    private MetadataCache metadataCache;
+
+    @Autowired
+    private QueryMemoryAccountant queryMemoryAccountant;
+
     @Value("${source.result-limit:1000000}")
     private int resultLimit;
 
@@ -115,6 +136,10 @@ public class SqlUtils {
                 .withJdbcDataSource(this.jdbcDataSource)
                 .withResultLimit(this.resultLimit)
                 .withIsQueryLogEnable(this.isQueryLogEnable)
+                .withQueryAuditor(this.queryAuditor)
+                .withQueryLifecycleManager(this.queryLifecycleManager)
+                .withMetadataCache(this.metadataCache)
+                .withQueryMemoryAccountant(this.queryMemoryAccountant)
                 .build();
     }
 
@@ -134,19 +159,22 @@ public class SqlUtils {
                 .withJdbcDataSource(this.jdbcDataSource)
                 .withResultLimit(this.resultLimit)
                 .withIsQueryLogEnable(this.isQueryLogEnable)
+                .withQueryAuditor(this.queryAuditor)
+                .withQueryLifecycleManager(this.queryLifecycleManager)
+                .withMetadataCache(this.metadataCache)
+                .withQueryMemoryAccountant(this.queryMemoryAccountant)
                 .build();
     }
 
     public void execute(String sql) throws ServerException {
-        if (isQueryLogEnable) {
-            String md5 = MD5Util.getMD5(sql, true, 16);
-            sqlLogger.info("{} execute for sql:{}", md5, formatSql(sql));
-        }
+        long before = System.currentTimeMillis();
         try {
             jdbcTemplate().execute(sql);
         } catch (Exception e) {
             log.error(e.toString(), e);
             throw new ServerException(e.getMessage());
+        } finally {
+            audit(QueryAuditEntry.EXECUTE, sql, before, 0L, 0);
         }
     }
 
@@ -175,10 +203,7 @@ public class SqlUtils {
 
         List<Map<String, Object>> list = jdbcTemplate.queryForList(sql);
 
-        if (isQueryLogEnable) {
-            String md5 = MD5Util.getMD5(sql, true, 16);
-            sqlLogger.info("{} query for {} ms, total count:{} sql:{}", md5, System.currentTimeMillis() - before, list.size(), formatSql(sql));
-        }
+        audit(QueryAuditEntry.QUERY, sql, before, list.size(), 0);
 
         return list;
     }
@@ -186,10 +211,13 @@ public class SqlUtils {
     public PaginateWithQueryColumns query4Paginate(String sql, int pageNo, int pageSize, int totalCount, int limit, Set<String> excludeColumns) {
 
         PaginateWithQueryColumns paginateWithQueryColumns = new PaginateWithQueryColumns();
+        QueryAnalysis analysis = QueryAnalysis.of(sql);
 
         long before = System.currentTimeMillis();
 
+        long poolBefore = QueryTrace.start();
         JdbcTemplate jdbcTemplate = jdbcTemplate();
+        QueryTrace.record(QueryStageEnum.POOL, poolBefore);
         jdbcTemplate.setMaxRows(resultLimit);
         if (pageNo < 1 && pageSize < 1) {
 
@@ -202,7 +230,7 @@ public class SqlUtils {
                 jdbcTemplate.setFetchSize(Integer.MIN_VALUE);
             }
 
-            getResultForPaginate(sql, paginateWithQueryColumns, jdbcTemplate, excludeColumns, -1);
+            getResultForPaginate(sql, analysis, paginateWithQueryColumns, jdbcTemplate, excludeColumns, -1);
             paginateWithQueryColumns.setPageNo(1);
             int size = paginateWithQueryColumns.getResultList().size();
             paginateWithQueryColumns.setPageSize(size);
@@ -215,8 +243,10 @@ public class SqlUtils {
             int startRow = (pageNo - 1) * pageSize;
 
             if (pageNo == 1 || totalCount == 0) {
-                Object o = jdbcTemplate.queryForList(getCountSql(sql), Object.class).get(0);
+                long countBefore = QueryTrace.start();
+                Object o = track(jdbcTemplate, analysis.getCountSql(), new RowMapperResultSetExtractor<>(new SingleColumnRowMapper<>(Object.class))).get(0);
                 totalCount = Integer.parseInt(String.valueOf(o));
+                QueryTrace.record(QueryStageEnum.EXECUTE, countBefore);
             }
 
             if (limit > 0) {
@@ -234,84 +264,215 @@ public class SqlUtils {
 
             if (this.dataTypeEnum == MYSQL) {
                 sql = sql + " LIMIT " + startRow + ", " + pageSize;
-                getResultForPaginate(sql, paginateWithQueryColumns, jdbcTemplate, excludeColumns, -1);
+                getResultForPaginate(sql, analysis, paginateWithQueryColumns, jdbcTemplate, excludeColumns, -1);
             } else {
-                getResultForPaginate(sql, paginateWithQueryColumns, jdbcTemplate, excludeColumns, startRow);
+                getResultForPaginate(sql, analysis, paginateWithQueryColumns, jdbcTemplate, excludeColumns, startRow);
             }
         }
 
-        if (isQueryLogEnable) {
-            String md5 = MD5Util.getMD5(sql + pageNo + pageSize + limit, true, 16);
-            sqlLogger.info("{} query for {} ms, total count:{}, page size:{}, sql:{}",
-                    md5, System.currentTimeMillis() - before,
-                    paginateWithQueryColumns.getTotalCount(),
-                    paginateWithQueryColumns.getPageSize(),
-                    formatSql(sql));
-        }
+        audit(QueryAuditEntry.QUERY, sql, before, paginateWithQueryColumns.getTotalCount(), paginateWithQueryColumns.getPageSize());
 
         return paginateWithQueryColumns;
     }
 
-    private void getResultForPaginate(String sql, PaginateWithQueryColumns paginateWithQueryColumns, JdbcTemplate jdbcTemplate, Set<String> excludeColumns, int startRow) {
-        Set<String> queryFromsAndJoins = getQueryFromsAndJoins(sql);
-        jdbcTemplate.query(sql, rs -> {
+    /**
+     * 流式读取查询结果，结果集交给extractor逐行处理，不在内存中保存，返回extractor处理的行数
+     * <p>
+     * 行数范围与 {@link #syncQuery4Paginate} 一致：limit 与 resultLimit 取小，指定分页时只读取该页
+     *
+     * @param sql
+     * @param pageNo
+     * @param pageSize
+     * @param limit
+     * @param extractor
+     * @return
+     */
+    public long query4Stream(String sql, Integer pageNo, Integer pageSize, Integer limit, ResultSetExtractor<Long> extractor) {
+        long before = System.currentTimeMillis();
+
+        JdbcTemplate jdbcTemplate = jdbcTemplate();
+        int maxRows = null != limit && limit > 0 ? Math.min(limit, resultLimit) : resultLimit;
+        int skipRows = 0;
+        if (null != pageNo && pageNo > 0 && null != pageSize && pageSize > 0) {
+            int startRow = (pageNo - 1) * pageSize;
+            int endRow = (int) Math.min((long) pageNo * pageSize, maxRows);
+            if (getDataTypeEnum() == DataTypeEnum.MYSQL) {
+                sql = sql + " LIMIT " + startRow + ", " + Math.max(endRow - startRow, 0);
+            } else {
+                skipRows = startRow;
+                maxRows = Math.max(endRow, startRow);
+            }
+        }
+        if (maxRows > 0) {
+            jdbcTemplate.setMaxRows(maxRows);
+        }
+
+        // special for mysql
+        if (getDataTypeEnum() == DataTypeEnum.MYSQL) {
+            jdbcTemplate.setFetchSize(Integer.MIN_VALUE);
+        }
+
+        int skip = skipRows;
+        Long count = track(jdbcTemplate, sql, rs -> {
+            // 结果集只能向前读取，逐行跳过分页前的数据
+            int skipped = 0;
+            while (skipped < skip && rs.next()) {
+                skipped++;
+            }
+            return extractor.extractData(rs);
+        });
+        long rows = null == count ? 0L : count;
+
+        audit(QueryAuditEntry.EXPORT, sql, before, rows, 0);
+        return rows;
+    }
+
+    /**
+     * 审计记录交给后台线程格式化输出，避免在请求线程中格式化sql
+     */
+    private void audit(String type, String sql, long before, long totalCount, int pageSize) {
+        if (isQueryLogEnable && null != queryAuditor) {
+            queryAuditor.submit(QueryAuditEntry.of(type, sql, before, totalCount, pageSize));
+        }
+    }
+
+    private void getResultForPaginate(String sql, QueryAnalysis analysis, PaginateWithQueryColumns paginateWithQueryColumns, JdbcTemplate jdbcTemplate, Set<String> excludeColumns, int startRow) {
+        long executeBefore = QueryTrace.start();
+        track(jdbcTemplate, sql, rs -> {
+            QueryTrace.record(QueryStageEnum.EXECUTE, executeBefore);
             if (null == rs) {
                 return paginateWithQueryColumns;
             }
 
+            long materializeBefore = QueryTrace.start();
+
             ResultSetMetaData metaData = rs.getMetaData();
+            QueryAnalysis.ColumnMapping mapping = analysis.getColumnMapping(metaData);
+            boolean[] excluded = mapping.getExcluded(excludeColumns);
+            List<QueryColumn> totalColumns = new ArrayList<>();
             List<QueryColumn> queryColumns = new ArrayList<>();
-            for (int i = 1; i <= metaData.getColumnCount(); i++) {
-                String key = getColumnLabel(queryFromsAndJoins, metaData.getColumnLabel(i));
-                if (!CollectionUtils.isEmpty(excludeColumns) && excludeColumns.contains(key)) {
+            for (int i = 0; i < mapping.size(); i++) {
+                QueryColumn queryColumn = new QueryColumn(mapping.getKey(i), metaData.getColumnTypeName(i + 1));
+                totalColumns.add(queryColumn);
+                if (excluded[i]) {
                     continue;
                 }
-                queryColumns.add(new QueryColumn(key, metaData.getColumnTypeName(i)));
+                queryColumns.add(queryColumn);
             }
             paginateWithQueryColumns.setColumns(queryColumns);
+            if (null != metadataCache) {
+                metadataCache.putQueryColumns(jdbcSourceInfo, analysis.getSql(), totalColumns);
+            }
 
+            // 超出请求额度的行写入磁盘缓冲
+            ResultBuffer buffer = newResultBuffer(mapping, excluded);
             List<Map<String, Object>> resultList = new ArrayList<>();
+            Consumer<Map<String, Object>> collector = null == buffer ? resultList::add : buffer::append;
 
             try {
-                if (startRow > 0) {
-                    rs.absolute(startRow);
-                }
-                while (rs.next()) {
-                    resultList.add(getResultObjectMap(excludeColumns, rs, metaData, queryFromsAndJoins));
+                try {
+                    if (startRow > 0) {
+                        rs.absolute(startRow);
+                    }
+                    while (rs.next()) {
+                        collector.accept(getResultObjectMap(rs, mapping, excluded));
+                    }
+                } catch (Throwable e) {
+                    int currentRow = 0;
+                    while (rs.next()) {
+                        if (currentRow >= startRow) {
+                            collector.accept(getResultObjectMap(rs, mapping, excluded));
+                        }
+                        currentRow++;
+                    }
                 }
             } catch (Throwable e) {
-                int currentRow = 0;
-                while (rs.next()) {
-                    if (currentRow >= startRow) {
-                        resultList.add(getResultObjectMap(excludeColumns, rs, metaData, queryFromsAndJoins));
-                    }
-                    currentRow++;
+                if (null != buffer) {
+                    buffer.close();
                 }
+                throw e;
+            }
+
+            if (null != buffer) {
+                buffer.seal();
+                resultList = buffer.isSpilled() ? buffer : buffer.getRows();
             }
 
             paginateWithQueryColumns.setResultList(resultList);
+            QueryTrace.record(QueryStageEnum.MATERIALIZE, materializeBefore);
 
             return paginateWithQueryColumns;
         });
     }
 
-    private Map<String, Object> getResultObjectMap(Set<String> excludeColumns, ResultSet rs, ResultSetMetaData metaData, Set<String> queryFromsAndJoins) throws SQLException {
-        Map<String, Object> map = new LinkedHashMap<>();
+    private ResultBuffer newResultBuffer(QueryAnalysis.ColumnMapping mapping, boolean[] excluded) {
+        if (null == queryMemoryAccountant || !queryMemoryAccountant.isEnable()) {
+            return null;
+        }
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < mapping.size(); i++) {
+            if (!excluded[i]) {
+                keys.add(mapping.getKey(i));
+            }
+        }
+        return queryMemoryAccountant.newBuffer(new ArrayList<>(keys));
+    }
 
-        for (int i = 1; i <= metaData.getColumnCount(); i++) {
-            String key = metaData.getColumnLabel(i);
-            String label = getColumnLabel(queryFromsAndJoins, key);
+    /**
+     * 在查询生命周期管理中登记查询，执行期间可被取消
+     * <p>
+     * 查询不带参数，与原有 {@link JdbcTemplate#query(String, ResultSetExtractor)} 一样使用普通 Statement；
+     * 配置了超时时间的数据源设置 statement 超时
+     */
+    private <T> T track(JdbcTemplate jdbcTemplate, String sql, ResultSetExtractor<T> extractor) {
+        RunningQuery query = null == queryLifecycleManager ? null : queryLifecycleManager.start(jdbcSourceInfo.getName(), sql);
+        int timeoutSeconds = null == queryLifecycleManager ? 0 : queryLifecycleManager.getTimeoutSeconds(jdbcSourceInfo.getProperties());
+        try {
+            return jdbcTemplate.execute((StatementCallback<T>) statement -> {
+                if (timeoutSeconds > 0) {
+                    // 部分驱动不支持statement超时
+                    try {
+                        statement.setQueryTimeout(timeoutSeconds);
+                    } catch (SQLException e) {
+                        log.debug("Set query timeout error:{}", e.getMessage());
+                    }
+                }
+                if (null != query) {
+                    query.attach(statement);
+                }
+                ResultSet rs = null;
+                try {
+                    rs = statement.executeQuery(sql);
+                    return extractor.extractData(rs);
+                } finally {
+                    JdbcUtils.closeResultSet(rs);
+                }
+            });
+        } finally {
+            if (null != query) {
+                queryLifecycleManager.finish(query);
+            }
+        }
+    }
 
-            if (!CollectionUtils.isEmpty(excludeColumns) && excludeColumns.contains(label)) {
+    private Map<String, Object> getResultObjectMap(ResultSet rs, QueryAnalysis.ColumnMapping mapping, boolean[] excluded) throws SQLException {
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        for (int i = 0; i < mapping.size(); i++) {
+            if (excluded[i]) {
                 continue;
             }
-            Object value = rs.getObject(key);
-            map.put(label, value instanceof byte[] ? new String((byte[]) value) : value);
+            Object value = rs.getObject(mapping.getValueIndex(i));
+            map.put(mapping.getKey(i), value instanceof byte[] ? new String((byte[]) value) : value);
         }
         return map;
     }
 
     public static String getCountSql(String sql) {
+        return QueryAnalysis.of(sql).getCountSql();
+    }
+
+    static String buildCountSql(String sql) {
         String countSql = String.format(Consts.QUERY_COUNT_SQL, sql);
         try {
             Select select = (Select) CCJSqlParserUtil.parse(sql);
@@ -395,13 +556,13 @@ public class SqlUtils {
         if (!CollectionUtils.isEmpty(columnPrefixes)) {
             for (String prefix : columnPrefixes) {
                 if (columnLabel.startsWith(prefix)) {
-                    return columnLabel.replaceFirst(prefix, EMPTY);
+                    return columnLabel.substring(prefix.length());
                 }
                 if (columnLabel.startsWith(prefix.toLowerCase())) {
-                    return columnLabel.replaceFirst(prefix.toLowerCase(), EMPTY);
+                    return columnLabel.substring(prefix.toLowerCase().length());
                 }
                 if (columnLabel.startsWith(prefix.toUpperCase())) {
-                    return columnLabel.replaceFirst(prefix.toUpperCase(), EMPTY);
+                    return columnLabel.substring(prefix.toUpperCase().length());
                 }
             }
         }
@@ -546,7 +707,11 @@ public class SqlUtils {
      * @throws SourceException
      */
     public TableInfo getTableInfo(String dbName, String tableName) throws SourceException {
-        TableInfo tableInfo = null;
+        TableInfo tableInfo = null == metadataCache ? null : metadataCache.getTableInfo(this.jdbcSourceInfo, dbName, tableName);
+        if (null != tableInfo) {
+            return tableInfo;
+        }
+
         Connection connection = null;
         try {
             connection = sourceUtils.getConnection(this.jdbcSourceInfo);
@@ -555,6 +720,9 @@ public class SqlUtils {
                 List<String> primaryKeys = getPrimaryKeys(dbName, tableName, metaData);
                 List<QueryColumn> columns = getColumns(dbName, tableName, metaData);
                 tableInfo = new TableInfo(tableName, primaryKeys, columns);
+                if (null != metadataCache) {
+                    metadataCache.putTableInfo(this.jdbcSourceInfo, dbName, tableName, tableInfo);
+                }
             }
         } catch (SQLException e) {
             log.error(e.toString(), e);
@@ -566,6 +734,32 @@ public class SqlUtils {
     }
 
 
+    /**
+     * 最近一次成功查询得到的结果列，未缓存时返回null
+     *
+     * @param sql
+     * @return
+     */
+    public List<QueryColumn> getCachedQueryColumns(String sql) {
+        return null == metadataCache ? null : metadataCache.getQueryColumns(this.jdbcSourceInfo, sql);
+    }
+
+    public void cacheQueryColumns(String sql, List<QueryColumn> columns) {
+        if (null != metadataCache) {
+            metadataCache.putQueryColumns(this.jdbcSourceInfo, sql, columns);
+        }
+    }
+
+    /**
+     * 清除数据源的元数据缓存
+     */
+    public void invalidateMetadata() {
+        if (null != metadataCache) {
+            metadataCache.invalidate(this.jdbcSourceInfo);
+        }
+    }
+
+
     /**
      * 判断表是否存在
      *
@@ -962,6 +1156,11 @@ public class SqlUtils {
         private JdbcDataSource jdbcDataSource;
         private int resultLimit;
         private boolean isQueryLogEnable;
+        private QueryAuditor queryAuditor;
+        private QueryLifecycleManager queryLifecycleManager;
+
+        private MetadataCache metadataCache;
+        private QueryMemoryAccountant queryMemoryAccountant;
         private String name;
         private String type;
         private String jdbcUrl;
@@ -994,6 +1193,26 @@ public class SqlUtils {
             return this;
         }
 
+        SqlUtilsBuilder withQueryAuditor(QueryAuditor queryAuditor) {
+            this.queryAuditor = queryAuditor;
+            return this;
+        }
+
+        SqlUtilsBuilder withQueryLifecycleManager(QueryLifecycleManager queryLifecycleManager) {
+            this.queryLifecycleManager = queryLifecycleManager;
+            return this;
+        }
+
+        SqlUtilsBuilder withMetadataCache(MetadataCache metadataCache) {
+            this.metadataCache = metadataCache;
+            return this;
+        }
+
+        SqlUtilsBuilder withQueryMemoryAccountant(QueryMemoryAccountant queryMemoryAccountant) {
+            this.queryMemoryAccountant = queryMemoryAccountant;
+            return this;
+        }
+
         SqlUtilsBuilder withName(String name) {
             this.name = name;
             return this;
@@ -1056,6 +1275,10 @@ public class SqlUtils {
             sqlUtils.jdbcDataSource = this.jdbcDataSource;
             sqlUtils.resultLimit = this.resultLimit;
             sqlUtils.isQueryLogEnable = this.isQueryLogEnable;
+            sqlUtils.queryAuditor = this.queryAuditor;
+            sqlUtils.queryLifecycleManager = this.queryLifecycleManager;
+            sqlUtils.metadataCache = this.metadataCache;
+            sqlUtils.queryMemoryAccountant = this.queryMemoryAccountant;
             sqlUtils.sourceUtils = new SourceUtils(this.jdbcDataSource);
 
             return sqlUtils;
@@ -0,0 +1,146 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.core.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 流式zip写入
+ * <p>
+ * 直接写入目标流（http响应或附件文件），文件生成一个写入一个；
+ * xlsx、png等本身已压缩的文件以STORED方式写入，不再重复压缩；
+ * 写入失败时抛出带条目名称的IOException，由调用方处理
+ */
+public class StreamingZipWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final Pattern COMPRESSED_PATTERN = Pattern.compile(
+            "\\.(xlsx|xlsm|docx|pptx|png|jpe?g|gif|webp|zip|gz|bz2|7z|rar)$", Pattern.CASE_INSENSITIVE);
+
+    private final ZipOutputStream zipOutputStream;
+
+    private final ByteBuffer directBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final Set<String> names = new HashSet<>();
+
+    private int entries = 0;
+
+    public StreamingZipWriter(OutputStream out) {
+        this.zipOutputStream = new ZipOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    }
+
+    public static boolean isCompressed(String name) {
+        return COMPRESSED_PATTERN.matcher(name).find();
+    }
+
+    /**
+     * 写入一个文件
+     *
+     * @param name 条目名称，重名时自动加序号
+     * @param file
+     * @throws IOException
+     */
+    public void addFile(String name, File file) throws IOException {
+        String entryName = uniqueName(name);
+        try {
+            ZipEntry entry = new ZipEntry(entryName);
+            if (isCompressed(entryName)) {
+                // STORED条目需要预先给出大小与crc
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(file.length());
+                entry.setCompressedSize(file.length());
+                entry.setCrc(crc(file));
+            }
+            entry.setTime(file.lastModified());
+
+            zipOutputStream.putNextEntry(entry);
+            try (InputStream in = new FileInputStream(file)) {
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    zipOutputStream.write(buffer, 0, length);
+                }
+            }
+            zipOutputStream.closeEntry();
+            entries++;
+        } catch (IOException e) {
+            throw new IOException("Zip entry(" + entryName + ") write error: " + e.getMessage(), e);
+        }
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * 写入中央目录，不关闭目标流
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        zipOutputStream.finish();
+        zipOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zipOutputStream.close();
+    }
+
+    private long crc(File file) throws IOException {
+        CRC32 crc32 = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            directBuffer.clear();
+            while (channel.read(directBuffer) > 0) {
+                directBuffer.flip();
+                crc32.update(directBuffer);
+                directBuffer.clear();
+            }
+        }
+        return crc32.getValue();
+    }
+
+    private String uniqueName(String name) {
+        if (names.add(name)) {
+            return name;
+        }
+        int index = name.lastIndexOf('.');
+        String base = index > 0 ? name.substring(0, index) : name;
+        String suffix = index > 0 ? name.substring(index) : "";
+        for (int i = 1; ; i++) {
+            String candidate = base + "(" + i + ")" + suffix;
+            if (names.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+}
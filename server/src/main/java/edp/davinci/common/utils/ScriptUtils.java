@@ -68,6 +68,15 @@ public class ScriptUtils {
     }
 
 
+    /**
+     * 启动预热时初始化脚本引擎
+     *
+     * @return 两个格式化脚本均可执行时返回true
+     */
+    public static synchronized boolean warmUp() {
+        return null != ScriptEnum.INSTANCE.tableFormatJs && null != ScriptEnum.INSTANCE.executeParamFormatJs;
+    }
+
     public static synchronized ViewExecuteParam getViewExecuteParam(String dashboardConfig, String widgetConfig, Set<SimpleView> views,
                                                                     Long relationId) {
 
@@ -19,10 +19,12 @@
 
 package edp.davinci.controller;
 
+import com.alibaba.druid.util.StringUtils;
 import edp.core.annotation.AuthIgnore;
 import edp.core.annotation.AuthShare;
 import edp.core.annotation.CurrentUser;
 import edp.core.utils.FileUtils;
+import edp.core.utils.StreamingZipWriter;
 import edp.davinci.common.controller.BaseController;
 import edp.davinci.core.common.Constants;
 import edp.davinci.core.common.ResultMap;
@@ -56,7 +58,10 @@ import java.io.FileInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -79,6 +84,11 @@ public class DownloadController extends BaseController {
     @Autowired
     private ShareDownloadService shareDownloadService;
 
+    /**
+     * 一次打包下载的最大文件数
+     */
+    private static final int MAX_ZIP_FILES = 100;
+
     @ApiOperation(value = "get download record page")
     @GetMapping(value = "/page", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public ResponseEntity getDownloadRecordPage(@ApiIgnore @CurrentUser User user,
@@ -110,6 +120,55 @@ public class DownloadController extends BaseController {
     }
 
 
+    /**
+     * 多个下载记录打包为zip，逐个文件直接写入响应
+     *
+     * @param ids
+     * @param token
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get download record files in zip")
+    @GetMapping(value = "/record/files/{token:.*}", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @AuthIgnore
+    public ResponseEntity getDownloadRecordFiles(@RequestParam Long[] ids,
+                                                 @PathVariable String token,
+                                                 HttpServletRequest request,
+                                                 HttpServletResponse response) {
+        if (null == ids || ids.length == 0 || ids.length > MAX_ZIP_FILES) {
+            log.warn("GetDownloadRecordFiles rejected, {} ids, max: {}", null == ids ? 0 : ids.length, MAX_ZIP_FILES);
+            return ResponseEntity.badRequest().build();
+        }
+
+        // 只读取记录，写入zip的文件才标记为已下载
+        List<DownloadRecord> records = new ArrayList<>();
+        for (DownloadRecord record : downloadService.getDownloadRecords(ids, token)) {
+            if (StringUtils.isEmpty(record.getPath()) || !new File(record.getPath()).exists()) {
+                log.warn("Download record({}) file is not ready, skipped", record.getId());
+                continue;
+            }
+            records.add(record);
+        }
+
+        List<DownloadRecord> written = new ArrayList<>();
+        try {
+            encodeFileName(request, response, "download_" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date()) + ".zip");
+            StreamingZipWriter writer = new StreamingZipWriter(response.getOutputStream());
+            for (DownloadRecord record : records) {
+                writer.addFile(record.getName() + FileTypeEnum.XLSX.getFormat(), new File(record.getPath()));
+                written.add(record);
+            }
+            writer.finish();
+        } catch (Exception e) {
+            log.error("GetDownloadRecordFiles error, ids=" + Arrays.toString(ids), e);
+        } finally {
+            downloadService.markDownloaded(written);
+        }
+        return null;
+    }
+
+
     @ApiOperation(value = "get download record file")
     @PostMapping(value = "/submit/{type}/{id}", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
     public ResponseEntity submitDownloadTask(@PathVariable String type,
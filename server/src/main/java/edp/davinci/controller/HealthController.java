@@ -0,0 +1,57 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.controller;
+
+import edp.core.annotation.AuthIgnore;
+import edp.davinci.common.controller.BaseController;
+import edp.davinci.core.common.Constants;
+import edp.davinci.service.warmup.StartupWarmer;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@Api(value = "/health", tags = "health")
+@Slf4j
+@RestController
+@RequestMapping(value = Constants.BASE_API_PATH + "/health")
+public class HealthController extends BaseController {
+
+    @Autowired
+    private StartupWarmer startupWarmer;
+
+    /**
+     * 就绪检查，启动预热完成前返回503
+     *
+     * @return
+     */
+    @ApiOperation(value = "get readiness")
+    @GetMapping(value = "/ready")
+    @AuthIgnore
+    public ResponseEntity getReadiness() {
+        return ResponseEntity.status(startupWarmer.isWarm() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+                .body(startupWarmer.getStatus());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.controller;
+
+import com.alibaba.druid.util.StringUtils;
+import edp.core.annotation.AuthIgnore;
+import edp.core.common.buffer.QueryMemoryAccountant;
+import edp.core.common.mail.MailQueue;
+import edp.core.enums.HttpCodeEnum;
+import edp.core.utils.LockMetrics;
+import edp.davinci.common.controller.BaseController;
+import edp.davinci.core.common.Constants;
+import edp.davinci.service.metrics.QueryMetrics;
+import edp.davinci.service.screenshot.ImagePipeline;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+@Api(value = "/metrics", tags = "metrics")
+@Slf4j
+@RestController
+@RequestMapping(value = Constants.BASE_API_PATH + "/metrics")
+public class MetricsController extends BaseController {
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    @Autowired
+    private QueryMetrics queryMetrics;
+
+    @Autowired
+    private MailQueue mailQueue;
+
+    @Autowired
+    private ImagePipeline imagePipeline;
+
+    @Autowired
+    private QueryMemoryAccountant queryMemoryAccountant;
+
+    @Value("${source.metrics.access-token:}")
+    private String accessToken;
+
+    /**
+     * 数据查询耗时统计，Prometheus 文本格式
+     *
+     * @param token
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get query metrics")
+    @GetMapping(value = "/query")
+    @AuthIgnore
+    public ResponseEntity getQueryMetrics(@RequestParam(required = false) String token,
+                                          HttpServletRequest request,
+                                          HttpServletResponse response) throws IOException {
+        if (!queryMetrics.isEnable()) {
+            response.setStatus(HttpCodeEnum.NOT_FOUND.getCode());
+            return null;
+        }
+
+        if (!authorize(token, request, response)) {
+            return null;
+        }
+
+        response.setContentType(PROMETHEUS_CONTENT_TYPE);
+        queryMetrics.write(response.getWriter());
+        return null;
+    }
+
+    /**
+     * 邮件队列投递统计，Prometheus 文本格式
+     *
+     * @param token
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get mail queue metrics")
+    @GetMapping(value = "/mail")
+    @AuthIgnore
+    public ResponseEntity getMailMetrics(@RequestParam(required = false) String token,
+                                         HttpServletRequest request,
+                                         HttpServletResponse response) throws IOException {
+        if (!mailQueue.isEnable()) {
+            response.setStatus(HttpCodeEnum.NOT_FOUND.getCode());
+            return null;
+        }
+
+        if (!authorize(token, request, response)) {
+            return null;
+        }
+
+        response.setContentType(PROMETHEUS_CONTENT_TYPE);
+        mailQueue.write(response.getWriter());
+        return null;
+    }
+
+    /**
+     * 锁获取耗时与竞争统计，Prometheus 文本格式
+     *
+     * @param token
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get lock metrics")
+    @GetMapping(value = "/lock")
+    @AuthIgnore
+    public ResponseEntity getLockMetrics(@RequestParam(required = false) String token,
+                                         HttpServletRequest request,
+                                         HttpServletResponse response) throws IOException {
+        if (!authorize(token, request, response)) {
+            return null;
+        }
+
+        response.setContentType(PROMETHEUS_CONTENT_TYPE);
+        LockMetrics.write(response.getWriter());
+        return null;
+    }
+
+    /**
+     * 定时任务截图处理统计，Prometheus 文本格式
+     *
+     * @param token
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get screenshot image metrics")
+    @GetMapping(value = "/image")
+    @AuthIgnore
+    public ResponseEntity getImageMetrics(@RequestParam(required = false) String token,
+                                          HttpServletRequest request,
+                                          HttpServletResponse response) throws IOException {
+        if (!authorize(token, request, response)) {
+            return null;
+        }
+
+        response.setContentType(PROMETHEUS_CONTENT_TYPE);
+        imagePipeline.write(response.getWriter());
+        return null;
+    }
+
+    /**
+     * 查询结果内存占用与落盘统计，Prometheus 文本格式
+     *
+     * @param token
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get query result memory metrics")
+    @GetMapping(value = "/result")
+    @AuthIgnore
+    public ResponseEntity getResultMetrics(@RequestParam(required = false) String token,
+                                           HttpServletRequest request,
+                                           HttpServletResponse response) throws IOException {
+        if (!authorize(token, request, response)) {
+            return null;
+        }
+
+        response.setContentType(PROMETHEUS_CONTENT_TYPE);
+        queryMemoryAccountant.write(response.getWriter());
+        return null;
+    }
+
+    /**
+     * 校验访问token，未配置token时统计接口不对外开放
+     * <p>
+     * token 可通过 Authorization: Bearer 请求头或 token 参数传入
+     */
+    private boolean authorize(String token, HttpServletRequest request, HttpServletResponse response) {
+        if (StringUtils.isEmpty(accessToken)) {
+            response.setStatus(HttpCodeEnum.NOT_FOUND.getCode());
+            return false;
+        }
+
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (!StringUtils.isEmpty(authorization) && authorization.startsWith(BEARER_PREFIX)) {
+            token = authorization.substring(BEARER_PREFIX.length()).trim();
+        }
+
+        if (StringUtils.isEmpty(token) || !MessageDigest.isEqual(accessToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(HttpCodeEnum.UNAUTHORIZED.getCode());
+            return false;
+        }
+        return true;
+    }
+}
@@ -30,6 +30,7 @@ import edp.davinci.dto.roleDto.RoleBaseInfo;
 import edp.davinci.dto.roleDto.RoleProject;
 import edp.davinci.dto.roleDto.RoleWithProjectPermission;
 import edp.davinci.model.User;
+import edp.davinci.service.ProjectBundleService;
 import edp.davinci.service.ProjectService;
 import edp.davinci.service.RoleService;
 import io.swagger.annotations.Api;
@@ -42,10 +43,13 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
 import springfox.documentation.annotations.ApiIgnore;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -62,6 +66,11 @@ public class ProjectController extends BaseController {
     @Autowired
     private RoleService roleService;
 
+    @Autowired
+    private ProjectBundleService projectBundleService;
+
+    private static final String BUNDLE_CONTENT_TYPE = "application/zip";
+
 
     /**
      * 获取项目列表：用户创建和用户所在组可访问的
@@ -415,4 +424,61 @@ public class ProjectController extends BaseController {
         List<RoleProject> list = projectService.postRoles(id, Arrays.asList(roleIds), user);
         return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).payload(list));
     }
+
+
+    /**
+     * 导出project下的source、view、widget、portal、dashboard，zip格式
+     *
+     * @param id
+     * @param user
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "export project bundle")
+    @GetMapping(value = "/{id}/bundle", produces = {BUNDLE_CONTENT_TYPE, MediaType.APPLICATION_JSON_UTF8_VALUE})
+    public ResponseEntity exportBundle(@PathVariable Long id,
+                                       @ApiIgnore @CurrentUser User user,
+                                       HttpServletRequest request,
+                                       HttpServletResponse response) throws IOException {
+        if (invalidId(id)) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Invalid project id");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        response.setContentType(BUNDLE_CONTENT_TYPE);
+        response.setHeader("Content-Disposition", "attachment; filename=project-" + id + ".zip");
+        projectBundleService.exportBundle(id, user, response.getOutputStream());
+        return null;
+    }
+
+
+    /**
+     * 导入project包，全部校验通过后在一个事务内批量写入
+     *
+     * @param id
+     * @param file
+     * @param user
+     * @param request
+     * @return
+     */
+    @ApiOperation(value = "import project bundle")
+    @PostMapping(value = "/{id}/bundle")
+    public ResponseEntity importBundle(@PathVariable Long id,
+                                       @RequestParam("file") MultipartFile file,
+                                       @ApiIgnore @CurrentUser User user,
+                                       HttpServletRequest request) {
+        if (invalidId(id)) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Invalid project id");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        if (file.isEmpty()) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Bundle file can not be empty");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        BundleImportResult result = projectBundleService.importBundle(id, file, user);
+        return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).payload(result));
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.controller;
+
+import com.alibaba.druid.util.StringUtils;
+import edp.core.annotation.CurrentUser;
+import edp.core.common.jdbc.QueryLifecycleManager;
+import edp.core.common.jdbc.RunningQuery;
+import edp.core.enums.HttpCodeEnum;
+import edp.davinci.common.controller.BaseController;
+import edp.davinci.core.common.Constants;
+import edp.davinci.core.common.ResultMap;
+import edp.davinci.model.User;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import springfox.documentation.annotations.ApiIgnore;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+@Api(value = "/queries", tags = "queries", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+@Slf4j
+@RestController
+@RequestMapping(value = Constants.BASE_API_PATH + "/queries", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+public class QueryController extends BaseController {
+
+    @Autowired
+    private QueryLifecycleManager queryLifecycleManager;
+
+    @Value("${source.query-lifecycle.admin-token:}")
+    private String adminToken;
+
+    /**
+     * 执行中的查询，请求头携带管理token时返回全部用户的查询
+     *
+     * @param user
+     * @param request
+     * @return
+     */
+    @ApiOperation(value = "get running queries")
+    @GetMapping
+    public ResponseEntity getRunningQueries(@ApiIgnore @CurrentUser User user,
+                                            HttpServletRequest request) {
+        List<RunningQuery> queries = queryLifecycleManager.list(isAdmin(request) ? null : user.getId());
+        return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).payloads(queries));
+    }
+
+    /**
+     * 终止执行中的查询
+     *
+     * @param id
+     * @param user
+     * @param request
+     * @return
+     */
+    @ApiOperation(value = "kill running query")
+    @DeleteMapping("/{id}")
+    public ResponseEntity killQuery(@PathVariable String id,
+                                    @ApiIgnore @CurrentUser User user,
+                                    HttpServletRequest request) {
+        if (!queryLifecycleManager.kill(id, isAdmin(request) ? null : user.getId())) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request, HttpCodeEnum.NOT_FOUND).message("Query is not found");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+        return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request));
+    }
+
+    private boolean isAdmin(HttpServletRequest request) {
+        String token = request.getHeader(Constants.QUERY_ADMIN_TOKEN_HEADER);
+        return !StringUtils.isEmpty(adminToken) && !StringUtils.isEmpty(token)
+                && MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -229,6 +229,29 @@ public class SourceController extends BaseController {
     }
 
 
+    /**
+     * 刷新元数据缓存
+     *
+     * @param id
+     * @param user
+     * @param request
+     * @return
+     */
+    @ApiOperation(value = "refresh source metadata")
+    @PostMapping(value = "/{id}/metadata/refresh")
+    public ResponseEntity refreshMetadata(@PathVariable Long id,
+                                          @ApiIgnore @CurrentUser User user,
+                                          HttpServletRequest request) {
+        if (invalidId(id)) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Invalid source id");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        sourceService.refreshMetadata(id, user);
+        return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request));
+    }
+
+
     /**
      * 生成csv对应的表结构
      *
@@ -388,6 +411,38 @@ public class SourceController extends BaseController {
     }
 
 
+    /**
+     * 按名称搜索数据源中的表与列
+     *
+     * @param id
+     * @param keyword
+     * @param limit
+     * @param user
+     * @param request
+     * @return
+     */
+    @ApiOperation(value = "search source catalog")
+    @GetMapping("/{id}/catalog/search")
+    public ResponseEntity searchCatalog(@PathVariable Long id,
+                                        @RequestParam(name = "keyword") String keyword,
+                                        @RequestParam(name = "limit", required = false, defaultValue = "100") int limit,
+                                        @ApiIgnore @CurrentUser User user,
+                                        HttpServletRequest request) {
+        if (invalidId(id)) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Invalid source id");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        if (StringUtils.isEmpty(keyword) || StringUtils.isEmpty(keyword.trim())) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Keyword cannot be empty");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        List<CatalogEntry> list = sourceService.searchCatalog(id, keyword, Math.min(Math.max(limit, 1), 1000), user);
+        return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).payloads(list));
+    }
+
+
     /**
      * 获取系统支持jdbc数据源
      *
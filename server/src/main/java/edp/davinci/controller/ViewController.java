@@ -19,6 +19,8 @@
 
 package edp.davinci.controller;
 
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
 import edp.core.annotation.CurrentUser;
 import edp.core.model.Paginate;
 import edp.core.model.PaginateWithQueryColumns;
@@ -30,6 +32,8 @@ import edp.davinci.dto.viewDto.*;
 import edp.davinci.model.DacChannel;
 import edp.davinci.model.User;
 import edp.davinci.service.ViewService;
+import edp.davinci.service.batch.BatchDataFetcher;
+import edp.davinci.service.query.AsyncQueryExecutor;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -40,11 +44,14 @@ import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import springfox.documentation.annotations.ApiIgnore;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
-import java.sql.SQLException;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
 
@@ -61,6 +68,14 @@ public class ViewController extends BaseController {
     @Autowired
     private DacChannelUtil dacChannelUtil;
 
+    @Autowired
+    private BatchDataFetcher batchDataFetcher;
+
+    @Autowired
+    private AsyncQueryExecutor asyncQueryExecutor;
+
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson;charset=UTF-8";
+
     /**
      * 获取view
      *
@@ -109,6 +124,30 @@ public class ViewController extends BaseController {
     }
 
 
+    /**
+     * 获取view的rollup状态
+     *
+     * @param id
+     * @param user
+     * @param request
+     * @return
+     */
+    @ApiOperation(value = "get view rollup stats")
+    @GetMapping("/{id}/rollup")
+    public ResponseEntity getRollupStats(@PathVariable Long id,
+                                         @ApiIgnore @CurrentUser User user,
+                                         HttpServletRequest request) {
+
+        if (invalidId(id)) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Invalid view id");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        List<RollupStats> stats = viewService.getRollupStats(id, user);
+        return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).payloads(stats));
+    }
+
+
     /**
      * 新建view
      *
@@ -231,17 +270,68 @@ public class ViewController extends BaseController {
      */
     @ApiOperation(value = "get data")
     @PostMapping(value = "/{id}/getdata", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity getData(@PathVariable Long id,
-                                  @RequestBody(required = false) ViewExecuteParam executeParam,
-                                  @ApiIgnore @CurrentUser User user,
-                                  HttpServletRequest request) throws SQLException {
+    public DeferredResult<ResponseEntity> getData(@PathVariable Long id,
+                                                 @RequestBody(required = false) ViewExecuteParam executeParam,
+                                                 @ApiIgnore @CurrentUser User user,
+                                                 HttpServletRequest request) {
         if (invalidId(id)) {
             ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Invalid view id");
+            DeferredResult<ResponseEntity> result = new DeferredResult<>();
+            result.setResult(ResponseEntity.status(resultMap.getCode()).body(resultMap));
+            return result;
+        }
+
+        // token在请求线程中刷新，查询在工作线程中执行
+        ResultMap resultMap = new ResultMap(tokenUtils).successAndRefreshToken(request);
+        return asyncQueryExecutor.submit(request, user, () -> {
+            Paginate<Map<String, Object>> paginate = viewService.getData(id, executeParam, user);
+            return ResponseEntity.ok().body(resultMap.payload(paginate));
+        });
+    }
+
+
+    /**
+     * 批量获取多个view的源数据，每个查询完成后立即以一行json（NDJSON）返回，
+     * 行内 index 与 key 对应请求中的查询
+     *
+     * @param queries
+     * @param user
+     * @param request
+     * @param response
+     * @return
+     */
+    @ApiOperation(value = "get data in batch")
+    @PostMapping(value = "/batch/getdata", consumes = MediaType.APPLICATION_JSON_VALUE, produces = {NDJSON_CONTENT_TYPE, MediaType.APPLICATION_JSON_UTF8_VALUE})
+    public ResponseEntity getDataBatch(@RequestBody List<ViewDataQuery> queries,
+                                       @ApiIgnore @CurrentUser User user,
+                                       HttpServletRequest request,
+                                       HttpServletResponse response) throws IOException {
+        if (null == queries || queries.isEmpty()) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Queries cannot be empty");
+            return ResponseEntity.status(resultMap.getCode()).body(resultMap);
+        }
+
+        if (queries.size() > batchDataFetcher.getMaxQueries()) {
+            ResultMap resultMap = new ResultMap(tokenUtils).failAndRefreshToken(request).message("Too many queries in one request, max: " + batchDataFetcher.getMaxQueries());
             return ResponseEntity.status(resultMap.getCode()).body(resultMap);
         }
 
-        Paginate<Map<String, Object>> paginate = viewService.getData(id, executeParam, user);
-        return ResponseEntity.ok().body(new ResultMap(tokenUtils).successAndRefreshToken(request).payload(paginate));
+        String token = tokenUtils.refreshToken(request.getHeader(Constants.TOKEN_HEADER_STRING));
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        PrintWriter writer = response.getWriter();
+
+        batchDataFetcher.fetch(queries, user, result -> {
+            ResultMap resultMap = null == result.getMessage() ?
+                    new ResultMap().success(token).payload(result.getPaginate()) :
+                    new ResultMap().fail(result.getCode()).message(result.getMessage());
+            resultMap.put("index", result.getIndex());
+            resultMap.put("key", result.getKey());
+            // 直接写出，不在内存中拼接整行
+            JSON.writeJSONString(writer, resultMap, SerializerFeature.WriteMapNullValue, SerializerFeature.DisableCircularReferenceDetect);
+            writer.println();
+            writer.flush();
+        });
+        return null;
     }
 
 
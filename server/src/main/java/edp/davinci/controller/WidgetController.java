@@ -213,6 +213,10 @@ public class WidgetController extends BaseController {
         }
 
         String filePath = widgetService.generationFile(id, executeParam, user, type);
+        if (null == filePath) {
+            // 数据量超出同步导出额度，已转为异步下载任务
+            return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).message("Download task submitted"));
+        }
         return ResponseEntity.ok(new ResultMap(tokenUtils).successAndRefreshToken(request).payload(filePath));
     }
 
@@ -38,6 +38,17 @@ public class Constants extends Consts {
      */
     public static final String AUTH_API_PATH = "/auth/v3";
 
+    /**
+     * 数据请求标识，同一用户同一标识的新请求会取消旧请求的查询；
+     * 标识需包含发起页面的id（如 {pageId}:dashboard-item-{itemId}），否则同一用户的多个标签页会互相取消
+     */
+    public static final String QUERY_KEY_HEADER = "X-Query-Key";
+
+    /**
+     * 查询管理token，携带时可查看与终止全部用户的查询
+     */
+    public static final String QUERY_ADMIN_TOKEN_HEADER = "X-Query-Admin-Token";
+
     /**
      * 用户激活 / 重发激活邮件模板
      */
@@ -22,7 +22,7 @@ package edp.davinci.core.config;
 import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.alibaba.fastjson.serializer.ValueFilter;
 import com.alibaba.fastjson.support.config.FastJsonConfig;
-import com.alibaba.fastjson.support.spring.FastJsonHttpMessageConverter;
+import edp.core.common.buffer.StreamingJsonHttpMessageConverter;
 import edp.core.inteceptor.RequestJsonHandlerArgumentResolver;
 import edp.davinci.core.common.Constants;
 import edp.davinci.core.inteceptor.AuthenticationInterceptor;
@@ -147,7 +147,8 @@ public class WebMvcConfig extends WebMvcConfigurationSupport {
 
     @Override
     protected void configureMessageConverters(List<HttpMessageConverter<?>> converters) {
-        FastJsonHttpMessageConverter fastConverter = new FastJsonHttpMessageConverter();
+        // 包含落盘查询结果的响应分块写出
+        StreamingJsonHttpMessageConverter fastConverter = new StreamingJsonHttpMessageConverter();
         FastJsonConfig fastJsonConfig = new FastJsonConfig();
         fastJsonConfig.setSerializerFeatures(SerializerFeature.QuoteFieldNames,
                 SerializerFeature.WriteEnumUsingToString,
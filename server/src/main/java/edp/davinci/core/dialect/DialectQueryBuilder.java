@@ -0,0 +1,352 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.core.dialect;
+
+import com.google.common.collect.Sets;
+import edp.core.enums.DataTypeEnum;
+import edp.core.utils.CollectionUtils;
+import edp.core.utils.SqlUtils;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.Order;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.model.Source;
+import lombok.extern.slf4j.Slf4j;
+import net.sf.jsqlparser.expression.AnalyticExpression;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.select.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+import static edp.core.consts.Consts.*;
+
+/**
+ * 按数据源方言直接改写view sql的查询构造器
+ * <p>
+ * 分组、聚合与过滤条件下推到view sql的基础列上，生成单层的 SELECT ... FROM ... WHERE ... GROUP BY，
+ * 代替 SELECT ... FROM (sql) T 的通用包装，使数据源可以利用分区裁剪与索引；
+ * 无法安全改写时返回null，由调用方回退到模板
+ */
+@Slf4j
+@Component
+public class DialectQueryBuilder {
+
+    private static final String COUNT_DISTINCT = "COUNTDISTINCT";
+
+    private static final Set<String> AGGREGATE_FUNCTIONS = Sets.newHashSet(
+            "COUNT", "SUM", "AVG", "MAX", "MIN", "STDDEV", "STDDEV_POP", "STDDEV_SAMP", "VARIANCE", "VAR_POP", "VAR_SAMP",
+            "GROUP_CONCAT", "LISTAGG", "STRING_AGG", "ARRAY_AGG", "APPROX_DISTINCT", "UNIQ", "UNIQEXACT", "NDV"
+    );
+
+    @Value("${source.dialect-builder.enable:false}")
+    private boolean enable;
+
+    /**
+     * 构造下推后的查询sql，不能改写时返回null
+     *
+     * @param sql
+     * @param source
+     * @param executeParam
+     * @param filters      已转换为where条件的过滤项
+     * @return
+     */
+    public String build(String sql, Source source, ViewExecuteParam executeParam, List<String> filters) {
+        if (!enable || executeParam.isNativeQuery()) {
+            return null;
+        }
+
+        if (CollectionUtils.isEmpty(executeParam.getGroups()) && CollectionUtils.isEmpty(executeParam.getAggregators())) {
+            return null;
+        }
+
+        QueryDialect dialect;
+        try {
+            dialect = QueryDialect.of(DataTypeEnum.urlOf(source.getJdbcUrl()));
+        } catch (Exception e) {
+            return null;
+        }
+
+        if (null == dialect) {
+            return null;
+        }
+
+        try {
+            return build(sql, source, dialect, executeParam, filters);
+        } catch (Exception e) {
+            log.warn("Dialect query build failed, fall back to template: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private String build(String sql, Source source, QueryDialect dialect, ViewExecuteParam executeParam, List<String> filters) throws Exception {
+        Statement statement = CCJSqlParserUtil.parse(sql);
+        if (!(statement instanceof Select)) {
+            return null;
+        }
+
+        Select select = (Select) statement;
+        if (!CollectionUtils.isEmpty(select.getWithItemsList()) || !(select.getSelectBody() instanceof PlainSelect)) {
+            return null;
+        }
+
+        PlainSelect plainSelect = (PlainSelect) select.getSelectBody();
+        if (!isPushable(plainSelect)) {
+            return null;
+        }
+
+        ViewColumns viewColumns = ViewColumns.of(plainSelect, source);
+        if (null == viewColumns) {
+            return null;
+        }
+
+        String jdbcUrl = source.getJdbcUrl();
+        String dbVersion = source.getDbVersion();
+        String aliasPrefix = SqlUtils.getAliasPrefix(jdbcUrl, dbVersion);
+        String aliasSuffix = SqlUtils.getAliasSuffix(jdbcUrl, dbVersion);
+
+        List<String> selectItems = new ArrayList<>();
+        List<String> groupItems = new ArrayList<>();
+        Set<String> labels = new HashSet<>();
+
+        if (!CollectionUtils.isEmpty(executeParam.getGroups())) {
+            for (String group : executeParam.getGroups()) {
+                Expression expression = viewColumns.resolve(group);
+                if (null == expression) {
+                    return null;
+                }
+                selectItems.add(expression + " AS " + ViewExecuteParam.getField(group, jdbcUrl, dbVersion));
+                groupItems.add(expression.toString());
+                labels.add(group.toLowerCase());
+            }
+        }
+
+        if (!CollectionUtils.isEmpty(executeParam.getAggregators())) {
+            for (Aggregator aggregator : executeParam.getAggregators()) {
+                Expression expression = viewColumns.resolve(aggregator.getColumn());
+                if (null == expression) {
+                    return null;
+                }
+                String func = aggregator.getFunc().trim();
+                String label = String.join(EMPTY, func, PARENTHESES_START, aggregator.getColumn().trim(), PARENTHESES_END);
+                if (COUNT_DISTINCT.equals(func.toUpperCase())) {
+                    selectItems.add("COUNT(DISTINCT " + expression + ") AS " + aliasPrefix + label + aliasSuffix);
+                } else {
+                    selectItems.add(func + PARENTHESES_START + expression + ") AS " + aliasPrefix + label + aliasSuffix);
+                }
+                labels.add(label.toLowerCase());
+            }
+        }
+
+        List<String> orderItems = new ArrayList<>();
+        List<Order> orders = executeParam.getOrders(jdbcUrl, dbVersion);
+        if (!CollectionUtils.isEmpty(orders)) {
+            for (Order order : orders) {
+                // 只按输出列排序，view内部列的排序仍交给模板
+                if (!labels.contains(unquote(order.getColumn()).toLowerCase())) {
+                    return null;
+                }
+                orderItems.add(order.getColumn() + SPACE + order.getDirection());
+            }
+        }
+
+        List<String> conditions = new ArrayList<>();
+        if (null != plainSelect.getWhere()) {
+            conditions.add(PARENTHESES_START + plainSelect.getWhere() + PARENTHESES_END);
+        }
+        if (!CollectionUtils.isEmpty(filters)) {
+            for (String filter : filters) {
+                String condition = viewColumns.rewrite(filter);
+                if (null == condition) {
+                    return null;
+                }
+                conditions.add(PARENTHESES_START + condition + PARENTHESES_END);
+            }
+        }
+
+        int limit = executeParam.getPageNo() < 1 && executeParam.getPageSize() < 1 ? executeParam.getLimit() : 0;
+
+        StringBuilder sqlBuilder = new StringBuilder("SELECT ");
+        if (limit > 0 && dialect.getLimitStyle() == QueryDialect.LimitStyle.TOP) {
+            sqlBuilder.append("TOP ").append(limit).append(SPACE);
+        }
+        sqlBuilder.append(String.join(COMMA + SPACE, selectItems));
+        sqlBuilder.append("\nFROM ").append(plainSelect.getFromItem());
+        if (!CollectionUtils.isEmpty(plainSelect.getJoins())) {
+            for (Join join : plainSelect.getJoins()) {
+                sqlBuilder.append(join.isSimple() ? COMMA + SPACE : SPACE).append(join);
+            }
+        }
+        if (!conditions.isEmpty()) {
+            sqlBuilder.append("\nWHERE ").append(String.join(" AND ", conditions));
+        }
+        if (!groupItems.isEmpty()) {
+            sqlBuilder.append("\nGROUP BY ").append(String.join(COMMA + SPACE, groupItems));
+        }
+        if (!orderItems.isEmpty()) {
+            sqlBuilder.append("\nORDER BY ").append(String.join(COMMA + SPACE, orderItems));
+        }
+        if (limit > 0 && dialect.getLimitStyle() == QueryDialect.LimitStyle.LIMIT) {
+            sqlBuilder.append("\nLIMIT ").append(limit);
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * view sql本身带有去重、分组、分页或聚合时，外层查询不能与其合并
+     */
+    private boolean isPushable(PlainSelect plainSelect) {
+        if (null == plainSelect.getFromItem() || null != plainSelect.getDistinct() || null != plainSelect.getHaving()
+                || !CollectionUtils.isEmpty(plainSelect.getGroupByColumnReferences())
+                || null != plainSelect.getLimit() || null != plainSelect.getTop()
+                || null != plainSelect.getOffset() || null != plainSelect.getFetch()) {
+            return false;
+        }
+
+        AggregateFinder finder = new AggregateFinder();
+        for (SelectItem selectItem : plainSelect.getSelectItems()) {
+            if (selectItem instanceof SelectExpressionItem) {
+                ((SelectExpressionItem) selectItem).getExpression().accept(finder);
+            }
+        }
+        return !finder.found;
+    }
+
+    private static String unquote(String name) {
+        String s = name.trim();
+        if (s.length() > 1) {
+            char first = s.charAt(0);
+            char last = s.charAt(s.length() - 1);
+            if ((first == '`' && last == '`') || (first == '"' && last == '"') || (first == '[' && last == ']')) {
+                return s.substring(1, s.length() - 1);
+            }
+        }
+        return s;
+    }
+
+    private static class AggregateFinder extends ExpressionVisitorAdapter {
+
+        private boolean found = false;
+
+        @Override
+        public void visit(Function function) {
+            if (function.isAllColumns() || AGGREGATE_FUNCTIONS.contains(function.getName().toUpperCase())) {
+                found = true;
+            }
+            super.visit(function);
+        }
+
+        @Override
+        public void visit(AnalyticExpression expr) {
+            found = true;
+        }
+    }
+
+    /**
+     * view输出列到基础表达式的映射
+     */
+    private static class ViewColumns {
+
+        private final Map<String, Expression> columns = new LinkedHashMap<>();
+
+        private final Map<String, Expression> lowerColumns = new HashMap<>();
+
+        private boolean allColumns = false;
+
+        private String jdbcUrl;
+
+        private String dbVersion;
+
+        static ViewColumns of(PlainSelect plainSelect, Source source) {
+            ViewColumns viewColumns = new ViewColumns();
+            viewColumns.jdbcUrl = source.getJdbcUrl();
+            viewColumns.dbVersion = source.getDbVersion();
+
+            for (SelectItem selectItem : plainSelect.getSelectItems()) {
+                if (selectItem instanceof AllColumns) {
+                    // 多表时 * 展开的列无法确定所属表
+                    if (!(plainSelect.getFromItem() instanceof Table) || !CollectionUtils.isEmpty(plainSelect.getJoins())) {
+                        return null;
+                    }
+                    viewColumns.allColumns = true;
+                } else if (selectItem instanceof SelectExpressionItem) {
+                    SelectExpressionItem item = (SelectExpressionItem) selectItem;
+                    String name = null;
+                    if (null != item.getAlias() && null != item.getAlias().getName()) {
+                        name = unquote(item.getAlias().getName());
+                    } else if (item.getExpression() instanceof Column) {
+                        name = unquote(((Column) item.getExpression()).getColumnName());
+                    }
+                    if (null != name) {
+                        viewColumns.columns.putIfAbsent(name, item.getExpression());
+                        viewColumns.lowerColumns.putIfAbsent(name.toLowerCase(), item.getExpression());
+                    }
+                } else {
+                    return null;
+                }
+            }
+            return viewColumns;
+        }
+
+        Expression resolve(String name) {
+            String column = unquote(name);
+            Expression expression = columns.get(column);
+            if (null == expression) {
+                expression = lowerColumns.get(column.toLowerCase());
+            }
+            if (null == expression && allColumns) {
+                expression = new Column(ViewExecuteParam.getField(column, jdbcUrl, dbVersion));
+            }
+            return expression;
+        }
+
+        /**
+         * 将过滤条件中的view列替换为基础列，引用计算列时返回null
+         */
+        String rewrite(String filter) throws Exception {
+            Expression condition = CCJSqlParserUtil.parseCondExpression(filter);
+            boolean[] failed = {false};
+            condition.accept(new ExpressionVisitorAdapter() {
+                @Override
+                public void visit(Column column) {
+                    if (null != column.getTable() && null != column.getTable().getName()) {
+                        failed[0] = true;
+                        return;
+                    }
+                    Expression expression = resolve(column.getColumnName());
+                    if (!(expression instanceof Column)) {
+                        failed[0] = true;
+                        return;
+                    }
+                    column.setTable(((Column) expression).getTable());
+                    column.setColumnName(((Column) expression).getColumnName());
+                }
+            });
+            return failed[0] ? null : condition.toString();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.core.dialect;
+
+import edp.core.enums.DataTypeEnum;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * 下推查询支持的方言及其行数限制与时间常量语法
+ */
+public enum QueryDialect {
+
+    MYSQL(DataTypeEnum.MYSQL, LimitStyle.LIMIT, TimeLiteralStyle.ANSI),
+    H2(DataTypeEnum.H2, LimitStyle.LIMIT, TimeLiteralStyle.ANSI),
+    PRESTO(DataTypeEnum.PRESTO, LimitStyle.LIMIT, TimeLiteralStyle.ANSI),
+    CLICKHOUSE(DataTypeEnum.CLICKHOUSE, LimitStyle.LIMIT, TimeLiteralStyle.CLICKHOUSE),
+    KYLIN(DataTypeEnum.KYLIN, LimitStyle.LIMIT, TimeLiteralStyle.ANSI),
+    IMPALA(DataTypeEnum.IMPALA, LimitStyle.LIMIT, TimeLiteralStyle.CAST),
+    VERTICA(DataTypeEnum.VERTICA, LimitStyle.LIMIT, TimeLiteralStyle.ANSI),
+    HANA(DataTypeEnum.HANA, LimitStyle.LIMIT, TimeLiteralStyle.ANSI),
+    PHOENIX(DataTypeEnum.PHOENIX, LimitStyle.LIMIT, TimeLiteralStyle.PHOENIX),
+    SQLSERVER(DataTypeEnum.SQLSERVER, LimitStyle.TOP, TimeLiteralStyle.SQLSERVER),
+    ORACLE(DataTypeEnum.ORACLE, LimitStyle.NONE, TimeLiteralStyle.ORACLE);
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private final DataTypeEnum dataType;
+
+    private final LimitStyle limitStyle;
+
+    private final TimeLiteralStyle timeLiteralStyle;
+
+    QueryDialect(DataTypeEnum dataType, LimitStyle limitStyle, TimeLiteralStyle timeLiteralStyle) {
+        this.dataType = dataType;
+        this.limitStyle = limitStyle;
+        this.timeLiteralStyle = timeLiteralStyle;
+    }
+
+    public static QueryDialect of(DataTypeEnum dataType) {
+        if (null == dataType) {
+            return null;
+        }
+        for (QueryDialect dialect : values()) {
+            if (dialect.dataType == dataType) {
+                return dialect;
+            }
+        }
+        return null;
+    }
+
+    public LimitStyle getLimitStyle() {
+        return limitStyle;
+    }
+
+    /**
+     * 时间值在该方言下的常量表达式，java.sql.Date 按日期、其它按秒精度的时间戳输出
+     * <p>
+     * 毫秒被截去，用作 >= 下界时只会多包含而不会遗漏数据
+     *
+     * @param value
+     * @return
+     */
+    public String getTimeLiteral(Date value) {
+        boolean date = value instanceof java.sql.Date;
+        String text = new SimpleDateFormat(date ? DATE_FORMAT : TIMESTAMP_FORMAT).format(value);
+        switch (timeLiteralStyle) {
+            case ORACLE:
+                return date ? "TO_DATE('" + text + "', 'YYYY-MM-DD')" : "TO_TIMESTAMP('" + text + "', 'YYYY-MM-DD HH24:MI:SS')";
+            case SQLSERVER:
+                // 120 为与语言设置无关的 ODBC canonical 格式
+                return date ? "CONVERT(DATE, '" + text + "', 120)" : "CONVERT(DATETIME2, '" + text + "', 120)";
+            case CLICKHOUSE:
+                return date ? "toDate('" + text + "')" : "toDateTime('" + text + "')";
+            case PHOENIX:
+                return date ? "TO_DATE('" + text + "', 'yyyy-MM-dd')" : "TO_TIMESTAMP('" + text + "')";
+            case CAST:
+                return "CAST('" + text + "' AS " + (date ? "DATE" : "TIMESTAMP") + ")";
+            default:
+                return (date ? "DATE '" : "TIMESTAMP '") + text + "'";
+        }
+    }
+
+    public enum LimitStyle {
+        /**
+         * SELECT ... LIMIT n
+         */
+        LIMIT,
+        /**
+         * SELECT TOP n ...
+         */
+        TOP,
+        /**
+         * 不改写，仍由 maxRows 限制
+         */
+        NONE
+    }
+
+    public enum TimeLiteralStyle {
+        /**
+         * TIMESTAMP 'yyyy-MM-dd HH:mm:ss'
+         */
+        ANSI,
+        /**
+         * CAST('yyyy-MM-dd HH:mm:ss' AS TIMESTAMP)
+         */
+        CAST,
+        /**
+         * TO_TIMESTAMP('...', 'YYYY-MM-DD HH24:MI:SS')
+         */
+        ORACLE,
+        /**
+         * CONVERT(DATETIME2, '...', 120)
+         */
+        SQLSERVER,
+        /**
+         * toDateTime('...')
+         */
+        CLICKHOUSE,
+        /**
+         * TO_TIMESTAMP('...')
+         */
+        PHOENIX
+    }
+}
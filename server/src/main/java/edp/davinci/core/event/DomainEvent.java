@@ -0,0 +1,60 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.core.event;
+
+import lombok.Data;
+
+/**
+ * 元数据变更事件，事务提交后由 {@link DomainEventBus} 分发到本节点及其他节点的订阅者
+ */
+@Data
+public abstract class DomainEvent {
+
+    public static final String CREATE = "create";
+
+    public static final String UPDATE = "update";
+
+    public static final String DELETE = "delete";
+
+    private Long entityId;
+
+    private Long projectId;
+
+    private String action;
+
+    /**
+     * 发布节点及节点内的发布序号，接收方据此丢弃乱序到达的旧事件
+     */
+    private String origin;
+
+    private long sequence;
+
+    private long time;
+
+    protected DomainEvent() {
+    }
+
+    protected DomainEvent(Long entityId, Long projectId, String action) {
+        this.entityId = entityId;
+        this.projectId = projectId;
+        this.action = action;
+    }
+}
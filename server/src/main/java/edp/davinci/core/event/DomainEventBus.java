@@ -0,0 +1,190 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.core.event;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.utils.RedisUtils;
+import edp.davinci.core.model.RedisMessageEntity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static edp.core.consts.Consts.AT_SYMBOL;
+import static edp.davinci.core.common.Constants.DAVINCI_TOPIC_CHANNEL;
+
+/**
+ * 元数据变更事件总线
+ * <p>
+ * 事件在事务提交后发布：本节点订阅者在发布线程上同步执行，订阅者列表读取无锁；
+ * 启用redis时经 DAVINCI_TOPIC_CHANNEL 广播到其他节点，接收方按实体分派到固定的单线程通道，
+ * 同一实体的事件按发布顺序处理，乱序到达的旧事件直接丢弃
+ */
+@Slf4j
+@Component
+public class DomainEventBus {
+
+    private static final int REMOTE_LANES = 4;
+
+    private static final Map<String, Class<? extends DomainEvent>> EVENT_TYPES = new HashMap<>();
+
+    static {
+        Arrays.asList(ViewUpdated.class, WidgetChanged.class, DashboardChanged.class, DisplayChanged.class,
+                SourceChanged.class, RoleChanged.class).forEach(type -> EVENT_TYPES.put(type.getSimpleName(), type));
+    }
+
+    @Autowired
+    private RedisUtils redisUtils;
+
+    private final String nodeId = UUID.randomUUID().toString().replace("-", "");
+
+    private final AtomicLong sequence = new AtomicLong(0L);
+
+    private final Map<Class<?>, List<Consumer<DomainEvent>>> subscribers = new ConcurrentHashMap<>();
+
+    private final Cache<String, Long> lastSequences = CacheBuilder.newBuilder()
+            .maximumSize(100000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    private final ExecutorService[] lanes = new ExecutorService[REMOTE_LANES];
+
+    public DomainEventBus() {
+        for (int i = 0; i < REMOTE_LANES; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("Domain-event-" + i).setDaemon(true).build());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * 订阅事件，订阅父类型时可收到所有子类型的事件
+     *
+     * @param type
+     * @param subscriber
+     * @param <E>
+     */
+    public <E extends DomainEvent> void subscribe(Class<E> type, Consumer<? super E> subscriber) {
+        subscribers.computeIfAbsent(type, t -> new CopyOnWriteArrayList<>()).add(event -> subscriber.accept(type.cast(event)));
+    }
+
+    /**
+     * 发布事件，存在事务时在提交后发布，回滚时丢弃
+     *
+     * @param event
+     */
+    public void publish(DomainEvent event) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doPublish(event);
+                }
+            });
+        } else {
+            doPublish(event);
+        }
+    }
+
+    /**
+     * 处理其他节点广播的事件
+     *
+     * @param message
+     * @param type
+     */
+    void receive(String message, String type) {
+        Class<? extends DomainEvent> clazz = EVENT_TYPES.get(type);
+        if (null == clazz) {
+            log.warn("Unknown domain event type: {}", type);
+            return;
+        }
+
+        DomainEvent event = JSON.parseObject(message, clazz);
+        if (null == event || null == event.getOrigin() || nodeId.equals(event.getOrigin())) {
+            return;
+        }
+
+        String key = getKey(event);
+        lanes[(key.hashCode() & Integer.MAX_VALUE) % REMOTE_LANES].execute(() -> {
+            String sequenceKey = event.getOrigin() + AT_SYMBOL + key;
+            Long last = lastSequences.getIfPresent(sequenceKey);
+            if (null != last && last >= event.getSequence()) {
+                log.debug("Drop stale domain event {}({}), sequence:{}, last:{}", type, event.getEntityId(), event.getSequence(), last);
+                return;
+            }
+            lastSequences.put(sequenceKey, event.getSequence());
+            dispatch(event);
+        });
+    }
+
+    private void doPublish(DomainEvent event) {
+        event.setOrigin(nodeId);
+        event.setSequence(sequence.incrementAndGet());
+        event.setTime(System.currentTimeMillis());
+
+        dispatch(event);
+
+        if (redisUtils.isRedisEnable()) {
+            try {
+                redisUtils.convertAndSend(DAVINCI_TOPIC_CHANNEL, new RedisMessageEntity(DomainEventMessageHandler.class,
+                        JSON.toJSONString(event), event.getClass().getSimpleName()));
+            } catch (Exception e) {
+                log.warn("Broadcast domain event {}({}) error:{}", event.getClass().getSimpleName(), event.getEntityId(), e.getMessage());
+            }
+        }
+    }
+
+    private void dispatch(DomainEvent event) {
+        for (Class<?> type = event.getClass(); DomainEvent.class.isAssignableFrom(type); type = type.getSuperclass()) {
+            List<Consumer<DomainEvent>> list = subscribers.get(type);
+            if (null == list) {
+                continue;
+            }
+            for (Consumer<DomainEvent> subscriber : list) {
+                try {
+                    subscriber.accept(event);
+                } catch (Exception e) {
+                    log.error("Handle domain event {}({}) error:{}", event.getClass().getSimpleName(), event.getEntityId(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static String getKey(DomainEvent event) {
+        return event.getClass().getSimpleName() + AT_SYMBOL + event.getEntityId();
+    }
+}
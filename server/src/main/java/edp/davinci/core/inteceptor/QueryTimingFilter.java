@@ -0,0 +1,197 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.core.inteceptor;
+
+import edp.core.enums.QueryStageEnum;
+import edp.core.utils.QueryTrace;
+import edp.davinci.core.common.Constants;
+import edp.davinci.service.metrics.QueryMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * 数据请求耗时统计，可选输出 Server-Timing 响应头
+ */
+@Component
+public class QueryTimingFilter extends OncePerRequestFilter {
+
+    private static final String SERVER_TIMING = "Server-Timing";
+
+    private static final String SHARE_DATA_PATH = Constants.BASE_API_PATH + "/share/data/";
+
+    private static final String TRACE_ATTRIBUTE = QueryTimingFilter.class.getName() + ".TRACE";
+
+    @Autowired
+    private QueryMetrics queryMetrics;
+
+    @Value("${source.metrics.server-timing:false}")
+    private boolean serverTiming;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!queryMetrics.isEnable() || !"POST".equalsIgnoreCase(request.getMethod())) {
+            return true;
+        }
+        String uri = request.getRequestURI();
+        return !(uri.endsWith("/getdata") || (uri.startsWith(SHARE_DATA_PATH) && !uri.endsWith("/distinctvalue")));
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        // 异步请求在重新分派时继续记录序列化耗时，响应仍为首次分派时包装的对象
+        if (isAsyncDispatch(request)) {
+            QueryTrace.attach((QueryTrace) request.getAttribute(TRACE_ATTRIBUTE));
+            try {
+                filterChain.doFilter(request, response);
+            } finally {
+                QueryTrace.end();
+            }
+            return;
+        }
+
+        QueryTrace trace = QueryTrace.begin();
+        TimingResponseWrapper responseWrapper = new TimingResponseWrapper(response, trace);
+        try {
+            filterChain.doFilter(request, responseWrapper);
+        } finally {
+            QueryTrace.end();
+            if (request.isAsyncStarted()) {
+                request.setAttribute(TRACE_ATTRIBUTE, trace);
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        queryMetrics.record(trace, responseWrapper.bytes);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                queryMetrics.record(trace, responseWrapper.bytes);
+            }
+        }
+    }
+
+    /**
+     * 响应体开始写出时记录序列化耗时并写入 Server-Timing，此时响应尚未提交
+     */
+    private class TimingResponseWrapper extends HttpServletResponseWrapper {
+
+        private final QueryTrace trace;
+
+        private boolean headerWritten = false;
+
+        private long bytes = 0L;
+
+        private ServletOutputStream outputStream;
+
+        TimingResponseWrapper(HttpServletResponse response, QueryTrace trace) {
+            super(response);
+            this.trace = trace;
+        }
+
+        private void beforeBody() {
+            if (headerWritten) {
+                return;
+            }
+            headerWritten = true;
+            QueryTrace.record(QueryStageEnum.SERIALIZE, trace.getSerializeStartNanos());
+            if (serverTiming && !isCommitted()) {
+                setHeader(SERVER_TIMING, trace.toServerTiming());
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            beforeBody();
+            if (null == outputStream) {
+                ServletOutputStream delegate = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public boolean isReady() {
+                        return delegate.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        delegate.setWriteListener(writeListener);
+                    }
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        delegate.write(b);
+                        bytes++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        delegate.write(b, off, len);
+                        bytes += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        delegate.close();
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            beforeBody();
+            return super.getWriter();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.core.inteceptor;
+
+import edp.core.common.buffer.QueryMemoryAccountant;
+import edp.core.common.buffer.ResultScope;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 为每个请求开启 {@link ResultScope}，响应写出后关闭，归还查询结果占用的内存额度并释放落盘结果
+ */
+@Component
+public class ResultScopeFilter extends OncePerRequestFilter {
+
+    private static final String SCOPE_ATTRIBUTE = ResultScopeFilter.class.getName() + ".SCOPE";
+
+    @Autowired
+    private QueryMemoryAccountant queryMemoryAccountant;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !queryMemoryAccountant.isEnable();
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        // 异步请求在重新分派时序列化响应，序列化需要知道结果是否落盘
+        if (isAsyncDispatch(request)) {
+            ResultScope.attach((ResultScope) request.getAttribute(SCOPE_ATTRIBUTE));
+            try {
+                filterChain.doFilter(request, response);
+            } finally {
+                ResultScope.end();
+            }
+            return;
+        }
+
+        ResultScope scope = ResultScope.begin();
+        request.setAttribute(SCOPE_ATTRIBUTE, scope);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ResultScope.end();
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        scope.close();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        scope.close();
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                scope.close();
+            }
+        }
+    }
+}
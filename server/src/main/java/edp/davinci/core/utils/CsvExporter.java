@@ -0,0 +1,514 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.core.utils;
+
+import edp.core.model.QueryColumn;
+import edp.core.utils.QueryAnalysis;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneRules;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 按列下标直接读取ResultSet写出csv
+ * <p>
+ * 输出与 {@link CsvUtils#formatCsvWithFirstAsHeader} 使用的 commons-csv DEFAULT 格式一致：
+ * 逗号分隔、CRLF换行、值去除首尾空白、null输出为空，按 MINIMAL 规则加引号；
+ * 数值与日期直接格式化到字符缓冲，不经过中间字符串
+ */
+public class CsvExporter implements Closeable, Flushable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char DELIMITER = ',';
+
+    private static final char QUOTE = '"';
+
+    private static final char COMMENT = '#';
+
+    private static final char SP = ' ';
+
+    private static final String BOM = "\uFEFF";
+
+    private static final int MIN_YEAR = 1900;
+
+    private static final int MAX_YEAR = 9999;
+
+    private static final int OBJECT = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int DOUBLE = 3;
+    private static final int FLOAT = 4;
+    private static final int TIMESTAMP = 5;
+    private static final int DATE = 6;
+
+    private final Writer writer;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private final StringBuilder scratch = new StringBuilder(64);
+
+    private boolean newRecord = true;
+
+    private final ZoneRules rules = TimeZone.getDefault().toZoneId().getRules();
+
+    private long offsetHour = Long.MIN_VALUE;
+
+    private int offsetSeconds;
+
+    private long fieldHour = Long.MIN_VALUE;
+
+    private int year;
+
+    private int month;
+
+    private int day;
+
+    private int hour;
+
+    private int minute;
+
+    private int second;
+
+    /**
+     * @param out
+     * @param charset
+     * @param gzip    是否gzip压缩输出
+     * @throws IOException
+     */
+    public CsvExporter(OutputStream out, Charset charset, boolean gzip) throws IOException {
+        OutputStream stream = new BufferedOutputStream(out, BUFFER_SIZE * 4);
+        if (gzip) {
+            stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+        }
+        this.writer = new OutputStreamWriter(stream, charset);
+        //解决csv用excel打开乱码问题
+        write(BOM, 0, BOM.length());
+    }
+
+    /**
+     * 写出表头（列名与列类型两行）和全部数据行，返回数据行数
+     *
+     * @param rs
+     * @param mapping
+     * @param excluded
+     * @return
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long writeResultSet(ResultSet rs, QueryAnalysis.ColumnMapping mapping, boolean[] excluded) throws SQLException, IOException {
+        ResultSetMetaData metaData = rs.getMetaData();
+
+        // 同名列取最后一列的值，与按列名组装的行一致
+        Map<String, Integer> valueIndexes = new HashMap<>();
+        for (int i = 0; i < mapping.size(); i++) {
+            if (!excluded[i]) {
+                valueIndexes.put(mapping.getKey(i), mapping.getValueIndex(i));
+            }
+        }
+
+        int count = 0;
+        for (boolean exclude : excluded) {
+            if (!exclude) {
+                count++;
+            }
+        }
+
+        int[] indexes = new int[count];
+        int[] kinds = new int[count];
+        String[] names = new String[count];
+        String[] types = new String[count];
+        for (int i = 0, c = 0; i < mapping.size(); i++) {
+            if (excluded[i]) {
+                continue;
+            }
+            QueryColumn column = new QueryColumn(mapping.getKey(i), metaData.getColumnTypeName(i + 1));
+            names[c] = column.getName();
+            types[c] = column.getType();
+            indexes[c] = valueIndexes.get(column.getName());
+            kinds[c] = kindOf(metaData, indexes[c]);
+            c++;
+        }
+
+        for (String name : names) {
+            print(name);
+        }
+        println();
+        for (String type : types) {
+            print(type);
+        }
+        println();
+
+        long rows = 0L;
+        while (rs.next()) {
+            for (int c = 0; c < indexes.length; c++) {
+                writeValue(rs, indexes[c], kinds[c]);
+            }
+            println();
+            rows++;
+        }
+        return rows;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 只对驱动声明的类型与取值类型一致的列使用基本类型读取，其他列按对象读取
+     */
+    private static int kindOf(ResultSetMetaData metaData, int index) throws SQLException {
+        String className = metaData.getColumnClassName(index);
+        if (null == className) {
+            return OBJECT;
+        }
+        switch (className) {
+            case "java.lang.String":
+                return STRING;
+            case "java.lang.Integer":
+            case "java.lang.Long":
+            case "java.lang.Short":
+            case "java.lang.Byte":
+                return INTEGER;
+            case "java.lang.Double":
+                return DOUBLE;
+            case "java.lang.Float":
+                return FLOAT;
+            case "java.sql.Timestamp":
+                return metaData.getColumnType(index) == Types.TIMESTAMP ? TIMESTAMP : OBJECT;
+            case "java.sql.Date":
+                return metaData.getColumnType(index) == Types.DATE ? DATE : OBJECT;
+            default:
+                return OBJECT;
+        }
+    }
+
+    private void writeValue(ResultSet rs, int index, int kind) throws SQLException, IOException {
+        switch (kind) {
+            case STRING:
+                print(rs.getString(index));
+                return;
+            case INTEGER:
+                long l = rs.getLong(index);
+                if (rs.wasNull()) {
+                    print(null);
+                } else {
+                    printLong(l);
+                }
+                return;
+            case DOUBLE:
+                double d = rs.getDouble(index);
+                if (rs.wasNull()) {
+                    print(null);
+                } else {
+                    scratch.setLength(0);
+                    print(scratch.append(d));
+                }
+                return;
+            case FLOAT:
+                float f = rs.getFloat(index);
+                if (rs.wasNull()) {
+                    print(null);
+                } else {
+                    scratch.setLength(0);
+                    print(scratch.append(f));
+                }
+                return;
+            case TIMESTAMP:
+                Timestamp timestamp = rs.getTimestamp(index);
+                if (null == timestamp || !localize(timestamp.getTime())) {
+                    print(null == timestamp ? null : timestamp.toString());
+                } else {
+                    printTimestamp(timestamp.getNanos());
+                }
+                return;
+            case DATE:
+                Date date = rs.getDate(index);
+                if (null == date || !localize(date.getTime())) {
+                    print(null == date ? null : date.toString());
+                } else {
+                    printDate();
+                }
+                return;
+            default:
+                Object value = rs.getObject(index);
+                if (null == value) {
+                    print(null);
+                } else if (value instanceof byte[]) {
+                    print(new String((byte[]) value));
+                } else {
+                    print(value.toString());
+                }
+        }
+    }
+
+    /**
+     * 计算本地时间的年月日时分秒，结果与 {@link java.util.Date} 按默认时区取值一致；
+     * 按小时缓存时区偏移与年月日时，时区切换所在的小时及超出范围的年份返回false，由调用方使用toString
+     */
+    private boolean localize(long millis) {
+        long seconds = Math.floorDiv(millis, 1000L);
+        long utcHour = Math.floorDiv(seconds, 3600L);
+        if (utcHour != offsetHour) {
+            ZoneOffset begin = rules.getOffset(Instant.ofEpochSecond(utcHour * 3600L));
+            ZoneOffset end = rules.getOffset(Instant.ofEpochSecond(utcHour * 3600L + 3599L));
+            if (!begin.equals(end)) {
+                return false;
+            }
+            offsetHour = utcHour;
+            offsetSeconds = begin.getTotalSeconds();
+        }
+
+        long localSeconds = seconds + offsetSeconds;
+        long localHour = Math.floorDiv(localSeconds, 3600L);
+        if (localHour != fieldHour) {
+            LocalDateTime dateTime = LocalDateTime.ofEpochSecond(localHour * 3600L, 0, ZoneOffset.UTC);
+            if (dateTime.getYear() < MIN_YEAR || dateTime.getYear() > MAX_YEAR) {
+                return false;
+            }
+            year = dateTime.getYear();
+            month = dateTime.getMonthValue();
+            day = dateTime.getDayOfMonth();
+            hour = dateTime.getHour();
+            fieldHour = localHour;
+        }
+
+        int rest = (int) (localSeconds - localHour * 3600L);
+        minute = rest / 60;
+        second = rest % 60;
+        return true;
+    }
+
+    /**
+     * 整数只有行首为负数时需要加引号
+     */
+    private void printLong(long value) throws IOException {
+        if (!newRecord) {
+            append(DELIMITER);
+        }
+        ensure(22);
+        boolean quote = newRecord && value < 0L;
+        if (quote) {
+            buffer[position++] = QUOTE;
+        }
+        if (value == Long.MIN_VALUE) {
+            write(String.valueOf(value), 0, 20);
+        } else {
+            if (value < 0L) {
+                buffer[position++] = '-';
+                value = -value;
+            }
+            int length = 1;
+            for (long v = value; v >= 10L; v /= 10L) {
+                length++;
+            }
+            for (int i = position + length - 1; i >= position; i--) {
+                buffer[i] = (char) ('0' + value % 10L);
+                value /= 10L;
+            }
+            position += length;
+        }
+        if (quote) {
+            buffer[position++] = QUOTE;
+        }
+        newRecord = false;
+    }
+
+    /**
+     * 与 {@link Timestamp#toString()} 相同的格式，需先调用 {@link #localize(long)}
+     */
+    private void printTimestamp(int nanos) throws IOException {
+        printDate();
+        buffer[position++] = SP;
+        writeDigits(hour, 2);
+        buffer[position++] = ':';
+        writeDigits(minute, 2);
+        buffer[position++] = ':';
+        writeDigits(second, 2);
+        buffer[position++] = '.';
+
+        if (nanos == 0) {
+            buffer[position++] = '0';
+            return;
+        }
+        int width = 9;
+        while (nanos % 10 == 0) {
+            nanos /= 10;
+            width--;
+        }
+        writeDigits(nanos, width);
+    }
+
+    /**
+     * 与 {@link Date#toString()} 相同的格式，需先调用 {@link #localize(long)}
+     */
+    private void printDate() throws IOException {
+        if (!newRecord) {
+            append(DELIMITER);
+        }
+        ensure(32);
+        writeDigits(year, 4);
+        buffer[position++] = '-';
+        writeDigits(month, 2);
+        buffer[position++] = '-';
+        writeDigits(day, 2);
+        newRecord = false;
+    }
+
+    private void writeDigits(int value, int width) {
+        for (int i = position + width - 1; i >= position; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        position += width;
+    }
+
+    private void print(CharSequence value) throws IOException {
+        if (!newRecord) {
+            append(DELIMITER);
+        }
+        if (null != value) {
+            int start = 0;
+            int end = value.length();
+            while (start < end && value.charAt(start) <= SP) {
+                start++;
+            }
+            while (start < end && value.charAt(end - 1) <= SP) {
+                end--;
+            }
+            printAndQuote(value, start, end);
+        }
+        newRecord = false;
+    }
+
+    private void println() throws IOException {
+        append('\r');
+        append('\n');
+        newRecord = true;
+    }
+
+    private void printAndQuote(CharSequence value, int start, int end) throws IOException {
+        boolean quote = false;
+        if (end <= start) {
+            // 行首的空值加引号，否则会被当作空行
+            quote = newRecord;
+        } else {
+            char c = value.charAt(start);
+            if (newRecord && (c < '0' || c > '9' && c < 'A' || c > 'Z' && c < 'a' || c > 'z')) {
+                quote = true;
+            } else if (c <= COMMENT) {
+                quote = true;
+            } else {
+                for (int pos = start; pos < end; pos++) {
+                    c = value.charAt(pos);
+                    if (c == '\n' || c == '\r' || c == QUOTE || c == DELIMITER) {
+                        quote = true;
+                        break;
+                    }
+                }
+                if (!quote && value.charAt(end - 1) <= SP) {
+                    quote = true;
+                }
+            }
+        }
+
+        if (!quote) {
+            write(value, start, end);
+            return;
+        }
+
+        append(QUOTE);
+        for (int pos = start; pos < end; pos++) {
+            char c = value.charAt(pos);
+            append(c);
+            if (c == QUOTE) {
+                append(QUOTE);
+            }
+        }
+        append(QUOTE);
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.length - position < length) {
+            flushBuffer();
+        }
+    }
+
+    private void append(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = c;
+    }
+
+    private void write(CharSequence value, int start, int end) throws IOException {
+        while (start < end) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int length = Math.min(end - start, buffer.length - position);
+            if (value instanceof String) {
+                ((String) value).getChars(start, start + length, buffer, position);
+            } else if (value instanceof StringBuilder) {
+                ((StringBuilder) value).getChars(start, start + length, buffer, position);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    buffer[position + i] = value.charAt(start + i);
+                }
+            }
+            position += length;
+            start += length;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            writer.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
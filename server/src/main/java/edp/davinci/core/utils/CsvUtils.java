@@ -24,6 +24,7 @@ import edp.core.exception.ServerException;
 import edp.core.model.QueryColumn;
 import edp.core.utils.CollectionUtils;
 import edp.core.utils.FileUtils;
+import edp.core.utils.QueryAnalysis;
 import edp.core.utils.SqlUtils;
 import edp.davinci.core.enums.FileTypeEnum;
 import edp.davinci.core.enums.SqlColumnEnum;
@@ -35,6 +36,7 @@ import org.apache.commons.csv.CSVRecord;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 import static edp.core.consts.Consts.EMPTY;
@@ -42,6 +44,7 @@ import static edp.core.consts.Consts.EMPTY;
 
 public class CsvUtils {
 
+    private static final String GZIP_FORMAT = ".gz";
 
     /**
      * 解析Csv
@@ -131,23 +134,7 @@ public class CsvUtils {
                 headerTypes.add(column.getType());
             }
 
-            if (!fileName.toLowerCase().endsWith(FileTypeEnum.CSV.getFormat())) {
-                fileName = fileName.trim() + FileTypeEnum.CSV.getFormat();
-            }
-
-            if (!StringUtils.isEmpty(filePath)) {
-                File dir = new File(filePath);
-                if (!dir.exists() || !dir.isDirectory()) {
-                    dir.mkdirs();
-                }
-            }
-
-            File file = new File(filePath + File.separator + fileName);
-            if (file.exists()) {
-                fileName = fileName.substring(0, fileName.lastIndexOf(".") - 1) + "_" + UUID.randomUUID() + FileTypeEnum.CSV.getFormat();
-            }
-
-            csvFullName = filePath + File.separator + fileName;
+            csvFullName = getCsvFullName(filePath, fileName);
 
             FileWriter fileWriter = null;
 
@@ -188,6 +175,68 @@ public class CsvUtils {
         return csvFullName;
     }
 
+    /**
+     * 流式写入csv，查询结果逐行直接写入文件，格式与 {@link #formatCsvWithFirstAsHeader} 一致
+     *
+     * @param filePath
+     * @param fileName
+     * @param sqlUtils
+     * @param sql
+     * @param pageNo
+     * @param pageSize
+     * @param limit
+     * @param excludeColumns
+     * @param gzip
+     * @return
+     * @throws ServerException
+     */
+    public static String exportCsvWithFirstAsHeader(String filePath, String fileName, SqlUtils sqlUtils, String sql,
+                                                    Integer pageNo, Integer pageSize, Integer limit,
+                                                    Set<String> excludeColumns, boolean gzip) throws ServerException {
+
+        String csvFullName = getCsvFullName(filePath, fileName);
+        if (gzip) {
+            csvFullName = csvFullName + GZIP_FORMAT;
+        }
+
+        QueryAnalysis analysis = QueryAnalysis.of(sql);
+        try (CsvExporter exporter = new CsvExporter(new FileOutputStream(csvFullName, true), Charset.defaultCharset(), gzip)) {
+            sqlUtils.query4Stream(sql, pageNo, pageSize, limit, rs -> {
+                QueryAnalysis.ColumnMapping mapping = analysis.getColumnMapping(rs.getMetaData());
+                try {
+                    return exporter.writeResultSet(rs, mapping, mapping.getExcluded(excludeColumns));
+                } catch (IOException e) {
+                    throw new ServerException(e.getMessage(), e);
+                }
+            });
+        } catch (Exception e) {
+            FileUtils.delete(csvFullName);
+            throw new ServerException(e.getMessage());
+        }
+
+        return csvFullName;
+    }
+
+    private static String getCsvFullName(String filePath, String fileName) {
+        if (!fileName.toLowerCase().endsWith(FileTypeEnum.CSV.getFormat())) {
+            fileName = fileName.trim() + FileTypeEnum.CSV.getFormat();
+        }
+
+        if (!StringUtils.isEmpty(filePath)) {
+            File dir = new File(filePath);
+            if (!dir.exists() || !dir.isDirectory()) {
+                dir.mkdirs();
+            }
+        }
+
+        File file = new File(filePath + File.separator + fileName);
+        if (file.exists()) {
+            fileName = fileName.substring(0, fileName.lastIndexOf(".") - 1) + "_" + UUID.randomUUID() + FileTypeEnum.CSV.getFormat();
+        }
+
+        return filePath + File.separator + fileName;
+    }
+
     private static void flushFlushable(Flushable f) {
         if (f != null) {
             try {
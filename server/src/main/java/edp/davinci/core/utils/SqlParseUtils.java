@@ -23,6 +23,7 @@ import com.alibaba.druid.util.StringUtils;
 import com.sun.tools.javac.util.ListBuffer;
 import edp.core.exception.ServerException;
 import edp.core.utils.CollectionUtils;
+import edp.core.utils.QueryAnalysis;
 import edp.core.utils.SqlUtils;
 import edp.davinci.core.common.Constants;
 import edp.davinci.core.enums.SqlOperatorEnum;
@@ -278,7 +279,7 @@ public class SqlParseUtils {
         String[] sqls = sqlStr.split(SEMICOLON);
         if (sqls.length > 0) {
             for (String sql : sqls) {
-                boolean select = isQuery(sql);
+                boolean select = QueryAnalysis.of(sql).isQuery();
                 if (isQuery) {
                     if (select) {
                         list.add(sql);
@@ -295,7 +296,13 @@ public class SqlParseUtils {
         return list;
     }
 
-    private boolean isQuery(String sql) {
+    /**
+     * 是否为查询语句，优先使用 {@link QueryAnalysis#isQuery()} 的缓存结果
+     *
+     * @param sql
+     * @return
+     */
+    public static boolean isQuery(String sql) {
 
         sql = sql.trim();
 
@@ -308,6 +315,16 @@ public class SqlParseUtils {
     }
 
     public static String rebuildSqlWithFragment(String sql) {
+        return QueryAnalysis.of(sql).getRebuiltSql();
+    }
+
+    /**
+     * 将sql中的 WITH 片段移至最前，优先使用 {@link #rebuildSqlWithFragment(String)} 的缓存结果
+     *
+     * @param sql
+     * @return
+     */
+    public static String rewriteWithFragment(String sql) {
         if (!sql.toLowerCase().startsWith(WITH)) {
             Matcher matcher = WITH_SQL_FRAGMENT.matcher(sql);
             if (matcher.find()) {
@@ -22,11 +22,16 @@ package edp.davinci.dao;
 import edp.davinci.dto.dashboardDto.DashboardWithPortal;
 import edp.davinci.model.Dashboard;
 import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Component;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
@@ -35,6 +40,8 @@ public interface DashboardMapper {
 
     int insert(Dashboard dashboard);
 
+    int insertBatch(@Param("list") List<Dashboard> list);
+
     @Delete({"delete from dashboard where id = #{id}"})
     int deleteById(@Param("id") Long id);
 
@@ -66,6 +73,15 @@ public interface DashboardMapper {
 
     int updateBatch(List<Dashboard> list);
 
+    int updateConfigBatch(@Param("list") List<Dashboard> list);
+
+    @Select({
+            "select sub_viz_id from davinci_statistic_visitor_operation",
+            "where viz_type = 'dashboard' and sub_viz_id is not null and create_time > #{since}",
+            "group by sub_viz_id order by count(1) desc limit #{limit}"
+    })
+    List<Long> getMostVisitedIds(@Param("since") Date since, @Param("limit") int limit);
+
     @Select({
             "select * from dashboard where dashboard_portal_id = #{portalId} order by `index`"
     })
@@ -117,4 +133,20 @@ public interface DashboardMapper {
     Set<Dashboard> queryDashboardsByIds(@Param("set") Set<Long> dashboardIds);
 
     Set<Dashboard> queryByPortals(@Param("set") Set<Long> portalIds);
+
+    @Select({
+            "select d.* from dashboard d",
+            "left join dashboard_portal p on p.id = d.dashboard_portal_id",
+            "where p.project_id = #{projectId}"
+    })
+    List<Dashboard> getByProject(@Param("projectId") Long projectId);
+
+    @Select({
+            "select d.* from dashboard d",
+            "left join dashboard_portal p on p.id = d.dashboard_portal_id",
+            "where p.project_id = #{projectId}"
+    })
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(Dashboard.class)
+    void streamByProject(@Param("projectId") Long projectId, ResultHandler<Dashboard> handler);
 }
\ No newline at end of file
@@ -22,9 +22,13 @@ package edp.davinci.dao;
 import edp.davinci.dto.dashboardDto.PortalWithProject;
 import edp.davinci.model.DashboardPortal;
 import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -59,6 +63,13 @@ public interface DashboardPortalMapper {
     @Select({"select * from dashboard_portal where project_id = #{projectId}"})
     List<DashboardPortal> getByProject(@Param("projectId") Long projectId);
 
+    @Select({"select * from dashboard_portal where project_id = #{projectId}"})
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(DashboardPortal.class)
+    void streamByProject(@Param("projectId") Long projectId, ResultHandler<DashboardPortal> handler);
+
+    int insertBatch(@Param("list") List<DashboardPortal> list);
+
     @Select({
             "SELECT ",
             "	dp.*,",
@@ -21,9 +21,13 @@ package edp.davinci.dao;
 
 import edp.davinci.model.MemDashboardWidget;
 import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -67,6 +71,24 @@ public interface MemDashboardWidgetMapper {
 
     int insertBatch(@Param("list") List<MemDashboardWidget> list);
 
+    @Select({
+            "select m.* from mem_dashboard_widget m",
+            "left join dashboard d on d.id = m.dashboard_id",
+            "left join dashboard_portal p on p.id = d.dashboard_portal_id",
+            "where p.project_id = #{projectId}"
+    })
+    List<MemDashboardWidget> getByProject(@Param("projectId") Long projectId);
+
+    @Select({
+            "select m.* from mem_dashboard_widget m",
+            "left join dashboard d on d.id = m.dashboard_id",
+            "left join dashboard_portal p on p.id = d.dashboard_portal_id",
+            "where p.project_id = #{projectId}"
+    })
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(MemDashboardWidget.class)
+    void streamByProject(@Param("projectId") Long projectId, ResultHandler<MemDashboardWidget> handler);
+
     int updateBatch(List<MemDashboardWidget> list);
 
     @Delete("delete from mem_dashboard_widget where widget_Id = #{widgetId}")
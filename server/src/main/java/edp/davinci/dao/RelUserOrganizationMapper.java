@@ -42,6 +42,9 @@ public interface RelUserOrganizationMapper {
     @Delete("delete from rel_user_organization where org_id = #{orgId}")
     int deleteByOrgId(@Param("orgId") Long orgId);
 
+    @Select({"select org_id, user_id from rel_user_organization order by user_id"})
+    List<RelUserOrganization> getDirectoryRels();
+
 
     @Select({
             "SELECT ruo.id, u.id AS 'user.id', ",
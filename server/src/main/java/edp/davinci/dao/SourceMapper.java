@@ -22,9 +22,13 @@ package edp.davinci.dao;
 import edp.davinci.dto.sourceDto.SourceWithProject;
 import edp.davinci.model.Source;
 import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -59,6 +63,11 @@ public interface SourceMapper {
     @Select({"select * from `source` where project_id = #{projectId}"})
     List<Source> getByProject(@Param("projectId") Long projectId);
 
+    @Select({"select * from `source` where project_id = #{projectId}"})
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(Source.class)
+    void streamByProject(@Param("projectId") Long projectId, ResultHandler<Source> handler);
+
     @Select({
             "SELECT s.id, s.`name`, s.`type`, s.`config`,",
             "	p.id 'project.id',",
@@ -47,6 +47,9 @@ public interface UserMapper {
 
     List<UserBaseInfo> getUsersByKeyword(@Param("keyword") String keyword, @Param("orgId") Long orgId);
 
+    @Select({"select id, `username`, `name`, `email`, `avatar` from `user` order by id"})
+    List<User> getDirectoryUsers();
+
     @Update({"update `user` set `name` = #{name}, description = #{description}, department = #{department}, update_time = #{updateTime}",
             "where id = #{id}"})
     int updateBaseInfo(User user);
@@ -22,9 +22,13 @@ package edp.davinci.dao;
 import edp.davinci.dto.viewDto.*;
 import edp.davinci.model.View;
 import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -88,6 +92,14 @@ public interface ViewMapper {
 
     int insertBatch(@Param("list") List<View> sourceList);
 
+    @Select({"select * from `view` where project_id = #{projectId}"})
+    List<View> getByProject(@Param("projectId") Long projectId);
+
+    @Select({"select * from `view` where project_id = #{projectId}"})
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(View.class)
+    void streamByProject(@Param("projectId") Long projectId, ResultHandler<View> handler);
+
     @Delete({"delete from `view` where project_id = #{projectId}"})
     int deleteByProject(@Param("projectId") Long projectId);
 
@@ -25,9 +25,13 @@ import edp.davinci.dto.widgetDto.WidgetWithViewName;
 import edp.davinci.dto.widgetDto.WidgetWithVizId;
 import edp.davinci.model.Widget;
 import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.ResultType;
 import org.apache.ibatis.annotations.Select;
 import org.apache.ibatis.annotations.Update;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -91,6 +95,13 @@ public interface WidgetMapper {
             "where w.project_id = #{projectId}"})
     List<WidgetWithViewName> getByProject(@Param("projectId") Long projectId);
 
+    @Select({"select w.*, v.name as 'viewName' from widget w",
+            "LEFT JOIN view v on v.id = w.view_id",
+            "where w.project_id = #{projectId}"})
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = Integer.MIN_VALUE)
+    @ResultType(WidgetWithViewName.class)
+    void streamByProject(@Param("projectId") Long projectId, ResultHandler<WidgetWithViewName> handler);
+
     @Select({"SELECT w.*, m.id as 'relationId' FROM mem_dashboard_widget m LEFT JOIN widget w on w.id = m.widget_Id WHERE m.dashboard_id = #{dashboardId} order by m.create_time"})
     List<WidgetWithRelationDashboardId> getByDashboard(@Param("dashboardId") Long dashboardId);
 
@@ -28,10 +28,16 @@ public class ExcelContent {
     private int order;
     private String name;
     private File file;
+    private String renderKey;
 
     public ExcelContent(int order, String name, String filePath) {
         this.order = order;
         this.name = name;
         this.file = new File(filePath);
     }
+
+    public ExcelContent(int order, String name, String filePath, String renderKey) {
+        this(order, name, filePath);
+        this.renderKey = renderKey;
+    }
 }
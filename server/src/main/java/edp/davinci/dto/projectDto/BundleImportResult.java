@@ -0,0 +1,38 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.dto.projectDto;
+
+import lombok.Data;
+
+/**
+ * 项目包导入结果，matchedSources 为按名称复用的已有数据源数
+ */
+@Data
+public class BundleImportResult {
+    private int createdSources;
+    private int matchedSources;
+    private int views;
+    private int widgets;
+    private int portals;
+    private int dashboards;
+    private int dashboardWidgets;
+    private long millis;
+}
@@ -0,0 +1,41 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.dto.sourceDto;
+
+import lombok.Data;
+
+/**
+ * 数据源目录搜索结果，columnName 为空时表示匹配的是表
+ */
+@Data
+public class CatalogEntry {
+    private String dbName;
+    private String tableName;
+    private String columnName;
+    private String type;
+
+    public CatalogEntry(String dbName, String tableName, String columnName, String type) {
+        this.dbName = dbName;
+        this.tableName = tableName;
+        this.columnName = columnName;
+        this.type = type;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.dto.viewDto;
+
+import lombok.Data;
+
+/**
+ * 批量取数中的单个查询
+ */
+@Data
+public class ViewDataQuery {
+    /**
+     * 调用方自定义标识，原样返回，如 widget 或 dashboard widget 的 id
+     */
+    private String key;
+
+    private Long viewId;
+
+    private ViewExecuteParam executeParam;
+}
@@ -0,0 +1,208 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.schedule;
+
+import edp.core.utils.MD5Util;
+import edp.davinci.core.enums.LogNameEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static edp.core.consts.Consts.AT_SYMBOL;
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 定时任务内容渲染缓存
+ * <p>
+ * 同一时间窗口内，内容类型、id、用户权限及参数都相同的截图或excel只生成一次，并发执行的任务共享生成结果；
+ * 生成的文件按引用计数，窗口过期且不再被引用时由 {@link SystemSchedule} 清理
+ */
+@Component
+public class ScheduleRenderCache {
+
+    private static final Logger scheduleLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_SCHEDULE.getName());
+
+    @Value("${cronjob.render-cache.enable:true}")
+    private boolean enable;
+
+    @Value("${cronjob.render-cache.bucket-seconds:300}")
+    private long bucketSeconds;
+
+    private static final int MAX_HOLDING_BUCKETS = 24;
+
+    private final ConcurrentHashMap<String, RenderEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 生成缓存key，缓存关闭时返回null
+     *
+     * @param contentType 内容类型
+     * @param id          内容id
+     * @param userId      生成内容所使用的用户（权限）
+     * @param params      影响生成结果的参数
+     * @return
+     */
+    public String getKey(String contentType, Long id, Long userId, Object... params) {
+        if (!enable) {
+            return null;
+        }
+        StringBuilder paramBuilder = new StringBuilder();
+        for (Object param : params) {
+            paramBuilder.append(param).append(MINUS);
+        }
+        return String.join(AT_SYMBOL,
+                contentType.toUpperCase(),
+                String.valueOf(id),
+                String.valueOf(userId),
+                MD5Util.getMD5(paramBuilder.toString(), true, 16),
+                String.valueOf(currentBucket()));
+    }
+
+    /**
+     * 引用缓存内容，引用计数加一
+     *
+     * @param key
+     * @return true 表示当前调用方需要负责生成内容，并在生成后调用 {@link #complete(String, File)}
+     */
+    public boolean reference(String key) {
+        if (key == null) {
+            return true;
+        }
+        final boolean[] owner = {false};
+        RenderEntry entry = entries.compute(key, (k, v) -> {
+            if (v == null) {
+                owner[0] = true;
+                v = new RenderEntry(currentBucket());
+            }
+            v.refs.incrementAndGet();
+            return v;
+        });
+        if (!owner[0]) {
+            scheduleLogger.info("Render cache hit: {}, refs:{}", key, entry.refs.get());
+        }
+        return owner[0];
+    }
+
+    /**
+     * 内容生成完成，生成失败时file为null，该条目会被移除以便后续任务重新生成
+     *
+     * @param key
+     * @param file
+     */
+    public void complete(String key, File file) {
+        if (key == null) {
+            return;
+        }
+        RenderEntry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        if (file == null) {
+            entries.remove(key, entry);
+        }
+        entry.future.complete(file);
+    }
+
+    /**
+     * 等待其他任务生成的内容
+     *
+     * @param key
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public File get(String key, long timeout, TimeUnit unit) {
+        RenderEntry entry = key == null ? null : entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return entry.future.get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            scheduleLogger.error("Render cache wait for {} error:{}", key, e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * 释放引用，引用计数减一
+     *
+     * @param key
+     */
+    public void release(String key) {
+        if (key == null) {
+            return;
+        }
+        RenderEntry entry = entries.get(key);
+        if (entry != null) {
+            entry.refs.decrementAndGet();
+        }
+    }
+
+    /**
+     * 清理已过期且不再被引用的内容及其文件
+     */
+    public void evictExpired() {
+        long bucket = currentBucket();
+        Iterator<Map.Entry<String, RenderEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, RenderEntry> e = iterator.next();
+            RenderEntry entry = e.getValue();
+            if (entry.bucket >= bucket || !entry.future.isDone()) {
+                continue;
+            }
+            // 超过最长持有时间的引用视为泄漏，强制清理
+            if (entry.refs.get() > 0 && bucket - entry.bucket < MAX_HOLDING_BUCKETS) {
+                continue;
+            }
+            if (entries.remove(e.getKey(), entry)) {
+                File file = entry.future.getNow(null);
+                if (file != null && file.exists() && !file.delete()) {
+                    scheduleLogger.warn("Render cache delete file {} fail", file.getPath());
+                }
+            }
+        }
+    }
+
+    private long currentBucket() {
+        return System.currentTimeMillis() / (Math.max(bucketSeconds, 1L) * 1000L);
+    }
+
+    private static class RenderEntry {
+
+        private final long bucket;
+
+        private final AtomicInteger refs = new AtomicInteger(0);
+
+        private final CompletableFuture<File> future = new CompletableFuture<>();
+
+        RenderEntry(long bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
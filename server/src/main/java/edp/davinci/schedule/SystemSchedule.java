@@ -27,6 +27,8 @@ import edp.davinci.dao.CronJobMapper;
 import edp.davinci.dao.ShareDownloadRecordMapper;
 import edp.davinci.model.CronJob;
 import edp.davinci.model.ShareDownloadRecord;
+import edp.davinci.service.catalog.CatalogCrawler;
+import edp.davinci.service.rollup.RollupStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -56,6 +58,15 @@ public class SystemSchedule {
     @Autowired
     private ShareDownloadRecordMapper shareDownloadRecordMapper;
 
+    @Autowired
+    private ScheduleRenderCache renderCache;
+
+    @Autowired
+    private RollupStore rollupStore;
+
+    @Autowired
+    private CatalogCrawler catalogCrawler;
+
     private static final ExecutorService CLEAR_TEMPDIR_THREADPOOL = Executors.newFixedThreadPool(3);
 
     @Scheduled(cron = "0 0 1 * * *")
@@ -89,6 +100,21 @@ public class SystemSchedule {
         }
     }
 
+    @Scheduled(cron = "0 0/5 * * * *")
+    public void evictRenderCache() {
+        renderCache.evictExpired();
+    }
+
+    @Scheduled(cron = "0 * * * * *")
+    public void refreshRollups() {
+        rollupStore.refresh();
+    }
+
+    @Scheduled(cron = "0 0/5 * * * *")
+    public void refreshCatalogs() {
+        catalogCrawler.refresh();
+    }
+
     @Scheduled(cron = "0 0 1 * * *")
     public void clearShareDownloadRecord() {
 
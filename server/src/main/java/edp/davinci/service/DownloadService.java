@@ -55,6 +55,24 @@ public interface DownloadService {
     DownloadRecord downloadById(Long id, String token);
 
 
+    /**
+     * 批量获取下载记录，不修改记录状态；不存在或不属于该用户的记录被忽略
+     *
+     * @param ids
+     * @param token
+     * @return
+     */
+    List<DownloadRecord> getDownloadRecords(Long[] ids, String token);
+
+
+    /**
+     * 标记记录为已下载
+     *
+     * @param records
+     */
+    void markDownloaded(List<DownloadRecord> records);
+
+
     /**
      * 提交下载任务
      *
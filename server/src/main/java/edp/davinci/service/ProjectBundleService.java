@@ -0,0 +1,38 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service;
+
+import edp.core.exception.NotFoundException;
+import edp.core.exception.ServerException;
+import edp.core.exception.UnAuthorizedException;
+import edp.davinci.dto.projectDto.BundleImportResult;
+import edp.davinci.model.User;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface ProjectBundleService {
+
+    void exportBundle(Long projectId, User user, OutputStream out) throws NotFoundException, UnAuthorizedException, IOException;
+
+    BundleImportResult importBundle(Long projectId, MultipartFile file, User user) throws NotFoundException, UnAuthorizedException, ServerException;
+}
@@ -60,4 +60,8 @@ public interface SourceService extends CheckEntityService {
     List<DatasourceType> getDatasources();
 
     boolean reconnect(Long id, DbBaseInfo dbBaseInfo, User user) throws NotFoundException, UnAuthorizedException, ServerException;
+
+    void refreshMetadata(Long id, User user) throws NotFoundException, UnAuthorizedException;
+
+    List<CatalogEntry> searchCatalog(Long id, String keyword, int limit, User user) throws NotFoundException;
 }
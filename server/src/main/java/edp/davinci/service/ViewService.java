@@ -52,6 +52,8 @@ public interface ViewService extends CheckEntityService {
 
     PaginateWithQueryColumns getResultDataList(boolean isMaintainer, ViewWithSource viewWithSource, ViewExecuteParam executeParam, User user) throws ServerException, SQLException;
 
+    PaginateWithQueryColumns getResultDataList(boolean isMaintainer, ViewWithSource viewWithSource, ViewExecuteParam executeParam, User user, Map<Long, SqlEntity> parsedSqls) throws ServerException, SQLException;
+
     List<Map<String, Object>> getDistinctValue(Long id, DistinctParam param, User user) throws NotFoundException, ServerException, UnAuthorizedException;
 
     List getDistinctValueData(boolean isMaintainer, ViewWithSource viewWithSource, DistinctParam param, User user) throws ServerException;
@@ -60,5 +62,7 @@ public interface ViewService extends CheckEntityService {
 
     SQLContext getSQLContext(boolean isMaintainer, ViewWithSource viewWithSource, ViewExecuteParam executeParam, User user);
 
+    List<RollupStats> getRollupStats(Long id, User user) throws NotFoundException, UnAuthorizedException, ServerException;
+
     void packageParams(boolean isProjectMaintainer, Long viewId, SqlEntity sqlEntity, List<SqlVariable> variables, List<Param> paramList, Set<String> excludeColumns, User user);
 }
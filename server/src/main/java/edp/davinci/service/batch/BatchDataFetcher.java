@@ -0,0 +1,329 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.batch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.common.buffer.ResultScope;
+import edp.core.common.jdbc.QueryContext;
+import edp.core.common.jdbc.QueryLifecycleManager;
+import edp.core.enums.HttpCodeEnum;
+import edp.core.exception.NotFoundException;
+import edp.core.exception.ServerException;
+import edp.core.exception.UnAuthorizedException;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.utils.CollectionUtils;
+import edp.davinci.core.model.SqlEntity;
+import edp.davinci.dao.ViewMapper;
+import edp.davinci.dto.projectDto.ProjectDetail;
+import edp.davinci.dto.viewDto.ViewDataQuery;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.dto.viewDto.ViewWithSource;
+import edp.davinci.model.User;
+import edp.davinci.service.ProjectService;
+import edp.davinci.service.ViewService;
+import edp.davinci.service.merge.QueryMerger;
+import edp.davinci.service.prefetch.PrefetchCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 批量取数
+ * <p>
+ * 同一批次中 view 与 source 只加载一次，项目权限只校验一次，同一view的sql只解析一次；
+ * 查询取得 source 的并发额度后才提交执行，结果按完成顺序回调；超时时取消执行中的statement
+ */
+@Slf4j
+@Component
+public class BatchDataFetcher {
+
+    @Autowired
+    private ViewMapper viewMapper;
+
+    @Autowired
+    private ViewService viewService;
+
+    @Autowired
+    private ProjectService projectService;
+
+    @Autowired
+    private PrefetchCache prefetchCache;
+
+    @Autowired
+    private QueryMerger queryMerger;
+
+    @Autowired
+    private QueryLifecycleManager queryLifecycleManager;
+
+    @Value("${source.batch-data.max-queries:100}")
+    private int maxQueries;
+
+    @Value("${source.batch-data.per-source-concurrency:4}")
+    private int perSourceConcurrency;
+
+    @Value("${source.batch-data.timeout-seconds:300}")
+    private long timeoutSeconds;
+
+    private static final long DISPATCH_INTERVAL_MILLIS = 50L;
+
+    private static final ExecutorService BATCH_WORKERS = new ThreadPoolExecutor(16, 16,
+            60_000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+            new ThreadFactoryBuilder().setNameFormat("Batch-data-worker-%d").setDaemon(true).build(), new ThreadPoolExecutor.AbortPolicy());
+
+    private final Map<Long, Semaphore> sourceSemaphores = new ConcurrentHashMap<>();
+
+    public int getMaxQueries() {
+        return maxQueries;
+    }
+
+    /**
+     * 执行批量查询，每个查询完成后在调用线程上回调一次
+     *
+     * @param queries
+     * @param user
+     * @param consumer
+     * @throws ServerException
+     */
+    public void fetch(List<ViewDataQuery> queries, User user, Consumer<BatchDataResult> consumer) throws ServerException {
+        if (CollectionUtils.isEmpty(queries)) {
+            return;
+        }
+
+        if (queries.size() > maxQueries) {
+            throw new ServerException("Too many queries in one request, max: " + maxQueries);
+        }
+
+        Map<Long, Optional<ViewWithSource>> viewMap = new HashMap<>();
+        Map<Long, Object> projectMap = new HashMap<>();
+        Map<Long, SqlEntity> parsedSqls = new ConcurrentHashMap<>();
+        // 结果随请求的作用域关闭
+        ResultScope scope = ResultScope.current();
+        // 批次登记为一个数据请求，超时时取消执行中的statement
+        String requestId = UUID.randomUUID().toString().replace(MINUS, "");
+        AtomicBoolean expired = new AtomicBoolean(false);
+
+        CompletionService<BatchDataResult> completionService = new ExecutorCompletionService<>(BATCH_WORKERS);
+        Map<Future<BatchDataResult>, BatchDataResult> pending = new HashMap<>();
+        // 各source等待执行的查询，取得并发额度后才提交，工作线程不阻塞在额度上
+        Map<Long, Deque<BatchTask>> waiting = new LinkedHashMap<>();
+
+        queryLifecycleManager.beginRequest(requestId, user.getId(), null);
+        // 同一批次的查询等待合并执行
+        boolean merge = queries.size() > 1;
+        if (merge) {
+            queryMerger.beginBatch(user.getId());
+        }
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                ViewDataQuery query = queries.get(i);
+                BatchDataResult result = new BatchDataResult(i, query.getKey());
+                ViewExecuteParam executeParam = query.getExecuteParam();
+
+                if (null == query.getViewId() || query.getViewId() < 1L) {
+                    consumer.accept(fail(result, HttpCodeEnum.FAIL, "Invalid view id"));
+                    continue;
+                }
+
+                // 与单个取数接口一致，无分组与聚合时不查询
+                if (null == executeParam || (CollectionUtils.isEmpty(executeParam.getGroups()) && CollectionUtils.isEmpty(executeParam.getAggregators()))) {
+                    result.setCode(HttpCodeEnum.OK.getCode());
+                    consumer.accept(result);
+                    continue;
+                }
+
+                ViewWithSource viewWithSource = viewMap.computeIfAbsent(query.getViewId(),
+                        id -> Optional.ofNullable(viewMapper.getViewWithSource(id))).orElse(null);
+                if (null == viewWithSource) {
+                    consumer.accept(fail(result, HttpCodeEnum.NOT_FOUND, "View is not found"));
+                    continue;
+                }
+
+                if (null == viewWithSource.getSource()) {
+                    consumer.accept(fail(result, HttpCodeEnum.NOT_FOUND, "Source is not found"));
+                    continue;
+                }
+
+                Object permission = projectMap.computeIfAbsent(viewWithSource.getProjectId(), projectId -> authorize(projectId, user));
+                if (permission instanceof String) {
+                    consumer.accept(fail(result, HttpCodeEnum.UNAUTHORIZED, (String) permission));
+                    continue;
+                }
+
+                boolean isMaintainer = (Boolean) permission;
+                waiting.computeIfAbsent(viewWithSource.getSource().getId(), id -> new ArrayDeque<>())
+                        .add(new BatchTask(result, () -> query(result, isMaintainer, viewWithSource, executeParam, user, parsedSqls)));
+            }
+
+            long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+            try {
+                dispatch(waiting, completionService, pending, scope, requestId, user, expired);
+                while (!pending.isEmpty() || !waiting.isEmpty()) {
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0L) {
+                        break;
+                    }
+                    // 额度可能由其它请求释放，有等待的查询时定期重试提交
+                    Future<BatchDataResult> future = completionService.poll(waiting.isEmpty() ? timeout : Math.min(timeout, DISPATCH_INTERVAL_MILLIS), TimeUnit.MILLISECONDS);
+                    if (null != future) {
+                        consumer.accept(getResult(future, pending.remove(future)));
+                    }
+                    dispatch(waiting, completionService, pending, scope, requestId, user, expired);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (!pending.isEmpty()) {
+                    // 排队中的查询不再执行，执行中的查询取消statement；不中断工作线程，额度由查询结束时释放
+                    expired.set(true);
+                    int count = queryLifecycleManager.cancelRequest(requestId);
+                    log.info("Batch request({}) timeout, {} statements cancelled", requestId, count);
+                }
+            }
+
+            // 未完成的查询仍可能在工作线程中修改结果，超时结果另行构造
+            List<BatchDataResult> unfinished = new ArrayList<>(pending.values());
+            waiting.values().forEach(tasks -> tasks.forEach(task -> unfinished.add(task.result)));
+            unfinished.stream()
+                    .sorted(Comparator.comparingInt(BatchDataResult::getIndex))
+                    .forEach(result -> consumer.accept(fail(new BatchDataResult(result.getIndex(), result.getKey()), HttpCodeEnum.SERVER_ERROR, "Query timeout")));
+        } finally {
+            if (merge) {
+                queryMerger.endBatch(user.getId());
+            }
+            queryLifecycleManager.endRequest(requestId, user.getId(), null);
+        }
+    }
+
+    /**
+     * 按source的并发额度提交等待中的查询，额度在查询结束时释放
+     */
+    private void dispatch(Map<Long, Deque<BatchTask>> waiting, CompletionService<BatchDataResult> completionService,
+                          Map<Future<BatchDataResult>, BatchDataResult> pending, ResultScope scope, String requestId, User user,
+                          AtomicBoolean expired) {
+        Iterator<Map.Entry<Long, Deque<BatchTask>>> iterator = waiting.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Deque<BatchTask>> entry = iterator.next();
+            Semaphore semaphore = sourceSemaphores.computeIfAbsent(entry.getKey(), id -> new Semaphore(Math.max(perSourceConcurrency, 1)));
+            Deque<BatchTask> tasks = entry.getValue();
+            while (!tasks.isEmpty() && semaphore.tryAcquire()) {
+                BatchTask task = tasks.poll();
+                try {
+                    pending.put(completionService.submit(() -> {
+                        if (expired.get()) {
+                            semaphore.release();
+                            return task.result;
+                        }
+                        ResultScope.attach(scope);
+                        QueryContext.begin(requestId, user.getId(), null);
+                        try {
+                            return task.callable.call();
+                        } finally {
+                            QueryContext.end();
+                            ResultScope.end();
+                            semaphore.release();
+                        }
+                    }), task.result);
+                } catch (RejectedExecutionException e) {
+                    semaphore.release();
+                    tasks.addFirst(task);
+                    return;
+                }
+            }
+            if (tasks.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 取得查询结果，执行异常时返回该查询自身的错误
+     */
+    private BatchDataResult getResult(Future<BatchDataResult> future, BatchDataResult result) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = null == e.getCause() ? e : e.getCause();
+            log.error("Batch data error:{}", cause.getMessage());
+            return fail(new BatchDataResult(result.getIndex(), result.getKey()), HttpCodeEnum.SERVER_ERROR, cause.getMessage());
+        }
+    }
+
+    /**
+     * 有取数权限时返回是否为项目维护者，否则返回错误信息
+     */
+    private Object authorize(Long projectId, User user) {
+        try {
+            ProjectDetail projectDetail = projectService.getProjectDetail(projectId, user, false);
+            if (!projectService.allowGetData(projectDetail, user)) {
+                return "You have not permission to get data";
+            }
+            return projectService.isMaintainer(projectDetail, user);
+        } catch (NotFoundException | UnAuthorizedException e) {
+            return e.getMessage();
+        }
+    }
+
+    private BatchDataResult query(BatchDataResult result, boolean isMaintainer, ViewWithSource viewWithSource,
+                                  ViewExecuteParam executeParam, User user, Map<Long, SqlEntity> parsedSqls) {
+        try {
+            PaginateWithQueryColumns paginate = prefetchCache.get(user.getId(), viewWithSource.getId(), executeParam);
+            if (null == paginate) {
+                paginate = queryMerger.execute(viewWithSource.getId(), user.getId(), executeParam,
+                        param -> viewService.getResultDataList(isMaintainer, viewWithSource, param, user, parsedSqls));
+            }
+            result.setCode(HttpCodeEnum.OK.getCode());
+            result.setPaginate(paginate);
+        } catch (NotFoundException e) {
+            fail(result, HttpCodeEnum.NOT_FOUND, e.getMessage());
+        } catch (UnAuthorizedException e) {
+            fail(result, HttpCodeEnum.UNAUTHORIZED, e.getMessage());
+        } catch (Exception e) {
+            log.error("View({}) batch query error:{}", viewWithSource.getId(), e.getMessage());
+            fail(result, HttpCodeEnum.FAIL, e.getMessage());
+        }
+        return result;
+    }
+
+    private BatchDataResult fail(BatchDataResult result, HttpCodeEnum codeEnum, String message) {
+        result.setCode(codeEnum.getCode());
+        result.setMessage(message);
+        return result;
+    }
+
+    private static class BatchTask {
+
+        final BatchDataResult result;
+
+        final Callable<BatchDataResult> callable;
+
+        BatchTask(BatchDataResult result, Callable<BatchDataResult> callable) {
+            this.result = result;
+            this.callable = callable;
+        }
+    }
+}
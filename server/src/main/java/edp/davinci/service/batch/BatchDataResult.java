@@ -0,0 +1,43 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.batch;
+
+import edp.core.model.Paginate;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * 批量取数中单个查询的结果
+ */
+@Data
+public class BatchDataResult {
+    private int index;
+    private String key;
+    private int code;
+    private String message;
+    private Paginate<Map<String, Object>> paginate;
+
+    public BatchDataResult(int index, String key) {
+        this.index = index;
+        this.key = key;
+    }
+}
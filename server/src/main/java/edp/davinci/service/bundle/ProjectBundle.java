@@ -0,0 +1,241 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.bundle;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import edp.core.exception.ServerException;
+import edp.davinci.model.*;
+import lombok.Getter;
+import org.apache.ibatis.session.ResultHandler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 项目打包文件
+ * <p>
+ * zip内每类实体一个NDJSON条目（每行一个实体），导出时逐行写出，导入时逐行解析；
+ * 数据源配置中不包含密码
+ */
+@Getter
+public class ProjectBundle {
+
+    public static final int VERSION = 1;
+
+    public static final String MANIFEST = "manifest.json";
+
+    public static final String SOURCES = "sources.ndjson";
+
+    public static final String VIEWS = "views.ndjson";
+
+    public static final String WIDGETS = "widgets.ndjson";
+
+    public static final String PORTALS = "portals.ndjson";
+
+    public static final String DASHBOARDS = "dashboards.ndjson";
+
+    public static final String DASHBOARD_WIDGETS = "dashboard_widgets.ndjson";
+
+    private static final String PASSWORD = "password";
+
+    private final List<Source> sources = new ArrayList<>();
+
+    private final List<View> views = new ArrayList<>();
+
+    private final List<Widget> widgets = new ArrayList<>();
+
+    private final List<DashboardPortal> portals = new ArrayList<>();
+
+    private final List<Dashboard> dashboards = new ArrayList<>();
+
+    private final List<MemDashboardWidget> memDashboardWidgets = new ArrayList<>();
+
+    private int entityCount = 0;
+
+    /**
+     * 写出一个实体条目，每个实体一行
+     * <p>
+     * query 以 ResultHandler 逐行回调查询结果，实体读到即写出，不在内存中保存整个列表
+     *
+     * @param out
+     * @param name
+     * @param query
+     * @param mapper
+     * @return 写出的实体数
+     * @throws IOException
+     */
+    public static <T> int writeEntry(ZipOutputStream out, String name, Consumer<ResultHandler<T>> query, Function<T, Object> mapper) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        // 不能关闭writer，否则会关闭整个zip流
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        int[] count = {0};
+        IOException[] error = {null};
+        query.accept(context -> {
+            try {
+                writer.write(JSON.toJSONString(mapper.apply(context.getResultObject())));
+                writer.write('\n');
+                count[0]++;
+            } catch (IOException e) {
+                // 客户端断开时停止读取，异常在查询返回后抛出
+                error[0] = e;
+                context.stop();
+            }
+        });
+        if (null != error[0]) {
+            throw error[0];
+        }
+        writer.flush();
+        out.closeEntry();
+        return count[0];
+    }
+
+    public static <T> int writeEntry(ZipOutputStream out, String name, Consumer<ResultHandler<T>> query) throws IOException {
+        return writeEntry(out, name, query, entity -> entity);
+    }
+
+    public static void writeManifest(ZipOutputStream out, JSONObject manifest) throws IOException {
+        manifest.put("version", VERSION);
+        out.putNextEntry(new ZipEntry(MANIFEST));
+        out.write(manifest.toJSONString().getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+    }
+
+    /**
+     * 导出的数据源，去掉配置中的密码
+     *
+     * @param source
+     * @return
+     */
+    public static JSONObject toBundleSource(Source source) {
+        JSONObject jsonObject = new JSONObject(true);
+        jsonObject.put("id", source.getId());
+        jsonObject.put("name", source.getName());
+        jsonObject.put("description", source.getDescription());
+        jsonObject.put("type", source.getType());
+        if (null != source.getConfig()) {
+            try {
+                JSONObject config = JSON.parseObject(source.getConfig());
+                config.remove(PASSWORD);
+                jsonObject.put("config", config.toJSONString());
+            } catch (Exception e) {
+                jsonObject.put("config", null);
+            }
+        }
+        return jsonObject;
+    }
+
+    /**
+     * 读取打包文件
+     *
+     * @param in
+     * @param maxEntities
+     * @return
+     * @throws IOException
+     */
+    public static ProjectBundle read(InputStream in, int maxEntities) throws IOException {
+        ProjectBundle bundle = new ProjectBundle();
+        boolean hasManifest = false;
+
+        ZipInputStream zipInputStream = new ZipInputStream(in, StandardCharsets.UTF_8);
+        ZipEntry entry;
+        while (null != (entry = zipInputStream.getNextEntry())) {
+            // 读到条目末尾时zip流返回-1，reader不会越过当前条目
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zipInputStream, StandardCharsets.UTF_8));
+            switch (entry.getName()) {
+                case MANIFEST:
+                    hasManifest = true;
+                    bundle.checkManifest(reader);
+                    break;
+                case SOURCES:
+                    bundle.readEntry(reader, SOURCES, Source.class, bundle.sources, maxEntities);
+                    break;
+                case VIEWS:
+                    bundle.readEntry(reader, VIEWS, View.class, bundle.views, maxEntities);
+                    break;
+                case WIDGETS:
+                    bundle.readEntry(reader, WIDGETS, Widget.class, bundle.widgets, maxEntities);
+                    break;
+                case PORTALS:
+                    bundle.readEntry(reader, PORTALS, DashboardPortal.class, bundle.portals, maxEntities);
+                    break;
+                case DASHBOARDS:
+                    bundle.readEntry(reader, DASHBOARDS, Dashboard.class, bundle.dashboards, maxEntities);
+                    break;
+                case DASHBOARD_WIDGETS:
+                    bundle.readEntry(reader, DASHBOARD_WIDGETS, MemDashboardWidget.class, bundle.memDashboardWidgets, maxEntities);
+                    break;
+                default:
+                    break;
+            }
+            zipInputStream.closeEntry();
+        }
+
+        if (!hasManifest) {
+            throw new ServerException("Invalid bundle: " + MANIFEST + " is missing");
+        }
+        return bundle;
+    }
+
+    private void checkManifest(BufferedReader reader) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        String line;
+        while (null != (line = reader.readLine())) {
+            builder.append(line);
+        }
+
+        Integer version;
+        try {
+            version = JSON.parseObject(builder.toString()).getInteger("version");
+        } catch (Exception e) {
+            throw new ServerException("Invalid bundle: " + MANIFEST + " is malformed");
+        }
+        if (null == version || version > VERSION) {
+            throw new ServerException("Unsupported bundle version: " + version);
+        }
+    }
+
+    private <T> void readEntry(BufferedReader reader, String name, Class<T> clazz, List<T> list, int maxEntities) throws IOException {
+        String line;
+        int lineNo = 0;
+        while (null != (line = reader.readLine())) {
+            lineNo++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (++entityCount > maxEntities) {
+                throw new ServerException("Too many entities in bundle, max: " + maxEntities);
+            }
+            try {
+                list.add(JSON.parseObject(line, clazz));
+            } catch (Exception e) {
+                throw new ServerException("Invalid bundle: " + name + " line " + lineNo + " is malformed");
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.catalog;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.model.QueryColumn;
+import edp.core.model.TableInfo;
+import edp.core.utils.CollectionUtils;
+import edp.core.utils.SqlUtils;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.SourceChanged;
+import edp.davinci.dao.SourceMapper;
+import edp.davinci.model.Source;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 数据源目录爬取
+ * <p>
+ * 首次浏览数据源时在后台爬取库、表与列，之后view编辑器直接读取内存中的目录；
+ * 定时增量刷新（仍存在且未过期的表复用上一版本的列），数据源重连或修改时重新爬取
+ */
+@Slf4j
+@Component
+public class CatalogCrawler {
+
+    @Autowired
+    private SqlUtils sqlUtils;
+
+    @Autowired
+    private SourceMapper sourceMapper;
+
+    @Autowired
+    private DomainEventBus domainEventBus;
+
+    @Value("${source.catalog.enable:true}")
+    private boolean enable;
+
+    @Value("${source.catalog.parallelism:4}")
+    private int parallelism;
+
+    @Value("${source.catalog.refresh-minutes:30}")
+    private long refreshMinutes;
+
+    @Value("${source.catalog.column-ttl-minutes:720}")
+    private long columnTtlMinutes;
+
+    @Value("${source.catalog.idle-minutes:1440}")
+    private long idleMinutes;
+
+    @Value("${source.catalog.max-tables:20000}")
+    private int maxTables;
+
+    private static final ExecutorService CRAWL_WORKERS = Executors.newFixedThreadPool(2,
+            new ThreadFactoryBuilder().setNameFormat("Catalog-crawler-%d").setDaemon(true).build());
+
+    private ExecutorService columnWorkers;
+
+    private final Map<Long, SourceCatalog> catalogs = new ConcurrentHashMap<>();
+
+    private final Map<Long, Long> lastAccessTimes = new ConcurrentHashMap<>();
+
+    private final Set<Long> crawling = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 爬取过程中数据源发生变化，结果作废并重新爬取
+     */
+    private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        columnWorkers = Executors.newFixedThreadPool(Math.max(parallelism, 1),
+                new ThreadFactoryBuilder().setNameFormat("Catalog-worker-%d").setDaemon(true).build());
+        domainEventBus.subscribe(SourceChanged.class, this::onSourceChanged);
+    }
+
+    /**
+     * 获取数据源目录，尚未爬取完成时返回null并在后台开始爬取
+     *
+     * @param source
+     * @return
+     */
+    public SourceCatalog get(Source source) {
+        if (!enable) {
+            return null;
+        }
+        lastAccessTimes.put(source.getId(), System.currentTimeMillis());
+        SourceCatalog catalog = catalogs.get(source.getId());
+        if (null == catalog) {
+            crawl(source);
+        }
+        return catalog;
+    }
+
+    /**
+     * 后台爬取数据源目录，同一数据源同时只有一个爬取任务
+     *
+     * @param source
+     */
+    public void crawl(Source source) {
+        if (!enable || !crawling.add(source.getId())) {
+            return;
+        }
+        lastAccessTimes.putIfAbsent(source.getId(), System.currentTimeMillis());
+        try {
+            CRAWL_WORKERS.execute(() -> {
+                try {
+                    doCrawl(source);
+                } catch (Throwable e) {
+                    log.warn("Source({}) catalog crawl error:{}", source.getId(), e.getMessage());
+                } finally {
+                    crawling.remove(source.getId());
+                }
+                if (stale.remove(source.getId())) {
+                    Source latest = sourceMapper.getById(source.getId());
+                    if (null != latest) {
+                        crawl(latest);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            crawling.remove(source.getId());
+        }
+    }
+
+    /**
+     * 清理长时间未浏览的目录，刷新到期的目录
+     */
+    public void refresh() {
+        if (!enable || catalogs.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        lastAccessTimes.entrySet().removeIf(entry -> now - entry.getValue() > idleMinutes * 60_000L);
+        catalogs.keySet().removeIf(id -> !lastAccessTimes.containsKey(id));
+
+        for (SourceCatalog catalog : catalogs.values()) {
+            if (now - catalog.getCrawledTime() < refreshMinutes * 60_000L) {
+                continue;
+            }
+            Source source = sourceMapper.getById(catalog.getSourceId());
+            if (null == source) {
+                catalogs.remove(catalog.getSourceId());
+                continue;
+            }
+            crawl(source);
+        }
+    }
+
+    private void onSourceChanged(SourceChanged event) {
+        Long sourceId = event.getEntityId();
+        boolean browsed = null != catalogs.remove(sourceId) || lastAccessTimes.containsKey(sourceId);
+        if (crawling.contains(sourceId)) {
+            stale.add(sourceId);
+            return;
+        }
+        if (DomainEvent.DELETE.equals(event.getAction())) {
+            lastAccessTimes.remove(sourceId);
+            return;
+        }
+        if (browsed) {
+            Source source = sourceMapper.getById(sourceId);
+            if (null != source) {
+                crawl(source);
+            }
+        }
+    }
+
+    private void doCrawl(Source source) throws InterruptedException {
+        long before = System.currentTimeMillis();
+        SqlUtils sqlUtils = this.sqlUtils.init(source);
+        SourceCatalog previous = catalogs.get(source.getId());
+
+        Map<String, List<QueryColumn>> tables = new LinkedHashMap<>();
+        List<String> dbs = sqlUtils.getDatabases();
+        int tableCount = 0;
+        if (!CollectionUtils.isEmpty(dbs)) {
+            for (String db : dbs) {
+                List<QueryColumn> tableList = sqlUtils.getTableList(db);
+                tables.put(db, null == tableList ? new ArrayList<>() : tableList);
+                tableCount += tables.get(db).size();
+            }
+        }
+
+        Map<String, TableInfo> tableInfos = new ConcurrentHashMap<>();
+        Map<String, Long> tableInfoTimes = new ConcurrentHashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        long columnExpireTime = before - columnTtlMinutes * 60_000L;
+        int reused = 0;
+
+        for (Map.Entry<String, List<QueryColumn>> entry : tables.entrySet()) {
+            String db = entry.getKey();
+            for (QueryColumn table : entry.getValue()) {
+                String key = SourceCatalog.getKey(db, table.getName());
+                Long crawledTime = null == previous ? null : previous.getTableInfoTimes().get(key);
+                if (null != crawledTime && crawledTime > columnExpireTime) {
+                    tableInfos.put(key, previous.getTableInfos().get(key));
+                    tableInfoTimes.put(key, crawledTime);
+                    reused++;
+                    continue;
+                }
+                // 表过多时只保留表列表，列在打开表时再实时获取
+                if (futures.size() + reused >= maxTables) {
+                    continue;
+                }
+                futures.add(columnWorkers.submit(() -> {
+                    TableInfo tableInfo = sqlUtils.getTableInfo(db, table.getName());
+                    if (null != tableInfo) {
+                        tableInfos.put(key, tableInfo);
+                        tableInfoTimes.put(key, System.currentTimeMillis());
+                    }
+                }));
+            }
+        }
+
+        int failed = 0;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+
+        if (stale.contains(source.getId())) {
+            return;
+        }
+
+        long version = null == previous ? 1L : previous.getVersion() + 1L;
+        catalogs.put(source.getId(), new SourceCatalog(source.getId(), version, tables, tableInfos, tableInfoTimes));
+        log.info("Source({}) catalog v{} crawled in {} ms, databases:{}, tables:{}, columns crawled:{}, reused:{}, failed:{}",
+                source.getId(), version, System.currentTimeMillis() - before, tables.size(), tableCount,
+                futures.size() - failed, reused, failed);
+    }
+}
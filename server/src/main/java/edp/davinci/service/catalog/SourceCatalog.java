@@ -0,0 +1,145 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.catalog;
+
+import edp.core.model.QueryColumn;
+import edp.core.model.TableInfo;
+import edp.davinci.dto.sourceDto.CatalogEntry;
+import lombok.Getter;
+
+import java.util.*;
+
+import static edp.core.consts.Consts.DOT;
+
+/**
+ * 数据源目录的一个版本，爬取完成后整体替换，不再修改
+ */
+@Getter
+public class SourceCatalog {
+
+    private final Long sourceId;
+
+    private final long version;
+
+    private final long crawledTime;
+
+    /**
+     * 库名 -> 表列表，按数据源返回的顺序
+     */
+    private final Map<String, List<QueryColumn>> tables;
+
+    /**
+     * 库名.表名 -> 表结构
+     */
+    private final Map<String, TableInfo> tableInfos;
+
+    /**
+     * 库名.表名 -> 表结构的爬取时间
+     */
+    private final Map<String, Long> tableInfoTimes;
+
+    SourceCatalog(Long sourceId, long version, Map<String, List<QueryColumn>> tables,
+                  Map<String, TableInfo> tableInfos, Map<String, Long> tableInfoTimes) {
+        this.sourceId = sourceId;
+        this.version = version;
+        this.crawledTime = System.currentTimeMillis();
+        this.tables = Collections.unmodifiableMap(tables);
+        this.tableInfos = Collections.unmodifiableMap(tableInfos);
+        this.tableInfoTimes = Collections.unmodifiableMap(tableInfoTimes);
+    }
+
+    public List<String> getDatabases() {
+        return new ArrayList<>(tables.keySet());
+    }
+
+    /**
+     * 库中的表，目录中不存在该库时返回null
+     *
+     * @param dbName
+     * @return
+     */
+    public List<QueryColumn> getTables(String dbName) {
+        List<QueryColumn> list = tables.get(dbName);
+        return null == list ? null : new ArrayList<>(list);
+    }
+
+    /**
+     * 表结构副本，未爬取时返回null
+     *
+     * @param dbName
+     * @param tableName
+     * @return
+     */
+    public TableInfo getTableInfo(String dbName, String tableName) {
+        TableInfo tableInfo = tableInfos.get(getKey(dbName, tableName));
+        if (null == tableInfo) {
+            return null;
+        }
+        return new TableInfo(tableInfo.getTableName(), new ArrayList<>(tableInfo.getPrimaryKeys()), new ArrayList<>(tableInfo.getColumns()));
+    }
+
+    /**
+     * 按名称搜索表与列，忽略大小写，表优先
+     *
+     * @param keyword
+     * @param limit
+     * @return
+     */
+    public List<CatalogEntry> search(String keyword, int limit) {
+        String lowerKeyword = keyword.trim().toLowerCase();
+        List<CatalogEntry> tableEntries = new ArrayList<>();
+        List<CatalogEntry> columnEntries = new ArrayList<>();
+        for (Map.Entry<String, List<QueryColumn>> entry : tables.entrySet()) {
+            String dbName = entry.getKey();
+            for (QueryColumn table : entry.getValue()) {
+                if (tableEntries.size() < limit && table.getName().toLowerCase().contains(lowerKeyword)) {
+                    tableEntries.add(new CatalogEntry(dbName, table.getName(), null, table.getType()));
+                }
+                TableInfo tableInfo = tableInfos.get(getKey(dbName, table.getName()));
+                if (null == tableInfo || null == tableInfo.getColumns() || columnEntries.size() >= limit) {
+                    continue;
+                }
+                for (QueryColumn column : tableInfo.getColumns()) {
+                    if (columnEntries.size() < limit && column.getName().toLowerCase().contains(lowerKeyword)) {
+                        columnEntries.add(new CatalogEntry(dbName, table.getName(), column.getName(), column.getType()));
+                    }
+                }
+            }
+        }
+
+        List<CatalogEntry> list = new ArrayList<>(tableEntries);
+        for (CatalogEntry columnEntry : columnEntries) {
+            if (list.size() >= limit) {
+                break;
+            }
+            list.add(columnEntry);
+        }
+        return list;
+    }
+
+    public int getTableCount() {
+        return tables.values().stream().mapToInt(List::size).sum();
+    }
+
+    static String getKey(String dbName, String tableName) {
+        return dbName + DOT + tableName;
+    }
+}
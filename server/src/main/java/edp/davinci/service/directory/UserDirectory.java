@@ -0,0 +1,392 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.directory;
+
+import com.alibaba.druid.util.StringUtils;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.davinci.dao.RelUserOrganizationMapper;
+import edp.davinci.dao.UserMapper;
+import edp.davinci.dto.userDto.UserBaseInfo;
+import edp.davinci.model.RelUserOrganization;
+import edp.davinci.model.User;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 用户目录索引
+ * <p>
+ * 对 username、name、email 建立三元组倒排索引，并按组织记录成员，
+ * 成员选择器的关键字搜索不再扫描 user 表。索引启动后在后台全量构建，
+ * 之后由用户与组织成员变更在事务提交后增量维护，并定期全量重建以同步其他节点的变更
+ */
+@Slf4j
+@Component
+public class UserDirectory {
+
+    private static final int GRAM = 3;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private RelUserOrganizationMapper relUserOrganizationMapper;
+
+    @Value("${user-directory.enable:true}")
+    private boolean enable;
+
+    @Value("${user-directory.max-results:50}")
+    private int maxResults;
+
+    @Value("${user-directory.rebuild-interval-seconds:600}")
+    private long rebuildIntervalSeconds;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private Index index;
+
+    /**
+     * 重建期间的增量变更，新索引替换前重放
+     */
+    private List<Consumer<Index>> journal;
+
+    private ScheduledExecutorService rebuilder;
+
+    @PostConstruct
+    public void init() {
+        if (!enable) {
+            return;
+        }
+        rebuilder = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("User-directory-%d").setDaemon(true).build());
+        rebuilder.scheduleWithFixedDelay(this::rebuild, 0, Math.max(rebuildIntervalSeconds, 60), TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (null != rebuilder) {
+            rebuilder.shutdownNow();
+        }
+    }
+
+    /**
+     * 关键字搜索用户，索引未就绪时返回null
+     *
+     * @param keyword
+     * @param orgId
+     * @param excludeUserId
+     * @return
+     */
+    public List<UserBaseInfo> search(String keyword, Long orgId, Long excludeUserId) {
+        lock.readLock().lock();
+        try {
+            if (null == index) {
+                return null;
+            }
+            return index.search(null == keyword ? "" : keyword.toLowerCase(), null != orgId && orgId > 0 ? orgId : null,
+                    excludeUserId, Math.max(maxResults, 1));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void onUserSaved(User user) {
+        if (null == user || null == user.getId()) {
+            return;
+        }
+        Entry entry = new Entry(user);
+        apply(index -> index.put(entry));
+    }
+
+    public void onMemberJoined(Long orgId, Long userId) {
+        apply(index -> index.join(orgId, userId));
+    }
+
+    public void onMemberLeft(Long orgId, Long userId) {
+        apply(index -> index.leave(orgId, userId));
+    }
+
+    public void onOrganizationDeleted(Long orgId) {
+        apply(index -> index.dropOrganization(orgId));
+    }
+
+    private void apply(Consumer<Index> mutation) {
+        if (!enable) {
+            return;
+        }
+
+        Runnable runnable = () -> {
+            lock.writeLock().lock();
+            try {
+                if (null != index) {
+                    mutation.accept(index);
+                }
+                if (null != journal) {
+                    journal.add(mutation);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        };
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
+        }
+    }
+
+    private void rebuild() {
+        long before = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            journal = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            Index rebuilt = new Index();
+            List<User> users = userMapper.getDirectoryUsers();
+            users.forEach(user -> rebuilt.put(new Entry(user)));
+            List<RelUserOrganization> rels = relUserOrganizationMapper.getDirectoryRels();
+            rels.forEach(rel -> rebuilt.join(rel.getOrgId(), rel.getUserId()));
+
+            lock.writeLock().lock();
+            try {
+                journal.forEach(mutation -> mutation.accept(rebuilt));
+                index = rebuilt;
+            } finally {
+                journal = null;
+                lock.writeLock().unlock();
+            }
+            log.info("User directory rebuilt in {} ms, users:{}, memberships:{}", System.currentTimeMillis() - before,
+                    users.size(), rels.size());
+        } catch (Throwable e) {
+            lock.writeLock().lock();
+            try {
+                journal = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.error("User directory rebuild error:{}", e.getMessage());
+        }
+    }
+
+    private static Set<String> grams(String key) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            grams.add(key.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+
+    private static class Entry {
+        private final long id;
+        private final String username;
+        private final String name;
+        private final String email;
+        private final String avatar;
+        private final String[] keys;
+
+        private Entry(User user) {
+            this.id = user.getId();
+            this.username = user.getUsername();
+            this.name = user.getName();
+            this.email = user.getEmail();
+            this.avatar = user.getAvatar();
+            List<String> keys = new ArrayList<>(3);
+            for (String key : new String[]{username, name, email}) {
+                if (!StringUtils.isEmpty(key)) {
+                    keys.add(key.toLowerCase());
+                }
+            }
+            this.keys = keys.toArray(new String[0]);
+        }
+
+        /**
+         * 匹配程度，完全相同为0，前缀为1，包含为2，不匹配为-1
+         */
+        private int match(String keyword) {
+            int score = -1;
+            for (String key : keys) {
+                if (key.equals(keyword)) {
+                    return 0;
+                }
+                if (key.startsWith(keyword)) {
+                    score = 1;
+                } else if (score < 0 && key.contains(keyword)) {
+                    score = 2;
+                }
+            }
+            return score;
+        }
+
+        private String getDisplayName() {
+            return StringUtils.isEmpty(name) ? username : name;
+        }
+
+        private UserBaseInfo toBaseInfo() {
+            UserBaseInfo info = new UserBaseInfo();
+            info.setId(id);
+            info.setUsername(getDisplayName());
+            info.setEmail(email);
+            info.setAvatar(avatar);
+            return info;
+        }
+    }
+
+    private static class Index {
+        private final Map<Long, Entry> users = new HashMap<>();
+        private final Map<String, PostingList> grams = new HashMap<>();
+        private final Map<Long, PostingList> organizations = new HashMap<>();
+
+        private void put(Entry entry) {
+            Entry old = users.put(entry.id, entry);
+            if (null != old) {
+                for (String key : old.keys) {
+                    for (String gram : grams(key)) {
+                        PostingList postings = this.grams.get(gram);
+                        if (null != postings) {
+                            postings.remove(old.id);
+                            if (postings.size() == 0) {
+                                this.grams.remove(gram);
+                            }
+                        }
+                    }
+                }
+            }
+            for (String key : entry.keys) {
+                for (String gram : grams(key)) {
+                    this.grams.computeIfAbsent(gram, g -> new PostingList()).add(entry.id);
+                }
+            }
+        }
+
+        private void join(Long orgId, Long userId) {
+            if (null != orgId && null != userId) {
+                organizations.computeIfAbsent(orgId, id -> new PostingList()).add(userId);
+            }
+        }
+
+        private void leave(Long orgId, Long userId) {
+            PostingList members = null == orgId ? null : organizations.get(orgId);
+            if (null != members && null != userId) {
+                members.remove(userId);
+            }
+        }
+
+        private void dropOrganization(Long orgId) {
+            organizations.remove(orgId);
+        }
+
+        /**
+         * 取候选集最小的倒排列表或组织成员列表逐个校验，按匹配程度保留前limit个
+         */
+        private List<UserBaseInfo> search(String keyword, Long orgId, Long excludeUserId, int limit) {
+            PostingList members = null;
+            if (null != orgId) {
+                members = organizations.get(orgId);
+                if (null == members) {
+                    return new ArrayList<>();
+                }
+            }
+
+            PostingList candidates = members;
+            if (keyword.length() >= GRAM) {
+                for (String gram : grams(keyword)) {
+                    PostingList postings = this.grams.get(gram);
+                    if (null == postings) {
+                        return new ArrayList<>();
+                    }
+                    if (null == candidates || postings.size() < candidates.size()) {
+                        candidates = postings;
+                    }
+                }
+            }
+
+            Comparator<Match> comparator = Comparator.<Match>comparingInt(m -> m.score)
+                    .thenComparingInt(m -> m.entry.getDisplayName().length())
+                    .thenComparingLong(m -> m.entry.id);
+            PriorityQueue<Match> top = new PriorityQueue<>(limit + 1, comparator.reversed());
+
+            if (null == candidates) {
+                for (Entry entry : users.values()) {
+                    offer(top, limit, entry, keyword, members, excludeUserId);
+                }
+            } else {
+                for (int i = 0; i < candidates.size(); i++) {
+                    offer(top, limit, users.get(candidates.get(i)), keyword, members, excludeUserId);
+                }
+            }
+
+            List<Match> matches = new ArrayList<>(top);
+            matches.sort(comparator);
+            List<UserBaseInfo> list = new ArrayList<>(matches.size());
+            matches.forEach(match -> list.add(match.entry.toBaseInfo()));
+            return list;
+        }
+
+        private void offer(PriorityQueue<Match> top, int limit, Entry entry, String keyword, PostingList members, Long excludeUserId) {
+            if (null == entry || (null != excludeUserId && excludeUserId == entry.id)) {
+                return;
+            }
+            if (null != members && !members.contains(entry.id)) {
+                return;
+            }
+            int score = entry.match(keyword);
+            if (score < 0) {
+                return;
+            }
+            top.offer(new Match(entry, score));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+    }
+
+    private static class Match {
+        private final Entry entry;
+        private final int score;
+
+        private Match(Entry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+}
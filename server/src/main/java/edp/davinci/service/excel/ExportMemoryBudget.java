@@ -0,0 +1,105 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.excel;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同步导出的全局额度
+ * <p>
+ * 按预估内存占用（KB）占用额度，额度不足时由调用方转为异步下载；
+ * SXSSF 每个sheet只在内存中保留 {@link #ROW_ACCESS_WINDOW} 行，其余行写入临时文件。
+ * 逐行读取结果集的数据源只按窗口内的行计算；其他驱动（如 PostgreSQL、Oracle）会在堆中缓存结果，按结果行数上限计算
+ */
+@Slf4j
+@Component
+public class ExportMemoryBudget {
+
+    /**
+     * SXSSFWorkbook 在内存中保留的行数
+     */
+    public static final int ROW_ACCESS_WINDOW = 1000;
+
+    @Value("${source.export.memory-budget-mb:256}")
+    private int budgetMb;
+
+    @Value("${source.export.bytes-per-cell:64}")
+    private int bytesPerCell;
+
+    @Value("${source.export.wait-seconds:5}")
+    private long waitSeconds;
+
+    private int totalKb;
+
+    private Semaphore semaphore;
+
+    @PostConstruct
+    public void init() {
+        totalKb = Math.max(budgetMb, 1) * 1024;
+        semaphore = new Semaphore(totalKb, true);
+    }
+
+    /**
+     * 预估一个sheet导出时的内存占用，单位KB
+     *
+     * @param rows     结果行数上限
+     * @param columns
+     * @param streamed 结果集是否逐行从数据库读取
+     * @return
+     */
+    public int estimate(long rows, int columns, boolean streamed) {
+        long windowRows = Math.min(rows, ROW_ACCESS_WINDOW);
+        long heapRows = streamed ? windowRows : rows + windowRows;
+        long kb = heapRows * Math.max(columns, 1) * Math.max(bytesPerCell, 1) / 1024L;
+        return (int) Math.max(1L, Math.min(kb, Integer.MAX_VALUE));
+    }
+
+    /**
+     * 申请额度，超出总额度或等待超时返回false
+     *
+     * @param kb
+     * @return
+     */
+    public boolean tryAcquire(int kb) {
+        if (kb > totalKb) {
+            return false;
+        }
+        try {
+            return semaphore.tryAcquire(kb, waitSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void release(int kb) {
+        semaphore.release(kb);
+    }
+
+    public int getAvailableKb() {
+        return semaphore.availablePermits();
+    }
+}
@@ -21,11 +21,15 @@ package edp.davinci.service.excel;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Maps;
+import edp.core.common.audit.QueryAuditEntry;
+import edp.core.common.audit.QueryAuditor;
 import edp.core.enums.DataTypeEnum;
 import edp.core.model.QueryColumn;
 import edp.core.utils.CollectionUtils;
 import edp.core.utils.MD5Util;
+import edp.core.utils.QueryAnalysis;
 import edp.core.utils.SqlUtils;
+import edp.davinci.core.config.SpringContextHolder;
 import edp.davinci.core.enums.ActionEnum;
 import edp.davinci.core.utils.SqlParseUtils;
 import edp.davinci.dto.cronJobDto.MsgMailExcel;
@@ -73,7 +77,7 @@ public class SheetWorker<T> extends AbstractSheetWriter implements Callable {
             SqlUtils utils = context.getSqlUtils();
             JdbcTemplate template = utils.jdbcTemplate();
             propertiesSet(template);
-            buildQueryColumn(template);
+            buildQueryColumn(utils, template);
             super.init(context);
             super.writeHeader(context);
             template.setMaxRows(context.getResultLimit() > 0 && context.getResultLimit() <= maxRows ? context.getResultLimit() : maxRows);
@@ -86,25 +90,34 @@ public class SheetWorker<T> extends AbstractSheetWriter implements Callable {
             String sql = context.getQuerySql().get(context.getQuerySql().size() - 1);
             sql = SqlParseUtils.rebuildSqlWithFragment(sql);
             md5 = MD5Util.getMD5(sql, true, 16);
-            Set<String> queryFromsAndJoins = SqlUtils.getQueryFromsAndJoins(sql);
+            QueryAnalysis analysis = QueryAnalysis.of(sql);
             if (log) {
                 logger.info("Task({}) sheet worker(name:{}, sheetNo:{}, sheetName:{}) query start sql:{}, md5:{}",
-                        context.getTaskKey(), context.getName(), context.getSheetNo(), context.getSheet().getSheetName(), SqlUtils.formatSql(sql), md5);
+                        context.getTaskKey(), context.getName(), context.getSheetNo(), context.getSheet().getSheetName(), sql, md5);
             }
 
             final AtomicInteger count = new AtomicInteger(0);
+            final QueryAnalysis.ColumnMapping[] mapping = new QueryAnalysis.ColumnMapping[1];
+            long before = System.currentTimeMillis();
             template.query(sql, rs -> {
 
                 interrupted(context);
 
+                // 列映射在首行计算一次，之后按下标取值
+                if (null == mapping[0]) {
+                    mapping[0] = analysis.getColumnMapping(rs.getMetaData());
+                }
                 Map<String, Object> dataMap = Maps.newHashMap();
-                for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-                    dataMap.put(SqlUtils.getColumnLabel(queryFromsAndJoins, rs.getMetaData().getColumnLabel(i)), rs.getObject(rs.getMetaData().getColumnLabel(i)));
+                for (int i = 0; i < mapping[0].size(); i++) {
+                    dataMap.put(mapping[0].getKey(i), rs.getObject(mapping[0].getValueIndex(i)));
                 }
                 writeLine(context, dataMap);
                 count.incrementAndGet();
             });
 
+            ((QueryAuditor) SpringContextHolder.getBean(QueryAuditor.class))
+                    .submit(QueryAuditEntry.of(QueryAuditEntry.EXPORT, sql, before, count.get(), 0));
+
             if (log) {
                 logger.info("Task({}) sheet worker(name:{}, sheetNo:{}, sheetName:{}) query finish md5:{}, count:{}",
                         context.getTaskKey(), context.getName(), context.getSheetNo(), context.getSheet().getSheetName(), md5, count.get());
@@ -161,31 +174,47 @@ public class SheetWorker<T> extends AbstractSheetWriter implements Callable {
         });
     }
 
-    private void buildQueryColumn(JdbcTemplate template) {
+    private void buildQueryColumn(SqlUtils utils, JdbcTemplate template) {
+        String querySql = SqlParseUtils.rebuildSqlWithFragment(context.getQuerySql().get(context.getQuerySql().size() - 1));
+
+        // 优先复用同一查询最近一次取数得到的列，避免再次探测数据源
+        List<QueryColumn> cachedColumns = utils.getCachedQueryColumns(querySql);
+        if (!CollectionUtils.isEmpty(cachedColumns)) {
+            setQueryColumns(cachedColumns);
+            return;
+        }
+
         template.setMaxRows(1);
         String sql = context.getQuerySql().get(context.getQuerySql().size() - 1);
         sql = String.format(QUERY_META_SQL, sql);
         sql = SqlParseUtils.rebuildSqlWithFragment(sql);
-        Set<String> queryFromsAndJoins = SqlUtils.getQueryFromsAndJoins(sql);
+        QueryAnalysis analysis = QueryAnalysis.of(sql);
         template.query(sql, rs -> {
             ResultSetMetaData metaData = rs.getMetaData();
+            QueryAnalysis.ColumnMapping mapping = analysis.getColumnMapping(metaData);
             List<QueryColumn> totalColumns = new ArrayList<>();
-            List<QueryColumn> queryColumns = new ArrayList<>();
-            for (int i = 1; i <= metaData.getColumnCount(); i++) {
-                String label = SqlUtils.getColumnLabel(queryFromsAndJoins, metaData.getColumnLabel(i));
-                totalColumns.add(new QueryColumn(label, metaData.getColumnTypeName(i)));
-                if (!CollectionUtils.isEmpty(context.getExcludeColumns()) && context.getExcludeColumns().contains(label)) {
-                    continue;
-                }
-                queryColumns.add(new QueryColumn(label, metaData.getColumnTypeName(i)));
+            for (int i = 0; i < mapping.size(); i++) {
+                totalColumns.add(new QueryColumn(mapping.getKey(i), metaData.getColumnTypeName(i + 1)));
             }
-            if (CollectionUtils.isEmpty(totalColumns) || CollectionUtils.isEmpty(queryColumns)) {
-                throw new IllegalArgumentException("Can not find any query column, widgetId=" + context.getWidgetId()
-                        + ", sql=" + context.getQuerySql().get(context.getQuerySql().size() - 1));
-            }
-            context.setTotalColumns(totalColumns);
-            context.setQueryColumns(queryColumns);
+            setQueryColumns(totalColumns);
+            utils.cacheQueryColumns(querySql, totalColumns);
             return context;
         });
     }
+
+    private void setQueryColumns(List<QueryColumn> totalColumns) {
+        List<QueryColumn> queryColumns = new ArrayList<>();
+        for (QueryColumn column : totalColumns) {
+            if (!CollectionUtils.isEmpty(context.getExcludeColumns()) && context.getExcludeColumns().contains(column.getName())) {
+                continue;
+            }
+            queryColumns.add(column);
+        }
+        if (CollectionUtils.isEmpty(totalColumns) || CollectionUtils.isEmpty(queryColumns)) {
+            throw new IllegalArgumentException("Can not find any query column, widgetId=" + context.getWidgetId()
+                    + ", sql=" + context.getQuerySql().get(context.getQuerySql().size() - 1));
+        }
+        context.setTotalColumns(totalColumns);
+        context.setQueryColumns(queryColumns);
+    }
 }
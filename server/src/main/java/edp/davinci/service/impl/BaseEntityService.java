@@ -21,6 +21,8 @@ package edp.davinci.service.impl;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import edp.core.consts.Consts;
 import edp.core.exception.ServerException;
@@ -50,8 +52,20 @@ public abstract class BaseEntityService {
 	}
 
 	protected void releaseLock(BaseLock lock) {
-		// workaround for very high concurrency
-		// do nothing, wait for the service layer transaction to commit
+		if (null == lock) {
+			return;
+		}
+		// 名称唯一性检查依赖已提交的数据，事务结束后再释放
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					lock.release();
+				}
+			});
+		} else {
+			lock.release();
+		}
 	}
 
 	protected void alertNameTaken(CheckEntityEnum entity, String name) throws ServerException {
@@ -8,9 +8,11 @@ import edp.davinci.dao.DashboardMapper;
 import edp.davinci.dao.DisplaySlideMapper;
 import edp.davinci.dto.cronJobDto.CronJobConfig;
 import edp.davinci.dto.cronJobDto.CronJobContent;
+import edp.davinci.dto.cronJobDto.ExcelContent;
 import edp.davinci.dto.dashboardDto.DashboardTree;
 import edp.davinci.model.Dashboard;
 import edp.davinci.model.DisplaySlide;
+import edp.davinci.schedule.ScheduleRenderCache;
 import edp.davinci.service.ShareService;
 import edp.davinci.service.screenshot.ImageContent;
 import edp.davinci.service.screenshot.ScreenshotUtil;
@@ -24,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static edp.core.consts.Consts.AT_SYMBOL;
@@ -48,6 +51,9 @@ public class BaseScheduleService {
     @Autowired
     private ServerUtils serverUtils;
 
+    @Autowired
+    protected ScheduleRenderCache renderCache;
+
     protected static final Logger scheduleLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_SCHEDULE.getName());
 
     protected static final String PORTAL = "PORTAL";
@@ -95,15 +101,13 @@ public class BaseScheduleService {
                     if (CollectionUtils.isEmpty(cronJobContent.getItems())) {
                         int finalOrder = order;
                         slidePageMap.forEach((slide, page) -> {
-                            String url = getContentUrl(userId, cronJobContent.getContentType(), cronJobContent.getId(), page);
-                            imageContents.add(new ImageContent(finalOrder + page, cronJobContent.getId(), cronJobContent.getContentType(), url));
+                            imageContents.add(buildImageContent(finalOrder + page, cronJobContent, userId, page, cronJobConfig.getImageWidth()));
                         });
                     } else {
                         for (Long slideId : cronJobContent.getItems()) {
                             if (slidePageMap.containsKey(slideId)) {
                                 int page = slidePageMap.get(slideId);
-                                String url = getContentUrl(userId, cronJobContent.getContentType(), cronJobContent.getId(), page);
-                                imageContents.add(new ImageContent(order + page, cronJobContent.getId(), cronJobContent.getContentType(), url));
+                                imageContents.add(buildImageContent(order + page, cronJobContent, userId, page, cronJobConfig.getImageWidth()));
                             }
                         }
                     }
@@ -112,19 +116,63 @@ public class BaseScheduleService {
                 if (vizOrderMap.containsKey(DASHBOARD + AT_SYMBOL + cronJobContent.getId())) {
                     order = vizOrderMap.get(DASHBOARD + AT_SYMBOL + cronJobContent.getId());
                 }
-                String url = getContentUrl(userId, cronJobContent.getContentType(), cronJobContent.getId(), -1);
-                imageContents.add(new ImageContent(order, cronJobContent.getId(), cronJobContent.getContentType(), url));
+                imageContents.add(buildImageContent(order, cronJobContent, userId, -1, cronJobConfig.getImageWidth()));
             }
         }
 
         if (!CollectionUtils.isEmpty(imageContents)) {
-            screenshotUtil.screenshot(jobId, imageContents, cronJobConfig.getImageWidth());
+            // 其他任务正在生成或已生成的相同内容直接复用
+            List<ImageContent> renderContents = new ArrayList<>();
+            List<ImageContent> sharedContents = new ArrayList<>();
+            for (ImageContent imageContent : imageContents) {
+                if (renderCache.reference(imageContent.getRenderKey())) {
+                    renderContents.add(imageContent);
+                } else {
+                    sharedContents.add(imageContent);
+                }
+            }
+
+            if (!CollectionUtils.isEmpty(renderContents)) {
+                try {
+                    screenshotUtil.screenshot(jobId, renderContents, cronJobConfig.getImageWidth());
+                } finally {
+                    renderContents.forEach(content -> renderCache.complete(content.getRenderKey(), content.getImageFile()));
+                }
+            }
+
+            for (ImageContent imageContent : sharedContents) {
+                imageContent.setContent(renderCache.get(imageContent.getRenderKey(), 1, TimeUnit.HOURS));
+            }
+
+            imageContents.sort(Comparator.comparing(ImageContent::getOrder));
         }
 
         scheduleLogger.info("CronJob({}) fetched images contents, count:{}", jobId, imageContents.size());
         return imageContents;
     }
 
+    /**
+     * 释放任务引用的渲染内容
+     *
+     * @param images
+     * @param excels
+     */
+    protected void releaseRenderContents(List<ImageContent> images, List<ExcelContent> excels) {
+        if (!CollectionUtils.isEmpty(images)) {
+            images.forEach(image -> renderCache.release(image.getRenderKey()));
+        }
+        if (!CollectionUtils.isEmpty(excels)) {
+            excels.forEach(excel -> renderCache.release(excel.getRenderKey()));
+        }
+    }
+
+    private ImageContent buildImageContent(int order, CronJobContent cronJobContent, Long userId, int page, Integer imageWidth) {
+        String url = getContentUrl(userId, cronJobContent.getContentType(), cronJobContent.getId(), page);
+        ImageContent imageContent = new ImageContent(order, cronJobContent.getId(), cronJobContent.getContentType(), url);
+        imageContent.setRenderKey(renderCache.getKey(cronJobContent.getContentType(), cronJobContent.getId(), userId, page, imageWidth));
+        return imageContent;
+    }
+
     protected List<CronJobContent> getCronJobContents(CronJobConfig cronJobConfig, Map<String, Integer> orderMap,
                                                     Map<Long, Map<Long, Integer>> displayPageMap) {
         List<CronJobContent> jobContentList = new ArrayList<>();
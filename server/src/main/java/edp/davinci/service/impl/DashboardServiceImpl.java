@@ -30,6 +30,9 @@ import edp.davinci.core.enums.CheckEntityEnum;
 import edp.davinci.core.enums.LogNameEnum;
 import edp.davinci.core.enums.UserPermissionEnum;
 import edp.davinci.core.enums.VizEnum;
+import edp.davinci.core.event.DashboardChanged;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
 import edp.davinci.dao.MemDashboardWidgetMapper;
 import edp.davinci.dao.RelRoleDashboardWidgetMapper;
 import edp.davinci.dao.ViewMapper;
@@ -42,6 +45,7 @@ import edp.davinci.dto.viewDto.SimpleView;
 import edp.davinci.model.*;
 import edp.davinci.service.DashboardService;
 import edp.davinci.service.ShareService;
+import edp.davinci.service.prefetch.DashboardPrefetcher;
 import edp.davinci.service.share.ShareFactor;
 import edp.davinci.service.share.ShareResult;
 import edp.davinci.service.share.ShareType;
@@ -70,6 +74,9 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
     @Autowired
     private MemDashboardWidgetMapper memDashboardWidgetMapper;
 
+    @Autowired
+    private DomainEventBus domainEventBus;
+
     @Autowired
     private ViewMapper viewMapper;
 
@@ -79,6 +86,9 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
     @Autowired
     private ShareService shareService;
 
+    @Autowired
+    private DashboardPrefetcher dashboardPrefetcher;
+
     @Autowired
     private String TOKEN_SECRET;
 
@@ -207,8 +217,10 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
         }
 
         // widget controller views
+        Map<Long, Widget> widgetMap = new HashMap<>();
         memDashboardWidgets.forEach(mw -> {
-            Map<String, Object> widgetConfigMap = JSON.parseObject(widgetMapper.getById(mw.getWidgetId()).getConfig(), Map.class);
+            Widget widget = widgetMap.computeIfAbsent(mw.getWidgetId(), widgetMapper::getById);
+            Map<String, Object> widgetConfigMap = JSON.parseObject(widget.getConfig(), Map.class);
             if (!CollectionUtils.isEmpty(widgetConfigMap)) {
                 setControllerViews(simpleViews, (List<Map<String, Object>>)widgetConfigMap.get("controls"));
             }
@@ -219,6 +231,8 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
         dashboardWithMem.setRelations(memDashboardWidgets);
         dashboardWithMem.setViews(simpleViews);
 
+        dashboardPrefetcher.prefetch(dashboard, memDashboardWidgets, widgetMap, simpleViews, user);
+
         return dashboardWithMem;
     }
 
@@ -363,6 +377,7 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
         if (dashboardMapper.updateBatch(dashboardList) > 0) {
 
             optLogger.info("Dashboard({}) is update by user({}), origin:{}", dashboardList.toString(), user.getId(), dashboards);
+            dashboardList.forEach(d -> domainEventBus.publish(new DashboardChanged(d.getId(), projectId, DomainEvent.UPDATE)));
 
             Set<Long> emptyRelDashboardId = new HashSet<>();
             List<RelRoleDashboard> relList = new ArrayList<>();
@@ -444,6 +459,7 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
             memDashboardWidgetMapper.deleteByDashboardId(deletingDashboard.getId());
             relRoleDashboardMapper.deleteByDashboardId(deletingDashboard.getId());
             dashboardMapper.deleteById(deletingDashboard.getId());
+            domainEventBus.publish(new DashboardChanged(deletingDashboard.getId(), projectId, DomainEvent.DELETE));
         }
 
         optLogger.info("Dashboard({}) is delete by user({})", JSON.toJSON(deletingDashboards), user.getId());
@@ -553,6 +569,7 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
         }
 
         optLogger.info("MemDashboardWidgets({}) batch insert by user({})", memDashboardWidgetList.toString(), user.getId());
+        domainEventBus.publish(new DashboardChanged(dashboardId, projectId, DomainEvent.UPDATE));
 
         handleRel(memDashboardWidgetList, user, memDashboardWidgetCreates);
 
@@ -615,6 +632,8 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
 
         optLogger.info("MemDashboardWidget({}) is update by user({}), origin:{}", memDashboardWidgetList.toString(),
                 user.getId(), before);
+        memDashboardWidgetList.stream().map(MemDashboardWidget::getDashboardId).distinct()
+                .forEach(id -> domainEventBus.publish(new DashboardChanged(id, projectId, DomainEvent.UPDATE)));
 
         if (!CollectionUtils.isEmpty(rolesMap)) {
             Set<Long> memDashboardWidgetIds = rolesMap.keySet();
@@ -669,6 +688,7 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
         }
 
         optLogger.info("MemDashboardWidget({}) is delete by user({})", dashboardWidget.toString(), user.getId());
+        domainEventBus.publish(new DashboardChanged(dashboardWidget.getDashboardId(), projectId, DomainEvent.UPDATE));
         return true;
     }
 
@@ -786,6 +806,7 @@ public class DashboardServiceImpl extends VizCommonService implements DashboardS
         }
 
         optLogger.info("MemDashboardWidget({}) is update to {}, by user({})", origin, dashboardWidget.toString(), user.getId());
+        domainEventBus.publish(new DashboardChanged(dashboardWidget.getDashboardId(), projectId, DomainEvent.UPDATE));
         return true;
     }
 }
@@ -31,6 +31,9 @@ import edp.davinci.core.enums.CheckEntityEnum;
 import edp.davinci.core.enums.LogNameEnum;
 import edp.davinci.core.enums.UserPermissionEnum;
 import edp.davinci.core.enums.VizEnum;
+import edp.davinci.core.event.DisplayChanged;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
 import edp.davinci.dao.MemDisplaySlideWidgetMapper;
 import edp.davinci.dao.RelRoleDisplaySlideWidgetMapper;
 import edp.davinci.dto.displayDto.DisplayCopy;
@@ -93,6 +96,9 @@ public class DisplayServiceImpl extends VizCommonService implements DisplayServi
     @Autowired
     private String TOKEN_SECRET;
 
+    @Autowired
+    private DomainEventBus domainEventBus;
+
     private static final CheckEntityEnum entity = CheckEntityEnum.DISPLAY;
 
     @Override
@@ -194,6 +200,7 @@ public class DisplayServiceImpl extends VizCommonService implements DisplayServi
         displaySlideMapper.deleteByDisplayId(id);
         relRoleDisplayMapper.deleteByDisplayId(id);
         displayMapper.deleteById(id);
+        domainEventBus.publish(new DisplayChanged(id, projectId, DomainEvent.DELETE));
 
         return true;
     }
@@ -268,6 +275,7 @@ public class DisplayServiceImpl extends VizCommonService implements DisplayServi
             }
 
             optLogger.info("Display({}) is update by user({}), origin:{}", display.toString(), user.getId(), origin);
+            domainEventBus.publish(new DisplayChanged(display.getId(), projectId, DomainEvent.UPDATE));
             if (displayUpdate.getRoleIds() != null) {
                 relRoleDisplayMapper.deleteByDisplayId(display.getId());
                 if (!CollectionUtils.isEmpty(displayUpdate.getRoleIds())) {
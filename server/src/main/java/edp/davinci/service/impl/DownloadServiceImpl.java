@@ -20,6 +20,7 @@
 package edp.davinci.service.impl;
 
 import com.alibaba.druid.util.StringUtils;
+import edp.core.exception.NotFoundException;
 import edp.core.exception.UnAuthorizedException;
 import edp.davinci.core.enums.ActionEnum;
 import edp.davinci.core.enums.DownloadTaskStatus;
@@ -41,8 +42,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 
 /**
@@ -71,6 +71,48 @@ public class DownloadServiceImpl extends DownloadCommonService implements Downlo
 
     @Override
     public DownloadRecord downloadById(Long id, String token) throws UnAuthorizedException {
+        User user = getUser(token);
+
+        DownloadRecord record = downloadRecordMapper.getById(id);
+        if (null == record) {
+            throw new NotFoundException("Download record is not found");
+        }
+
+        if (!record.getUserId().equals(user.getId())) {
+            throw new UnAuthorizedException();
+        }
+
+        markDownloaded(Collections.singletonList(record));
+        return record;
+    }
+
+    @Override
+    public List<DownloadRecord> getDownloadRecords(Long[] ids, String token) throws UnAuthorizedException {
+        User user = getUser(token);
+
+        List<DownloadRecord> records = new ArrayList<>();
+        for (Long id : new LinkedHashSet<>(Arrays.asList(ids))) {
+            DownloadRecord record = null == id ? null : downloadRecordMapper.getById(id);
+            if (null == record || !user.getId().equals(record.getUserId())) {
+                log.warn("Download record({}) is not found for user({}), skipped", id, user.getId());
+                continue;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    @Override
+    public void markDownloaded(List<DownloadRecord> records) {
+        Date now = new Date();
+        for (DownloadRecord record : records) {
+            record.setLastDownloadTime(now);
+            record.setStatus(DownloadTaskStatus.DOWNLOADED.getStatus());
+            downloadRecordMapper.updateById(record);
+        }
+    }
+
+    private User getUser(String token) throws UnAuthorizedException {
         if (StringUtils.isEmpty(token)) {
             throw new UnAuthorizedException();
         }
@@ -84,17 +126,7 @@ public class DownloadServiceImpl extends DownloadCommonService implements Downlo
         if (null == user) {
             throw new UnAuthorizedException();
         }
-
-        DownloadRecord record = downloadRecordMapper.getById(id);
-
-        if (!record.getUserId().equals(user.getId())) {
-            throw new UnAuthorizedException();
-        }
-
-        record.setLastDownloadTime(new Date());
-        record.setStatus(DownloadTaskStatus.DOWNLOADED.getStatus());
-        downloadRecordMapper.updateById(record);
-        return record;
+        return user;
     }
 
     @Override
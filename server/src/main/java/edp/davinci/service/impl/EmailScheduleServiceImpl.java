@@ -21,13 +21,15 @@ package edp.davinci.service.impl;
 
 import com.alibaba.druid.util.StringUtils;
 import com.alibaba.fastjson.JSONObject;
+import edp.core.common.mail.MailQueue;
 import edp.core.common.quartz.ScheduleService;
 import edp.core.enums.MailContentTypeEnum;
 import edp.core.exception.ServerException;
 import edp.core.model.MailAttachment;
 import edp.core.model.MailContent;
 import edp.core.utils.CollectionUtils;
-import edp.core.utils.MailUtils;
+import edp.core.utils.FileUtils;
+import edp.core.utils.StreamingZipWriter;
 import edp.davinci.core.common.Constants;
 import edp.davinci.core.enums.ActionEnum;
 import edp.davinci.core.enums.CronJobMediaType;
@@ -56,6 +58,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
@@ -64,6 +70,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static edp.core.consts.Consts.AT_SYMBOL;
+import static edp.core.consts.Consts.DIR_EMAIL;
 import static edp.core.consts.Consts.EMPTY;
 
 @Service("emailScheduleService")
@@ -75,7 +82,7 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
     private CronJobMapper cronJobMapper;
 
     @Autowired
-    private MailUtils mailUtils;
+    private MailQueue mailQueue;
 
     @Autowired
     private UserMapper userMapper;
@@ -95,9 +102,17 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
     @Autowired
     private ProjectService projectService;
 
+    @Autowired
+    private FileUtils fileUtils;
+
     @Value("${source.result-limit:1000000}")
     private int resultLimit;
 
+    @Value("${cronjob.excel.zip-attachments:false}")
+    private boolean zipAttachments;
+
+    private static final String ZIP_FORMAT = ".zip";
+
     @Override
     public void execute(long jobId) throws Exception {
         CronJob cronJob = cronJobMapper.getById(jobId);
@@ -123,61 +138,94 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
 
         List<ExcelContent> excels = null;
         List<ImageContent> images = null;
+        ExcelArchive archive = null;
 
         User creator = userMapper.getById(cronJob.getCreateBy());
 
-        if (cronJobConfig.getType().equals(CronJobMediaType.IMAGE.getType())) {
-            images = generateImages(jobId, cronJobConfig, creator.getId());
-        }
+        try {
+            if (cronJobConfig.getType().equals(CronJobMediaType.IMAGE.getType())) {
+                images = generateImages(jobId, cronJobConfig, creator.getId());
+            }
 
-        if (cronJobConfig.getType().equals(CronJobMediaType.EXCEL.getType())) {
-			excels = generateExcels(jobId, cronJobConfig, creator);
-        }
+            if (cronJobConfig.getType().equals(CronJobMediaType.EXCEL.getType())) {
+                archive = openArchive(jobId);
+                excels = generateExcels(jobId, cronJobConfig, creator, archive);
+            }
 
-        if (cronJobConfig.getType().equals(CronJobMediaType.IMAGEANDEXCEL.getType())) {
-            images = generateImages(jobId, cronJobConfig, creator.getId());
-            excels = generateExcels(jobId, cronJobConfig, creator);
-        }
+            if (cronJobConfig.getType().equals(CronJobMediaType.IMAGEANDEXCEL.getType())) {
+                images = generateImages(jobId, cronJobConfig, creator.getId());
+                archive = openArchive(jobId);
+                excels = generateExcels(jobId, cronJobConfig, creator, archive);
+            }
 
-        List<MailAttachment> attachmentList = new ArrayList<>();
+            List<MailAttachment> attachmentList = new ArrayList<>();
 
-        if (!CollectionUtils.isEmpty(excels)) {
-            excels.forEach(excel -> attachmentList.add(new MailAttachment(excel.getName() + FileTypeEnum.XLSX.getFormat(), excel.getFile())));
-        }
+            if (!CollectionUtils.isEmpty(excels)) {
+                // 多个workbook合并为一个zip附件，压缩包不完整时退回逐个附件
+                if (null != archive && archive.finish(excels.size()) && excels.size() > 1) {
+                    attachmentList.add(new MailAttachment(cronJob.getName() + ZIP_FORMAT, archive.getFile()));
+                } else {
+                    excels.forEach(excel -> attachmentList.add(new MailAttachment(excel.getName() + FileTypeEnum.XLSX.getFormat(), excel.getFile())));
+                }
+            }
 
-        if (!CollectionUtils.isEmpty(images)) {
-            images.forEach(image -> {
-                String contentId = CronJobMediaType.IMAGE.getType() +
-                        Constants.UNDERLINE +
-                        UUID.randomUUID().toString().replaceAll(Constants.MINUS, EMPTY);
-                attachmentList.add(new MailAttachment(contentId, image.getImageFile(), image.getUrl(), true));
-            });
-        }
+            if (!CollectionUtils.isEmpty(images)) {
+                images.forEach(image -> {
+                    String contentId = CronJobMediaType.IMAGE.getType() +
+                            Constants.UNDERLINE +
+                            UUID.randomUUID().toString().replaceAll(Constants.MINUS, EMPTY);
+                    attachmentList.add(new MailAttachment(contentId, image.getImageFile(), image.getUrl(), true));
+                });
+            }
 
-        if (CollectionUtils.isEmpty(attachmentList)) {
-            scheduleLogger.warn("CronJob({}) email content is empty", jobId);
-            return;
-        }
+            if (CollectionUtils.isEmpty(attachmentList)) {
+                scheduleLogger.warn("CronJob({}) email content is empty", jobId);
+                return;
+            }
 
-        scheduleLogger.info("CronJob({}) is ready to send email", cronJob.getId());
+            scheduleLogger.info("CronJob({}) is ready to send email", cronJob.getId());
 
-        MailContent mailContent = null;
+            MailContent mailContent = null;
+            try {
+                mailContent = MailContent.MailContentBuilder.builder()
+                        .withSubject(cronJobConfig.getSubject())
+                        .withTo(cronJobConfig.getTo())
+                        .withCc(cronJobConfig.getCc())
+                        .withBcc(cronJobConfig.getBcc())
+                        .withMainContent(MailContentTypeEnum.HTML)
+                        .withHtmlContent(cronJobConfig.getContent())
+                        .withTemplate(Constants.SCHEDULE_MAIL_TEMPLATE)
+                        .withAttachments(attachmentList)
+                        .build();
+            } catch (ServerException e) {
+                scheduleLogger.error("CronJob({}) build email content error:{}", jobId, e.getMessage());
+            }
+            mailQueue.submit(mailContent, null);
+            scheduleLogger.info("CronJob({}) is finish! --------------", jobId);
+        } finally {
+            releaseRenderContents(images, excels);
+            if (null != archive) {
+                archive.delete();
+            }
+        }
+    }
+
+    private ExcelArchive openArchive(long jobId) {
+        if (!zipAttachments) {
+            return null;
+        }
+        File dir = new File(fileUtils.fileBasePath + DIR_EMAIL + new SimpleDateFormat("yyyyMMdd").format(new Date()) + File.separator + "zip");
+        if (!dir.exists() && !dir.mkdirs()) {
+            scheduleLogger.warn("CronJob({}) create zip dir({}) fail", jobId, dir.getPath());
+            return null;
+        }
+        File file = new File(dir, "CronJob_" + jobId + "_" + UUID.randomUUID().toString().replace("-", EMPTY) + ZIP_FORMAT);
         try {
-            mailContent = MailContent.MailContentBuilder.builder()
-                    .withSubject(cronJobConfig.getSubject())
-                    .withTo(cronJobConfig.getTo())
-                    .withCc(cronJobConfig.getCc())
-                    .withBcc(cronJobConfig.getBcc())
-                    .withMainContent(MailContentTypeEnum.HTML)
-                    .withHtmlContent(cronJobConfig.getContent())
-                    .withTemplate(Constants.SCHEDULE_MAIL_TEMPLATE)
-                    .withAttachments(attachmentList)
-                    .build();
-        } catch (ServerException e) {
-            scheduleLogger.error("CronJob({}) build email content error:{}", jobId, e.getMessage());
+            return new ExcelArchive(jobId, file);
+        } catch (IOException e) {
+            scheduleLogger.warn("CronJob({}) open zip({}) error:{}", jobId, file.getPath(), e.getMessage());
+            return null;
         }
-        mailUtils.sendMail(mailContent, null);
-        scheduleLogger.info("CronJob({}) is finish! --------------", jobId);
     }
 
     /**
@@ -188,7 +236,7 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
      * @return
      * @throws Exception
      */
-    private List<ExcelContent> generateExcels(Long jobId, CronJobConfig cronJobConfig, User user) throws Exception {
+    private List<ExcelContent> generateExcels(Long jobId, CronJobConfig cronJobConfig, User user, ExcelArchive archive) throws Exception {
         scheduleLogger.info("CronJob({}) fetching excel contents", jobId);
 
         Map<String, WorkBookContext> workBookContextMap = new HashMap<>();
@@ -196,6 +244,7 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
         Map<String, Integer> vizOrderMap = new HashMap<>();
         Map<Long, Map<Long, Integer>> displayPageMap = new HashMap<>();
         Map<String, Integer> excelEntityOrderMap = new HashMap<>();
+        Map<String, String> renderKeyMap = new HashMap<>();
 
         List<CronJobContent> jobContentList = getCronJobContents(cronJobConfig, vizOrderMap, displayPageMap);
 
@@ -250,6 +299,7 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
                         String workBookName = slidePageSize == 1 ? display.getName() : display.getName() + "(" + page + ")";
                         workBookContextMap.put(workBookName, workBookContext);
                         excelEntityOrderMap.put(workBookName, order + page);
+                        renderKeyMap.put(workBookName, renderCache.getKey(DISPLAY, slideId, user.getId(), FileTypeEnum.XLSX.getType(), resultLimit));
                     }
                 }
             } else {
@@ -287,6 +337,7 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
 
                     workBookContextMap.put(dashboard.getName(), workBookContext);
                     excelEntityOrderMap.put(dashboard.getName(), order);
+                    renderKeyMap.put(dashboard.getName(), renderCache.getKey(DASHBOARD, dashboard.getId(), user.getId(), FileTypeEnum.XLSX.getType(), resultLimit));
                 }
             }
         }
@@ -299,9 +350,17 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
 
         List<ExcelContent> excelContents = new CopyOnWriteArrayList<>();
         Map<String, Future<String>> excelPathFutureMap = new LinkedHashMap<>();
+        List<String> sharedNames = new ArrayList<>();
         int contextSize = workBookContextMap.size();
         final AtomicInteger index = new AtomicInteger(1);
         workBookContextMap.forEach((name, context) -> {
+            String renderKey = renderKeyMap.get(name);
+            if (!renderCache.reference(renderKey)) {
+                // 相同的workbook正在由其他任务生成
+                sharedNames.add(name);
+                index.incrementAndGet();
+                return;
+            }
             scheduleLogger.info("CronJob({}) submit workbook task:{}, thread:{}, total:{}", jobId, name, index, contextSize);
             try {
             	String uuid = UUID.randomUUID().toString().replace("-", EMPTY);
@@ -310,6 +369,7 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
             }catch (Exception e) {
             	scheduleLogger.error("Cronjob({}) submit workbook task error, thread:{}", jobId, index.get());
             	scheduleLogger.error(e.getMessage(), e);
+                renderCache.complete(renderKey, null);
 			}finally {
                 index.incrementAndGet();
 			}
@@ -324,13 +384,102 @@ public class EmailScheduleServiceImpl extends BaseScheduleService implements Sch
             	scheduleLogger.info("CronJob({}) workbook task:{} error", jobId, name);
             	scheduleLogger.error(e.getMessage(), e);
             }
+            String renderKey = renderKeyMap.get(name);
             if (!StringUtils.isEmpty(excelPath)) {
-                excelContents.add(new ExcelContent(excelEntityOrderMap.get(name), name, excelPath));
+                ExcelContent excelContent = new ExcelContent(excelEntityOrderMap.get(name), name, excelPath, renderKey);
+                renderCache.complete(renderKey, excelContent.getFile());
+                excelContents.add(excelContent);
+                if (null != archive) {
+                    archive.add(excelContent);
+                }
+            } else {
+                renderCache.complete(renderKey, null);
             }
         });
 
+        for (String name : sharedNames) {
+            String renderKey = renderKeyMap.get(name);
+            File file = renderCache.get(renderKey, 1, TimeUnit.HOURS);
+            if (file != null) {
+                ExcelContent excelContent = new ExcelContent(excelEntityOrderMap.get(name), name, file.getPath(), renderKey);
+                excelContents.add(excelContent);
+                if (null != archive) {
+                    archive.add(excelContent);
+                }
+                scheduleLogger.info("CronJob({}) workbook:{} shared from render cache", jobId, name);
+            } else {
+                scheduleLogger.warn("CronJob({}) workbook:{} shared render failed", jobId, name);
+            }
+        }
+
         excelContents.sort(Comparator.comparing(ExcelContent::getOrder));
         scheduleLogger.info("CronJob({}) fetched excel contents, count:{}", jobId, excelContents.size());
         return excelContents.isEmpty() ? null : excelContents;
     }
+
+    /**
+     * 邮件的excel压缩包，每个workbook生成后立即写入，与其余workbook的生成并行
+     */
+    private static class ExcelArchive {
+
+        private final long jobId;
+
+        private final File file;
+
+        private final StreamingZipWriter writer;
+
+        private boolean failed = false;
+
+        private boolean closed = false;
+
+        ExcelArchive(long jobId, File file) throws IOException {
+            this.jobId = jobId;
+            this.file = file;
+            this.writer = new StreamingZipWriter(new FileOutputStream(file));
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        void add(ExcelContent excel) {
+            if (failed) {
+                return;
+            }
+            try {
+                writer.addFile(excel.getName() + FileTypeEnum.XLSX.getFormat(), excel.getFile());
+            } catch (IOException e) {
+                failed = true;
+                scheduleLogger.error("CronJob({}) zip workbook:{} error:{}", jobId, excel.getName(), e.getMessage());
+            }
+        }
+
+        /**
+         * 结束写入，全部workbook都已写入时返回true
+         */
+        boolean finish(int expected) {
+            close();
+            return !failed && writer.getEntries() == expected;
+        }
+
+        void delete() {
+            close();
+            if (file.exists() && !file.delete()) {
+                scheduleLogger.warn("CronJob({}) delete zip({}) fail", jobId, file.getPath());
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                failed = true;
+                scheduleLogger.error("CronJob({}) close zip error:{}", jobId, e.getMessage());
+            }
+        }
+    }
 }
@@ -29,6 +29,7 @@ import edp.davinci.model.Organization;
 import edp.davinci.model.RelUserOrganization;
 import edp.davinci.model.User;
 import edp.davinci.service.LdapService;
+import edp.davinci.service.directory.UserDirectory;
 import lombok.extern.slf4j.Slf4j;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -71,6 +72,9 @@ public class LdapServiceImpl implements LdapService {
     @Autowired
     private RelUserOrganizationMapper relUserOrganizationMapper;
 
+    @Autowired
+    private UserDirectory userDirectory;
+
     public boolean existLdapServer() {
         return !StringUtils.isEmpty(ldapUrls);
     }
@@ -131,6 +135,7 @@ public class LdapServiceImpl implements LdapService {
             log.error("Ldap regist fail, email({})", user.getEmail());
             throw new ServerException("Ldap regist fail");
         }
+        userDirectory.onUserSaved(user);
         
         String orgName = user.getUsername() + "'s Organization";
         Organization organization = new Organization(orgName, null, user.getId());
@@ -138,6 +143,7 @@ public class LdapServiceImpl implements LdapService {
             RelUserOrganization relUserOrganization = new RelUserOrganization(organization.getId(), user.getId(), UserOrgRoleEnum.OWNER.getRole());
             relUserOrganization.createdBy(user.getId());
             relUserOrganizationMapper.insert(relUserOrganization);
+            userDirectory.onMemberJoined(organization.getId(), user.getId());
         }
 
         return user;
@@ -20,6 +20,7 @@
 package edp.davinci.service.impl;
 
 import com.alibaba.druid.util.StringUtils;
+import edp.core.common.mail.MailQueue;
 import edp.core.enums.MailContentTypeEnum;
 import edp.core.exception.NotFoundException;
 import edp.core.exception.ServerException;
@@ -39,6 +40,7 @@ import edp.davinci.model.Project;
 import edp.davinci.model.RelUserOrganization;
 import edp.davinci.model.User;
 import edp.davinci.service.OrganizationService;
+import edp.davinci.service.directory.UserDirectory;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +65,9 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
     @Autowired
     private RelUserOrganizationMapper relUserOrganizationMapper;
 
+    @Autowired
+    private UserDirectory userDirectory;
+
     @Autowired
     public OrganizationMapper organizationMapper;
 
@@ -79,7 +84,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
     private TokenUtils tokenUtils;
 
     @Autowired
-    private MailUtils mailUtils;
+    private MailQueue mailQueue;
 
     @Autowired
     private FileUtils fileUtils;
@@ -134,6 +139,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
             RelUserOrganization relUserOrganization = new RelUserOrganization(organization.getId(), user.getId(), UserOrgRoleEnum.OWNER.getRole());
             relUserOrganization.createdBy(user.getId());
             relUserOrganizationMapper.insert(relUserOrganization);
+            userDirectory.onMemberJoined(organization.getId(), user.getId());
 
             OrganizationBaseInfo organizationBaseInfo = new OrganizationBaseInfo();
             BeanUtils.copyProperties(organization, organizationBaseInfo);
@@ -288,6 +294,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
         }
 
         relUserOrganizationMapper.deleteByOrgId(id);
+        userDirectory.onOrganizationDeleted(id);
         roleMapper.deleteByOrg(id);
         organizationMapper.deleteById(id);
 
@@ -435,6 +442,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
                         .map(u -> new RelUserOrganization(orgId, u.getId(), UserOrgRoleEnum.MEMBER.getRole()))
                         .collect(Collectors.toSet());
                 int newMembers = relUserOrganizationMapper.insertBatch(relUserOrgSet);
+                relUserOrgSet.forEach(rel -> userDirectory.onMemberJoined(orgId, rel.getUserId()));
                 if (newMembers > 0) {
                     organization.setMemberNum(organization.getMemberNum() + newMembers);
                     organizationMapper.updateMemberNum(organization);
@@ -511,6 +519,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
         if (relUserOrganizationMapper.insert(rel) <= 0) {
             throw new ServerException("unknown fail");
         }
+        userDirectory.onMemberJoined(orgId, memberId);
 
         // 修改成员人数
         organization.setMemberNum(organization.getMemberNum() + 1);
@@ -573,6 +582,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
         RelUserOrganization rel = new RelUserOrganization(orgId, memberId, UserOrgRoleEnum.MEMBER.getRole());
         rel.createdBy(memberId);
         relUserOrganizationMapper.insert(rel);
+        userDirectory.onMemberJoined(orgId, memberId);
         // 修改成员人数
         organization.setMemberNum(organization.getMemberNum() + 1);
         organizationMapper.updateMemberNum(organization);
@@ -610,6 +620,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
         if (relUserOrganizationMapper.deleteById(relationId) <= 0) {
             throw new ServerException("unknown fail");
         }
+        userDirectory.onMemberLeft(orgId, rel.getUserId());
 
         // 更新组织成员数量
         int memberNum = organization.getMemberNum();
@@ -710,7 +721,7 @@ public class OrganizationServiceImpl extends BaseEntityService implements Organi
                     .withTemplateContent(content)
                     .build();
 
-            mailUtils.sendMail(mailContent, null);
+            mailQueue.submit(mailContent, null);
         } catch (ServerException e) {
             log.error(e.toString(), e);
         }
@@ -0,0 +1,569 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.impl;
+
+import com.alibaba.druid.util.StringUtils;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.parser.Feature;
+import com.google.common.collect.Lists;
+import edp.core.exception.NotFoundException;
+import edp.core.exception.ServerException;
+import edp.core.exception.UnAuthorizedException;
+import edp.core.utils.BaseLock;
+import edp.core.utils.LockFactory;
+import edp.davinci.core.enums.CheckEntityEnum;
+import edp.davinci.core.enums.LockType;
+import edp.davinci.core.enums.LogNameEnum;
+import edp.davinci.dao.*;
+import edp.davinci.dto.projectDto.BundleImportResult;
+import edp.davinci.dto.projectDto.ProjectDetail;
+import edp.davinci.dto.viewDto.ViewBaseInfo;
+import edp.davinci.dto.widgetDto.WidgetWithViewName;
+import edp.davinci.model.*;
+import edp.davinci.service.ProjectBundleService;
+import edp.davinci.service.bundle.ProjectBundle;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.zip.ZipOutputStream;
+
+import static edp.core.consts.Consts.AT_SYMBOL;
+import static edp.core.consts.Consts.COMMA;
+
+/**
+ * 项目整体导入导出
+ * <p>
+ * 导入时先完整校验打包文件，再在一个事务内按 数据源、view、widget、portal、dashboard（逐层）、dashboard widget
+ * 的顺序分批多行插入并重映射id，最后替换dashboard配置中引用的旧id
+ */
+@Slf4j
+@Service("projectBundleService")
+public class ProjectBundleServiceImpl extends BaseEntityService implements ProjectBundleService {
+
+    private static final Logger optLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_OPERATION.getName());
+
+    private static final int MAX_ERRORS = 20;
+
+    private static final int LOCK_TIMEOUT_SECONDS = 300;
+
+    @Autowired
+    private SourceMapper sourceMapper;
+
+    @Autowired
+    private ViewMapper viewMapper;
+
+    @Autowired
+    private WidgetMapper widgetMapper;
+
+    @Autowired
+    private DashboardPortalMapper dashboardPortalMapper;
+
+    @Autowired
+    private DashboardMapper dashboardMapper;
+
+    @Autowired
+    private MemDashboardWidgetMapper memDashboardWidgetMapper;
+
+    @Value("${source.bundle.batch-size:500}")
+    private int batchSize;
+
+    @Value("${source.bundle.max-entities:50000}")
+    private int maxEntities;
+
+    /**
+     * 导出项目，各类实体按固定顺序流式读取，逐行写入zip
+     *
+     * @param projectId
+     * @param user
+     * @param out
+     * @throws NotFoundException
+     * @throws UnAuthorizedException
+     * @throws IOException
+     */
+    @Override
+    public void exportBundle(Long projectId, User user, OutputStream out) throws NotFoundException, UnAuthorizedException, IOException {
+        ProjectDetail projectDetail = projectService.getProjectDetail(projectId, user, true);
+
+        long before = System.currentTimeMillis();
+        ZipOutputStream zipOutputStream = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        int sources = ProjectBundle.writeEntry(zipOutputStream, ProjectBundle.SOURCES,
+                handler -> sourceMapper.streamByProject(projectId, handler), ProjectBundle::toBundleSource);
+        int views = ProjectBundle.<View>writeEntry(zipOutputStream, ProjectBundle.VIEWS,
+                handler -> viewMapper.streamByProject(projectId, handler));
+        int widgets = ProjectBundle.<WidgetWithViewName>writeEntry(zipOutputStream, ProjectBundle.WIDGETS,
+                handler -> widgetMapper.streamByProject(projectId, handler));
+        int portals = ProjectBundle.<DashboardPortal>writeEntry(zipOutputStream, ProjectBundle.PORTALS,
+                handler -> dashboardPortalMapper.streamByProject(projectId, handler));
+        int dashboards = ProjectBundle.<Dashboard>writeEntry(zipOutputStream, ProjectBundle.DASHBOARDS,
+                handler -> dashboardMapper.streamByProject(projectId, handler));
+        int memDashboardWidgets = ProjectBundle.<MemDashboardWidget>writeEntry(zipOutputStream, ProjectBundle.DASHBOARD_WIDGETS,
+                handler -> memDashboardWidgetMapper.streamByProject(projectId, handler));
+
+        JSONObject manifest = new JSONObject(true);
+        manifest.put("projectId", projectId);
+        manifest.put("projectName", projectDetail.getName());
+        manifest.put("exportTime", new Date());
+        manifest.put("sources", sources);
+        manifest.put("views", views);
+        manifest.put("widgets", widgets);
+        manifest.put("portals", portals);
+        manifest.put("dashboards", dashboards);
+        manifest.put("dashboardWidgets", memDashboardWidgets);
+        ProjectBundle.writeManifest(zipOutputStream, manifest);
+        zipOutputStream.finish();
+        zipOutputStream.flush();
+
+        log.info("Project({}) bundle exported by user({}) in {} ms, views:{}, widgets:{}, dashboards:{}", projectId, user.getId(),
+                System.currentTimeMillis() - before, views, widgets, dashboards);
+    }
+
+    /**
+     * 导入项目包到指定项目
+     *
+     * @param projectId
+     * @param file
+     * @param user
+     * @return
+     * @throws NotFoundException
+     * @throws UnAuthorizedException
+     * @throws ServerException
+     */
+    @Override
+    @Transactional
+    public BundleImportResult importBundle(Long projectId, MultipartFile file, User user) throws NotFoundException, UnAuthorizedException, ServerException {
+        projectService.getProjectDetail(projectId, user, true);
+
+        long before = System.currentTimeMillis();
+        ProjectBundle bundle;
+        try (InputStream inputStream = file.getInputStream()) {
+            bundle = ProjectBundle.read(inputStream, maxEntities);
+        } catch (IOException e) {
+            log.error("Read project bundle error", e);
+            throw new ServerException("Read bundle error: " + e.getMessage());
+        }
+
+        // 同一项目同时只允许一个导入，名称校验在锁内进行
+        BaseLock lock = LockFactory.getLock(CheckEntityEnum.PROJECT.getSource().toUpperCase() + AT_SYMBOL + "bundle" + AT_SYMBOL + projectId,
+                LOCK_TIMEOUT_SECONDS, LockType.REDIS);
+        if (lock != null && !lock.getLock()) {
+            throw new ServerException("Another bundle is being imported into this project");
+        }
+
+        try {
+            Map<String, Source> existingSources = new HashMap<>();
+            sourceMapper.getByProject(projectId).forEach(source -> existingSources.put(source.getName(), source));
+
+            List<List<Dashboard>> dashboardLevels = validate(bundle, projectId);
+
+            BundleImportResult result = insertBundle(bundle, projectId, existingSources, dashboardLevels, user);
+            result.setMillis(System.currentTimeMillis() - before);
+
+            optLogger.info("Project({}) bundle is imported by user({}) in {} ms, sources:{}(matched {}), views:{}, widgets:{}, portals:{}, dashboards:{}, dashboard widgets:{}",
+                    projectId, user.getId(), result.getMillis(), result.getCreatedSources(), result.getMatchedSources(), result.getViews(),
+                    result.getWidgets(), result.getPortals(), result.getDashboards(), result.getDashboardWidgets());
+            return result;
+        } finally {
+            releaseLock(lock);
+        }
+    }
+
+    /**
+     * 校验打包文件：id、名称、实体间引用以及与目标项目的名称冲突，返回按层级分组的dashboard
+     */
+    private List<List<Dashboard>> validate(ProjectBundle bundle, Long projectId) {
+        List<String> errors = new ArrayList<>();
+
+        Set<String> viewNames = viewMapper.getViewBaseInfoByProject(projectId).stream().map(ViewBaseInfo::getName).collect(Collectors.toSet());
+        Set<String> widgetNames = widgetMapper.getByProject(projectId).stream().map(Widget::getName).collect(Collectors.toSet());
+        Set<String> portalNames = dashboardPortalMapper.getByProject(projectId).stream().map(DashboardPortal::getName).collect(Collectors.toSet());
+
+        // 同名数据源复用目标项目中已有的
+        Set<Long> sourceIds = checkEntities("source", bundle.getSources(), Source::getId, Source::getName, Collections.emptySet(), errors);
+        Set<Long> viewIds = checkEntities("view", bundle.getViews(), View::getId, View::getName, viewNames, errors);
+        Set<Long> widgetIds = checkEntities("widget", bundle.getWidgets(), Widget::getId, Widget::getName, widgetNames, errors);
+        Set<Long> portalIds = checkEntities("portal", bundle.getPortals(), DashboardPortal::getId, DashboardPortal::getName, portalNames, errors);
+        Set<Long> dashboardIds = checkEntities("dashboard", bundle.getDashboards(), Dashboard::getId, Dashboard::getName, null, errors);
+        checkEntities("dashboard widget", bundle.getMemDashboardWidgets(), MemDashboardWidget::getId, null, null, errors);
+
+        for (View view : bundle.getViews()) {
+            if (!sourceIds.contains(view.getSourceId())) {
+                errors.add("View(" + view.getName() + ") refers to missing source(" + view.getSourceId() + ")");
+            }
+        }
+
+        for (Widget widget : bundle.getWidgets()) {
+            if (null != widget.getViewId() && !viewIds.contains(widget.getViewId())) {
+                errors.add("Widget(" + widget.getName() + ") refers to missing view(" + widget.getViewId() + ")");
+            }
+        }
+
+        Map<Long, Dashboard> dashboardMap = new HashMap<>();
+        for (Dashboard dashboard : bundle.getDashboards()) {
+            if (null != dashboard.getId()) {
+                dashboardMap.put(dashboard.getId(), dashboard);
+            }
+            if (!portalIds.contains(dashboard.getDashboardPortalId())) {
+                errors.add("Dashboard(" + dashboard.getName() + ") refers to missing portal(" + dashboard.getDashboardPortalId() + ")");
+            }
+        }
+
+        List<List<Dashboard>> dashboardLevels = new ArrayList<>();
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Dashboard dashboard : dashboardMap.values()) {
+            int depth = getDepth(dashboard, dashboardMap, depths);
+            if (depth < 0) {
+                errors.add("Dashboard(" + dashboard.getName() + ") has missing or circular parent");
+                continue;
+            }
+            if (!isRoot(dashboard) && !Objects.equals(dashboardMap.get(dashboard.getParentId()).getDashboardPortalId(), dashboard.getDashboardPortalId())) {
+                errors.add("Dashboard(" + dashboard.getName() + ") and its parent belong to different portals");
+            }
+            while (dashboardLevels.size() <= depth) {
+                dashboardLevels.add(new ArrayList<>());
+            }
+            dashboardLevels.get(depth).add(dashboard);
+        }
+
+        for (MemDashboardWidget memDashboardWidget : bundle.getMemDashboardWidgets()) {
+            if (!dashboardIds.contains(memDashboardWidget.getDashboardId())) {
+                errors.add("Dashboard widget(" + memDashboardWidget.getId() + ") refers to missing dashboard(" + memDashboardWidget.getDashboardId() + ")");
+            }
+            if (!widgetIds.contains(memDashboardWidget.getWidgetId())) {
+                errors.add("Dashboard widget(" + memDashboardWidget.getId() + ") refers to missing widget(" + memDashboardWidget.getWidgetId() + ")");
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            log.warn("Project({}) bundle is invalid, {} errors: {}", projectId, errors.size(), errors);
+            String message = String.join("; ", errors.subList(0, Math.min(errors.size(), MAX_ERRORS)));
+            throw new ServerException("Invalid bundle: " + message + (errors.size() > MAX_ERRORS ? " ..." : ""));
+        }
+
+        return dashboardLevels;
+    }
+
+    private BundleImportResult insertBundle(ProjectBundle bundle, Long projectId, Map<String, Source> existingSources,
+                                            List<List<Dashboard>> dashboardLevels, User user) {
+        BundleImportResult result = new BundleImportResult();
+
+        // 新建的数据源不含密码，需要补充后重连
+        Map<Long, Long> sourceIds = new HashMap<>();
+        List<Source> newSources = new ArrayList<>();
+        for (Source source : bundle.getSources()) {
+            Source existing = existingSources.get(source.getName());
+            if (null != existing) {
+                sourceIds.put(source.getId(), existing.getId());
+            } else {
+                newSources.add(source);
+            }
+        }
+        insertBatch("source", newSources, Source::getId, source -> {
+            source.setId(null);
+            source.setProjectId(projectId);
+            source.createdBy(user.getId());
+        }, sourceMapper::insertBatch, sourceIds);
+        result.setCreatedSources(newSources.size());
+        result.setMatchedSources(bundle.getSources().size() - newSources.size());
+
+        Map<Long, Long> viewIds = new HashMap<>();
+        insertBatch("view", bundle.getViews(), View::getId, view -> {
+            view.setId(null);
+            view.setProjectId(projectId);
+            view.setSourceId(sourceIds.get(view.getSourceId()));
+            view.createdBy(user.getId());
+        }, viewMapper::insertBatch, viewIds);
+        result.setViews(viewIds.size());
+
+        Map<Long, Long> widgetIds = new HashMap<>();
+        insertBatch("widget", bundle.getWidgets(), Widget::getId, widget -> {
+            widget.setId(null);
+            widget.setProjectId(projectId);
+            widget.setViewId(null == widget.getViewId() ? null : viewIds.get(widget.getViewId()));
+            widget.createdBy(user.getId());
+        }, widgetMapper::insertBatch, widgetIds);
+        result.setWidgets(widgetIds.size());
+
+        Map<Long, Long> portalIds = new HashMap<>();
+        insertBatch("portal", bundle.getPortals(), DashboardPortal::getId, portal -> {
+            portal.setId(null);
+            portal.setProjectId(projectId);
+            portal.setPublish(Boolean.TRUE.equals(portal.getPublish()));
+            portal.createdBy(user.getId());
+        }, dashboardPortalMapper::insertBatch, portalIds);
+        result.setPortals(portalIds.size());
+
+        // 逐层插入，子dashboard依赖父dashboard的新id
+        Map<Long, Long> dashboardIds = new HashMap<>();
+        Map<Long, String> fullParentIds = new HashMap<>();
+        for (List<Dashboard> level : dashboardLevels) {
+            insertBatch("dashboard", level, Dashboard::getId, dashboard -> {
+                dashboard.setId(null);
+                dashboard.setDashboardPortalId(portalIds.get(dashboard.getDashboardPortalId()));
+                if (isRoot(dashboard)) {
+                    dashboard.setFullParentId(null);
+                } else {
+                    Long parentId = dashboardIds.get(dashboard.getParentId());
+                    String fullParentId = fullParentIds.get(parentId);
+                    dashboard.setParentId(parentId);
+                    dashboard.setFullParentId(StringUtils.isEmpty(fullParentId) ? parentId.toString() : parentId + COMMA + fullParentId);
+                }
+                dashboard.createdBy(user.getId());
+            }, dashboardMapper::insertBatch, dashboardIds);
+            level.forEach(dashboard -> fullParentIds.put(dashboard.getId(), dashboard.getFullParentId()));
+        }
+        result.setDashboards(dashboardIds.size());
+
+        Map<Long, Long> memDashboardWidgetIds = new HashMap<>();
+        insertBatch("dashboard widget", bundle.getMemDashboardWidgets(), MemDashboardWidget::getId, memDashboardWidget -> {
+            memDashboardWidget.setId(null);
+            memDashboardWidget.setDashboardId(dashboardIds.get(memDashboardWidget.getDashboardId()));
+            memDashboardWidget.setWidgetId(widgetIds.get(memDashboardWidget.getWidgetId()));
+            memDashboardWidget.setPolling(Boolean.TRUE.equals(memDashboardWidget.getPolling()));
+            memDashboardWidget.createdBy(user.getId());
+        }, memDashboardWidgetMapper::insertBatch, memDashboardWidgetIds);
+        result.setDashboardWidgets(memDashboardWidgetIds.size());
+
+        List<Dashboard> remappedDashboards = new ArrayList<>();
+        for (Dashboard dashboard : bundle.getDashboards()) {
+            String config = remapDashboardConfig(dashboard.getConfig(), memDashboardWidgetIds, viewIds);
+            if (null != config) {
+                Dashboard remapped = new Dashboard();
+                remapped.setId(dashboard.getId());
+                remapped.setConfig(config);
+                remappedDashboards.add(remapped);
+            }
+        }
+        for (List<Dashboard> batch : Lists.partition(remappedDashboards, Math.max(batchSize, 1))) {
+            dashboardMapper.updateConfigBatch(batch);
+        }
+
+        return result;
+    }
+
+    /**
+     * 分批多行插入，插入后记录旧id到新id的映射
+     */
+    private <T> void insertBatch(String type, List<T> list, Function<T, Long> idGetter, Consumer<T> preparer,
+                                 ToIntFunction<List<T>> inserter, Map<Long, Long> idMap) {
+        if (list.isEmpty()) {
+            return;
+        }
+
+        List<Long> originIds = list.stream().map(idGetter).collect(Collectors.toList());
+        list.forEach(preparer);
+
+        int offset = 0;
+        for (List<T> batch : Lists.partition(list, Math.max(batchSize, 1))) {
+            if (inserter.applyAsInt(batch) != batch.size()) {
+                throw new ServerException("Import " + type + " fail");
+            }
+            for (T t : batch) {
+                Long id = idGetter.apply(t);
+                if (null == id) {
+                    throw new ServerException("Import " + type + " fail");
+                }
+                idMap.put(originIds.get(offset++), id);
+            }
+        }
+    }
+
+    /**
+     * 校验id与名称，返回实体的id集合
+     *
+     * @param type
+     * @param list
+     * @param idGetter
+     * @param nameGetter 为null时不校验名称
+     * @param takenNames 为null时不校验名称冲突
+     * @param errors
+     * @return
+     */
+    private <T> Set<Long> checkEntities(String type, List<T> list, Function<T, Long> idGetter, Function<T, String> nameGetter,
+                                        Set<String> takenNames, List<String> errors) {
+        Set<Long> ids = new HashSet<>();
+        Set<String> names = new HashSet<>();
+        for (T t : list) {
+            Long id = idGetter.apply(t);
+            if (null == id) {
+                errors.add("The " + type + " id is missing");
+                continue;
+            }
+            if (!ids.add(id)) {
+                errors.add("Duplicate " + type + " id: " + id);
+            }
+
+            if (null == nameGetter) {
+                continue;
+            }
+            String name = nameGetter.apply(t);
+            if (StringUtils.isEmpty(name)) {
+                errors.add("The " + type + "(" + id + ") name is EMPTY");
+            } else if (null != takenNames) {
+                if (!names.add(name)) {
+                    errors.add("Duplicate " + type + " name: " + name);
+                } else if (takenNames.contains(name)) {
+                    errors.add("The " + type + " name(" + name + ") is already taken");
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * dashboard所在层级，根为0；父节点缺失或成环时返回-1
+     */
+    private int getDepth(Dashboard dashboard, Map<Long, Dashboard> dashboardMap, Map<Long, Integer> depths) {
+        Deque<Dashboard> path = new ArrayDeque<>();
+        Dashboard current = dashboard;
+        int depth = -1;
+        while (true) {
+            Integer known = depths.get(current.getId());
+            if (null != known) {
+                depth = known;
+                break;
+            }
+            if (path.size() > dashboardMap.size()) {
+                return -1;
+            }
+            path.push(current);
+            if (isRoot(current)) {
+                break;
+            }
+            current = dashboardMap.get(current.getParentId());
+            if (null == current) {
+                return -1;
+            }
+        }
+
+        while (!path.isEmpty()) {
+            depths.put(path.pop().getId(), ++depth);
+        }
+        return depth;
+    }
+
+    private boolean isRoot(Dashboard dashboard) {
+        return null == dashboard.getParentId() || dashboard.getParentId() <= 0L;
+    }
+
+    /**
+     * 替换dashboard配置中全局控制器与联动引用的dashboard widget id及view id，未变化时返回null
+     */
+    private String remapDashboardConfig(String config, Map<Long, Long> memDashboardWidgetIds, Map<Long, Long> viewIds) {
+        if (StringUtils.isEmpty(config)) {
+            return null;
+        }
+
+        try {
+            JSONObject jsonObject = JSON.parseObject(config, Feature.OrderedField);
+            if (null == jsonObject) {
+                return null;
+            }
+
+            boolean changed = false;
+            JSONArray filters = jsonObject.getJSONArray("filters");
+            if (null != filters) {
+                for (int i = 0; i < filters.size(); i++) {
+                    JSONObject filter = filters.getJSONObject(i);
+                    if (null == filter) {
+                        continue;
+                    }
+
+                    JSONObject relatedItems = filter.getJSONObject("relatedItems");
+                    if (null != relatedItems) {
+                        JSONObject items = new JSONObject(true);
+                        relatedItems.forEach((key, value) -> {
+                            if (value instanceof JSONObject && ((JSONObject) value).containsKey("viewId")) {
+                                JSONObject item = (JSONObject) value;
+                                item.put("viewId", remapId(item.get("viewId"), viewIds));
+                            }
+                            items.put(String.valueOf(remapId(key, memDashboardWidgetIds)), value);
+                        });
+                        filter.put("relatedItems", items);
+                        changed = true;
+                    }
+
+                    JSONObject relatedViews = filter.getJSONObject("relatedViews");
+                    if (null != relatedViews) {
+                        JSONObject views = new JSONObject(true);
+                        relatedViews.forEach((key, value) -> views.put(String.valueOf(remapId(key, viewIds)), value));
+                        filter.put("relatedViews", views);
+                        changed = true;
+                    }
+                }
+            }
+
+            // 联动配置的 trigger、linkager 首元素为 dashboard widget id
+            JSONArray linkages = jsonObject.getJSONArray("linkages");
+            if (null != linkages) {
+                for (int i = 0; i < linkages.size(); i++) {
+                    JSONObject linkage = linkages.getJSONObject(i);
+                    if (null == linkage) {
+                        continue;
+                    }
+                    changed |= remapFirst(linkage.getJSONArray("trigger"), memDashboardWidgetIds);
+                    changed |= remapFirst(linkage.getJSONArray("linkager"), memDashboardWidgetIds);
+                }
+            }
+
+            return changed ? jsonObject.toJSONString() : null;
+        } catch (Exception e) {
+            log.warn("Remap dashboard config error:{}", e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean remapFirst(JSONArray array, Map<Long, Long> idMap) {
+        if (null == array || array.isEmpty()) {
+            return false;
+        }
+        array.set(0, remapId(array.get(0), idMap));
+        return true;
+    }
+
+    private Object remapId(Object id, Map<Long, Long> idMap) {
+        if (null == id) {
+            return null;
+        }
+        try {
+            Long newId = idMap.get(Long.valueOf(id.toString()));
+            return null == newId ? id : newId;
+        } catch (NumberFormatException e) {
+            return id;
+        }
+    }
+}
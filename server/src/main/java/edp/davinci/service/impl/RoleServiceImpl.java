@@ -27,6 +27,9 @@ import edp.davinci.core.enums.LogNameEnum;
 import edp.davinci.core.enums.UserOrgRoleEnum;
 import edp.davinci.core.enums.UserPermissionEnum;
 import edp.davinci.core.enums.VizVisibilityEnum;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.RoleChanged;
 import edp.davinci.dao.*;
 import edp.davinci.dto.roleDto.*;
 import edp.davinci.model.*;
@@ -57,6 +60,9 @@ public class RoleServiceImpl implements RoleService {
     @Autowired
     private RelUserOrganizationMapper relUserOrganizationMapper;
 
+    @Autowired
+    private DomainEventBus domainEventBus;
+
     @Autowired
     private RoleMapper roleMapper;
 
@@ -171,6 +177,7 @@ public class RoleServiceImpl implements RoleService {
         int delete = roleMapper.deleteById(id);
         if (delete > 0) {
             optLogger.info("Role({}) is delete by user({})", role.toString(), user.getId());
+            domainEventBus.publish(new RoleChanged(id, null, DomainEvent.DELETE));
 
             Organization organization = organizationMapper.getById(role.getOrgId());
             if (null != organization) {
@@ -236,6 +243,7 @@ public class RoleServiceImpl implements RoleService {
         int update = roleMapper.update(role);
         if (update > 0) {
             optLogger.info("Role({}) is update by user({}), origin:{}", role.toString(), user.getId(), originInfo);
+            domainEventBus.publish(new RoleChanged(id, null, DomainEvent.UPDATE));
             return true;
         } else {
             log.info("Update role fail, role:{}", role.toString());
@@ -306,6 +314,7 @@ public class RoleServiceImpl implements RoleService {
 
         int i = relRoleUserMapper.insertBatch(relRoleUsers);
         if (i > 0) {
+            domainEventBus.publish(new RoleChanged(id, null, DomainEvent.UPDATE));
             Map<Long, User> map = new HashMap<>();
             members.forEach(m -> map.put(m.getId(), m));
             return relRoleUsers.stream().map(r -> new RelRoleMember(r.getId(), map.get(r.getUserId()))).collect(Collectors.toList());
@@ -353,6 +362,7 @@ public class RoleServiceImpl implements RoleService {
         int i = relRoleUserMapper.deleteById(relationId);
         if (i > 0) {
             optLogger.info("RelRoleUser({}) is delete by user({})", relRoleUser.toString(), user.getId());
+            domainEventBus.publish(new RoleChanged(relRoleUser.getRoleId(), null, DomainEvent.UPDATE));
             return true;
         } else {
             log.error("Delete role member fail, relationId:{}", relationId);
@@ -386,6 +396,7 @@ public class RoleServiceImpl implements RoleService {
         relRoleUserMapper.insertBatch(collect);
 
         optLogger.info("Replace role({}) member by user({})", id, user.getId());
+        domainEventBus.publish(new RoleChanged(id, null, DomainEvent.UPDATE));
         return relRoleUserMapper.getMembersByRoleId(id);
     }
 
@@ -454,6 +465,7 @@ public class RoleServiceImpl implements RoleService {
         relRoleProjectMapper.insert(relRoleProject);
         if (null != relRoleProject.getId() && relRoleProject.getId().longValue() > 0L) {
             optLogger.info("Create relRoleProject({}) is update by user({})", relRoleProject.toString(), user.getId());
+            domainEventBus.publish(new RoleChanged(id, projectId, DomainEvent.UPDATE));
             RoleProject roleProject = new RoleProject(project);
             BeanUtils.copyProperties(relRoleProject, roleProject);
             return roleProject;
@@ -505,6 +517,7 @@ public class RoleServiceImpl implements RoleService {
             relRoleViewMapper.deleteByRoleAndProject(roleId, projectId);
             
             optLogger.info("RelRoleProject({}) is delete by user({})", relRoleProject.toString(), user.getId());
+            domainEventBus.publish(new RoleChanged(roleId, projectId, DomainEvent.UPDATE));
             return true;
         } else {
             log.error("Delete role project fail, relationId:", role);
@@ -586,6 +599,7 @@ public class RoleServiceImpl implements RoleService {
 
         if (i > 0) {
             optLogger.info("RelRoleProject({}) is update by user({}), origin:{}", relRoleProject.toString(), user.getId(), origin);
+            domainEventBus.publish(new RoleChanged(roleId, projectId, DomainEvent.UPDATE));
             return true;
         } else {
             log.info("Update role fail, role:{}", role.toString());
@@ -691,6 +705,9 @@ public class RoleServiceImpl implements RoleService {
                 result = displaySlideService.postSlideVisibility(role, vizVisibility, user);
                 break;
         }
+        if (result) {
+            domainEventBus.publish(new RoleChanged(id, null, DomainEvent.UPDATE));
+        }
         return result;
     }
 
@@ -28,6 +28,7 @@ import edp.core.exception.UnAuthorizedException;
 import edp.core.model.Paginate;
 import edp.core.utils.AESUtils;
 import edp.core.utils.CollectionUtils;
+import edp.core.utils.QueryTrace;
 import edp.core.utils.TokenUtils;
 import edp.davinci.core.common.Constants;
 import edp.davinci.core.common.ErrorMsg;
@@ -319,6 +320,9 @@ public class ShareServiceImpl implements ShareService {
         boolean maintainer = projectService.isMaintainer(projectDetail, user);
 
         Paginate paginate = viewService.getResultDataList(maintainer, viewWithProjectAndSource, executeParam, user);
+        if (null != paginate && null != paginate.getResultList()) {
+            QueryTrace.rows(paginate.getResultList().size());
+        }
         return paginate;
     }
 
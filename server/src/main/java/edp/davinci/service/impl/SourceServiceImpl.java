@@ -35,6 +35,9 @@ import edp.core.model.TableInfo;
 import edp.core.utils.*;
 import edp.davinci.core.common.Constants;
 import edp.davinci.core.enums.*;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.SourceChanged;
 import edp.davinci.core.model.DataUploadEntity;
 import edp.davinci.core.model.RedisMessageEntity;
 import edp.davinci.core.utils.CsvUtils;
@@ -51,6 +54,8 @@ import edp.davinci.model.View;
 import edp.davinci.runner.LoadSupportDataSourceRunner;
 import edp.davinci.service.ProjectService;
 import edp.davinci.service.SourceService;
+import edp.davinci.service.catalog.CatalogCrawler;
+import edp.davinci.service.catalog.SourceCatalog;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -98,6 +103,12 @@ public class SourceServiceImpl extends BaseEntityService implements SourceServic
     @Autowired
     private RedisUtils redisUtils;
 
+    @Autowired
+    private DomainEventBus domainEventBus;
+
+    @Autowired
+    private CatalogCrawler catalogCrawler;
+
     private static final CheckEntityEnum entity = CheckEntityEnum.SOURCE;
 
     @Override
@@ -535,10 +546,15 @@ public class SourceServiceImpl extends BaseEntityService implements SourceServic
 
         List<String> dbList = null;
 
-        try {
-            dbList = sqlUtils.init(source).getDatabases();
-        } catch (SourceException e) {
-            throw new ServerException(e.getMessage());
+        SourceCatalog catalog = catalogCrawler.get(source);
+        if (null != catalog) {
+            dbList = catalog.getDatabases();
+        } else {
+            try {
+                dbList = sqlUtils.init(source).getDatabases();
+            } catch (SourceException e) {
+                throw new ServerException(e.getMessage());
+            }
         }
 
         if (null != dbList) {
@@ -564,11 +580,14 @@ public class SourceServiceImpl extends BaseEntityService implements SourceServic
 
         ProjectDetail projectDetail = projectService.getProjectDetail(source.getProjectId(), user, false);
 
-        List<QueryColumn> tableList = null;
-        try {
-            tableList = sqlUtils.init(source).getTableList(dbName);
-        } catch (SourceException e) {
-            throw new ServerException(e.getMessage());
+        SourceCatalog catalog = catalogCrawler.get(source);
+        List<QueryColumn> tableList = null == catalog ? null : catalog.getTables(dbName);
+        if (null == tableList) {
+            try {
+                tableList = sqlUtils.init(source).getTableList(dbName);
+            } catch (SourceException e) {
+                throw new ServerException(e.getMessage());
+            }
         }
 
         if (null != tableList) {
@@ -596,11 +615,14 @@ public class SourceServiceImpl extends BaseEntityService implements SourceServic
 
         ProjectDetail projectDetail = projectService.getProjectDetail(source.getProjectId(), user, false);
 
-        TableInfo tableInfo = null;
-        try {
-            tableInfo = sqlUtils.init(source).getTableInfo(dbName, tableName);
-        } catch (SourceException e) {
-            throw new ServerException(e.getMessage());
+        SourceCatalog catalog = catalogCrawler.get(source);
+        TableInfo tableInfo = null == catalog ? null : catalog.getTableInfo(dbName, tableName);
+        if (null == tableInfo) {
+            try {
+                tableInfo = sqlUtils.init(source).getTableInfo(dbName, tableName);
+            } catch (SourceException e) {
+                throw new ServerException(e.getMessage());
+            }
         }
 
         if (null != tableInfo) {
@@ -632,7 +654,50 @@ public class SourceServiceImpl extends BaseEntityService implements SourceServic
 
         releaseSource(source);
 
-        return sqlUtils.init(source).testConnection();
+        boolean connected = sqlUtils.init(source).testConnection();
+        if (connected) {
+            catalogCrawler.crawl(source);
+        }
+        return connected;
+    }
+
+    /**
+     * 在数据源目录中按名称搜索表与列，目录尚未爬取完成时返回空列表
+     *
+     * @param id
+     * @param keyword
+     * @param limit
+     * @param user
+     * @return
+     */
+    @Override
+    public List<CatalogEntry> searchCatalog(Long id, String keyword, int limit, User user) throws NotFoundException {
+
+        Source source = getSource(id);
+
+        ProjectDetail projectDetail = projectService.getProjectDetail(source.getProjectId(), user, false);
+
+        SourceCatalog catalog = catalogCrawler.get(source);
+        List<CatalogEntry> list = null == catalog ? new ArrayList<>() : catalog.search(keyword, limit);
+
+        list = handleHiddenPermission(list, projectDetail, user, source.getId(), "catalog");
+        return null == list ? new ArrayList<>() : list;
+    }
+
+    /**
+     * 清除数据源的元数据缓存，下次查看表结构或导出时重新探测
+     *
+     * @param id
+     * @param user
+     */
+    @Override
+    public void refreshMetadata(Long id, User user) throws NotFoundException, UnAuthorizedException {
+
+        Source source = getSource(id);
+
+        projectService.getProjectDetail(source.getProjectId(), user, false);
+
+        sqlUtils.init(source).invalidateMetadata();
     }
 
     /**
@@ -656,6 +721,7 @@ public class SourceServiceImpl extends BaseEntityService implements SourceServic
                 .build();
 
         sourceUtils.releaseDataSource(jdbcSourceInfo);
+        domainEventBus.publish(new SourceChanged(source.getId(), source.getProjectId(), DomainEvent.UPDATE));
 
         if (redisUtils.isRedisEnable()) {
             Map<String, Object> map = new HashMap<>();
@@ -47,6 +47,7 @@ import edp.davinci.model.RelUserOrganization;
 import edp.davinci.model.User;
 import edp.davinci.service.LdapService;
 import edp.davinci.service.UserService;
+import edp.davinci.service.directory.UserDirectory;
 import lombok.extern.slf4j.Slf4j;
 import org.mindrot.jbcrypt.BCrypt;
 import org.springframework.beans.BeanUtils;
@@ -76,6 +77,9 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
     @Autowired
     private RelUserOrganizationMapper relUserOrganizationMapper;
 
+    @Autowired
+    private UserDirectory userDirectory;
+
     @Autowired
     private TokenUtils tokenUtils;
 
@@ -165,6 +169,7 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
                 log.info("Regist fail, userRegist:{}", userRegist.toString());
                 throw new ServerException("Regist fail, unspecified error");
             }
+            userDirectory.onUserSaved(user);
             //添加成功，发送激活邮件
             sendMail(user.getEmail(), user);
             return user;
@@ -196,6 +201,7 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
         user.setAvatar(JsonPath.read(jsonObj, avatarMapping));
         int insert = userMapper.insert(user);
         if (insert > 0) {
+            userDirectory.onUserSaved(user);
             return user;
         } else {
             log.info("Regist fail, username:{}", oauthUser.getName());
@@ -308,6 +314,11 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
      */
     @Override
     public List<UserBaseInfo> getUsersByKeyword(String keyword, User user, Long orgId, Boolean includeSelf) {
+        List<UserBaseInfo> indexed = userDirectory.search(keyword, orgId, includeSelf ? null : user.getId());
+        if (null != indexed) {
+            return indexed;
+        }
+
         List<UserBaseInfo> users = userMapper.getUsersByKeyword(keyword, orgId);
         if (includeSelf) {
             return users;
@@ -337,6 +348,7 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
             log.info("Update user fail, username:{}", user.getUsername());
             throw new ServerException("Update user fail");
         }
+        userDirectory.onUserSaved(user);
         return true;
     }
 
@@ -383,6 +395,7 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
                         UserOrgRoleEnum.OWNER.getRole());
                 relUserOrganization.createdBy(user.getId());
                 relUserOrganizationMapper.insert(relUserOrganization);
+                userDirectory.onMemberJoined(organization.getId(), user.getId());
 
                 UserLoginResult userLoginResult = new UserLoginResult();
                 BeanUtils.copyProperties(user, userLoginResult);
@@ -495,6 +508,7 @@ public class UserServiceImpl extends BaseEntityService implements UserService {
         user.setAvatar(avatar);
         user.setUpdateTime(new Date());
         if (userMapper.updateAvatar(user) > 0) {
+            userDirectory.onUserSaved(user);
             Map<String, String> map = new HashMap<>();
             map.put("avatar", avatar);
             return resultMap.successAndRefreshToken(request).payload(map);
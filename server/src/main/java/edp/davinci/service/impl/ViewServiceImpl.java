@@ -23,6 +23,8 @@ import com.alibaba.druid.util.StringUtils;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import edp.core.common.buffer.ResultBuffer;
+import edp.core.enums.QueryStageEnum;
 import edp.core.exception.NotFoundException;
 import edp.core.exception.ServerException;
 import edp.core.exception.UnAuthorizedException;
@@ -30,7 +32,11 @@ import edp.core.model.Paginate;
 import edp.core.model.PaginateWithQueryColumns;
 import edp.core.utils.*;
 import edp.davinci.core.common.Constants;
+import edp.davinci.core.dialect.DialectQueryBuilder;
 import edp.davinci.core.enums.*;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.ViewUpdated;
 import edp.davinci.core.model.SqlEntity;
 import edp.davinci.core.model.SqlFilter;
 import edp.davinci.core.utils.SqlParseUtils;
@@ -46,6 +52,12 @@ import edp.davinci.model.*;
 import edp.davinci.service.ProjectService;
 import edp.davinci.service.ViewService;
 import edp.davinci.service.excel.SQLContext;
+import edp.davinci.service.incremental.IncrementalResultCache;
+import edp.davinci.service.incremental.IncrementalResultCache.IncrementalResult;
+import edp.davinci.service.merge.QueryMerger;
+import edp.davinci.service.prefetch.PrefetchCache;
+import edp.davinci.service.rollup.RollupConfig;
+import edp.davinci.service.rollup.RollupStore;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -99,6 +111,24 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
     @Autowired
     private SqlParseUtils sqlParseUtils;
 
+    @Autowired
+    private IncrementalResultCache incrementalResultCache;
+
+    @Autowired
+    private RollupStore rollupStore;
+
+    @Autowired
+    private PrefetchCache prefetchCache;
+
+    @Autowired
+    private DomainEventBus domainEventBus;
+
+    @Autowired
+    private QueryMerger queryMerger;
+
+    @Autowired
+    private DialectQueryBuilder dialectQueryBuilder;
+
     private static final String SQL_VARABLE_KEY = "name";
 
     private static final CheckEntityEnum entity = CheckEntityEnum.VIEW;
@@ -167,6 +197,25 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
         return view;
     }
 
+    /**
+     * 获取加速view的rollup状态
+     *
+     * @param id
+     * @param user
+     * @return
+     */
+    @Override
+    public List<RollupStats> getRollupStats(Long id, User user) throws NotFoundException, UnAuthorizedException, ServerException {
+        View view = getView(id);
+
+        ProjectDetail projectDetail = projectService.getProjectDetail(view.getProjectId(), user, false);
+        if (isHiddenPermission(projectDetail, user, false)) {
+            throw new UnAuthorizedException("Insufficient permissions");
+        }
+
+        return rollupStore.getStats(id);
+    }
+
     @Override
     public SQLContext getSQLContext(boolean isMaintainer, ViewWithSource viewWithSource, ViewExecuteParam executeParam, User user) {
 
@@ -253,6 +302,7 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
             }
 
             optLogger.info("View({}) is create by user({})", view.toString(), user.getId());
+            domainEventBus.publish(new ViewUpdated(view.getId(), view.getProjectId(), DomainEvent.CREATE));
 
             if (!CollectionUtils.isEmpty(viewCreate.getRoles()) && !StringUtils.isEmpty(viewCreate.getVariable())) {
                 checkAndInsertRoleParam(viewCreate.getVariable(), viewCreate.getRoles(), user, view);
@@ -325,6 +375,7 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
             }
 
             optLogger.info("View({}) is update by user({}), origin:{}", view.toString(), user.getId(), originStr);
+            domainEventBus.publish(new ViewUpdated(id, projectId, DomainEvent.UPDATE));
 
             if (CollectionUtils.isEmpty(viewUpdate.getRoles())) {
                 relRoleViewMapper.deleteByViewId(id);
@@ -384,6 +435,7 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
         }
 
         optLogger.info("View({}) is delete by user({})", view.toString(), user.getId());
+        domainEventBus.publish(new ViewUpdated(id, view.getProjectId(), DomainEvent.DELETE));
         relRoleViewMapper.deleteByViewId(id);
         return true;
     }
@@ -484,13 +536,25 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
             return null;
         }
 
+        long before = QueryTrace.start();
         ViewWithSource viewWithSource = getViewWithSource(id);
         ProjectDetail projectDetail = projectService.getProjectDetail(viewWithSource.getProjectId(), user, false);
         if (!projectService.allowGetData(projectDetail, user)) {
             throw new UnAuthorizedException("You have not permission to get data");
         }
+        QueryTrace.record(QueryStageEnum.PERMISSION, before);
+
+        PaginateWithQueryColumns paginate = prefetchCache.get(user.getId(), id, executeParam);
+        if (null == paginate) {
+            boolean isMaintainer = projectService.isMaintainer(projectDetail, user);
+            paginate = queryMerger.execute(id, user.getId(), executeParam,
+                    param -> getResultDataList(isMaintainer, viewWithSource, param, user));
+        }
 
-        return getResultDataList(projectService.isMaintainer(projectDetail, user), viewWithSource, executeParam, user);
+        if (null != paginate && null != paginate.getResultList()) {
+            QueryTrace.rows(paginate.getResultList().size());
+        }
+        return paginate;
     }
 
     private ViewWithSource getViewWithSource(Long id) {
@@ -503,6 +567,10 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
     }
 
     public void buildQuerySql(List<String> querySqlList, Source source, ViewExecuteParam executeParam) {
+        buildQuerySql(querySqlList, source, executeParam, null);
+    }
+
+    private void buildQuerySql(List<String> querySqlList, Source source, ViewExecuteParam executeParam, List<String> extraFilters) {
         if (null == executeParam) {
             return;
         }
@@ -519,11 +587,21 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
             st.add("aggregators", executeParam.getAggregators(source.getJdbcUrl(), source.getDbVersion()));
         }
         st.add("orders", executeParam.getOrders(source.getJdbcUrl(), source.getDbVersion()));
-        st.add("filters", convertFilters(executeParam.getFilters(), source));
+        List<String> filters = convertFilters(executeParam.getFilters(), source);
+        if (!CollectionUtils.isEmpty(extraFilters)) {
+            filters = filters == null ? new ArrayList<>() : filters;
+            filters.addAll(extraFilters);
+        }
+        st.add("filters", filters);
         st.add("keywordPrefix", sqlUtils.getKeywordPrefix(source.getJdbcUrl(), source.getDbVersion()));
         st.add("keywordSuffix", sqlUtils.getKeywordSuffix(source.getJdbcUrl(), source.getDbVersion()));
 
         for (int i = 0; i < querySqlList.size(); i++) {
+            String dialectSql = null == dialectQueryBuilder ? null : dialectQueryBuilder.build(querySqlList.get(i), source, executeParam, filters);
+            if (null != dialectSql) {
+                querySqlList.set(i, dialectSql);
+                continue;
+            }
             st.add("sql", querySqlList.get(i));
             querySqlList.set(i, st.render());
         }
@@ -570,6 +648,26 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
                                                       ViewWithSource viewWithSource,
                                                       ViewExecuteParam executeParam,
                                                       User user) throws ServerException, SQLException {
+        return getResultDataList(isMaintainer, viewWithSource, executeParam, user, null);
+    }
+
+    /**
+     * 获取结果集，parsedSqls 不为空时同一view的sql只解析一次
+     *
+     * @param isMaintainer
+     * @param viewWithSource
+     * @param executeParam
+     * @param user
+     * @param parsedSqls
+     * @return
+     * @throws ServerException
+     */
+    @Override
+    public PaginateWithQueryColumns getResultDataList(boolean isMaintainer,
+                                                      ViewWithSource viewWithSource,
+                                                      ViewExecuteParam executeParam,
+                                                      User user,
+                                                      Map<Long, SqlEntity> parsedSqls) throws ServerException, SQLException {
 
         PaginateWithQueryColumns paginate = null;
 
@@ -589,15 +687,24 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
             }
 
             Source source = viewWithSource.getSource();
+            QueryTrace.view(viewWithSource.getId(), source.getId());
+            QueryTrace.user(null == user ? null : user.getId());
 
             String sqlTempDelimiter = SqlUtils.getSqlTempDelimiter(source.getProperties());
 
+            long before = QueryTrace.start();
             List<SqlVariable> variables = viewWithSource.getVariables();
-            SqlEntity sqlEntity = sqlParseUtils.parseSql(viewWithSource.getSql(), variables, sqlTempDelimiter, user, isMaintainer);
+            SqlEntity sqlEntity = parseSql(viewWithSource, variables, sqlTempDelimiter, user, isMaintainer, parsedSqls);
+            QueryTrace.record(QueryStageEnum.PARSE, before);
+
+            before = QueryTrace.start();
             Set<String> excludeColumns = new HashSet<>();
             packageParams(isMaintainer, viewWithSource.getId(), sqlEntity, variables, executeParam.getParams(), excludeColumns, user);
+            QueryTrace.record(QueryStageEnum.PARAMS, before);
 
+            before = QueryTrace.start();
             String srcSql = sqlParseUtils.replaceParams(sqlEntity.getSql(), sqlEntity.getQueryParams(), sqlEntity.getAuthParams(), sqlTempDelimiter);
+            QueryTrace.record(QueryStageEnum.RENDER, before);
 
             SqlUtils sqlUtils = this.sqlUtils.init(source);
 
@@ -608,8 +715,21 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
 
             List<String> querySqlList = sqlParseUtils.getSqls(srcSql, true);
             if (!CollectionUtils.isEmpty(querySqlList)) {
+                // 只有一条查询语句且不含列权限控制时，才可使用rollup与增量刷新
+                boolean single = querySqlList.size() == 1 && CollectionUtils.isEmpty(executeSqlList) && CollectionUtils.isEmpty(excludeColumns);
+                String srcQuerySql = querySqlList.get(0);
+                if (single) {
+                    paginate = getRollupResult(viewWithSource, executeParam, srcQuerySql);
+                    if (null != paginate) {
+                        return paginate;
+                    }
+                }
+
+                String incrementalColumn = single ? incrementalResultCache.getIncrementalColumn(viewWithSource, executeParam) : null;
+                before = QueryTrace.start();
                 buildQuerySql(querySqlList, source, executeParam);
                 executeParam.addExcludeColumn(excludeColumns, source.getJdbcUrl(), source.getDbVersion());
+                QueryTrace.record(QueryStageEnum.RENDER, before);
 
                 if (null != executeParam.getCache() && executeParam.getCache() && executeParam.getExpired() > 0L) {
 
@@ -624,6 +744,7 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
                             32);
                     if (!executeParam.getFlush()) {
 
+                        before = QueryTrace.start();
                         try {
                             Object object = redisUtils.get(cacheKey);
                             if (null != object && executeParam.getCache()) {
@@ -632,14 +753,21 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
                             }
                         } catch (Exception e) {
                             log.warn("Get data by cache error, {}", e.getMessage());
+                        } finally {
+                            QueryTrace.record(QueryStageEnum.CACHE, before);
                         }
                     }
                 }
 
-                for (String sql : querySqlList) {
-                    paginate = sqlUtils.syncQuery4Paginate(SqlParseUtils.rebuildSqlWithFragment(sql),
-                            executeParam.getPageNo(), executeParam.getPageSize(), executeParam.getTotalCount(),
-                            executeParam.getLimit(), excludeColumns);
+                if (null != incrementalColumn) {
+                    paginate = getIncrementalResult(sqlUtils, viewWithSource, executeParam, incrementalColumn,
+                            srcQuerySql, querySqlList.get(0), excludeColumns);
+                } else {
+                    for (String sql : querySqlList) {
+                        paginate = sqlUtils.syncQuery4Paginate(SqlParseUtils.rebuildSqlWithFragment(sql),
+                                executeParam.getPageNo(), executeParam.getPageSize(), executeParam.getTotalCount(),
+                                executeParam.getLimit(), excludeColumns);
+                    }
                 }
             }
 
@@ -657,6 +785,97 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
     }
 
 
+    private SqlEntity parseSql(ViewWithSource viewWithSource, List<SqlVariable> variables, String sqlTempDelimiter,
+                               User user, boolean isMaintainer, Map<Long, SqlEntity> parsedSqls) {
+        if (null == parsedSqls) {
+            return sqlParseUtils.parseSql(viewWithSource.getSql(), variables, sqlTempDelimiter, user, isMaintainer);
+        }
+
+        SqlEntity parsed = parsedSqls.computeIfAbsent(viewWithSource.getId(),
+                id -> sqlParseUtils.parseSql(viewWithSource.getSql(), variables, sqlTempDelimiter, user, isMaintainer));
+        if (null == parsed) {
+            return null;
+        }
+
+        // 参数会在 packageParams 中被改写，每次查询使用副本
+        return new SqlEntity(parsed.getSql(),
+                null == parsed.getQueryParams() ? null : new HashMap<>(parsed.getQueryParams()),
+                null == parsed.getAuthParams() ? null : new HashMap<>(parsed.getAuthParams()));
+    }
+
+    /**
+     * 加速view由rollup回答查询，rollup尚未注册时注册并开始物化；请求刷新或cube过期时查询数据源
+     *
+     * @param viewWithSource
+     * @param executeParam
+     * @param srcQuerySql
+     * @return
+     */
+    private PaginateWithQueryColumns getRollupResult(ViewWithSource viewWithSource, ViewExecuteParam executeParam, String srcQuerySql) {
+        RollupConfig rollupConfig = rollupStore.getConfig(viewWithSource);
+        if (null == rollupConfig) {
+            return null;
+        }
+
+        String key = rollupStore.getKey(viewWithSource, srcQuerySql);
+        PaginateWithQueryColumns paginate = rollupStore.query(key, executeParam);
+        if (null == paginate && !rollupStore.contains(key)) {
+            List<String> baseSqlList = new ArrayList<>();
+            baseSqlList.add(srcQuerySql);
+            buildQuerySql(baseSqlList, viewWithSource.getSource(), rollupConfig.toBaseExecuteParam());
+            rollupStore.register(key, viewWithSource, rollupConfig, baseSqlList.get(0));
+        }
+        return paginate;
+    }
+
+    /**
+     * 增量刷新：有上次结果时只查询水位线之后的数据并合并，否则全量查询
+     *
+     * @param sqlUtils
+     * @param viewWithSource
+     * @param executeParam
+     * @param incrementalColumn
+     * @param srcQuerySql
+     * @param querySql
+     * @param excludeColumns
+     * @return
+     * @throws Exception
+     */
+    private PaginateWithQueryColumns getIncrementalResult(SqlUtils sqlUtils,
+                                                          ViewWithSource viewWithSource,
+                                                          ViewExecuteParam executeParam,
+                                                          String incrementalColumn,
+                                                          String srcQuerySql,
+                                                          String querySql,
+                                                          Set<String> excludeColumns) throws Exception {
+
+        Source source = viewWithSource.getSource();
+        String key = incrementalResultCache.getKey(viewWithSource, querySql, excludeColumns);
+        IncrementalResult result = Boolean.TRUE.equals(executeParam.getFlush()) ? null : incrementalResultCache.get(key);
+
+        if (null != result) {
+            List<String> deltaSqlList = new ArrayList<>();
+            deltaSqlList.add(srcQuerySql);
+            buildQuerySql(deltaSqlList, source, executeParam, Collections.singletonList(incrementalResultCache.getDeltaFilter(result, source)));
+
+            PaginateWithQueryColumns delta = sqlUtils.syncQuery4Paginate(SqlParseUtils.rebuildSqlWithFragment(deltaSqlList.get(0)),
+                    executeParam.getPageNo(), executeParam.getPageSize(), executeParam.getTotalCount(),
+                    executeParam.getLimit(), excludeColumns);
+
+            // 增量结果已超出内存额度时合并会整体读回堆内存，改为全量查询
+            if (!ResultBuffer.isSpilled(delta.getResultList())) {
+                return incrementalResultCache.merge(key, viewWithSource, result, executeParam, delta);
+            }
+        }
+
+        PaginateWithQueryColumns paginate = sqlUtils.syncQuery4Paginate(SqlParseUtils.rebuildSqlWithFragment(querySql),
+                executeParam.getPageNo(), executeParam.getPageSize(), executeParam.getTotalCount(),
+                executeParam.getLimit(), excludeColumns);
+        incrementalResultCache.put(key, viewWithSource, incrementalColumn, executeParam, paginate);
+        return paginate;
+    }
+
+
     @Override
     public List<Map<String, Object>> getDistinctValue(Long id, DistinctParam param, User user) throws NotFoundException, ServerException, UnAuthorizedException {
         ViewWithSource viewWithSource = getViewWithSource(id);
@@ -793,6 +1012,7 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
 
         //权限参数
         if (!CollectionUtils.isEmpty(authVariables)) {
+            long before = QueryTrace.start();
             ExecutorService executorService = Executors.newFixedThreadPool(authVariables.size() > 8 ? 8 : authVariables.size());
             Map<String, Set<String>> map = new Hashtable<>();
             List<Future> futures = new ArrayList<>(authVariables.size());
@@ -829,6 +1049,7 @@ ViewServiceImpl extends BaseEntityService implements ViewService {
                 log.error(e.toString(), e);
             } finally {
                 executorService.shutdown();
+                QueryTrace.record(QueryStageEnum.DAC, before);
             }
 
             if (!CollectionUtils.isEmpty(map)) {
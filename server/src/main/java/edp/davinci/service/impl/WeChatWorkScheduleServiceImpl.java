@@ -4,7 +4,6 @@ import com.alibaba.druid.util.StringUtils;
 import com.alibaba.fastjson.JSONObject;
 import edp.core.common.quartz.ScheduleService;
 import edp.core.utils.CollectionUtils;
-import edp.core.utils.FileUtils;
 import edp.core.utils.MD5Util;
 import edp.davinci.core.enums.CronJobMediaType;
 import edp.davinci.dao.CronJobMapper;
@@ -13,6 +12,7 @@ import edp.davinci.dto.cronJobDto.CronJobConfig;
 import edp.davinci.model.CronJob;
 import edp.davinci.model.User;
 import edp.davinci.service.screenshot.ImageContent;
+import edp.davinci.service.screenshot.ImagePipeline;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -23,10 +23,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.security.MessageDigest;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 @Slf4j
 @Service("weChatWorkScheduleService")
@@ -41,6 +38,9 @@ public class WeChatWorkScheduleServiceImpl extends BaseScheduleService implement
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private ImagePipeline imagePipeline;
+
     @Override
     public void execute(long jobId) throws Exception {
         CronJob cronJob = cronJobMapper.getById(jobId);
@@ -76,44 +76,55 @@ public class WeChatWorkScheduleServiceImpl extends BaseScheduleService implement
             return;
         }
 
-        String url = cronJobConfig.getWebHookUrl();
-
-        for (ImageContent imageContent : images) {
-            if (null == imageContent || imageContent.getImageFile() == null) {
-                log.error("CronJob({}) image is null!", cronJob.getId());
-                return;
-            }
-            File imageContentFile = imageContent.getImageFile();
-            // 将大于2M的图片进行压缩
-            if (imageContentFile.length() > (2 * 1024 * 1024)) {
-                scheduleLogger.info("Image size must be less than 2M, the size is {} !", imageContentFile.length());
-
-                scheduleLogger.info("Image start to compressed!", imageContentFile.getPath());
-                File file = FileUtils.compressedImage(imageContent.getImageFile().getPath());
-
-                scheduleLogger.info("Image compressed successfully! the size is {}.", file.length());
-                imageContent.setImageFile(file);
-
-                scheduleLogger.info("The original image has been replaced with a new image, path:{}!", imageContentFile.getPath());
+        try {
+            String url = cronJobConfig.getWebHookUrl();
+
+            for (ImageContent imageContent : images) {
+                if (null == imageContent || imageContent.getImageFile() == null) {
+                    log.error("CronJob({}) image is null!", cronJob.getId());
+                    return;
+                }
+                File imageContentFile = imageContent.getImageFile();
+                List<File> imageFiles = Collections.singletonList(imageContentFile);
+                boolean processed = imagePipeline.needProcess(imageContentFile);
+                // 图片须小于2M，截图可能被其他任务共享，处理结果写入新文件而不是替换原图
+                if (processed) {
+                    scheduleLogger.info("CronJob({}) image start to process, the size is {}", cronJob.getId(), imageContentFile.length());
+                    imageFiles = imagePipeline.process(jobId, imageContentFile);
+                    if (CollectionUtils.isEmpty(imageFiles)) {
+                        scheduleLogger.error("CronJob({}) image process failed, skipped", cronJob.getId());
+                        continue;
+                    }
+                }
+
+                try {
+                    for (File imageFile : imageFiles) {
+                        scheduleLogger.info("CronJob({}) is ready to request WeChatWork API", cronJob.getId());
+
+                        Map<String, Object> weChatWorkMap = new HashMap<>();
+                        weChatWorkMap.put("msgtype", "image");
+
+                        Map<String, String> mbMap = getMD5AndBase64(imageFile);
+                        Map<String, String> imageMap = new HashMap<>();
+                        imageMap.put("base64", mbMap.get("base64"));
+                        imageMap.put("md5", mbMap.get("md5"));
+                        weChatWorkMap.put("image", imageMap);
+
+                        restTemplate.postForEntity(url, weChatWorkMap, null).toString();
+
+                        scheduleLogger.info("CronJob({}) is success to request WeChatWork API", cronJob.getId());
+                    }
+                } finally {
+                    if (processed) {
+                        imageFiles.forEach(File::delete);
+                    }
+                }
             }
-            
-            scheduleLogger.info("CronJob({}) is ready to request WeChatWork API", cronJob.getId());
-
-            Map<String, Object> weChatWorkMap = new HashMap<>();
-            weChatWorkMap.put("msgtype", "image");
 
-            Map<String, String> mbMap = getMD5AndBase64(imageContent.getImageFile());
-            Map<String, String> imageMap = new HashMap<>();
-            imageMap.put("base64", mbMap.get("base64"));
-            imageMap.put("md5", mbMap.get("md5"));
-            weChatWorkMap.put("image", imageMap);
-
-            restTemplate.postForEntity(url, weChatWorkMap, null).toString();
-
-            scheduleLogger.info("CronJob({}) is success to request WeChatWork API", cronJob.getId());
+            scheduleLogger.info("CronJob({}) is finish! --------------", jobId);
+        } finally {
+            releaseRenderContents(images, null);
         }
-
-        scheduleLogger.info("CronJob({}) is finish! --------------", jobId);
     }
 
     /**
@@ -21,18 +21,23 @@ package edp.davinci.service.impl;
 
 import com.alibaba.druid.util.StringUtils;
 import com.alibaba.fastjson.JSON;
+import edp.core.enums.DataTypeEnum;
 import edp.core.exception.NotFoundException;
 import edp.core.exception.ServerException;
 import edp.core.exception.UnAuthorizedException;
-import edp.core.model.PaginateWithQueryColumns;
-import edp.core.model.QueryColumn;
 import edp.core.utils.*;
+import edp.davinci.common.utils.ScriptUtils;
 import edp.davinci.core.common.ErrorMsg;
-import edp.davinci.core.config.SpringContextHolder;
+import edp.davinci.core.enums.ActionEnum;
 import edp.davinci.core.enums.CheckEntityEnum;
+import edp.davinci.core.enums.DownloadType;
 import edp.davinci.core.enums.FileTypeEnum;
 import edp.davinci.core.enums.LogNameEnum;
 import edp.davinci.core.enums.UserPermissionEnum;
+import edp.davinci.core.event.DomainEvent;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.WidgetChanged;
+import edp.davinci.core.model.ExcelHeader;
 import edp.davinci.core.model.SqlEntity;
 import edp.davinci.core.utils.CsvUtils;
 import edp.davinci.core.utils.ExcelUtils;
@@ -45,10 +50,10 @@ import edp.davinci.dao.WidgetMapper;
 import edp.davinci.dto.projectDto.ProjectDetail;
 import edp.davinci.dto.projectDto.ProjectPermission;
 import edp.davinci.dto.shareDto.ShareEntity;
+import edp.davinci.dto.viewDto.DownloadViewExecuteParam;
 import edp.davinci.dto.viewDto.SimpleView;
 import edp.davinci.dto.viewDto.ViewExecuteParam;
 import edp.davinci.dto.viewDto.ViewWithProjectAndSource;
-import edp.davinci.dto.viewDto.ViewWithSource;
 import edp.davinci.dto.widgetDto.WidgetCreate;
 import edp.davinci.dto.widgetDto.WidgetUpdate;
 import edp.davinci.dto.widgetDto.WidgetWithViewName;
@@ -56,10 +61,16 @@ import edp.davinci.model.Source;
 import edp.davinci.model.SqlVariable;
 import edp.davinci.model.User;
 import edp.davinci.model.Widget;
+import edp.davinci.service.DownloadService;
 import edp.davinci.service.ProjectService;
 import edp.davinci.service.ShareService;
 import edp.davinci.service.ViewService;
 import edp.davinci.service.WidgetService;
+import edp.davinci.service.excel.ExecutorUtils;
+import edp.davinci.service.excel.ExportMemoryBudget;
+import edp.davinci.service.excel.MsgWrapper;
+import edp.davinci.service.excel.SQLContext;
+import edp.davinci.service.excel.SheetContext;
 import edp.davinci.service.share.ShareFactor;
 import edp.davinci.service.share.ShareResult;
 import edp.davinci.service.share.ShareType;
@@ -70,6 +81,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -77,9 +89,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
 
 import static edp.core.consts.Consts.EMPTY;
 import static edp.core.consts.Consts.NEW_LINE_CHAR;
@@ -91,9 +101,14 @@ import static edp.davinci.common.utils.ScriptUtils.getViewExecuteParam;
 public class WidgetServiceImpl extends BaseEntityService implements WidgetService {
     private static final Logger optLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_OPERATION.getName());
 
+    private static final Logger downloadLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_DOWNLOAD.getName());
+
     @Autowired
     private WidgetMapper widgetMapper;
 
+    @Autowired
+    private DomainEventBus domainEventBus;
+
     @Autowired
     private ViewMapper viewMapper;
 
@@ -121,6 +136,21 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
     @Autowired
     private SqlParseUtils sqlParseUtils;
 
+    @Autowired
+    private SqlUtils sqlUtils;
+
+    @Autowired
+    private DownloadService downloadService;
+
+    @Autowired
+    private ExportMemoryBudget exportMemoryBudget;
+
+    @Value("${source.result-limit:1000000}")
+    private int resultLimit;
+
+    @Value("${source.export.csv-gzip:false}")
+    private boolean csvGzip;
+
     @Autowired
     private String TOKEN_SECRET;
 
@@ -228,6 +258,7 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
             }
 
             optLogger.info("Widget({}) is create by user({})", widget.toString());
+            domainEventBus.publish(new WidgetChanged(widget.getId(), widget.getProjectId(), DomainEvent.CREATE));
             return widget;
 
         } finally {
@@ -283,6 +314,7 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
 
             optLogger.info("Widget({}) is update by user({}), origin:{}", widget.toString(), user.getId(),
                     originStr);
+            domainEventBus.publish(new WidgetChanged(id, projectId, DomainEvent.UPDATE));
             return true;
 
         } finally {
@@ -319,6 +351,7 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
         widgetMapper.deleteById(id);
 
         optLogger.info("Widget({}) is delete by user({})", widget.toString(), user.getId());
+        domainEventBus.publish(new WidgetChanged(id, widget.getProjectId(), DomainEvent.DELETE));
         return true;
     }
 
@@ -379,11 +412,10 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
         String filePath = null;
         try {
             if (type.equals(FileTypeEnum.CSV.getType())) {
-                ViewWithSource viewWithSource = viewMapper.getViewWithSource(widget.getViewId());
+                ViewWithProjectAndSource viewWithProjectAndSource = viewMapper.getViewWithProjectAndSourceById(widget.getViewId());
                 boolean maintainer = projectService.isMaintainer(projectDetail, user);
-                PaginateWithQueryColumns paginate = viewService.getResultDataList(maintainer, viewWithSource, executeParam, user);
-                List<QueryColumn> columns = paginate.getColumns();
-                if (!CollectionUtils.isEmpty(columns)) {
+                SQLContext sqlContext = viewService.getSQLContext(maintainer, viewWithProjectAndSource, executeParam, user);
+                if (null != sqlContext && !CollectionUtils.isEmpty(sqlContext.getQuerySql())) {
                     File file = new File(rootPath);
                     if (!file.exists()) {
                         file.mkdirs();
@@ -394,7 +426,17 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
                             UUID.randomUUID().toString().replace("-", EMPTY) +
                             FileTypeEnum.CSV.getFormat();
 
-                    filePath = CsvUtils.formatCsvWithFirstAsHeader(rootPath, csvName, columns, paginate.getResultList());
+                    SqlUtils sqlUtils = this.sqlUtils.init(viewWithProjectAndSource.getSource());
+                    if (!CollectionUtils.isEmpty(sqlContext.getExecuteSql())) {
+                        sqlContext.getExecuteSql().forEach(sqlUtils::execute);
+                    }
+
+                    // 查询结果逐行写入文件，不在内存中保存结果集
+                    String querySql = sqlContext.getQuerySql().get(sqlContext.getQuerySql().size() - 1);
+                    Set<String> excludeColumns = null == sqlContext.getExcludeColumns() ? new HashSet<>() : new HashSet<>(sqlContext.getExcludeColumns());
+                    filePath = CsvUtils.exportCsvWithFirstAsHeader(rootPath, csvName, sqlUtils,
+                            SqlParseUtils.rebuildSqlWithFragment(querySql), executeParam.getPageNo(), executeParam.getPageSize(),
+                            executeParam.getLimit(), excludeColumns, csvGzip);
                 }
             } else if (type.equals(FileTypeEnum.XLSX.getType())) {
 
@@ -408,8 +450,20 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
                 Map<Long, ViewExecuteParam> executeParamMap = new HashMap<>();
                 executeParamMap.put(widget.getId(), executeParam);
 
+                // getSQLContext 会改写执行参数，转异步下载时使用副本
+                ViewExecuteParam asyncExecuteParam = JSON.parseObject(JSON.toJSONString(executeParam), ViewExecuteParam.class);
+
                 filePath = rootPath + excelName;
-                writeExcel(widgets, projectDetail, executeParamMap, filePath, user, false);
+                if (null == writeExcel(widgets, projectDetail, executeParamMap, filePath, user, false)) {
+                    DownloadViewExecuteParam downloadParam = new DownloadViewExecuteParam();
+                    downloadParam.setId(widget.getId());
+                    downloadParam.setParam(asyncExecuteParam);
+                    if (!downloadService.submit(DownloadType.Widget, widget.getId(), user, Collections.singletonList(downloadParam))) {
+                        throw new ServerException("Submit download task error");
+                    }
+                    log.info("Widget({}) excel export exceed the budget, switched to download task", widget.getId());
+                    return null;
+                }
 
             } else {
                 throw new ServerException("Unknown file type");
@@ -424,6 +478,8 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
 
     /**
      * widget列表数据写入指定excel文件
+     * <p>
+     * 各sheet在共享的sheet线程池中边查询边写入，导出按预估内存占用全局额度，额度不足时返回null
      *
      * @param widgets
      * @param projectDetail
@@ -446,77 +502,133 @@ public class WidgetServiceImpl extends BaseEntityService implements WidgetServic
             throw new ServerException("Unknown file format");
         }
 
-        SXSSFWorkbook wb = new SXSSFWorkbook(1000);
-        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(widgets.size(), 8));
-        CountDownLatch countDownLatch = new CountDownLatch(widgets.size());
-        int i = 1;
         boolean maintainer = projectService.isMaintainer(projectDetail, user);
-        Iterator<Widget> iterator = widgets.iterator();
-        while (iterator.hasNext()) {
-            Widget widget = iterator.next();
-            final String sheetName = widgets.size() == 1 ? "Sheet" : "Sheet" + (widgets.size() - (i - 1));
-            executorService.execute(() -> {
-                Sheet sheet = null;
-                try {
-
-                    ViewWithProjectAndSource viewWithProjectAndSource = viewMapper
-                            .getViewWithProjectAndSourceById(widget.getViewId());
-
-                    ViewExecuteParam executeParam = null;
-                    if (null != executeParamMap && executeParamMap.containsKey(widget.getId())) {
-                        executeParam = executeParamMap.get(widget.getId());
-                    } else {
-
-                        Set<SimpleView> simpleViews = new HashSet<>();
-
-                        // widget controller view
-                        Map<String, Object> widgetConfigMap = JSON.parseObject(widget.getConfig(), Map.class);
-                        if (!CollectionUtils.isEmpty(widgetConfigMap)) {
-                            simpleViews.addAll(VizUtils.getControllerViews((List<Map<String, Object>>) widgetConfigMap.get("controls")));
-                        }
-
-                        // widget view
-                        simpleViews.add(((ViewMapper) SpringContextHolder.getBean(ViewMapper.class)).getSimpleViewById(widget.getViewId()));
-
-                        executeParam = getViewExecuteParam(null, widget.getConfig(), simpleViews, null);
-                    }
+        List<SheetContext> sheetContexts = new ArrayList<>();
+        long estimatedKb = 0L;
+        int i = 1;
+        for (Widget widget : widgets) {
+            String sheetName = widgets.size() == 1 ? "Sheet" : "Sheet" + (widgets.size() - (i - 1));
+            i++;
 
-                    PaginateWithQueryColumns paginate = viewService.getResultDataList(maintainer,
-                            viewWithProjectAndSource, executeParam, user);
-
-                    sheet = wb.createSheet(sheetName);
-                    ExcelUtils.writeSheet(sheet, paginate.getColumns(), paginate.getResultList(), wb, containType,
-                            widget.getConfig(), executeParam.getParams());
-                } catch (Exception e) {
-                    log.error(e.toString(), e);
-                } finally {
-                    sheet = null;
-                    countDownLatch.countDown();
-                }
-            });
+            ViewExecuteParam executeParam = getExcelExecuteParam(widget, executeParamMap);
+            SheetContext sheetContext = buildSheetContext(widget, executeParam, maintainer, user, sheetName, containType);
+            if (null == sheetContext) {
+                continue;
+            }
 
-            i++;
+            int columns = (null == executeParam.getGroups() ? 0 : executeParam.getGroups().size()) +
+                    (null == executeParam.getAggregators() ? 0 : executeParam.getAggregators().size());
+            // 不额外执行count，以查询的limit与结果上限作为行数上限
+            long rows = executeParam.getLimit() > 0 ? Math.min(executeParam.getLimit(), resultLimit) : resultLimit;
+            // 只有mysql按 Integer.MIN_VALUE 的 fetchSize 逐行读取，见 SheetWorker
+            boolean streamed = sheetContext.getSqlUtils().getDataTypeEnum() == DataTypeEnum.MYSQL;
+            estimatedKb += exportMemoryBudget.estimate(rows, columns, streamed);
+            sheetContexts.add(sheetContext);
         }
 
-        countDownLatch.await();
-        executorService.shutdown();
-
-        File file = new File(filePath);
-        File dir = new File(file.getParent());
-        if (!dir.exists()) {
-            dir.mkdirs();
+        int budgetKb = (int) Math.min(estimatedKb, Integer.MAX_VALUE);
+        if (!exportMemoryBudget.tryAcquire(budgetKb)) {
+            log.info("Excel export estimated {} KB, available {} KB, exceed the budget", budgetKb, exportMemoryBudget.getAvailableKb());
+            return null;
         }
 
-        FileOutputStream out = new FileOutputStream(filePath);
+        SXSSFWorkbook wb = new SXSSFWorkbook(ExportMemoryBudget.ROW_ACCESS_WINDOW);
         try {
-            wb.write(out);
-            out.flush();
-        } catch (Exception e) {
-            // ignore
+            List<Future<Boolean>> futures = new ArrayList<>();
+            int sheetNo = 0;
+            for (SheetContext sheetContext : sheetContexts) {
+                sheetNo++;
+                Sheet sheet = wb.createSheet(sheetContext.getName());
+                sheetContext.setSheet(sheet);
+                sheetContext.setWorkbook(wb);
+                sheetContext.setSheetNo(sheetNo);
+                futures.add(ExecutorUtils.submitSheetTask(sheetContext, downloadLogger));
+            }
+
+            boolean rst = true;
+            try {
+                for (Future<Boolean> future : futures) {
+                    if (!future.get(1, TimeUnit.HOURS)) {
+                        rst = false;
+                        break;
+                    }
+                }
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                log.error(e.toString(), e);
+                rst = false;
+            }
+
+            if (!rst) {
+                futures.forEach(future -> future.cancel(true));
+                throw new ServerException("Write excel error");
+            }
+
+            File file = new File(filePath);
+            File dir = new File(file.getParent());
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+
+            try (FileOutputStream out = new FileOutputStream(filePath)) {
+                wb.write(out);
+                out.flush();
+            }
+            return file;
         } finally {
-            FileUtils.closeCloseable(out);
+            wb.dispose();
+            exportMemoryBudget.release(budgetKb);
         }
-        return file;
+    }
+
+    private ViewExecuteParam getExcelExecuteParam(Widget widget, Map<Long, ViewExecuteParam> executeParamMap) {
+        if (null != executeParamMap && executeParamMap.containsKey(widget.getId())) {
+            return executeParamMap.get(widget.getId());
+        }
+
+        Set<SimpleView> simpleViews = new HashSet<>();
+
+        // widget controller view
+        Map<String, Object> widgetConfigMap = JSON.parseObject(widget.getConfig(), Map.class);
+        if (!CollectionUtils.isEmpty(widgetConfigMap)) {
+            simpleViews.addAll(VizUtils.getControllerViews((List<Map<String, Object>>) widgetConfigMap.get("controls")));
+        }
+
+        // widget view
+        simpleViews.add(viewMapper.getSimpleViewById(widget.getViewId()));
+
+        return getViewExecuteParam(null, widget.getConfig(), simpleViews, null);
+    }
+
+    private SheetContext buildSheetContext(Widget widget, ViewExecuteParam executeParam, boolean maintainer, User user,
+                                           String sheetName, boolean containType) {
+
+        ViewWithProjectAndSource viewWithProjectAndSource = viewMapper.getViewWithProjectAndSourceById(widget.getViewId());
+        SQLContext sqlContext = viewService.getSQLContext(maintainer, viewWithProjectAndSource, executeParam, user);
+        if (null == sqlContext || CollectionUtils.isEmpty(sqlContext.getQuerySql())) {
+            return null;
+        }
+
+        boolean isTable = ExcelUtils.isTable(widget.getConfig());
+        List<ExcelHeader> excelHeaders = null;
+        if (isTable) {
+            excelHeaders = ScriptUtils.formatHeader(widget.getConfig(), sqlContext.getViewExecuteParam().getParams());
+        }
+
+        return SheetContext.SheetContextBuilder.newBuilder()
+                .withExecuteSql(sqlContext.getExecuteSql())
+                .withQuerySql(sqlContext.getQuerySql())
+                .withExcludeColumns(sqlContext.getExcludeColumns())
+                .withContain(containType)
+                .withSqlUtils(sqlUtils.init(viewWithProjectAndSource.getSource()))
+                .withIsTable(isTable)
+                .withExcelHeaders(excelHeaders)
+                .withWidgetId(widget.getId())
+                .withName(sheetName)
+                .withWrapper(new MsgWrapper<>(widget, ActionEnum.DOWNLOAD, widget.getId()))
+                .withResultLimit(resultLimit)
+                .withTaskKey("ExcelTask_" + widget.getId())
+                .withCustomLogger(downloadLogger)
+                .build();
     }
 
     @Override
@@ -0,0 +1,370 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.incremental;
+
+import com.alibaba.druid.util.StringUtils;
+import com.alibaba.fastjson.JSONObject;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edp.core.common.buffer.ResultBuffer;
+import edp.core.enums.DataTypeEnum;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.utils.CollectionUtils;
+import edp.core.utils.MD5Util;
+import edp.davinci.core.dialect.QueryDialect;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.SourceChanged;
+import edp.davinci.core.event.ViewUpdated;
+import edp.davinci.dto.viewDto.Order;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.dto.viewDto.ViewWithSource;
+import edp.davinci.model.Source;
+import edp.davinci.model.View;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 时序view增量刷新结果缓存
+ * <p>
+ * view config 中声明单调递增的时间列，如 {"incremental": {"column": "stat_hour", "lookback": 1}}，
+ * 当该列参与分组时，刷新只查询水位线（最近 lookback 个时间桶）之后及时间列为空的数据，并与上次的聚合结果合并；
+ * 时间类型的水位线按数据源方言输出常量，不支持的数据源不做增量刷新
+ */
+@Slf4j
+@Component
+public class IncrementalResultCache {
+
+    private static final String CONFIG_INCREMENTAL = "incremental";
+
+    private static final String CONFIG_COLUMN = "column";
+
+    private static final String CONFIG_LOOKBACK = "lookback";
+
+    private static final String DESC = "DESC";
+
+    @Autowired
+    private DomainEventBus domainEventBus;
+
+    @Value("${source.incremental-refresh.enable:true}")
+    private boolean enable;
+
+    @Value("${source.incremental-refresh.max-entries:256}")
+    private long maxEntries;
+
+    @Value("${source.incremental-refresh.max-rows:50000}")
+    private int maxRows;
+
+    @Value("${source.incremental-refresh.full-refresh-seconds:3600}")
+    private long fullRefreshSeconds;
+
+    private Cache<String, IncrementalResult> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(fullRefreshSeconds, TimeUnit.SECONDS)
+                .build();
+        domainEventBus.subscribe(ViewUpdated.class, event -> invalidateView(event.getEntityId()));
+        domainEventBus.subscribe(SourceChanged.class, event -> invalidateSource(event.getEntityId()));
+    }
+
+    /**
+     * 获取可增量刷新的时间列，不满足增量条件时返回null
+     *
+     * @param view
+     * @param executeParam
+     * @return
+     */
+    public String getIncrementalColumn(View view, ViewExecuteParam executeParam) {
+        if (!enable || executeParam.isNativeQuery()) {
+            return null;
+        }
+
+        // 分页或限制条数时，增量结果无法与上次结果合并
+        if (executeParam.getLimit() > 0 || executeParam.getPageNo() > 0 || executeParam.getPageSize() > 0) {
+            return null;
+        }
+
+        JSONObject incremental = getIncrementalConfig(view);
+        String column = incremental == null ? null : incremental.getString(CONFIG_COLUMN);
+        if (StringUtils.isEmpty(column)) {
+            return null;
+        }
+
+        List<String> groups = executeParam.getGroups();
+        if (CollectionUtils.isEmpty(groups) || !groups.contains(column)) {
+            return null;
+        }
+
+        if (!CollectionUtils.isEmpty(executeParam.getOrders())) {
+            for (Order order : executeParam.getOrders()) {
+                if (!isColumn(order.getColumn(), column)) {
+                    return null;
+                }
+            }
+        }
+
+        return column;
+    }
+
+    public String getKey(ViewWithSource viewWithSource, String querySql, Set<String> excludeColumns) {
+        Source source = viewWithSource.getSource();
+        StringBuilder saltBuilder = new StringBuilder();
+        saltBuilder.append(viewWithSource.getId()).append(MINUS);
+        saltBuilder.append(source.getId()).append(MINUS);
+        saltBuilder.append(source.getJdbcUrl()).append(MINUS);
+        saltBuilder.append(source.getUsername()).append(MINUS);
+        saltBuilder.append(source.getDbVersion()).append(MINUS);
+        excludeColumns.forEach(saltBuilder::append);
+        return MD5Util.getMD5(saltBuilder.toString() + querySql, true, 32);
+    }
+
+    public IncrementalResult get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * 缓存全量查询结果，计算水位线
+     *
+     * @param key
+     * @param viewWithSource
+     * @param column
+     * @param executeParam
+     * @param paginate
+     */
+    public void put(String key, ViewWithSource viewWithSource, String column, ViewExecuteParam executeParam, PaginateWithQueryColumns paginate) {
+        // 落盘的结果在请求结束后不可读取，复制又会整体读回堆内存，不缓存
+        if (null == paginate || CollectionUtils.isEmpty(paginate.getResultList()) || paginate.getResultList().size() > maxRows
+                || ResultBuffer.isSpilled(paginate.getResultList())) {
+            cache.invalidate(key);
+            return;
+        }
+
+        Object watermark = getWatermark(paginate.getResultList(), column, getLookback(viewWithSource));
+        String literal = null == watermark ? null : toLiteral(watermark, viewWithSource.getSource());
+        if (null == literal) {
+            cache.invalidate(key);
+            return;
+        }
+
+        IncrementalResult result = new IncrementalResult();
+        result.viewId = viewWithSource.getId();
+        result.sourceId = viewWithSource.getSourceId();
+        result.column = column;
+        result.ordered = isOrdered(column, executeParam);
+        result.descending = isDescending(column, executeParam);
+        result.watermark = watermark;
+        result.literal = literal;
+        result.paginate = copy(paginate, paginate.getResultList());
+        cache.put(key, result);
+    }
+
+    /**
+     * 增量查询的过滤条件，时间列为空的分组每次重新查询
+     *
+     * @param result
+     * @param source
+     * @return
+     */
+    public String getDeltaFilter(IncrementalResult result, Source source) {
+        String field = ViewExecuteParam.getField(result.column, source.getJdbcUrl(), source.getDbVersion());
+        return "(" + field + " >= " + result.literal + " OR " + field + " IS NULL)";
+    }
+
+    /**
+     * 合并上次结果与增量结果：水位线之前的行保留，之后及时间列为空的行以增量结果为准；
+     * 按时间列排序的查询重新排序，否则保持上次结果在前、增量结果在后的原有顺序
+     *
+     * @param key
+     * @param viewWithSource
+     * @param result
+     * @param executeParam
+     * @param delta
+     * @return
+     */
+    public PaginateWithQueryColumns merge(String key, ViewWithSource viewWithSource, IncrementalResult result,
+                                          ViewExecuteParam executeParam, PaginateWithQueryColumns delta) {
+        String column = result.column;
+        List<Map<String, Object>> resultList = new ArrayList<>();
+        for (Map<String, Object> row : result.paginate.getResultList()) {
+            Object value = row.get(column);
+            if (null != value && compare(value, result.watermark) < 0) {
+                resultList.add(row);
+            }
+        }
+
+        if (null != delta && !CollectionUtils.isEmpty(delta.getResultList())) {
+            for (Map<String, Object> row : delta.getResultList()) {
+                Object value = row.get(column);
+                if (null == value || compare(value, result.watermark) >= 0) {
+                    resultList.add(row);
+                }
+            }
+        }
+
+        if (result.ordered) {
+            Comparator<Map<String, Object>> comparator = (r1, r2) -> compare(r1.get(column), r2.get(column));
+            resultList.sort(result.descending ? comparator.reversed() : comparator);
+        }
+
+        PaginateWithQueryColumns merged = copy(null != delta && !CollectionUtils.isEmpty(delta.getColumns()) ? delta : result.paginate, resultList);
+        log.info("View({}) incremental refresh, watermark:{}, delta rows:{}, total rows:{}", result.viewId,
+                result.watermark, null == delta ? 0 : delta.getResultList().size(), resultList.size());
+
+        put(key, viewWithSource, column, executeParam, merged);
+        return merged;
+    }
+
+    public void invalidateView(Long viewId) {
+        cache.asMap().values().removeIf(result -> Objects.equals(result.viewId, viewId));
+    }
+
+    public void invalidateSource(Long sourceId) {
+        cache.asMap().values().removeIf(result -> Objects.equals(result.sourceId, sourceId));
+    }
+
+    private JSONObject getIncrementalConfig(View view) {
+        if (StringUtils.isEmpty(view.getConfig())) {
+            return null;
+        }
+        try {
+            return JSONObject.parseObject(view.getConfig()).getJSONObject(CONFIG_INCREMENTAL);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private int getLookback(View view) {
+        JSONObject incremental = getIncrementalConfig(view);
+        Integer lookback = incremental == null ? null : incremental.getInteger(CONFIG_LOOKBACK);
+        return null == lookback || lookback < 1 ? 1 : lookback;
+    }
+
+    private boolean isOrdered(String column, ViewExecuteParam executeParam) {
+        if (CollectionUtils.isEmpty(executeParam.getOrders())) {
+            return false;
+        }
+        for (Order order : executeParam.getOrders()) {
+            if (isColumn(order.getColumn(), column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDescending(String column, ViewExecuteParam executeParam) {
+        if (CollectionUtils.isEmpty(executeParam.getOrders())) {
+            return false;
+        }
+        for (Order order : executeParam.getOrders()) {
+            if (isColumn(order.getColumn(), column) && DESC.equalsIgnoreCase(order.getDirection())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 排序列在生成sql时可能已被加上关键字前后缀
+     */
+    private boolean isColumn(String orderColumn, String column) {
+        String c = orderColumn.trim();
+        return c.equals(column) || (c.length() == column.length() + 2 && c.substring(1, c.length() - 1).equals(column));
+    }
+
+    /**
+     * 取倒数第lookback个时间桶作为水位线，时间桶不足时返回null
+     */
+    private Object getWatermark(List<Map<String, Object>> resultList, String column, int lookback) {
+        TreeSet<Object> values = new TreeSet<>(IncrementalResultCache::compare);
+        for (Map<String, Object> row : resultList) {
+            Object value = row.get(column);
+            if (null != value) {
+                values.add(value);
+                if (values.size() > lookback) {
+                    values.pollFirst();
+                }
+            }
+        }
+        return values.size() < lookback ? null : values.first();
+    }
+
+    private static String toLiteral(Object value, Source source) {
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof Date) {
+            QueryDialect dialect = QueryDialect.of(DataTypeEnum.urlOf(source.getJdbcUrl()));
+            return null == dialect ? null : dialect.getTimeLiteral((Date) value);
+        }
+        if (value instanceof String) {
+            return "'" + ((String) value).replace("'", "''") + "'";
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object o1, Object o2) {
+        if (null == o1) {
+            return null == o2 ? 0 : -1;
+        }
+        if (null == o2) {
+            return 1;
+        }
+        if (o1 instanceof Number && o2 instanceof Number) {
+            return new BigDecimal(o1.toString()).compareTo(new BigDecimal(o2.toString()));
+        }
+        if (o1 instanceof Comparable && o1.getClass().isInstance(o2)) {
+            return ((Comparable<Object>) o1).compareTo(o2);
+        }
+        return String.valueOf(o1).compareTo(String.valueOf(o2));
+    }
+
+    private static PaginateWithQueryColumns copy(PaginateWithQueryColumns paginate, List<Map<String, Object>> resultList) {
+        PaginateWithQueryColumns copy = new PaginateWithQueryColumns();
+        copy.setColumns(paginate.getColumns());
+        copy.setResultList(new ArrayList<>(resultList));
+        copy.setPageNo(1);
+        copy.setPageSize(resultList.size());
+        copy.setTotalCount(resultList.size());
+        return copy;
+    }
+
+    public static class IncrementalResult {
+        private Long viewId;
+        private Long sourceId;
+        private String column;
+        private boolean ordered;
+        private boolean descending;
+        private Object watermark;
+        private String literal;
+        private PaginateWithQueryColumns paginate;
+    }
+}
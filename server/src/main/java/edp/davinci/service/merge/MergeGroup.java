@@ -0,0 +1,103 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.merge;
+
+import edp.core.model.PaginateWithQueryColumns;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 时间窗口内收集到的可合并查询，第一个加入的查询负责执行合并后的sql
+ */
+class MergeGroup {
+
+    private final List<Member> members = new ArrayList<>();
+
+    private final Map<String, Aggregator> aggregators = new LinkedHashMap<>();
+
+    private final int maxAggregators;
+
+    private boolean closed = false;
+
+    MergeGroup(int maxAggregators) {
+        this.maxAggregators = maxAggregators;
+    }
+
+    /**
+     * 加入分组，分组已关闭时返回null
+     *
+     * @param executeParam
+     * @return
+     */
+    synchronized Member join(ViewExecuteParam executeParam) {
+        if (closed) {
+            return null;
+        }
+
+        Map<String, Aggregator> added = new LinkedHashMap<>();
+        for (Aggregator aggregator : executeParam.getAggregators()) {
+            String label = QueryMerger.getLabel(aggregator);
+            if (!aggregators.containsKey(label)) {
+                added.put(label, aggregator);
+            }
+        }
+
+        // 聚合列过多时不再加入，由调用方开启新的分组
+        if (!members.isEmpty() && aggregators.size() + added.size() > maxAggregators) {
+            closed = true;
+            return null;
+        }
+
+        aggregators.putAll(added);
+        Member member = new Member(executeParam, members.isEmpty());
+        members.add(member);
+        return member;
+    }
+
+    synchronized List<Member> close() {
+        closed = true;
+        return new ArrayList<>(members);
+    }
+
+    synchronized List<Aggregator> getAggregators() {
+        return new ArrayList<>(aggregators.values());
+    }
+
+    static class Member {
+
+        final ViewExecuteParam executeParam;
+
+        final boolean leader;
+
+        final CompletableFuture<PaginateWithQueryColumns> future = new CompletableFuture<>();
+
+        Member(ViewExecuteParam executeParam, boolean leader) {
+            this.executeParam = executeParam;
+            this.leader = leader;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.merge;
+
+import com.alibaba.fastjson.JSON;
+import edp.core.common.jdbc.QueryContext;
+import edp.core.exception.ServerException;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.model.QueryColumn;
+import edp.core.utils.CollectionUtils;
+import edp.core.utils.MD5Util;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import static edp.core.consts.Consts.*;
+
+/**
+ * 跨widget查询合并
+ * <p>
+ * 同一用户对同一view、相同过滤与分组的查询在短时间窗口内收集到一起，
+ * 合并各自的聚合列只执行一次sql，再按各查询的列拆分结果
+ * <p>
+ * 只有该用户有批量取数（dashboard批量接口、预取）进行中时才等待窗口，单个查询直接执行
+ */
+@Slf4j
+@Component
+public class QueryMerger {
+
+    private static final String COUNT_DISTINCT = "COUNTDISTINCT";
+
+    @Value("${source.query-merge.enable:true}")
+    private boolean enable;
+
+    @Value("${source.query-merge.window-millis:20}")
+    private long windowMillis;
+
+    @Value("${source.query-merge.max-aggregators:32}")
+    private int maxAggregators;
+
+    private final Map<String, MergeGroup> groups = new ConcurrentHashMap<>();
+
+    /**
+     * 各用户进行中的批量取数个数
+     */
+    private final Map<Long, Integer> batches = new ConcurrentHashMap<>();
+
+    /**
+     * 开始一次批量取数，期间该用户的查询等待窗口内的其它查询合并执行
+     *
+     * @param userId
+     */
+    public void beginBatch(Long userId) {
+        if (enable && null != userId) {
+            batches.merge(userId, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * 结束批量取数，与 beginBatch 成对调用
+     *
+     * @param userId
+     */
+    public void endBatch(Long userId) {
+        if (enable && null != userId) {
+            batches.computeIfPresent(userId, (k, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * 执行查询，可合并时等待窗口内的其它查询一同执行
+     *
+     * @param viewId
+     * @param userId
+     * @param executeParam
+     * @param loader
+     * @return
+     * @throws ServerException
+     * @throws SQLException
+     */
+    public PaginateWithQueryColumns execute(Long viewId, Long userId, ViewExecuteParam executeParam, QueryLoader loader) throws ServerException, SQLException {
+        String key = getKey(viewId, userId, executeParam);
+        if (null == key) {
+            try {
+                return loader.load(executeParam);
+            } catch (RuntimeException | SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ServerException(e.getMessage());
+            }
+        }
+
+        MergeGroup group;
+        MergeGroup.Member member;
+        while (true) {
+            group = groups.computeIfAbsent(key, k -> new MergeGroup(Math.max(maxAggregators, 1)));
+            member = group.join(executeParam);
+            if (null != member) {
+                break;
+            }
+            groups.remove(key, group);
+        }
+
+        if (member.leader) {
+            // 没有批量取数时不会有其它查询加入，不等待
+            if (windowMillis > 0L && batches.containsKey(userId)) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<MergeGroup.Member> members = group.close();
+            groups.remove(key, group);
+            run(viewId, group, members, loader);
+        }
+
+        try {
+            return member.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerException("Query interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new ServerException(cause.getMessage());
+        }
+    }
+
+    private void run(Long viewId, MergeGroup group, List<MergeGroup.Member> members, QueryLoader loader) {
+        if (members.size() == 1) {
+            MergeGroup.Member member = members.get(0);
+            try {
+                member.future.complete(loader.load(member.executeParam));
+            } catch (Throwable e) {
+                member.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        List<Aggregator> aggregators = group.getAggregators();
+        // 合并后的查询由多个请求共享，不随其中某个请求的取消而终止
+        QueryContext context = QueryContext.suspend();
+        try {
+            PaginateWithQueryColumns paginate = loader.load(merge(members.get(0).executeParam, aggregators));
+            log.info("View({}) merged {} queries into one, aggregators:{}", viewId, members.size(), aggregators.size());
+            for (MergeGroup.Member member : members) {
+                member.future.complete(split(paginate, member.executeParam));
+            }
+        } catch (Throwable e) {
+            members.forEach(member -> member.future.completeExceptionally(e));
+        } finally {
+            QueryContext.resume(context);
+        }
+    }
+
+    /**
+     * 可合并的查询返回合并键，否则返回null
+     */
+    private String getKey(Long viewId, Long userId, ViewExecuteParam executeParam) {
+        if (!enable || null == executeParam || executeParam.isNativeQuery() || CollectionUtils.isEmpty(executeParam.getAggregators())) {
+            return null;
+        }
+
+        for (Aggregator aggregator : executeParam.getAggregators()) {
+            if (null == aggregator.getColumn() || null == aggregator.getFunc()) {
+                return null;
+            }
+        }
+
+        // 聚合列以外的部分完全相同时，合并后的分组与行顺序不变
+        StringBuilder keyBuilder = new StringBuilder();
+        keyBuilder.append(viewId).append(MINUS);
+        keyBuilder.append(userId).append(MINUS);
+        keyBuilder.append(JSON.toJSONString(executeParam.getGroups())).append(MINUS);
+        keyBuilder.append(JSON.toJSONString(executeParam.getFilters())).append(MINUS);
+        keyBuilder.append(JSON.toJSONString(executeParam.getParams())).append(MINUS);
+        keyBuilder.append(JSON.toJSONString(executeParam.getOrders())).append(MINUS);
+        keyBuilder.append(executeParam.getCache()).append(MINUS);
+        keyBuilder.append(executeParam.getExpired()).append(MINUS);
+        keyBuilder.append(executeParam.getFlush()).append(MINUS);
+        keyBuilder.append(executeParam.getLimit()).append(MINUS);
+        keyBuilder.append(executeParam.getPageNo()).append(MINUS);
+        keyBuilder.append(executeParam.getPageSize()).append(MINUS);
+        keyBuilder.append(executeParam.getTotalCount());
+        return MD5Util.getMD5(keyBuilder.toString(), true, 32);
+    }
+
+    private ViewExecuteParam merge(ViewExecuteParam executeParam, List<Aggregator> aggregators) {
+        ViewExecuteParam merged = new ViewExecuteParam(executeParam.getGroups(), aggregators, executeParam.getOrders(),
+                executeParam.getFilters(), executeParam.getParams(), executeParam.getCache(), executeParam.getExpired(), false);
+        merged.setFlush(executeParam.getFlush());
+        merged.setLimit(executeParam.getLimit());
+        merged.setPageNo(executeParam.getPageNo());
+        merged.setPageSize(executeParam.getPageSize());
+        merged.setTotalCount(executeParam.getTotalCount());
+        merged.setConcurrencyOptimization(executeParam.isConcurrencyOptimization());
+        merged.setConcurrencyOptimizationStrategy(executeParam.getConcurrencyOptimizationStrategy());
+        return merged;
+    }
+
+    /**
+     * 按查询自身的分组与聚合列从合并结果中拆分
+     */
+    private PaginateWithQueryColumns split(PaginateWithQueryColumns paginate, ViewExecuteParam executeParam) {
+        if (null == paginate) {
+            return null;
+        }
+
+        List<String> labels = new ArrayList<>();
+        if (!CollectionUtils.isEmpty(executeParam.getGroups())) {
+            labels.addAll(executeParam.getGroups());
+        }
+        executeParam.getAggregators().forEach(aggregator -> labels.add(getLabel(aggregator)));
+
+        Map<String, QueryColumn> columnMap = new HashMap<>();
+        if (!CollectionUtils.isEmpty(paginate.getColumns())) {
+            paginate.getColumns().forEach(column -> columnMap.put(column.getName(), column));
+        }
+
+        List<QueryColumn> columns = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (String label : labels) {
+            QueryColumn column = columnMap.get(label);
+            if (null == column) {
+                // 部分数据库返回的列名大小写与别名不一致
+                column = columnMap.values().stream().filter(c -> c.getName().equalsIgnoreCase(label)).findFirst().orElse(null);
+            }
+            // 被列权限排除的列不存在于合并结果中
+            if (null != column && !keys.contains(column.getName())) {
+                columns.add(column);
+                keys.add(column.getName());
+            }
+        }
+
+        List<Map<String, Object>> resultList = new ArrayList<>();
+        if (null != paginate.getResultList()) {
+            for (Map<String, Object> row : paginate.getResultList()) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                keys.forEach(key -> map.put(key, row.get(key)));
+                resultList.add(map);
+            }
+        }
+
+        PaginateWithQueryColumns result = new PaginateWithQueryColumns();
+        result.setColumns(columns);
+        result.setResultList(resultList);
+        result.setPageNo(paginate.getPageNo());
+        result.setPageSize(paginate.getPageSize());
+        result.setTotalCount(paginate.getTotalCount());
+        return result;
+    }
+
+    /**
+     * 聚合列在结果集中的列名，与 ViewExecuteParam 生成的别名一致
+     *
+     * @param aggregator
+     * @return
+     */
+    static String getLabel(Aggregator aggregator) {
+        String func = aggregator.getFunc().trim();
+        if (COUNT_DISTINCT.equals(func.toUpperCase())) {
+            func = COUNT_DISTINCT;
+        }
+        return String.join(EMPTY, func, PARENTHESES_START, aggregator.getColumn(), PARENTHESES_END);
+    }
+
+    public interface QueryLoader {
+        PaginateWithQueryColumns load(ViewExecuteParam executeParam) throws Exception;
+    }
+}
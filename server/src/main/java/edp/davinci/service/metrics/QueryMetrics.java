@@ -0,0 +1,157 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.metrics;
+
+import edp.core.enums.QueryStageEnum;
+import edp.core.utils.QueryTrace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 数据查询耗时统计
+ * <p>
+ * 按阶段、数据源、view记录耗时直方图，以及返回的行数与字节数，输出为 Prometheus 文本格式
+ */
+@Component
+public class QueryMetrics {
+
+    private static final String OTHER = "other";
+
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    @Value("${source.metrics.enable:true}")
+    private boolean enable;
+
+    @Value("${source.metrics.max-views:1000}")
+    private int maxViews;
+
+    private final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> sources = new ConcurrentHashMap<>();
+
+    private final Map<String, Histogram> views = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> rows = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> bytes = new ConcurrentHashMap<>();
+
+    public boolean isEnable() {
+        return enable;
+    }
+
+    /**
+     * 记录一次数据请求
+     *
+     * @param trace
+     * @param responseBytes
+     */
+    public void record(QueryTrace trace, long responseBytes) {
+        if (!enable || null == trace) {
+            return;
+        }
+
+        for (QueryStageEnum stage : QueryStageEnum.values()) {
+            long nanos = trace.getStageNanos(stage);
+            if (nanos > 0L) {
+                stages.computeIfAbsent(stage.getStage(), k -> new Histogram()).observe(nanos);
+            }
+        }
+
+        long total = trace.getElapsedNanos();
+        String source = null == trace.getSourceId() ? OTHER : String.valueOf(trace.getSourceId());
+        sources.computeIfAbsent(source, k -> new Histogram()).observe(total);
+
+        String view = null == trace.getViewId() ? OTHER : String.valueOf(trace.getViewId());
+        if (!views.containsKey(view) && views.size() >= maxViews) {
+            view = OTHER;
+        }
+        views.computeIfAbsent(view, k -> new Histogram()).observe(total);
+
+        if (trace.getRows() > 0L) {
+            rows.computeIfAbsent(source, k -> new LongAdder()).add(trace.getRows());
+        }
+        if (responseBytes > 0L) {
+            bytes.computeIfAbsent(source, k -> new LongAdder()).add(responseBytes);
+        }
+    }
+
+    public void write(PrintWriter writer) {
+        writeHistograms(writer, "davinci_query_stage_seconds", "Data query time by stage", "stage", stages);
+        writeHistograms(writer, "davinci_query_source_seconds", "Data query total time by source", "source", sources);
+        writeHistograms(writer, "davinci_query_view_seconds", "Data query total time by view", "view", views);
+        writeCounters(writer, "davinci_query_rows_total", "Rows returned by source", rows);
+        writeCounters(writer, "davinci_query_response_bytes_total", "Response bytes by source", bytes);
+        writer.flush();
+    }
+
+    private void writeHistograms(PrintWriter writer, String name, String help, String label, Map<String, Histogram> histograms) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " histogram");
+        histograms.forEach((key, histogram) -> {
+            long cumulative = 0L;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                writer.println(name + "_bucket{" + label + "=\"" + key + "\",le=\"" + BUCKETS[i] + "\"} " + cumulative);
+            }
+            long count = histogram.count.sum();
+            writer.println(name + "_bucket{" + label + "=\"" + key + "\",le=\"+Inf\"} " + count);
+            writer.println(name + "_sum{" + label + "=\"" + key + "\"} " + histogram.nanos.sum() / 1e9);
+            writer.println(name + "_count{" + label + "=\"" + key + "\"} " + count);
+        });
+    }
+
+    private void writeCounters(PrintWriter writer, String name, String help, Map<String, LongAdder> counters) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " counter");
+        counters.forEach((key, counter) -> writer.println(name + "{source=\"" + key + "\"} " + counter.sum()));
+    }
+
+    private static class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder nanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long value) {
+            double seconds = value / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            nanos.add(value);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.prefetch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.common.buffer.ResultBuffer;
+import edp.core.common.buffer.ResultScope;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.utils.CollectionUtils;
+import edp.davinci.common.utils.ScriptUtils;
+import edp.davinci.dao.ViewMapper;
+import edp.davinci.dto.projectDto.ProjectDetail;
+import edp.davinci.dto.viewDto.SimpleView;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.dto.viewDto.ViewWithSource;
+import edp.davinci.model.Dashboard;
+import edp.davinci.model.MemDashboardWidget;
+import edp.davinci.model.User;
+import edp.davinci.model.Widget;
+import edp.davinci.service.ProjectService;
+import edp.davinci.service.ViewService;
+import edp.davinci.service.merge.QueryMerger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * dashboard打开时在服务端并行预取各widget的默认查询，
+ * 之后前端逐个发起的 getdata 请求直接命中 {@link PrefetchCache}
+ */
+@Slf4j
+@Component
+public class DashboardPrefetcher {
+
+    @Autowired
+    private PrefetchCache prefetchCache;
+
+    @Autowired
+    private ViewMapper viewMapper;
+
+    @Autowired
+    private ViewService viewService;
+
+    @Autowired
+    private ProjectService projectService;
+
+    @Autowired
+    private QueryMerger queryMerger;
+
+    @Value("${source.prefetch.enable:false}")
+    private boolean enable;
+
+    @Value("${source.prefetch.max-widgets:50}")
+    private int maxWidgets;
+
+    @Value("${source.prefetch.per-source-concurrency:4}")
+    private int perSourceConcurrency;
+
+    private static final ExecutorService PREFETCH_WORKERS = new ThreadPoolExecutor(16, 16,
+            60_000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+            new ThreadFactoryBuilder().setNameFormat("Prefetch-worker-%d").setDaemon(true).build(), new ThreadPoolExecutor.AbortPolicy());
+
+    /**
+     * 解析widget查询并提交预取，不占用请求线程
+     */
+    private static final ExecutorService PREFETCH_PLANNERS = new ThreadPoolExecutor(2, 2,
+            60_000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(100),
+            new ThreadFactoryBuilder().setNameFormat("Prefetch-planner-%d").setDaemon(true).build(), new ThreadPoolExecutor.AbortPolicy());
+
+    private final Map<Long, Semaphore> sourceSemaphores = new ConcurrentHashMap<>();
+
+    /**
+     * 预取dashboard中widget的默认查询，在后台执行，立即返回
+     *
+     * @param dashboard
+     * @param memDashboardWidgets
+     * @param widgetMap
+     * @param views
+     * @param user
+     */
+    public void prefetch(Dashboard dashboard, List<MemDashboardWidget> memDashboardWidgets, Map<Long, Widget> widgetMap,
+                         Set<SimpleView> views, User user) {
+
+        if (!enable || CollectionUtils.isEmpty(memDashboardWidgets) || memDashboardWidgets.size() > maxWidgets) {
+            return;
+        }
+
+        // 请求返回后参数仍会被序列化，后台任务使用副本
+        List<MemDashboardWidget> widgets = new ArrayList<>(memDashboardWidgets);
+        Map<Long, Widget> widgetCopy = new HashMap<>(widgetMap);
+        Set<SimpleView> viewCopy = new HashSet<>(views);
+        try {
+            PREFETCH_PLANNERS.execute(() -> {
+                try {
+                    plan(dashboard, widgets, widgetCopy, viewCopy, user);
+                } catch (Exception e) {
+                    log.warn("Dashboard({}) prefetch error:{}", dashboard.getId(), e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Dashboard({}) prefetch skipped, too many dashboards in prefetch", dashboard.getId());
+        }
+    }
+
+    private void plan(Dashboard dashboard, List<MemDashboardWidget> memDashboardWidgets, Map<Long, Widget> widgetMap,
+                      Set<SimpleView> views, User user) {
+
+        Map<Long, ViewWithSource> viewMap = new HashMap<>();
+        Map<Long, Boolean> projectMaintainerMap = new HashMap<>();
+        List<Consumer<Runnable>> tasks = new ArrayList<>();
+
+        for (MemDashboardWidget memDashboardWidget : memDashboardWidgets) {
+            Widget widget = widgetMap.get(memDashboardWidget.getWidgetId());
+            if (null == widget || null == widget.getViewId()) {
+                continue;
+            }
+
+            try {
+                ViewWithSource viewWithSource = viewMap.computeIfAbsent(widget.getViewId(), viewMapper::getViewWithSource);
+                if (null == viewWithSource || null == viewWithSource.getSource()) {
+                    continue;
+                }
+
+                Boolean isMaintainer = projectMaintainerMap.computeIfAbsent(viewWithSource.getProjectId(), projectId -> {
+                    ProjectDetail projectDetail = projectService.getProjectDetail(projectId, user, false);
+                    return projectService.allowGetData(projectDetail, user) ? projectService.isMaintainer(projectDetail, user) : null;
+                });
+                if (null == isMaintainer) {
+                    continue;
+                }
+
+                ViewExecuteParam executeParam = ScriptUtils.getViewExecuteParam(dashboard.getConfig(), widget.getConfig(),
+                        views, memDashboardWidget.getId());
+                if (null == executeParam || (CollectionUtils.isEmpty(executeParam.getGroups()) && CollectionUtils.isEmpty(executeParam.getAggregators()))) {
+                    continue;
+                }
+
+                CompletableFuture<PaginateWithQueryColumns> future = prefetchCache.register(user.getId(), viewWithSource.getId(), executeParam);
+                if (null == future) {
+                    continue;
+                }
+
+                tasks.add(done -> submit(future, isMaintainer, viewWithSource, executeParam, user, done));
+            } catch (Exception e) {
+                log.warn("Dashboard({}) prefetch widget({}) error:{}", dashboard.getId(), widget.getId(), e.getMessage());
+            }
+        }
+
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        // 同一dashboard的预取查询等待合并执行，全部结束后结束批次
+        AtomicInteger remaining = new AtomicInteger(tasks.size());
+        queryMerger.beginBatch(user.getId());
+        Runnable done = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                queryMerger.endBatch(user.getId());
+            }
+        };
+        tasks.forEach(task -> task.accept(done));
+        log.info("Dashboard({}) prefetch {} widget queries for user({})", dashboard.getId(), tasks.size(), user.getId());
+    }
+
+    private void submit(CompletableFuture<PaginateWithQueryColumns> future, boolean isMaintainer,
+                        ViewWithSource viewWithSource, ViewExecuteParam executeParam, User user, Runnable done) {
+        try {
+            PREFETCH_WORKERS.execute(() -> {
+                Semaphore semaphore = sourceSemaphores.computeIfAbsent(viewWithSource.getSource().getId(),
+                        id -> new Semaphore(Math.max(perSourceConcurrency, 1)));
+                // 预取结果交给之后的请求，不占用查询结果的内存额度
+                ResultScope scope = ResultScope.begin();
+                try {
+                    PaginateWithQueryColumns paginate = queryMerger.execute(viewWithSource.getId(), user.getId(), executeParam, param -> {
+                        semaphore.acquire();
+                        try {
+                            return viewService.getResultDataList(isMaintainer, viewWithSource, param, user);
+                        } finally {
+                            semaphore.release();
+                        }
+                    });
+                    // 落盘的结果在作用域关闭后不可读取，由请求自行查询
+                    future.complete(null == paginate || ResultBuffer.isSpilled(paginate.getResultList()) ? null : paginate);
+                } catch (Throwable e) {
+                    log.warn("View({}) prefetch error:{}", viewWithSource.getId(), e.getMessage());
+                    future.complete(null);
+                } finally {
+                    ResultScope.end();
+                    scope.close();
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.complete(null);
+            done.run();
+        }
+    }
+}
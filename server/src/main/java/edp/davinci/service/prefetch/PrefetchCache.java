@@ -0,0 +1,135 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.prefetch;
+
+import com.alibaba.fastjson.JSON;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.utils.MD5Util;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static edp.core.consts.Consts.AT_SYMBOL;
+
+/**
+ * dashboard打开时预取的widget查询结果，按用户隔离，短时间有效
+ */
+@Slf4j
+@Component
+public class PrefetchCache {
+
+    @Value("${source.prefetch.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    @Value("${source.prefetch.wait-timeout-seconds:60}")
+    private long waitTimeoutSeconds;
+
+    private final Map<String, PrefetchEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 登记预取任务，相同查询已登记时返回null
+     *
+     * @param userId
+     * @param viewId
+     * @param executeParam
+     * @return
+     */
+    CompletableFuture<PaginateWithQueryColumns> register(Long userId, Long viewId, ViewExecuteParam executeParam) {
+        evictExpired();
+        String key = getKey(userId, viewId, executeParam);
+        PrefetchEntry entry = new PrefetchEntry();
+        return null == entries.putIfAbsent(key, entry) ? entry.future : null;
+    }
+
+    /**
+     * 获取预取结果，未命中时返回null，预取尚未完成时等待
+     *
+     * @param userId
+     * @param viewId
+     * @param executeParam
+     * @return
+     */
+    public PaginateWithQueryColumns get(Long userId, Long viewId, ViewExecuteParam executeParam) {
+        if (entries.isEmpty() || Boolean.TRUE.equals(executeParam.getFlush())) {
+            return null;
+        }
+
+        String key = getKey(userId, viewId, executeParam);
+        PrefetchEntry entry = entries.get(key);
+        if (null == entry) {
+            return null;
+        }
+
+        if (entry.isExpired(ttlSeconds)) {
+            entries.remove(key, entry);
+            return null;
+        }
+
+        try {
+            PaginateWithQueryColumns paginate = entry.future.get(waitTimeoutSeconds, TimeUnit.SECONDS);
+            if (null != paginate) {
+                log.info("View({}) getdata hit prefetch, user:{}", viewId, userId);
+            }
+            return paginate;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            entries.remove(key, entry);
+        }
+        return null;
+    }
+
+    private void evictExpired() {
+        entries.entrySet().removeIf(e -> e.getValue().isExpired(ttlSeconds));
+    }
+
+    /**
+     * 只取决定查询结果的参数计算指纹
+     */
+    private String getKey(Long userId, Long viewId, ViewExecuteParam executeParam) {
+        Map<String, Object> factors = new LinkedHashMap<>();
+        factors.put("groups", executeParam.getGroups());
+        factors.put("aggregators", executeParam.getAggregators());
+        factors.put("orders", executeParam.getOrders());
+        factors.put("filters", executeParam.getFilters());
+        factors.put("params", executeParam.getParams());
+        factors.put("limit", executeParam.getLimit());
+        factors.put("pageNo", executeParam.getPageNo());
+        factors.put("pageSize", executeParam.getPageSize());
+        factors.put("nativeQuery", executeParam.isNativeQuery());
+        return userId + AT_SYMBOL + viewId + AT_SYMBOL + MD5Util.getMD5(JSON.toJSONString(factors), true, 32);
+    }
+
+    private static class PrefetchEntry {
+
+        private final long createTime = System.currentTimeMillis();
+
+        private final CompletableFuture<PaginateWithQueryColumns> future = new CompletableFuture<>();
+
+        boolean isExpired(long ttlSeconds) {
+            return System.currentTimeMillis() - createTime > ttlSeconds * 1000L;
+        }
+    }
+}
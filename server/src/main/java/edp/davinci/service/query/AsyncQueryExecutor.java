@@ -0,0 +1,138 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.query;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.common.buffer.ResultScope;
+import edp.core.common.jdbc.QueryContext;
+import edp.core.common.jdbc.QueryLifecycleManager;
+import edp.core.exception.ServerException;
+import edp.core.utils.QueryTrace;
+import edp.davinci.core.common.Constants;
+import edp.davinci.model.User;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 以异步servlet执行数据请求
+ * <p>
+ * 查询在工作线程中执行，请求线程立即释放；请求超时或异步请求出错时取消该请求执行中的查询。
+ * <p>
+ * 客户端在结果写出前断开时，servlet容器通常不会通知异步请求（只有读写连接出错时才会触发 onError），
+ * 前端取消请求同样如此，查询会继续执行到结束或 request-timeout-seconds 超时；
+ * 同一页面对同一widget的新请求会取代旧请求并取消其查询（{@link QueryLifecycleManager#beginRequest}）
+ */
+@Slf4j
+@Component
+public class AsyncQueryExecutor {
+
+    @Autowired
+    private QueryLifecycleManager queryLifecycleManager;
+
+    @Value("${source.query-lifecycle.enable:true}")
+    private boolean enable;
+
+    @Value("${source.query-lifecycle.workers:64}")
+    private int workers;
+
+    @Value("${source.query-lifecycle.request-timeout-seconds:900}")
+    private long requestTimeoutSeconds;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(workers, workers, 60_000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1000),
+                new ThreadFactoryBuilder().setNameFormat("Query-worker-%d").setDaemon(true).build(), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 提交数据请求
+     *
+     * @param request
+     * @param user
+     * @param task
+     * @param <T>
+     * @return
+     */
+    public <T> DeferredResult<T> submit(HttpServletRequest request, User user, Callable<T> task) {
+        DeferredResult<T> result = new DeferredResult<>(requestTimeoutSeconds > 0L ? requestTimeoutSeconds * 1000L : 0L);
+        if (!enable) {
+            run(result, task);
+            return result;
+        }
+
+        String requestId = UUID.randomUUID().toString().replace(MINUS, "");
+        String queryKey = request.getHeader(Constants.QUERY_KEY_HEADER);
+        QueryTrace trace = QueryTrace.current();
+        ResultScope scope = ResultScope.current();
+
+        queryLifecycleManager.beginRequest(requestId, user.getId(), queryKey);
+        result.onTimeout(() -> cancel(requestId, "timeout"));
+        // 仅在连接读写出错时触发，客户端直接断开通常要等到超时
+        result.onError(e -> cancel(requestId, "async request error"));
+
+        try {
+            executor.execute(() -> {
+                QueryTrace.attach(trace);
+                ResultScope.attach(scope);
+                QueryContext.begin(requestId, user.getId(), queryKey);
+                try {
+                    run(result, task);
+                } finally {
+                    QueryContext.end();
+                    ResultScope.end();
+                    QueryTrace.end();
+                    queryLifecycleManager.endRequest(requestId, user.getId(), queryKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queryLifecycleManager.endRequest(requestId, user.getId(), queryKey);
+            result.setErrorResult(new ServerException("Too many running queries, please try again later"));
+        }
+        return result;
+    }
+
+    private <T> void run(DeferredResult<T> result, Callable<T> task) {
+        try {
+            result.setResult(task.call());
+        } catch (Exception e) {
+            result.setErrorResult(e);
+        }
+    }
+
+    private void cancel(String requestId, String reason) {
+        int count = queryLifecycleManager.cancelRequest(requestId);
+        if (count > 0) {
+            log.info("Request({}) {}, {} statements cancelled", requestId, reason, count);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.rollup;
+
+import com.alibaba.druid.util.StringUtils;
+import com.alibaba.fastjson.JSONObject;
+import edp.core.utils.CollectionUtils;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.model.View;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 加速view的rollup配置，声明在 view config 中：
+ * {"rollup": {"dimensions": ["stat_day", "city"], "metrics": ["amount"], "refreshSeconds": 600}}
+ */
+@Data
+public class RollupConfig {
+
+    private static final String CONFIG_ROLLUP = "rollup";
+
+    static final String SUM = "SUM";
+    static final String COUNT = "COUNT";
+    static final String MIN = "MIN";
+    static final String MAX = "MAX";
+    static final String AVG = "AVG";
+
+    private static final String[] BASE_FUNCS = {SUM, COUNT, MIN, MAX};
+
+    private List<String> dimensions;
+
+    private List<String> metrics;
+
+    private long refreshSeconds = 600L;
+
+    public static RollupConfig of(View view) {
+        if (StringUtils.isEmpty(view.getConfig())) {
+            return null;
+        }
+        try {
+            RollupConfig config = JSONObject.parseObject(view.getConfig()).getObject(CONFIG_ROLLUP, RollupConfig.class);
+            if (null == config || CollectionUtils.isEmpty(config.getDimensions())) {
+                return null;
+            }
+            if (config.getRefreshSeconds() < 60L) {
+                config.setRefreshSeconds(60L);
+            }
+            return config;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 最细粒度基础cube的查询参数：按全部维度分组，每个指标计算 SUM/COUNT/MIN/MAX
+     *
+     * @return
+     */
+    public ViewExecuteParam toBaseExecuteParam() {
+        List<Aggregator> aggregators = new ArrayList<>();
+        if (!CollectionUtils.isEmpty(metrics)) {
+            for (String metric : metrics) {
+                for (String func : BASE_FUNCS) {
+                    aggregators.add(new Aggregator(metric, func));
+                }
+            }
+        }
+        return new ViewExecuteParam(new ArrayList<>(dimensions), aggregators, null, null, null, false, 0L, false);
+    }
+
+    static String label(String func, String column) {
+        return func + "(" + column + ")";
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.rollup;
+
+import com.alibaba.druid.util.StringUtils;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.model.QueryColumn;
+import edp.core.utils.CollectionUtils;
+import edp.davinci.core.enums.SqlOperatorEnum;
+import edp.davinci.core.model.SqlFilter;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.Order;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.model.Source;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static edp.davinci.service.rollup.RollupConfig.*;
+
+/**
+ * 单个加速view（及其展开后的sql）在最细粒度上物化的基础cube，
+ * 满足条件的分组查询在内存中二次聚合得到结果
+ */
+@Getter
+public class RollupCube {
+
+    private static final String DESC = "DESC";
+
+    private static final String NOT_EQUALS = "<>";
+
+    private final String key;
+
+    private final Long viewId;
+
+    private final Source source;
+
+    private final String baseSql;
+
+    private final RollupConfig config;
+
+    private volatile List<QueryColumn> columns;
+
+    private volatile List<Map<String, Object>> rows;
+
+    private volatile long builtTime = 0L;
+
+    private volatile long buildMillis = 0L;
+
+    private volatile long lastAttemptTime = 0L;
+
+    private volatile String lastError;
+
+    private volatile long lastAccessTime = System.currentTimeMillis();
+
+    private final AtomicLong hits = new AtomicLong(0L);
+
+    private final AtomicBoolean building = new AtomicBoolean(false);
+
+    RollupCube(String key, Long viewId, Source source, String baseSql, RollupConfig config) {
+        this.key = key;
+        this.viewId = viewId;
+        this.source = source;
+        this.baseSql = baseSql;
+        this.config = config;
+    }
+
+    void update(PaginateWithQueryColumns paginate, long buildMillis) {
+        this.columns = paginate.getColumns();
+        this.rows = paginate.getResultList();
+        this.buildMillis = buildMillis;
+        this.builtTime = System.currentTimeMillis();
+        this.lastAttemptTime = this.builtTime;
+        this.lastError = null;
+    }
+
+    void fail(String error) {
+        this.lastError = error;
+        this.lastAttemptTime = System.currentTimeMillis();
+    }
+
+    void access() {
+        this.lastAccessTime = System.currentTimeMillis();
+    }
+
+    boolean isReady() {
+        return null != rows;
+    }
+
+    boolean isFresh(long maxStalenessMillis) {
+        return isReady() && System.currentTimeMillis() - builtTime <= maxStalenessMillis;
+    }
+
+    boolean isDue() {
+        return System.currentTimeMillis() - lastAttemptTime >= config.getRefreshSeconds() * 1000L;
+    }
+
+    /**
+     * 判断查询能否由cube推导：分组为维度子集，聚合为指标的 SUM/COUNT/MIN/MAX/AVG，过滤条件只引用维度
+     *
+     * @param executeParam
+     * @return
+     */
+    boolean canAnswer(ViewExecuteParam executeParam) {
+        if (executeParam.isNativeQuery()) {
+            return false;
+        }
+
+        List<String> dimensions = config.getDimensions();
+        List<String> groups = executeParam.getGroups();
+        if (!CollectionUtils.isEmpty(groups) && !dimensions.containsAll(groups)) {
+            return false;
+        }
+
+        Set<String> labels = new HashSet<>();
+        if (!CollectionUtils.isEmpty(groups)) {
+            labels.addAll(groups);
+        }
+
+        List<Aggregator> aggregators = executeParam.getAggregators();
+        if (!CollectionUtils.isEmpty(aggregators)) {
+            List<String> metrics = config.getMetrics();
+            for (Aggregator aggregator : aggregators) {
+                String func = aggregator.getFunc().trim().toUpperCase();
+                if (CollectionUtils.isEmpty(metrics) || !metrics.contains(aggregator.getColumn().trim())) {
+                    return false;
+                }
+                if (!SUM.equals(func) && !COUNT.equals(func) && !MIN.equals(func) && !MAX.equals(func) && !AVG.equals(func)) {
+                    return false;
+                }
+                labels.add(label(aggregator.getFunc().trim(), aggregator.getColumn().trim()));
+            }
+        }
+
+        List<Order> orders = executeParam.getOrders();
+        if (!CollectionUtils.isEmpty(orders)) {
+            for (Order order : orders) {
+                if (!labels.contains(order.getColumn().trim())) {
+                    return false;
+                }
+            }
+        }
+
+        List<String> filters = executeParam.getFilters();
+        if (!CollectionUtils.isEmpty(filters)) {
+            try {
+                for (String filter : filters) {
+                    if (!isSupported(JSON.parseObject(filter, SqlFilter.class))) {
+                        return false;
+                    }
+                }
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 在cube上二次聚合、排序并分页
+     *
+     * @param executeParam
+     * @return
+     */
+    PaginateWithQueryColumns query(ViewExecuteParam executeParam) {
+        List<Map<String, Object>> baseRows = this.rows;
+        Map<String, QueryColumn> baseColumns = new HashMap<>();
+        this.columns.forEach(c -> baseColumns.put(c.getName(), c));
+
+        List<String> groups = executeParam.getGroups() == null ? Collections.emptyList() : executeParam.getGroups();
+        List<Aggregator> aggregators = executeParam.getAggregators() == null ? Collections.emptyList() : executeParam.getAggregators();
+
+        List<SqlFilter> filters = new ArrayList<>();
+        if (!CollectionUtils.isEmpty(executeParam.getFilters())) {
+            executeParam.getFilters().forEach(f -> filters.add(JSON.parseObject(f, SqlFilter.class)));
+        }
+
+        Map<List<Object>, Accumulator[]> groupMap = new LinkedHashMap<>();
+        for (Map<String, Object> row : baseRows) {
+            if (!matches(filters, row)) {
+                continue;
+            }
+            List<Object> groupKey = new ArrayList<>(groups.size());
+            for (String group : groups) {
+                groupKey.add(row.get(group));
+            }
+            Accumulator[] accumulators = groupMap.computeIfAbsent(groupKey, k -> {
+                Accumulator[] array = new Accumulator[aggregators.size()];
+                for (int i = 0; i < aggregators.size(); i++) {
+                    array[i] = new Accumulator(aggregators.get(i).getFunc().trim().toUpperCase());
+                }
+                return array;
+            });
+            for (int i = 0; i < aggregators.size(); i++) {
+                accumulators[i].add(row, aggregators.get(i).getColumn().trim());
+            }
+        }
+
+        // 没有分组时，聚合结果恒为一行
+        if (groups.isEmpty() && groupMap.isEmpty() && !aggregators.isEmpty()) {
+            Accumulator[] array = new Accumulator[aggregators.size()];
+            for (int i = 0; i < aggregators.size(); i++) {
+                array[i] = new Accumulator(aggregators.get(i).getFunc().trim().toUpperCase());
+            }
+            groupMap.put(Collections.emptyList(), array);
+        }
+
+        List<QueryColumn> resultColumns = new ArrayList<>();
+        for (String group : groups) {
+            QueryColumn column = baseColumns.get(group);
+            resultColumns.add(new QueryColumn(group, null == column ? null : column.getType()));
+        }
+        for (Aggregator aggregator : aggregators) {
+            String func = aggregator.getFunc().trim();
+            String column = aggregator.getColumn().trim();
+            String upperFunc = func.toUpperCase();
+            QueryColumn baseColumn = baseColumns.get(label(AVG.equals(upperFunc) ? SUM : upperFunc, column));
+            resultColumns.add(new QueryColumn(label(func, column), null == baseColumn ? null : baseColumn.getType()));
+        }
+
+        List<Map<String, Object>> resultList = new ArrayList<>(groupMap.size());
+        groupMap.forEach((groupKey, accumulators) -> {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < groups.size(); i++) {
+                row.put(groups.get(i), groupKey.get(i));
+            }
+            for (int i = 0; i < aggregators.size(); i++) {
+                row.put(label(aggregators.get(i).getFunc().trim(), aggregators.get(i).getColumn().trim()), accumulators[i].result());
+            }
+            resultList.add(row);
+        });
+
+        List<Order> orders = executeParam.getOrders();
+        if (!CollectionUtils.isEmpty(orders)) {
+            Comparator<Map<String, Object>> comparator = null;
+            for (Order order : orders) {
+                String column = order.getColumn().trim();
+                Comparator<Map<String, Object>> c = (r1, r2) -> compareValue(r1.get(column), r2.get(column));
+                if (DESC.equalsIgnoreCase(order.getDirection())) {
+                    c = c.reversed();
+                }
+                comparator = null == comparator ? c : comparator.thenComparing(c);
+            }
+            resultList.sort(comparator);
+        }
+
+        return paginate(resultList, resultColumns, executeParam);
+    }
+
+    private PaginateWithQueryColumns paginate(List<Map<String, Object>> resultList, List<QueryColumn> resultColumns, ViewExecuteParam executeParam) {
+        int pageNo = executeParam.getPageNo();
+        int pageSize = executeParam.getPageSize();
+        int limit = executeParam.getLimit();
+
+        PaginateWithQueryColumns paginate = new PaginateWithQueryColumns();
+        paginate.setColumns(resultColumns);
+
+        if (pageNo < 1 && pageSize < 1) {
+            List<Map<String, Object>> list = limit > 0 && resultList.size() > limit ? resultList.subList(0, limit) : resultList;
+            paginate.setResultList(new ArrayList<>(list));
+            paginate.setPageNo(1);
+            paginate.setPageSize(list.size());
+            paginate.setTotalCount(list.size());
+            return paginate;
+        }
+
+        pageNo = pageNo < 1 ? 1 : pageNo;
+        pageSize = pageSize < 1 ? resultList.size() : pageSize;
+        int totalCount = limit > 0 ? Math.min(limit, resultList.size()) : resultList.size();
+        int startRow = Math.min((pageNo - 1) * pageSize, totalCount);
+        int endRow = Math.min(startRow + pageSize, totalCount);
+
+        paginate.setResultList(new ArrayList<>(resultList.subList(startRow, endRow)));
+        paginate.setPageNo(pageNo);
+        paginate.setPageSize(pageSize);
+        paginate.setTotalCount(totalCount);
+        return paginate;
+    }
+
+    private boolean isSupported(SqlFilter filter) {
+        if (null == filter) {
+            return false;
+        }
+        if (SqlFilter.Type.relation.equalsIgnoreCase(filter.getType())) {
+            if (CollectionUtils.isEmpty(filter.getChildren()) || null == filter.getValue()) {
+                return false;
+            }
+            String relation = filter.getValue().toString();
+            if (!SqlFilter.Type.and.equalsIgnoreCase(relation) && !SqlFilter.Type.or.equalsIgnoreCase(relation)) {
+                return false;
+            }
+            for (SqlFilter child : filter.getChildren()) {
+                if (!isSupported(child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if (!SqlFilter.Type.filter.equalsIgnoreCase(filter.getType()) || StringUtils.isEmpty(filter.getName())
+                || !config.getDimensions().contains(filter.getName().trim()) || null == filter.getOperator()) {
+            return false;
+        }
+
+        String operator = filter.getOperator().trim().toUpperCase();
+        if (SqlOperatorEnum.IN.getValue().equals(operator) || SqlOperatorEnum.NOTIN.getValue().equals(operator)) {
+            return filter.getValue() instanceof List && !((List) filter.getValue()).isEmpty();
+        }
+        if (SqlOperatorEnum.BETWEEN.getValue().equals(operator)) {
+            return filter.getValue() instanceof JSONArray && ((JSONArray) filter.getValue()).size() == 2;
+        }
+        return null != filter.getValue() && (SqlOperatorEnum.EQUALSTO.getValue().equals(operator)
+                || SqlOperatorEnum.NOTEQUALSTO.getValue().equals(operator)
+                || NOT_EQUALS.equals(operator)
+                || SqlOperatorEnum.GREATERTHAN.getValue().equals(operator)
+                || SqlOperatorEnum.GREATERTHANEQUALS.getValue().equals(operator)
+                || SqlOperatorEnum.MINORTHAN.getValue().equals(operator)
+                || SqlOperatorEnum.MINORTHANEQUALS.getValue().equals(operator));
+    }
+
+    private boolean matches(List<SqlFilter> filters, Map<String, Object> row) {
+        for (SqlFilter filter : filters) {
+            if (!matches(filter, row)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(SqlFilter filter, Map<String, Object> row) {
+        if (SqlFilter.Type.relation.equalsIgnoreCase(filter.getType())) {
+            boolean and = SqlFilter.Type.and.equalsIgnoreCase(filter.getValue().toString());
+            for (SqlFilter child : filter.getChildren()) {
+                boolean matched = matches(child, row);
+                if (and && !matched) {
+                    return false;
+                }
+                if (!and && matched) {
+                    return true;
+                }
+            }
+            return and;
+        }
+
+        // 与sql语义一致，null不满足任何比较条件
+        Object value = row.get(filter.getName().trim());
+        if (null == value) {
+            return false;
+        }
+
+        String operator = filter.getOperator().trim().toUpperCase();
+        if (SqlOperatorEnum.IN.getValue().equals(operator) || SqlOperatorEnum.NOTIN.getValue().equals(operator)) {
+            boolean in = false;
+            for (Object v : (List) filter.getValue()) {
+                if (compareLiteral(value, v) == 0) {
+                    in = true;
+                    break;
+                }
+            }
+            return SqlOperatorEnum.IN.getValue().equals(operator) == in;
+        }
+
+        if (SqlOperatorEnum.BETWEEN.getValue().equals(operator)) {
+            JSONArray values = (JSONArray) filter.getValue();
+            return compareLiteral(value, values.get(0)) >= 0 && compareLiteral(value, values.get(1)) <= 0;
+        }
+
+        int c = compareLiteral(value, filter.getValue());
+        switch (operator) {
+            case "=":
+                return c == 0;
+            case "!=":
+            case NOT_EQUALS:
+                return c != 0;
+            case ">":
+                return c > 0;
+            case ">=":
+                return c >= 0;
+            case "<":
+                return c < 0;
+            case "<=":
+                return c <= 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 维度值与过滤条件中的字面量比较
+     */
+    private static int compareLiteral(Object value, Object literal) {
+        String str = String.valueOf(literal).trim();
+        if (str.length() > 1 && str.startsWith("'") && str.endsWith("'")) {
+            str = str.substring(1, str.length() - 1);
+        }
+
+        if (value instanceof Number) {
+            try {
+                return new BigDecimal(value.toString()).compareTo(new BigDecimal(str));
+            } catch (NumberFormatException e) {
+                return String.valueOf(value).compareTo(str);
+            }
+        }
+
+        if (value instanceof java.sql.Date) {
+            return new SimpleDateFormat("yyyy-MM-dd").format((Date) value).compareTo(str);
+        }
+
+        if (value instanceof Date) {
+            String formatted = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format((Date) value);
+            // 'yyyy-MM-dd' 形式的字面量按当天零点比较
+            if (str.length() == 10) {
+                str = str + " 00:00:00";
+            }
+            return formatted.compareTo(str);
+        }
+
+        return String.valueOf(value).compareTo(str);
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compareValue(Object o1, Object o2) {
+        if (null == o1) {
+            return null == o2 ? 0 : -1;
+        }
+        if (null == o2) {
+            return 1;
+        }
+        if (o1 instanceof Number && o2 instanceof Number) {
+            return new BigDecimal(o1.toString()).compareTo(new BigDecimal(o2.toString()));
+        }
+        if (o1 instanceof Comparable && o1.getClass().isInstance(o2)) {
+            return ((Comparable<Object>) o1).compareTo(o2);
+        }
+        return String.valueOf(o1).compareTo(String.valueOf(o2));
+    }
+
+    private static BigDecimal toDecimal(Object value) {
+        return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+    }
+
+    /**
+     * 基于基础cube的 SUM/COUNT/MIN/MAX 列二次聚合
+     */
+    private static class Accumulator {
+
+        private final String func;
+
+        private BigDecimal sum;
+
+        private long count = 0L;
+
+        private Object extreme;
+
+        Accumulator(String func) {
+            this.func = func;
+        }
+
+        void add(Map<String, Object> row, String column) {
+            switch (func) {
+                case SUM:
+                    addSum(row.get(label(SUM, column)));
+                    break;
+                case COUNT:
+                    addCount(row.get(label(COUNT, column)));
+                    break;
+                case AVG:
+                    addSum(row.get(label(SUM, column)));
+                    addCount(row.get(label(COUNT, column)));
+                    break;
+                case MIN:
+                    Object min = row.get(label(MIN, column));
+                    if (null != min && (null == extreme || compareValue(min, extreme) < 0)) {
+                        extreme = min;
+                    }
+                    break;
+                case MAX:
+                    Object max = row.get(label(MAX, column));
+                    if (null != max && (null == extreme || compareValue(max, extreme) > 0)) {
+                        extreme = max;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void addSum(Object value) {
+            if (null != value) {
+                sum = null == sum ? toDecimal(value) : sum.add(toDecimal(value));
+            }
+        }
+
+        private void addCount(Object value) {
+            if (null != value) {
+                count += ((Number) value).longValue();
+            }
+        }
+
+        Object result() {
+            switch (func) {
+                case SUM:
+                    return sum;
+                case COUNT:
+                    return count;
+                case AVG:
+                    return null == sum || count == 0L ? null : sum.divide(BigDecimal.valueOf(count), 4, RoundingMode.HALF_UP);
+                default:
+                    return extreme;
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.rollup;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.common.buffer.ResultBuffer;
+import edp.core.common.buffer.ResultScope;
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.utils.MD5Util;
+import edp.core.utils.SqlUtils;
+import edp.davinci.core.event.DomainEventBus;
+import edp.davinci.core.event.SourceChanged;
+import edp.davinci.core.event.ViewUpdated;
+import edp.davinci.core.utils.SqlParseUtils;
+import edp.davinci.dto.viewDto.RollupStats;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.dto.viewDto.ViewWithSource;
+import edp.davinci.model.Source;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static edp.core.consts.Consts.MINUS;
+
+/**
+ * 加速view的rollup存储
+ * <p>
+ * 加速view首次被查询时按展开后的sql注册基础cube，后台定时物化；
+ * 分组与聚合可由cube推导的查询直接在内存中计算，不再访问数据源
+ */
+@Slf4j
+@Component
+public class RollupStore {
+
+    @Autowired
+    private SqlUtils sqlUtils;
+
+    @Autowired
+    private DomainEventBus domainEventBus;
+
+    @Value("${source.rollup.enable:true}")
+    private boolean enable;
+
+    @Value("${source.rollup.max-cubes:64}")
+    private int maxCubes;
+
+    @Value("${source.rollup.max-rows:200000}")
+    private int maxRows;
+
+    @Value("${source.rollup.idle-seconds:86400}")
+    private long idleSeconds;
+
+    @Value("${source.rollup.max-staleness-factor:2}")
+    private int maxStalenessFactor;
+
+    private static final ExecutorService BUILD_WORKERS = Executors.newFixedThreadPool(2,
+            new ThreadFactoryBuilder().setNameFormat("Rollup-worker-%d").setDaemon(true).build());
+
+    private final Map<String, RollupCube> cubes = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0L);
+
+    private final AtomicLong misses = new AtomicLong(0L);
+
+    @PostConstruct
+    public void init() {
+        domainEventBus.subscribe(ViewUpdated.class, event -> invalidateView(event.getEntityId()));
+        domainEventBus.subscribe(SourceChanged.class, event -> invalidateSource(event.getEntityId()));
+    }
+
+    public RollupConfig getConfig(ViewWithSource viewWithSource) {
+        return enable ? RollupConfig.of(viewWithSource) : null;
+    }
+
+    public String getKey(ViewWithSource viewWithSource, String srcQuerySql) {
+        Source source = viewWithSource.getSource();
+        StringBuilder saltBuilder = new StringBuilder();
+        saltBuilder.append(viewWithSource.getId()).append(MINUS);
+        saltBuilder.append(source.getId()).append(MINUS);
+        saltBuilder.append(source.getJdbcUrl()).append(MINUS);
+        saltBuilder.append(viewWithSource.getConfig()).append(MINUS);
+        return MD5Util.getMD5(saltBuilder.toString() + srcQuerySql, true, 32);
+    }
+
+    public boolean contains(String key) {
+        return cubes.containsKey(key);
+    }
+
+    /**
+     * 由rollup回答查询，不能回答时返回null
+     * <p>
+     * 请求刷新（flush）时不使用rollup；开启缓存的请求要求cube的时效不超过缓存有效期
+     *
+     * @param key
+     * @param executeParam
+     * @return
+     */
+    public PaginateWithQueryColumns query(String key, ViewExecuteParam executeParam) {
+        RollupCube cube = cubes.get(key);
+        if (null == cube) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        cube.access();
+        if (Boolean.TRUE.equals(executeParam.getFlush())) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!cube.isFresh(getMaxStalenessMillis(cube, executeParam)) || !cube.canAnswer(executeParam)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        long before = System.currentTimeMillis();
+        PaginateWithQueryColumns paginate = cube.query(executeParam);
+        cube.getHits().incrementAndGet();
+        hits.incrementAndGet();
+        log.info("View({}) answered by rollup in {} ms, rows:{}", cube.getViewId(), System.currentTimeMillis() - before, paginate.getResultList().size());
+        return paginate;
+    }
+
+    /**
+     * 注册基础cube并立即开始物化
+     *
+     * @param key
+     * @param viewWithSource
+     * @param config
+     * @param baseSql
+     */
+    public void register(String key, ViewWithSource viewWithSource, RollupConfig config, String baseSql) {
+        if (cubes.containsKey(key)) {
+            return;
+        }
+
+        if (cubes.size() >= maxCubes) {
+            cubes.values().stream()
+                    .min(Comparator.comparingLong(RollupCube::getLastAccessTime))
+                    .ifPresent(cube -> cubes.remove(cube.getKey()));
+        }
+
+        RollupCube cube = new RollupCube(key, viewWithSource.getId(), viewWithSource.getSource(), baseSql, config);
+        if (null == cubes.putIfAbsent(key, cube)) {
+            log.info("View({}) rollup registered, dimensions:{}, metrics:{}", cube.getViewId(), config.getDimensions(), config.getMetrics());
+            build(cube);
+        }
+    }
+
+    /**
+     * 清理长时间未访问的cube，刷新到期的cube
+     */
+    public void refresh() {
+        if (cubes.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        cubes.values().removeIf(cube -> now - cube.getLastAccessTime() > idleSeconds * 1000L);
+        cubes.values().stream().filter(RollupCube::isDue).forEach(this::build);
+
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        log.info("Rollup store cubes:{}, hits:{}, misses:{}, hit ratio:{}%", cubes.size(), hitCount, total - hitCount,
+                total == 0L ? 0 : hitCount * 100 / total);
+    }
+
+    public void invalidateView(Long viewId) {
+        cubes.values().removeIf(cube -> Objects.equals(cube.getViewId(), viewId));
+    }
+
+    public void invalidateSource(Long sourceId) {
+        cubes.values().removeIf(cube -> Objects.equals(cube.getSource().getId(), sourceId));
+    }
+
+    public List<RollupStats> getStats(Long viewId) {
+        List<RollupStats> list = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        cubes.values().stream().filter(cube -> Objects.equals(cube.getViewId(), viewId)).forEach(cube -> {
+            RollupStats stats = new RollupStats();
+            stats.setKey(cube.getKey());
+            stats.setViewId(cube.getViewId());
+            stats.setReady(cube.isReady());
+            stats.setFresh(cube.isFresh(getMaxStalenessMillis(cube)));
+            stats.setRows(cube.isReady() ? cube.getRows().size() : 0);
+            stats.setBuiltTime(cube.isReady() ? new Date(cube.getBuiltTime()) : null);
+            stats.setBuildMillis(cube.getBuildMillis());
+            stats.setAgeSeconds(cube.isReady() ? (now - cube.getBuiltTime()) / 1000L : -1L);
+            stats.setHits(cube.getHits().get());
+            stats.setLastError(cube.getLastError());
+            list.add(stats);
+        });
+        return list;
+    }
+
+    private long getMaxStalenessMillis(RollupCube cube) {
+        return cube.getConfig().getRefreshSeconds() * 1000L * Math.max(maxStalenessFactor, 1);
+    }
+
+    private long getMaxStalenessMillis(RollupCube cube, ViewExecuteParam executeParam) {
+        long maxStalenessMillis = getMaxStalenessMillis(cube);
+        if (Boolean.TRUE.equals(executeParam.getCache()) && null != executeParam.getExpired() && executeParam.getExpired() > 0L) {
+            return Math.min(maxStalenessMillis, executeParam.getExpired() * 1000L);
+        }
+        return maxStalenessMillis;
+    }
+
+    private void build(RollupCube cube) {
+        if (!cube.getBuilding().compareAndSet(false, true)) {
+            return;
+        }
+
+        BUILD_WORKERS.execute(() -> {
+            long before = System.currentTimeMillis();
+            // 物化完成后关闭，归还查询结果的内存额度，cube中的行由 max-rows 限制
+            ResultScope scope = ResultScope.begin();
+            try {
+                SqlUtils sqlUtils = this.sqlUtils.init(cube.getSource());
+                PaginateWithQueryColumns paginate = sqlUtils.syncQuery4Paginate(SqlParseUtils.rebuildSqlWithFragment(cube.getBaseSql()),
+                        0, 0, 0, -1, new HashSet<>());
+                if (paginate.getResultList().size() >= maxRows) {
+                    cube.fail("Rollup rows exceed " + maxRows);
+                    log.warn("View({}) rollup rows exceed {}, skipped", cube.getViewId(), maxRows);
+                    return;
+                }
+                // 落盘的结果关闭后不可读取，也不应整体读回堆内存
+                if (ResultBuffer.isSpilled(paginate.getResultList())) {
+                    cube.fail("Rollup rows exceed result memory budget");
+                    log.warn("View({}) rollup rows exceed result memory budget, skipped", cube.getViewId());
+                    return;
+                }
+                cube.update(paginate, System.currentTimeMillis() - before);
+                log.info("View({}) rollup materialized in {} ms, rows:{}", cube.getViewId(), cube.getBuildMillis(), paginate.getResultList().size());
+            } catch (Exception e) {
+                cube.fail(e.getMessage());
+                log.error("View({}) rollup materialize error:{}", cube.getViewId(), e.getMessage());
+            } finally {
+                ResultScope.end();
+                scope.close();
+                cube.getBuilding().set(false);
+            }
+        });
+    }
+}
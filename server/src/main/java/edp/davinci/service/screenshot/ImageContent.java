@@ -30,6 +30,7 @@ public class ImageContent {
     private String desc;
     private File imageFile;
     private String url;
+    private String renderKey;
 
     public ImageContent(int order, Long cid, String desc, String url) {
         this.cId = cid;
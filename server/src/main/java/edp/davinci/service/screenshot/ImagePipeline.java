@@ -0,0 +1,333 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+
+package edp.davinci.service.screenshot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.davinci.core.enums.LogNameEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 定时任务截图的后处理
+ * <p>
+ * 解码一次后按需缩放到目标宽度、将过高的截图切分为多张，每张在内存中按 JPEG 质量二分查找满足大小限制的最高质量后写出；
+ * 在独立的有界线程池中执行，单个任务超时后取消，不占用定时任务线程
+ */
+@Component
+public class ImagePipeline {
+
+    private static final Logger scheduleLogger = LoggerFactory.getLogger(LogNameEnum.BUSINESS_SCHEDULE.getName());
+
+    private static final String FORMAT_JPG = "jpg";
+
+    private static final float MAX_QUALITY = 0.9f;
+
+    private static final int QUALITY_SEARCH_STEPS = 5;
+
+    private static final int MAX_DOWNSCALE_ROUNDS = 3;
+
+    @Value("${cronjob.image.max-bytes:2097152}")
+    private long maxBytes;
+
+    @Value("${cronjob.image.target-width:0}")
+    private int targetWidth;
+
+    @Value("${cronjob.image.tile-height:0}")
+    private int tileHeight;
+
+    @Value("${cronjob.image.min-quality:0.3}")
+    private float minQuality;
+
+    @Value("${cronjob.image.threads:2}")
+    private int threads;
+
+    @Value("${cronjob.image.queue-size:16}")
+    private int queueSize;
+
+    @Value("${cronjob.image.timeout-seconds:60}")
+    private long timeoutSeconds;
+
+    private ExecutorService workers;
+
+    private final LongAdder processed = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder tiles = new LongAdder();
+
+    private final LongAdder encodes = new LongAdder();
+
+    private final LongAdder bytesIn = new LongAdder();
+
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder processNanos = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        int size = Math.max(threads, 1);
+        workers = new ThreadPoolExecutor(size, size, 60_000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(Math.max(queueSize, 1)),
+                new ThreadFactoryBuilder().setNameFormat("Image-worker-%d").setDaemon(true).build(), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 图片是否需要处理
+     *
+     * @param file
+     * @return
+     */
+    public boolean needProcess(File file) {
+        if (file.length() > maxBytes) {
+            return true;
+        }
+        return targetWidth > 0 || tileHeight > 0;
+    }
+
+    /**
+     * 处理截图，结果写入原图所在目录的新文件，原图不变（可能被其他任务共享）
+     *
+     * @param jobId
+     * @param source
+     * @return 处理后的图片，过高的截图切分为多张；线程池已满、超时或失败时返回null
+     */
+    public List<File> process(long jobId, File source) {
+        long before = System.nanoTime();
+        Future<List<File>> future;
+        try {
+            future = workers.submit(() -> doProcess(source));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            scheduleLogger.warn("CronJob({}) image process rejected, too many pending images", jobId);
+            return null;
+        }
+
+        try {
+            List<File> files = future.get(timeoutSeconds, TimeUnit.SECONDS);
+            processed.increment();
+            tiles.add(files.size());
+            bytesIn.add(source.length());
+            files.forEach(file -> bytesOut.add(file.length()));
+            scheduleLogger.info("CronJob({}) image processed in {} ms, {} bytes -> {} file(s)", jobId,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - before), source.length(), files.size());
+            return files;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.increment();
+            scheduleLogger.warn("CronJob({}) image process timeout after {} seconds, cancelled", jobId, timeoutSeconds);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            failed.increment();
+            scheduleLogger.error("CronJob({}) image process error:{}", jobId, e.getCause().getMessage());
+        } finally {
+            processNanos.add(System.nanoTime() - before);
+        }
+        return null;
+    }
+
+    public void write(PrintWriter writer) {
+        writeMetric(writer, "davinci_image_processed_total", "Screenshots processed", "counter", processed.sum());
+        writeMetric(writer, "davinci_image_failed_total", "Screenshots failed to process", "counter", failed.sum());
+        writeMetric(writer, "davinci_image_timeouts_total", "Screenshots cancelled after the time budget", "counter", timeouts.sum());
+        writeMetric(writer, "davinci_image_rejected_total", "Screenshots rejected because the queue was full", "counter", rejected.sum());
+        writeMetric(writer, "davinci_image_tiles_total", "Image files produced", "counter", tiles.sum());
+        writeMetric(writer, "davinci_image_encodes_total", "Jpeg encode passes", "counter", encodes.sum());
+        writeMetric(writer, "davinci_image_bytes_in_total", "Bytes of processed screenshots", "counter", bytesIn.sum());
+        writeMetric(writer, "davinci_image_bytes_out_total", "Bytes of produced image files", "counter", bytesOut.sum());
+        writer.println("# HELP davinci_image_process_seconds_total Time spent processing screenshots, including queueing");
+        writer.println("# TYPE davinci_image_process_seconds_total counter");
+        writer.println("davinci_image_process_seconds_total " + processNanos.sum() / 1e9);
+        writer.flush();
+    }
+
+    private void writeMetric(PrintWriter writer, String name, String help, String type, long value) {
+        writer.println("# HELP " + name + " " + help);
+        writer.println("# TYPE " + name + " " + type);
+        writer.println(name + " " + value);
+    }
+
+    private List<File> doProcess(File source) throws IOException {
+        BufferedImage image = ImageIO.read(source);
+        if (null == image) {
+            throw new IOException("Unsupported image: " + source.getName());
+        }
+
+        if (targetWidth > 0 && image.getWidth() > targetWidth) {
+            image = scale(image, (double) targetWidth / image.getWidth());
+        } else {
+            image = scale(image, 1.0d);
+        }
+        checkCancelled();
+
+        List<BufferedImage> parts = split(image);
+        String prefix = UUID.randomUUID().toString().replace("-", "") + "_";
+        String name = source.getName().replaceAll("\\.[^.]*$", "");
+        List<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                byte[] bytes = compress(parts.get(i));
+                File file = new File(source.getParent(), prefix + name + (parts.size() > 1 ? "_" + (i + 1) : "") + "." + FORMAT_JPG);
+                Files.write(file.toPath(), bytes);
+                files.add(file);
+            }
+        } catch (IOException | RuntimeException e) {
+            files.forEach(File::delete);
+            throw e;
+        }
+        return files;
+    }
+
+    /**
+     * 按高度切分，tile-height 为0时不切分
+     */
+    private List<BufferedImage> split(BufferedImage image) {
+        List<BufferedImage> parts = new ArrayList<>();
+        if (tileHeight <= 0 || image.getHeight() <= tileHeight) {
+            parts.add(image);
+            return parts;
+        }
+        for (int y = 0; y < image.getHeight(); y += tileHeight) {
+            parts.add(image.getSubimage(0, y, image.getWidth(), Math.min(tileHeight, image.getHeight() - y)));
+        }
+        return parts;
+    }
+
+    /**
+     * 二分查找不超过大小限制的最高质量，最低质量仍超限时缩小尺寸重试
+     */
+    private byte[] compress(BufferedImage image) throws IOException {
+        BufferedImage current = image;
+        byte[] best = null;
+        for (int round = 0; round <= MAX_DOWNSCALE_ROUNDS; round++) {
+            best = encode(current, MAX_QUALITY);
+            if (best.length <= maxBytes) {
+                return best;
+            }
+
+            byte[] smallest = encode(current, minQuality);
+            if (smallest.length <= maxBytes) {
+                best = smallest;
+                float low = minQuality;
+                float high = MAX_QUALITY;
+                for (int i = 0; i < QUALITY_SEARCH_STEPS; i++) {
+                    float quality = (low + high) / 2;
+                    byte[] bytes = encode(current, quality);
+                    if (bytes.length <= maxBytes) {
+                        best = bytes;
+                        low = quality;
+                    } else {
+                        high = quality;
+                    }
+                }
+                return best;
+            }
+
+            // 按面积比例估算缩放倍数
+            best = smallest;
+            current = scale(current, Math.sqrt((double) maxBytes / smallest.length) * 0.9d);
+        }
+        return best;
+    }
+
+    private byte[] encode(BufferedImage image, float quality) throws IOException {
+        checkCancelled();
+        encodes.increment();
+
+        Iterator<ImageWriter> iterator = ImageIO.getImageWritersByFormatName(FORMAT_JPG);
+        if (!iterator.hasNext()) {
+            throw new IOException("No jpeg writer available");
+        }
+        ImageWriter writer = iterator.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 缩放并转为不含透明通道的RGB图片（JPEG不支持透明通道）
+     */
+    private BufferedImage scale(BufferedImage image, double ratio) {
+        int width = Math.max((int) Math.round(image.getWidth() * ratio), 1);
+        int height = Math.max((int) Math.round(image.getHeight() * ratio), 1);
+        if (image.getType() == BufferedImage.TYPE_INT_RGB && width == image.getWidth() && height == image.getHeight()) {
+            return image;
+        }
+
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private void checkCancelled() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Image process cancelled");
+        }
+    }
+}
@@ -123,6 +123,16 @@ public class ScreenshotUtil {
         }
     }
 
+    /**
+     * 启动预热时启动并关闭一次浏览器驱动
+     *
+     * @throws ExecutionException
+     */
+    public void warmUp() throws ExecutionException {
+        WebDriver driver = generateWebDriver(0L, null);
+        driver.quit();
+    }
+
     private File doScreenshot(long jobId, String url, Integer imageWidth) throws Exception {
         WebDriver driver = generateWebDriver(jobId, imageWidth);
 
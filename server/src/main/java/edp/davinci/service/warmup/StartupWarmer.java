@@ -0,0 +1,278 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.warmup;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edp.core.common.buffer.ResultScope;
+import edp.core.utils.CollectionUtils;
+import edp.core.utils.SqlUtils;
+import edp.davinci.common.utils.ScriptUtils;
+import edp.davinci.core.utils.ExcelUtils;
+import edp.davinci.dao.DashboardMapper;
+import edp.davinci.dao.MemDashboardWidgetMapper;
+import edp.davinci.dao.ViewMapper;
+import edp.davinci.dao.WidgetMapper;
+import edp.davinci.dto.viewDto.SimpleView;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.dto.viewDto.ViewWithSource;
+import edp.davinci.model.Dashboard;
+import edp.davinci.model.MemDashboardWidget;
+import edp.davinci.model.Source;
+import edp.davinci.model.Widget;
+import edp.davinci.service.ViewService;
+import edp.davinci.service.screenshot.ScreenshotUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * 启动预热
+ * <p>
+ * 按近期访问统计取访问最多的dashboard，并行初始化其数据源连接池，
+ * 初始化脚本引擎，并以维护者身份重放部分widget默认查询以填充缓存；
+ * 完成（或超时）前 {@link #isWarm()} 返回false
+ */
+@Slf4j
+@Component
+public class StartupWarmer {
+
+    public static final String STATUS_WARMING = "warming";
+
+    public static final String STATUS_WARM = "warm";
+
+    @Autowired
+    private DashboardMapper dashboardMapper;
+
+    @Autowired
+    private MemDashboardWidgetMapper memDashboardWidgetMapper;
+
+    @Autowired
+    private WidgetMapper widgetMapper;
+
+    @Autowired
+    private ViewMapper viewMapper;
+
+    @Autowired
+    private ViewService viewService;
+
+    @Autowired
+    private SqlUtils sqlUtils;
+
+    @Autowired
+    private ScreenshotUtil screenshotUtil;
+
+    @Value("${source.warm-up.enable:false}")
+    private boolean enable;
+
+    @Value("${source.warm-up.days:7}")
+    private int days;
+
+    @Value("${source.warm-up.max-dashboards:20}")
+    private int maxDashboards;
+
+    @Value("${source.warm-up.max-queries:100}")
+    private int maxQueries;
+
+    @Value("${source.warm-up.concurrency:8}")
+    private int concurrency;
+
+    @Value("${source.warm-up.timeout-seconds:300}")
+    private long timeoutSeconds;
+
+    @Value("${source.warm-up.screenshot:false}")
+    private boolean screenshot;
+
+    private volatile boolean warm = false;
+
+    private final Map<String, Object> status = new ConcurrentHashMap<>();
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> result = new LinkedHashMap<>(status);
+        result.put("status", warm ? STATUS_WARM : STATUS_WARMING);
+        return result;
+    }
+
+    /**
+     * 执行预热，总耗时不超过 timeout-seconds
+     */
+    public void warmUp() {
+        if (!enable) {
+            warm = true;
+            return;
+        }
+
+        long before = System.currentTimeMillis();
+        long deadline = before + timeoutSeconds * 1000L;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(concurrency, 1),
+                new ThreadFactoryBuilder().setNameFormat("Warm-up-worker-%d").setDaemon(true).build());
+        try {
+            status.put("scripts", ScriptUtils.warmUp());
+
+            List<Dashboard> dashboards = getMostVisitedDashboards();
+            status.put("dashboards", dashboards.size());
+
+            List<WidgetQuery> queries = new ArrayList<>();
+            Map<Long, ViewWithSource> viewMap = new HashMap<>();
+            for (Dashboard dashboard : dashboards) {
+                collectQueries(dashboard, viewMap, queries);
+                if (queries.size() >= maxQueries) {
+                    break;
+                }
+            }
+
+            Map<Long, Source> sources = new HashMap<>();
+            viewMap.values().stream().filter(v -> null != v && null != v.getSource())
+                    .forEach(v -> sources.putIfAbsent(v.getSource().getId(), v.getSource()));
+
+            status.put("sources", invokeAll(executor, sources.values().stream()
+                    .map(source -> (Callable<Boolean>) () -> sqlUtils.init(source).testConnection())
+                    .collect(Collectors.toList()), deadline));
+
+            status.put("queries", invokeAll(executor, queries.stream()
+                    .limit(maxQueries)
+                    .map(query -> (Callable<Boolean>) () -> replay(query))
+                    .collect(Collectors.toList()), deadline));
+
+            if (screenshot) {
+                status.put("screenshot", invokeAll(executor, Collections.<Callable<Boolean>>singletonList(() -> {
+                    screenshotUtil.warmUp();
+                    return true;
+                }), deadline));
+            }
+        } catch (Exception e) {
+            log.warn("Warm up error:{}", e.getMessage());
+        } finally {
+            executor.shutdownNow();
+            status.put("cost", System.currentTimeMillis() - before);
+            warm = true;
+            log.info("Warm up finish in {} ms, {}", System.currentTimeMillis() - before, status);
+        }
+    }
+
+    private List<Dashboard> getMostVisitedDashboards() {
+        List<Long> ids;
+        try {
+            Date since = new Date(System.currentTimeMillis() - days * 24L * 60 * 60 * 1000);
+            ids = dashboardMapper.getMostVisitedIds(since, maxDashboards);
+        } catch (Exception e) {
+            log.warn("Warm up load visit statistic error:{}", e.getMessage());
+            return new ArrayList<>();
+        }
+
+        List<Dashboard> dashboards = new ArrayList<>();
+        if (!CollectionUtils.isEmpty(ids)) {
+            ids.stream().map(dashboardMapper::getById).filter(Objects::nonNull).forEach(dashboards::add);
+        }
+        return dashboards;
+    }
+
+    private void collectQueries(Dashboard dashboard, Map<Long, ViewWithSource> viewMap, List<WidgetQuery> queries) {
+        List<MemDashboardWidget> memDashboardWidgets = memDashboardWidgetMapper.getByDashboardId(dashboard.getId());
+        if (CollectionUtils.isEmpty(memDashboardWidgets)) {
+            return;
+        }
+
+        Set<Long> widgetIds = memDashboardWidgets.stream().map(MemDashboardWidget::getWidgetId).collect(Collectors.toSet());
+        Map<Long, Widget> widgetMap = widgetMapper.getByIds(widgetIds).stream()
+                .collect(Collectors.toMap(Widget::getId, w -> w, (w1, w2) -> w1));
+        Set<SimpleView> views = viewMapper.selectSimpleByWidgetIds(widgetIds);
+
+        for (MemDashboardWidget memDashboardWidget : memDashboardWidgets) {
+            Widget widget = widgetMap.get(memDashboardWidget.getWidgetId());
+            if (null == widget || null == widget.getViewId()) {
+                continue;
+            }
+            ViewWithSource viewWithSource = viewMap.computeIfAbsent(widget.getViewId(), viewMapper::getViewWithSource);
+            if (null == viewWithSource || null == viewWithSource.getSource()) {
+                continue;
+            }
+            queries.add(new WidgetQuery(dashboard, memDashboardWidget, widget, views, viewWithSource));
+        }
+    }
+
+    private boolean replay(WidgetQuery query) throws Exception {
+        ViewExecuteParam executeParam = ScriptUtils.getViewExecuteParam(query.dashboard.getConfig(), query.widget.getConfig(),
+                query.views, query.memDashboardWidget.getId());
+        if (null == executeParam || (CollectionUtils.isEmpty(executeParam.getGroups()) && CollectionUtils.isEmpty(executeParam.getAggregators()))) {
+            return false;
+        }
+
+        if (ExcelUtils.isTable(query.widget.getConfig())) {
+            ScriptUtils.formatHeader(query.widget.getConfig(), executeParam.getParams());
+        }
+
+        // 预热只关心缓存与连接，结果立即释放
+        ResultScope scope = ResultScope.begin();
+        try {
+            return null != viewService.getResultDataList(true, query.viewWithSource, executeParam, null);
+        } finally {
+            ResultScope.end();
+            scope.close();
+        }
+    }
+
+    /**
+     * 执行一组预热任务，返回成功数
+     */
+    private int invokeAll(ExecutorService executor, List<Callable<Boolean>> tasks, long deadline) throws InterruptedException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (tasks.isEmpty() || remaining <= 0L) {
+            return 0;
+        }
+
+        int success = 0;
+        for (Future<Boolean> future : executor.invokeAll(tasks, remaining, TimeUnit.MILLISECONDS)) {
+            try {
+                if (Boolean.TRUE.equals(future.get())) {
+                    success++;
+                }
+            } catch (CancellationException | ExecutionException e) {
+                log.warn("Warm up task error:{}", null == e.getCause() ? e.getMessage() : e.getCause().getMessage());
+            }
+        }
+        return success;
+    }
+
+    private static class WidgetQuery {
+        private final Dashboard dashboard;
+        private final MemDashboardWidget memDashboardWidget;
+        private final Widget widget;
+        private final Set<SimpleView> views;
+        private final ViewWithSource viewWithSource;
+
+        WidgetQuery(Dashboard dashboard, MemDashboardWidget memDashboardWidget, Widget widget, Set<SimpleView> views,
+                    ViewWithSource viewWithSource) {
+            this.dashboard = dashboard;
+            this.memDashboardWidget = memDashboardWidget;
+            this.widget = widget;
+            this.views = views;
+            this.viewWithSource = viewWithSource;
+        }
+    }
+}
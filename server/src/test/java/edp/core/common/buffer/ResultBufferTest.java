@@ -0,0 +1,213 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.buffer;
+
+import com.alibaba.fastjson.JSON;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * 落盘的行读回后取值与类型不变，不能编码的类型不落盘
+ */
+public class ResultBufferTest {
+
+    private static final List<String> KEYS = Arrays.asList("string", "int", "long", "double", "float", "decimal",
+            "bool", "timestamp", "sqlDate", "time", "date", "short", "byte", "bigint",
+            "localDateTime", "localDate", "localTime", "offsetDateTime", "uuid");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private QueryMemoryAccountant accountant;
+
+    private final List<ResultBuffer> buffers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        accountant = new QueryMemoryAccountant();
+        ReflectionTestUtils.setField(accountant, "globalBudgetMb", 64L);
+        ReflectionTestUtils.setField(accountant, "spillPath", folder.getRoot().getAbsolutePath());
+        accountant.init();
+    }
+
+    @After
+    public void tearDown() {
+        buffers.forEach(ResultBuffer::close);
+        assertEquals(0, Objects.requireNonNull(folder.getRoot().list()).length);
+    }
+
+    @Test
+    public void spilledRowsRoundTrip() {
+        List<Map<String, Object>> expected = rows(50);
+        ResultBuffer buffer = newBuffer(KEYS, 0L);
+        expected.forEach(buffer::append);
+        buffer.seal();
+
+        assertTrue(buffer.isSpilled());
+        assertRows(expected, buffer);
+        assertEquals(JSON.toJSONString(expected), JSON.toJSONString(buffer));
+    }
+
+    @Test
+    public void partiallySpilledRowsRoundTrip() {
+        List<Map<String, Object>> expected = rows(200);
+        ResultBuffer buffer = newBuffer(KEYS, 16L * 1024L);
+        expected.forEach(buffer::append);
+        buffer.seal();
+
+        assertTrue(buffer.isSpilled());
+        assertTrue(buffer.getRows().size() > 0);
+        assertRows(expected, buffer);
+        assertEquals(JSON.toJSONString(expected), JSON.toJSONString(buffer));
+    }
+
+    @Test
+    public void unsupportedTypeBeforeSpillKeepsRowsInMemory() {
+        List<String> keys = Arrays.asList("id", "value");
+        ResultBuffer buffer = newBuffer(keys, 0L);
+        List<Map<String, Object>> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(row(keys, i, URI.create("http://example.com/" + i)));
+        }
+        expected.forEach(buffer::append);
+        buffer.seal();
+
+        assertFalse(buffer.isSpilled());
+        assertRows(expected, buffer);
+        assertSame(expected.get(0).get("value"), buffer.get(0).get("value"));
+    }
+
+    @Test
+    public void unsupportedTypeAfterSpillReadsSpilledRowsBack() {
+        List<String> keys = Arrays.asList("id", "value");
+        ResultBuffer buffer = newBuffer(keys, 0L);
+        List<Map<String, Object>> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(row(keys, i, null));
+        }
+        expected.add(row(keys, 10, URI.create("http://example.com/10")));
+        for (int i = 11; i < 20; i++) {
+            expected.add(row(keys, i, BigDecimal.valueOf(i, 2)));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            buffer.append(expected.get(i));
+        }
+        assertTrue(buffer.isSpilled());
+        assertEquals(1, Objects.requireNonNull(folder.getRoot().list()).length);
+
+        for (int i = 10; i < expected.size(); i++) {
+            buffer.append(expected.get(i));
+        }
+        buffer.seal();
+
+        assertFalse(buffer.isSpilled());
+        assertEquals(0, Objects.requireNonNull(folder.getRoot().list()).length);
+        assertRows(expected, buffer);
+    }
+
+    @Test
+    public void dateSubclassIsNotSpilled() {
+        List<String> keys = Collections.singletonList("value");
+        ResultBuffer buffer = newBuffer(keys, 0L);
+        Date value = new Date(0L) {
+        };
+        buffer.append(row(keys, value));
+        buffer.seal();
+
+        assertFalse(buffer.isSpilled());
+        assertSame(value, buffer.get(0).get("value"));
+    }
+
+    private ResultBuffer newBuffer(List<String> keys, long budget) {
+        ResultBuffer buffer = new ResultBuffer(keys, accountant, budget, folder.getRoot());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private static void assertRows(List<Map<String, Object>> expected, List<Map<String, Object>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Map<String, Object> expectedRow = expected.get(i);
+            Map<String, Object> actualRow = actual.get(i);
+            assertEquals(new ArrayList<>(expectedRow.keySet()), new ArrayList<>(actualRow.keySet()));
+            for (String key : expectedRow.keySet()) {
+                Object expectedValue = expectedRow.get(key);
+                Object actualValue = actualRow.get(key);
+                String message = "row " + i + ", column " + key;
+                assertEquals(message, expectedValue, actualValue);
+                if (null != expectedValue) {
+                    assertEquals(message, expectedValue.getClass(), actualValue.getClass());
+                }
+            }
+        }
+    }
+
+    private static List<Map<String, Object>> rows(int count) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Timestamp timestamp = new Timestamp(1551769689000L + i * 1000L);
+            timestamp.setNanos(123456789 + i);
+            rows.add(row(KEYS,
+                    i % 7 == 0 ? null : "value \"" + i + "\",中文",
+                    i % 5 == 0 ? null : i - 25,
+                    Long.MIN_VALUE + i,
+                    i % 11 == 0 ? Double.NaN : i / 3d,
+                    i / 7f,
+                    new BigDecimal(BigInteger.valueOf(i * 1000003L), i % 6),
+                    i % 2 == 0,
+                    timestamp,
+                    new java.sql.Date(1551744000000L + i * 86400000L),
+                    new Time(3600000L * (i % 24)),
+                    new Date(1551769689000L - i),
+                    (short) -i,
+                    (byte) i,
+                    BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.valueOf(i + 2)),
+                    LocalDateTime.of(2019, 3, 5, 7, 8, 9, i),
+                    LocalDate.of(1850, 1, 1).plusDays(i),
+                    LocalTime.of(i % 24, 30, 15, 999999999 - i),
+                    OffsetDateTime.of(2019, 3, 5, 7, 8, 9, i, ZoneOffset.ofHoursMinutes(5, 30)),
+                    new UUID(i, -i)));
+        }
+        return rows;
+    }
+
+    private static Map<String, Object> row(List<String> keys, Object... values) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            row.put(keys.get(i), values[i]);
+        }
+        return row;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.common.mail;
+
+import com.alibaba.fastjson.JSON;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetup;
+import edp.core.enums.MailContentTypeEnum;
+import edp.core.model.MailAttachment;
+import edp.core.model.MailContent;
+import edp.core.utils.MailUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thymeleaf.spring5.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 外发邮件队列：落盘与重启加载、连接复用、退避重试、部分投递与附件去重回收
+ * <p>
+ * 使用 GreenMail 作为进程内SMTP服务；部分投递无法由 GreenMail 构造，使用自定义 Transport
+ */
+public class MailQueueTest {
+
+    private static final long NEVER = 3600_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GreenMail greenMail;
+
+    private JavaMailSenderImpl sender;
+
+    private MailUtils mailUtils;
+
+    private File spool;
+
+    private final List<MailQueue> queues = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        greenMail = new GreenMail(new ServerSetup(port, "127.0.0.1", ServerSetup.PROTOCOL_SMTP));
+
+        sender = new JavaMailSenderImpl();
+        sender.setHost("127.0.0.1");
+        sender.setPort(port);
+
+        ClassLoaderTemplateResolver resolver = new ClassLoaderTemplateResolver();
+        resolver.setPrefix("templates/");
+        resolver.setSuffix(".html");
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setCharacterEncoding("UTF-8");
+        SpringTemplateEngine templateEngine = new SpringTemplateEngine();
+        templateEngine.setTemplateResolver(resolver);
+
+        mailUtils = new MailUtils();
+        ReflectionTestUtils.setField(mailUtils, "javaMailSender", sender);
+        ReflectionTestUtils.setField(mailUtils, "templateEngine", templateEngine);
+        ReflectionTestUtils.setField(mailUtils, "mailUsername", "davinci@localhost");
+        ReflectionTestUtils.setField(mailUtils, "fromAddress", "");
+        ReflectionTestUtils.setField(mailUtils, "nickName", "davinci");
+
+        spool = folder.newFolder("mail_spool");
+        FakeTransport.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MailQueue queue : queues) {
+            queue.destroy();
+        }
+        greenMail.stop();
+    }
+
+    @Test
+    public void spooledMailsAreDeliveredAfterRestart() throws Exception {
+        greenMail.start();
+
+        MailQueue queue = newQueue(NEVER, 20, 6, 30);
+        for (int i = 0; i < 3; i++) {
+            queue.submit(mail("spooled " + i, "user" + i + "@localhost", null), null);
+        }
+        queue.destroy();
+
+        assertEquals(3, list("pending").size());
+        assertEquals(0, greenMail.getReceivedMessages().length);
+
+        MailQueue restarted = newQueue(100, 20, 6, 30);
+        assertTrue(greenMail.waitForIncomingEmail(10_000, 3));
+        await(() -> list("pending").isEmpty());
+
+        List<String> subjects = new ArrayList<>();
+        for (MimeMessage message : greenMail.getReceivedMessages()) {
+            subjects.add(message.getSubject());
+        }
+        Collections.sort(subjects);
+        assertEquals(Arrays.asList("spooled 0", "spooled 1", "spooled 2"), subjects);
+        assertEquals(3L, metric(restarted, "davinci_mail_sent_total"));
+        assertEquals(0L, metric(restarted, "davinci_mail_pending"));
+    }
+
+    @Test
+    public void batchesReuseOnePooledConnection() throws Exception {
+        greenMail.start();
+
+        MailQueue queue = newQueue(NEVER, 2, 6, 30);
+        for (int i = 0; i < 5; i++) {
+            queue.submit(mail("pooled " + i, "pooled@localhost", null), null);
+        }
+        queue.destroy();
+
+        MailQueue restarted = newQueue(100, 2, 6, 30);
+        assertTrue(greenMail.waitForIncomingEmail(10_000, 5));
+        await(() -> metric(restarted, "davinci_mail_sent_total") == 5L);
+
+        assertEquals(5L, metric(restarted, "davinci_mail_send_seconds_count"));
+        assertEquals(1L, metric(restarted, "davinci_mail_connections_opened_total"));
+    }
+
+    @Test
+    public void failedMailsBackOffAndMoveToFailedDirectory() throws Exception {
+        MailQueue queue = newQueue(50, 20, 3, 1);
+        queue.submit(mail("unreachable", "nobody@localhost", null), null);
+
+        await(() -> metric(queue, "davinci_mail_retries_total") == 1L);
+        Path spooled = list("pending").get(0);
+        SpooledMail first = read(spooled);
+        assertEquals(1, first.getAttempts());
+        assertNotNull(first.getLastError());
+        long delay = first.getNextAttemptTime() - Files.getLastModifiedTime(spooled).toMillis();
+        assertTrue("first backoff " + delay, Math.abs(delay - 1000) < 100);
+
+        await(() -> metric(queue, "davinci_mail_retries_total") == 2L);
+        SpooledMail second = read(spooled);
+        assertEquals(2, second.getAttempts());
+        delay = second.getNextAttemptTime() - Files.getLastModifiedTime(spooled).toMillis();
+        assertTrue("second backoff " + delay, Math.abs(delay - 2000) < 100);
+
+        await(() -> metric(queue, "davinci_mail_failed_total") == 1L);
+        assertTrue(list("pending").isEmpty());
+        List<Path> failed = list("failed");
+        assertEquals(1, failed.size());
+        SpooledMail gaveUp = read(failed.get(0));
+        assertEquals(3, gaveUp.getAttempts());
+        assertEquals("unreachable", gaveUp.getEnvelope().getSubject());
+        assertEquals(0L, metric(queue, "davinci_mail_sent_total"));
+        assertEquals(0L, metric(queue, "davinci_mail_pending"));
+    }
+
+    @Test
+    public void partialDeliveryRequeuesUnsentRecipients() throws Exception {
+        sender.setProtocol(FakeTransport.PROTOCOL);
+        sender.getSession().addProvider(new Provider(Provider.Type.TRANSPORT, FakeTransport.PROTOCOL,
+                FakeTransport.class.getName(), "davinci", "1.0"));
+        FakeTransport.rejectOnce = true;
+
+        MailQueue queue = newQueue(50, 20, 6, 1);
+        queue.submit(mailTo("partial", new String[]{"sent@localhost", "busy@localhost", "invalid@localhost"}), null);
+
+        await(() -> metric(queue, "davinci_mail_retries_total") == 1L);
+        assertEquals(0L, metric(queue, "davinci_mail_sent_total"));
+        SpooledMail requeued = read(list("pending").get(0));
+        assertArrayEquals(new String[]{"busy@localhost"}, requeued.getRecipients());
+
+        await(() -> metric(queue, "davinci_mail_sent_total") == 1L);
+        assertTrue(list("pending").isEmpty());
+        assertEquals(2, FakeTransport.sent.size());
+        assertEquals(Arrays.asList("sent@localhost", "busy@localhost", "invalid@localhost"), FakeTransport.sent.get(0));
+        assertEquals(Collections.singletonList("busy@localhost"), FakeTransport.sent.get(1));
+        assertEquals(3, FakeTransport.headers.get(1).length);
+    }
+
+    @Test
+    public void attachmentsAreDeduplicatedAndCollected() throws Exception {
+        greenMail.start();
+
+        File first = folder.newFile("report.xlsx");
+        File second = folder.newFile("report_copy.xlsx");
+        Files.write(first.toPath(), "same content".getBytes(StandardCharsets.UTF_8));
+        Files.write(second.toPath(), "same content".getBytes(StandardCharsets.UTF_8));
+
+        MailQueue queue = newQueue(NEVER, 20, 6, 30);
+        queue.submit(mail("first", "first@localhost", first), null);
+        queue.submit(mail("second", "second@localhost", second), null);
+        assertEquals(1L, metric(queue, "davinci_mail_attachments_deduplicated_total"));
+        queue.destroy();
+
+        List<Path> attachments = list("attachments");
+        assertEquals(1, attachments.size());
+        Path shared = attachments.get(0);
+        assertTrue(shared.getFileName().toString().endsWith(".xlsx"));
+        for (Path path : list("pending")) {
+            assertEquals(shared.toAbsolutePath().toString(), read(path).getEnvelope().getAttachments().get(0).getPath());
+        }
+
+        // 过期但仍被待发邮件引用的附件保留，未引用的孤儿附件回收
+        Path orphan = Files.write(spool.toPath().resolve("attachments").resolve("orphan.xlsx"), new byte[]{1});
+        expire(shared);
+        expire(orphan);
+
+        MailQueue restarted = newQueue(100, 20, 6, 30);
+        assertTrue(greenMail.waitForIncomingEmail(10_000, 2));
+        await(() -> list("pending").isEmpty());
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(shared));
+        for (MimeMessage message : greenMail.getReceivedMessages()) {
+            assertTrue(GreenMailUtil.getWholeMessage(message).contains("report"));
+        }
+        restarted.destroy();
+
+        // 全部投递后不再被引用，下一次回收时删除
+        expire(shared);
+        newQueue(100, 20, 6, 30);
+        await(() -> !Files.exists(shared));
+    }
+
+    private MailQueue newQueue(long pollIntervalMillis, int batchSize, int maxAttempts, long backoffSeconds) {
+        MailQueue queue = new MailQueue();
+        ReflectionTestUtils.setField(queue, "mailUtils", mailUtils);
+        ReflectionTestUtils.setField(queue, "javaMailSender", sender);
+        ReflectionTestUtils.setField(queue, "enable", true);
+        ReflectionTestUtils.setField(queue, "spoolPath", spool.getAbsolutePath());
+        ReflectionTestUtils.setField(queue, "connections", 1);
+        ReflectionTestUtils.setField(queue, "batchSize", batchSize);
+        ReflectionTestUtils.setField(queue, "maxAttempts", maxAttempts);
+        ReflectionTestUtils.setField(queue, "backoffSeconds", backoffSeconds);
+        ReflectionTestUtils.setField(queue, "maxBackoffSeconds", 1800L);
+        ReflectionTestUtils.setField(queue, "idleSeconds", 60L);
+        ReflectionTestUtils.setField(queue, "pollIntervalMillis", pollIntervalMillis);
+        queue.init();
+        queues.add(queue);
+        return queue;
+    }
+
+    private MailContent mail(String subject, String to, File attachment) throws Exception {
+        MailContent.MailContentBuilder builder = MailContent.MailContentBuilder.builder()
+                .withSubject(subject)
+                .withTo(to)
+                .withMainContent(MailContentTypeEnum.TEXT)
+                .withContent("content of " + subject);
+        if (null != attachment) {
+            builder.withAttachments(Collections.singletonList(new MailAttachment("report.xlsx", attachment)));
+        }
+        return builder.build();
+    }
+
+    private MailContent mailTo(String subject, String[] to) throws Exception {
+        return MailContent.MailContentBuilder.builder()
+                .withSubject(subject)
+                .withTo(to)
+                .withMainContent(MailContentTypeEnum.TEXT)
+                .withContent("content of " + subject)
+                .build();
+    }
+
+    private List<Path> list(String dir) {
+        try (Stream<Path> files = Files.list(spool.toPath().resolve(dir))) {
+            return files.filter(path -> !path.toString().endsWith(".tmp")).collect(Collectors.toList());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SpooledMail read(Path path) throws Exception {
+        return JSON.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), SpooledMail.class);
+    }
+
+    private void expire(Path path) throws Exception {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 120_000L));
+    }
+
+    private long metric(MailQueue queue, String name) {
+        StringWriter writer = new StringWriter();
+        queue.write(new PrintWriter(writer));
+        for (String line : writer.toString().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * 第一次发送时部分地址成功、部分暂时失败、部分无效，之后全部成功
+     */
+    public static class FakeTransport extends Transport {
+
+        static final String PROTOCOL = "fakesmtp";
+
+        static volatile boolean rejectOnce;
+
+        static final List<List<String>> sent = Collections.synchronizedList(new ArrayList<>());
+
+        static final List<Address[]> headers = Collections.synchronizedList(new ArrayList<>());
+
+        public FakeTransport(Session session, URLName urlname) {
+            super(session, urlname);
+        }
+
+        static void reset() {
+            rejectOnce = false;
+            sent.clear();
+            headers.clear();
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password) {
+            return true;
+        }
+
+        @Override
+        public void sendMessage(Message message, Address[] addresses) throws javax.mail.MessagingException {
+            sent.add(Arrays.stream(addresses).map(address -> ((InternetAddress) address).getAddress()).collect(Collectors.toList()));
+            headers.add(message.getAllRecipients());
+            if (rejectOnce) {
+                rejectOnce = false;
+                throw new SendFailedException("451 try again later", null,
+                        new Address[]{addresses[0]}, new Address[]{addresses[1]}, new Address[]{addresses[2]});
+            }
+        }
+    }
+}
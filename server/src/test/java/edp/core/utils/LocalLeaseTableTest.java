@@ -0,0 +1,184 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 本地租约表：互斥、fencing token、过期接管与条带并发
+ */
+public class LocalLeaseTableTest {
+
+    @Test
+    public void acquireIsExclusiveUntilReleased() {
+        LocalLeaseTable table = new LocalLeaseTable();
+
+        long token = table.acquire("view@a@1", "owner-a", 5000L);
+        assertTrue(token > 0L);
+        assertEquals(0L, table.acquire("view@a@1", "owner-b", 5000L));
+        assertTrue(table.isHolding("view@a@1", "owner-a"));
+        assertFalse(table.isHolding("view@a@1", "owner-b"));
+
+        assertFalse(table.release("view@a@1", "owner-b"));
+        assertTrue(table.isHolding("view@a@1", "owner-a"));
+
+        assertTrue(table.release("view@a@1", "owner-a"));
+        assertTrue(table.acquire("view@a@1", "owner-b", 5000L) > 0L);
+    }
+
+    @Test
+    public void tokensIncreaseAcrossKeysAndReacquire() {
+        LocalLeaseTable table = new LocalLeaseTable();
+
+        long first = table.acquire("k1", "owner-a", 5000L);
+        long second = table.acquire("k2", "owner-b", 5000L);
+        long reentrant = table.acquire("k1", "owner-a", 5000L);
+
+        assertTrue(second > first);
+        assertTrue(reentrant > second);
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOverAndStaleOwnerCannotTouchIt() throws Exception {
+        LocalLeaseTable table = new LocalLeaseTable();
+
+        long stale = table.acquire("k", "owner-a", 20L);
+        Thread.sleep(50L);
+        assertFalse(table.isHolding("k", "owner-a"));
+        assertFalse(table.renew("k", "owner-a", 5000L));
+
+        long fresh = table.acquire("k", "owner-b", 5000L);
+        assertTrue(fresh > stale);
+
+        // 旧持有者的释放与续期都不能影响新租约
+        assertFalse(table.release("k", "owner-a"));
+        assertFalse(table.renew("k", "owner-a", 5000L));
+        assertTrue(table.isHolding("k", "owner-b"));
+    }
+
+    @Test
+    public void renewExtendsOnlyLiveLeaseOfOwner() throws Exception {
+        LocalLeaseTable table = new LocalLeaseTable();
+
+        table.acquire("k", "owner-a", 100L);
+        assertFalse(table.renew("k", "owner-b", 5000L));
+        assertTrue(table.renew("k", "owner-a", 5000L));
+        Thread.sleep(150L);
+        assertTrue(table.isHolding("k", "owner-a"));
+        assertEquals(0L, table.acquire("k", "owner-b", 5000L));
+    }
+
+    @Test
+    public void releaseOfExpiredLeaseReportsFalse() throws Exception {
+        LocalLeaseTable table = new LocalLeaseTable();
+
+        table.acquire("k", "owner-a", 20L);
+        Thread.sleep(50L);
+        assertFalse(table.release("k", "owner-a"));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void expiredLeasesArePurgedOnAcquire() throws Exception {
+        LocalLeaseTable table = new LocalLeaseTable();
+        // hashCode 相同，必然落在同一条带
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        table.acquire("Aa", "owner", 20L);
+        assertEquals(1, table.size());
+
+        // 条带每秒最多清理一次，等过一个清理周期后由同条带的获取触发
+        Thread.sleep(1100L);
+        assertTrue(table.acquire("BB", "owner", 5000L) > 0L);
+        assertEquals(1, table.size());
+        assertFalse(table.isHolding("Aa", "owner"));
+    }
+
+    @Test
+    public void contendedKeysHaveExactlyOneHolderAtATime() throws Exception {
+        LocalLeaseTable table = new LocalLeaseTable();
+        int threads = 8;
+        int keys = 200;
+        int rounds = 200;
+        ConcurrentHashMap<String, String> holders = new ConcurrentHashMap<>();
+        AtomicInteger violations = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String owner = "owner-" + t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int r = 0; r < rounds; r++) {
+                    String key = "k" + ((r * 31 + owner.hashCode()) & Integer.MAX_VALUE) % keys;
+                    if (table.acquire(key, owner, 5000L) > 0L) {
+                        acquired.incrementAndGet();
+                        if (null != holders.putIfAbsent(key, owner)) {
+                            violations.incrementAndGet();
+                        }
+                        holders.remove(key, owner);
+                        assertTrue(table.release(key, owner));
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, violations.get());
+        assertTrue(acquired.get() > 0);
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void cacheLockUsesOwnLease() {
+        BaseLock first = new BaseLock.CacheLock("cache-lock-test", 5);
+        BaseLock second = new BaseLock.CacheLock("cache-lock-test", 5);
+
+        assertTrue(first.getLock());
+        assertFalse(second.getLock());
+        assertEquals(0L, second.getToken());
+        assertFalse(second.release());
+        assertTrue(first.isHolding());
+
+        assertTrue(first.release());
+        assertTrue(second.tryLock(1000L));
+        assertTrue(second.getToken() > first.getToken());
+        assertTrue(second.release());
+    }
+}
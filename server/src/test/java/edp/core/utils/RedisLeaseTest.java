@@ -0,0 +1,169 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.core.utils;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.embedded.RedisServer;
+
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Redis 租约脚本：SET NX PX + fencing 计数、compare-and-delete 与 compare-and-pexpire
+ * <p>
+ * 使用内嵌 redis-server，序列化方式与 RedisConfig 保持一致
+ */
+public class RedisLeaseTest {
+
+    private static final String KEY = "VIEW@lease@1";
+
+    private static RedisServer redisServer;
+
+    private static LettuceConnectionFactory connectionFactory;
+
+    private static RedisTemplate<String, Object> redisTemplate;
+
+    private RedisUtils redisUtils;
+
+    @BeforeClass
+    public static void startRedis() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = RedisServer.builder().port(port).setting("bind 127.0.0.1").build();
+        redisServer.start();
+
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        connectionFactory.afterPropertiesSet();
+
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new GenericJackson2JsonRedisSerializer());
+        redisTemplate.setHashKeySerializer(new GenericJackson2JsonRedisSerializer());
+        redisTemplate.setHashValueSerializer(new GenericJackson2JsonRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+    }
+
+    @AfterClass
+    public static void stopRedis() {
+        if (null != connectionFactory) {
+            connectionFactory.destroy();
+        }
+        if (null != redisServer) {
+            redisServer.stop();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        redisUtils = new RedisUtils();
+        ReflectionTestUtils.setField(redisUtils, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(redisUtils, "isRedisEnable", true);
+    }
+
+    @After
+    public void tearDown() {
+        redisTemplate.delete(KEY);
+        redisTemplate.delete(KEY + ":fence");
+    }
+
+    @Test
+    public void acquireIsExclusiveAndIssuesIncreasingTokens() {
+        long first = redisUtils.acquireLease(KEY, "owner-a", 5000L);
+        assertTrue(first > 0L);
+        assertEquals(0L, redisUtils.acquireLease(KEY, "owner-b", 5000L));
+        assertEquals("owner-a", redisUtils.get(KEY));
+
+        // fencing 计数带过期时间，不会永久残留
+        Long fenceTtl = redisTemplate.getExpire(KEY + ":fence");
+        assertNotNull(fenceTtl);
+        assertTrue(fenceTtl > 0L);
+
+        assertTrue(redisUtils.releaseLease(KEY, "owner-a"));
+        long second = redisUtils.acquireLease(KEY, "owner-b", 5000L);
+        assertEquals(first + 1, second);
+    }
+
+    @Test
+    public void releaseOnlyDeletesOwnLease() {
+        redisUtils.acquireLease(KEY, "owner-a", 5000L);
+
+        assertFalse(redisUtils.releaseLease(KEY, "owner-b"));
+        assertEquals("owner-a", redisUtils.get(KEY));
+
+        assertTrue(redisUtils.releaseLease(KEY, "owner-a"));
+        assertNull(redisUtils.get(KEY));
+        assertFalse(redisUtils.releaseLease(KEY, "owner-a"));
+    }
+
+    @Test
+    public void renewOnlyExtendsOwnLease() {
+        redisUtils.acquireLease(KEY, "owner-a", 1000L);
+
+        assertFalse(redisUtils.renewLease(KEY, "owner-b", 60000L));
+        assertTrue(redisTemplate.getExpire(KEY, TimeUnit.MILLISECONDS) <= 1000L);
+
+        assertTrue(redisUtils.renewLease(KEY, "owner-a", 60000L));
+        assertTrue(redisTemplate.getExpire(KEY, TimeUnit.MILLISECONDS) > 1000L);
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOverWithHigherTokenAndStaleOwnerIsFenced() throws Exception {
+        long stale = redisUtils.acquireLease(KEY, "owner-a", 50L);
+        Thread.sleep(150L);
+
+        long fresh = redisUtils.acquireLease(KEY, "owner-b", 5000L);
+        assertTrue(fresh > stale);
+
+        assertFalse(redisUtils.renewLease(KEY, "owner-a", 5000L));
+        assertFalse(redisUtils.releaseLease(KEY, "owner-a"));
+        assertEquals("owner-b", redisUtils.get(KEY));
+    }
+
+    @Test
+    public void redisLockHoldsUntilReleased() {
+        BaseLock first = new BaseLock.RedisLock(redisUtils, KEY, 5);
+        BaseLock second = new BaseLock.RedisLock(redisUtils, KEY, 5);
+
+        assertTrue(first.getLock());
+        assertTrue(first.isHolding());
+        assertFalse(second.getLock());
+        assertFalse(second.isHolding());
+        assertFalse(second.release());
+
+        assertTrue(first.release());
+        assertTrue(second.getLock());
+        assertTrue(second.getToken() > first.getToken());
+    }
+}
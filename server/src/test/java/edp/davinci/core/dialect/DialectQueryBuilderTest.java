@@ -0,0 +1,161 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.core.dialect;
+
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.Order;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.model.Source;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 各方言下推sql的golden用例
+ */
+public class DialectQueryBuilderTest {
+
+    private static final String VIEW_SQL = "SELECT f.region, f.product, f.amount AS amt, d.category " +
+            "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product WHERE f.stat_date >= '2019-01-01'";
+
+    private DialectQueryBuilder builder;
+
+    @Before
+    public void setUp() {
+        builder = new DialectQueryBuilder();
+        ReflectionTestUtils.setField(builder, "enable", true);
+    }
+
+    @Test
+    public void mysqlLimit() {
+        String sql = builder.build(VIEW_SQL, source("jdbc:mysql://127.0.0.1:3306/bench"), param(100), null);
+        assertEquals("SELECT f.region AS `region`, d.category AS `category`, sum(f.amount) AS 'sum(amt)'\n" +
+                "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product\n" +
+                "WHERE (f.stat_date >= '2019-01-01')\n" +
+                "GROUP BY f.region, d.category\n" +
+                "ORDER BY `region` asc\n" +
+                "LIMIT 100", sql);
+    }
+
+    @Test
+    public void sqlServerTop() {
+        String sql = builder.build(VIEW_SQL, source("jdbc:sqlserver://127.0.0.1:1433;databaseName=bench"), param(100), null);
+        assertEquals("SELECT TOP 100 f.region AS \"region\", d.category AS \"category\", sum(f.amount) AS \"sum(amt)\"\n" +
+                "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product\n" +
+                "WHERE (f.stat_date >= '2019-01-01')\n" +
+                "GROUP BY f.region, d.category\n" +
+                "ORDER BY \"region\" asc", sql);
+    }
+
+    @Test
+    public void oracleKeepsLimitToMaxRows() {
+        String sql = builder.build(VIEW_SQL, source("jdbc:oracle:thin:@127.0.0.1:1521:bench"), param(100), null);
+        assertEquals("SELECT f.region AS \"region\", d.category AS \"category\", sum(f.amount) AS \"sum(amt)\"\n" +
+                "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product\n" +
+                "WHERE (f.stat_date >= '2019-01-01')\n" +
+                "GROUP BY f.region, d.category\n" +
+                "ORDER BY \"region\" asc", sql);
+    }
+
+    @Test
+    public void pagedQueryHasNoLimit() {
+        ViewExecuteParam param = param(100);
+        param.setPageNo(1);
+        param.setPageSize(20);
+        String sql = builder.build(VIEW_SQL, source("jdbc:mysql://127.0.0.1:3306/bench"), param, null);
+        assertEquals("SELECT f.region AS `region`, d.category AS `category`, sum(f.amount) AS 'sum(amt)'\n" +
+                "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product\n" +
+                "WHERE (f.stat_date >= '2019-01-01')\n" +
+                "GROUP BY f.region, d.category\n" +
+                "ORDER BY `region` asc", sql);
+    }
+
+    @Test
+    public void filterOnBaseColumn() {
+        List<String> filters = new ArrayList<>();
+        filters.add("region IN ('east', 'west')");
+        filters.add("amt > 10");
+        String sql = builder.build(VIEW_SQL, source("jdbc:mysql://127.0.0.1:3306/bench"), param(0), filters);
+        assertEquals("SELECT f.region AS `region`, d.category AS `category`, sum(f.amount) AS 'sum(amt)'\n" +
+                "FROM bench_fact f LEFT JOIN bench_dim d ON f.product = d.product\n" +
+                "WHERE (f.stat_date >= '2019-01-01') AND (f.region IN ('east', 'west')) AND (f.amount > 10)\n" +
+                "GROUP BY f.region, d.category\n" +
+                "ORDER BY `region` asc", sql);
+    }
+
+    @Test
+    public void groupByInSubqueryIsPushable() {
+        String viewSql = "SELECT f.region, f.category, f.amount AS amt FROM bench_fact f " +
+                "WHERE f.product IN (SELECT d.product FROM bench_dim d GROUP BY d.product HAVING COUNT(1) > 1)";
+        String sql = builder.build(viewSql, source("jdbc:mysql://127.0.0.1:3306/bench"), param(0), null);
+        assertEquals("SELECT f.region AS `region`, f.category AS `category`, sum(f.amount) AS 'sum(amt)'\n" +
+                "FROM bench_fact f\n" +
+                "WHERE (f.product IN (SELECT d.product FROM bench_dim d GROUP BY d.product HAVING COUNT(1) > 1))\n" +
+                "GROUP BY f.region, f.category\n" +
+                "ORDER BY `region` asc", sql);
+    }
+
+    @Test
+    public void groupedViewFallsBack() {
+        String viewSql = "SELECT f.region, f.category, f.amount AS amt FROM bench_fact f GROUP BY f.region, f.category, f.amount";
+        assertNull(builder.build(viewSql, source("jdbc:mysql://127.0.0.1:3306/bench"), param(0), null));
+    }
+
+    @Test
+    public void computedFilterFallsBack() {
+        String viewSql = "SELECT f.region, f.category, f.amount * 2 AS amt FROM bench_fact f";
+        List<String> filters = Collections.singletonList("amt > 10");
+        assertNull(builder.build(viewSql, source("jdbc:mysql://127.0.0.1:3306/bench"), param(0), filters));
+    }
+
+    @Test
+    public void unsupportedDialectFallsBack() {
+        assertNull(builder.build(VIEW_SQL, source("jdbc:postgresql://127.0.0.1:5432/bench"), param(0), null));
+    }
+
+    @Test
+    public void disabled() {
+        ReflectionTestUtils.setField(builder, "enable", false);
+        assertNull(builder.build(VIEW_SQL, source("jdbc:mysql://127.0.0.1:3306/bench"), param(0), null));
+    }
+
+    private static Source source(String url) {
+        Source source = new Source();
+        source.setConfig("{\"url\":\"" + url + "\",\"username\":\"bench\",\"password\":\"\"}");
+        return source;
+    }
+
+    private static ViewExecuteParam param(int limit) {
+        ViewExecuteParam param = new ViewExecuteParam();
+        param.setGroups(Arrays.asList("region", "category"));
+        param.setAggregators(Collections.singletonList(new Aggregator("amt", "sum")));
+        param.setOrders(new ArrayList<>(Collections.singletonList(new Order("region", "asc"))));
+        param.setLimit(limit);
+        return param;
+    }
+}
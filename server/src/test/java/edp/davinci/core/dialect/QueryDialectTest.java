@@ -0,0 +1,65 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.core.dialect;
+
+import org.junit.Test;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 各方言时间常量的golden用例
+ */
+public class QueryDialectTest {
+
+    private static final Timestamp TIMESTAMP = Timestamp.valueOf("2019-03-05 07:08:09.123");
+
+    private static final Date DATE = Date.valueOf("2019-03-05");
+
+    @Test
+    public void ansi() {
+        assertEquals("TIMESTAMP '2019-03-05 07:08:09'", QueryDialect.MYSQL.getTimeLiteral(TIMESTAMP));
+        assertEquals("DATE '2019-03-05'", QueryDialect.PRESTO.getTimeLiteral(DATE));
+    }
+
+    @Test
+    public void oracle() {
+        assertEquals("TO_TIMESTAMP('2019-03-05 07:08:09', 'YYYY-MM-DD HH24:MI:SS')", QueryDialect.ORACLE.getTimeLiteral(TIMESTAMP));
+        assertEquals("TO_DATE('2019-03-05', 'YYYY-MM-DD')", QueryDialect.ORACLE.getTimeLiteral(DATE));
+    }
+
+    @Test
+    public void sqlServer() {
+        assertEquals("CONVERT(DATETIME2, '2019-03-05 07:08:09', 120)", QueryDialect.SQLSERVER.getTimeLiteral(TIMESTAMP));
+    }
+
+    @Test
+    public void clickHouse() {
+        assertEquals("toDateTime('2019-03-05 07:08:09')", QueryDialect.CLICKHOUSE.getTimeLiteral(TIMESTAMP));
+        assertEquals("toDate('2019-03-05')", QueryDialect.CLICKHOUSE.getTimeLiteral(DATE));
+    }
+
+    @Test
+    public void impala() {
+        assertEquals("CAST('2019-03-05 07:08:09' AS TIMESTAMP)", QueryDialect.IMPALA.getTimeLiteral(TIMESTAMP));
+    }
+}
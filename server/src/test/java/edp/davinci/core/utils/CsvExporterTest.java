@@ -0,0 +1,282 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.core.utils;
+
+import edp.core.model.QueryColumn;
+import edp.core.utils.QueryAnalysis;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CsvExporter 与 {@link CsvUtils#formatCsvWithFirstAsHeader} 的输出逐字节一致
+ * <p>
+ * 参考结果按 SqlUtils 物化行的方式用 getObject 组装，再交给 commons-csv 输出
+ */
+public class CsvExporterTest {
+
+    private static final String[] ZONES = {"UTC", "Asia/Shanghai", "America/New_York", "Australia/Lord_Howe"};
+
+    private static final Column ID = new Column("id", Long.class, Types.BIGINT, "BIGINT");
+    private static final Column NAME = new Column("name", String.class, Types.VARCHAR, "VARCHAR");
+    private static final Column QTY = new Column("qty", Integer.class, Types.INTEGER, "INT");
+    private static final Column AMOUNT = new Column("amount", Double.class, Types.DOUBLE, "DOUBLE");
+    private static final Column RATIO = new Column("ratio", Float.class, Types.FLOAT, "FLOAT");
+    private static final Column PRICE = new Column("price", BigDecimal.class, Types.DECIMAL, "DECIMAL");
+    private static final Column TS = new Column("ts", Timestamp.class, Types.TIMESTAMP, "DATETIME");
+    private static final Column DAY = new Column("day", Date.class, Types.DATE, "DATE");
+    private static final Column RAW = new Column("raw", byte[].class, Types.VARBINARY, "VARBINARY");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TimeZone defaultZone = TimeZone.getDefault();
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    public void numericFirstColumn() throws Exception {
+        for (String zone : ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            assertGolden(zone, Arrays.asList(ID, NAME, QTY, AMOUNT, RATIO, PRICE), Arrays.asList(
+                    row(-5L, "plain", 1, 1.5d, 1.1f, new BigDecimal("10.50")),
+                    row(null, "leading empty id", null, null, null, null),
+                    row(Long.MIN_VALUE, "min", Integer.MIN_VALUE, -0.0d, Float.NaN, new BigDecimal("-1E+3")),
+                    row(0L, "a \"quoted\" value", 0, 0.1d + 0.2d, -2.5f, BigDecimal.ZERO),
+                    row(Long.MAX_VALUE, "x,y", -1, 1e21d, 3.4e38f, new BigDecimal("0.000001")),
+                    row(42L, "line1\nline2\r\nline3", 7, Double.NEGATIVE_INFINITY, 1e-7f, null),
+                    row(7L, "trailing space ", null, 100d, 0f, new BigDecimal("123456789012345678901234567890")),
+                    row(8L, "  both  ", 3, 12345678.9d, 1f, null),
+                    row(9L, "", 4, 1d, 2f, null),
+                    row(10L, null, 5, 2d, 3f, null),
+                    row(11L, "#hash", 6, 3d, 4f, null),
+                    row(12L, "\ttab", 7, 4d, 5f, null),
+                    row(13L, "中文，逗号", 8, 5d, 6f, null)));
+        }
+    }
+
+    @Test
+    public void textFirstColumn() throws Exception {
+        for (String zone : ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            assertGolden(zone, Arrays.asList(NAME, ID, RAW), Arrays.asList(
+                    row("", 1L, "bytes".getBytes()),
+                    row(null, 2L, null),
+                    row("-negative text", 3L, "a,b".getBytes()),
+                    row("-12", 4L, " padded ".getBytes()),
+                    row(" lead", 5L, null),
+                    row("#comment", 6L, null),
+                    row("\"quoted\"", 7L, null),
+                    row("9lives", 8L, null),
+                    row("Zebra", 9L, null),
+                    row("_under", 10L, null),
+                    row("[bracket", 11L, null),
+                    row("~tilde", 12L, null),
+                    row("éaccent", 13L, null),
+                    row(" ", 14L, null)));
+        }
+    }
+
+    @Test
+    public void timestampsAndDates() throws Exception {
+        for (String zone : ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            List<Object[]> rows = new ArrayList<>();
+            String[] instants = {
+                    "2019-03-05T07:08:09Z",
+                    "1970-01-01T00:00:00Z",
+                    "1969-12-31T23:59:59Z",
+                    "1850-06-01T12:00:00Z",
+                    "9999-12-31T10:00:00Z",
+                    // 纽约夏令时开始与结束
+                    "2019-03-10T06:30:00Z",
+                    "2019-03-10T07:00:00Z",
+                    "2019-03-10T07:30:00Z",
+                    "2019-11-03T05:30:00Z",
+                    "2019-11-03T06:00:00Z",
+                    "2019-11-03T06:30:00Z",
+                    // 豪勋爵岛半小时夏令时，切换点不在整点
+                    "2019-04-06T14:45:00Z",
+                    "2019-04-06T15:15:00Z",
+                    "2019-10-05T15:10:00Z",
+                    "2019-10-05T15:40:00Z",
+            };
+            int[] nanos = {0, 100000000, 123000000, 123456789, 1, 999999999, 10};
+            for (int i = 0; i < instants.length; i++) {
+                Timestamp timestamp = Timestamp.from(Instant.parse(instants[i]));
+                timestamp.setNanos(nanos[i % nanos.length]);
+                Date date = new Date(timestamp.getTime());
+                rows.add(row(timestamp, date, (long) i));
+            }
+            rows.add(row(null, null, -1L));
+            rows.add(row(Timestamp.valueOf("2019-03-10 02:30:00"), Date.valueOf("2019-03-10"), 100L));
+            rows.add(row(Timestamp.valueOf("2019-11-03 01:30:00.5"), Date.valueOf("2019-11-03"), 101L));
+            rows.add(row(Timestamp.valueOf("0999-01-01 00:00:00"), Date.valueOf("0999-01-01"), 102L));
+
+            assertGolden(zone, Arrays.asList(TS, DAY, ID), rows);
+        }
+    }
+
+    @Test
+    public void timestampInNonTimestampColumnIsWrittenAsObject() throws Exception {
+        Column datetime = new Column("dt", Timestamp.class, Types.OTHER, "TIMESTAMPTZ");
+        assertGolden("default", Arrays.asList(ID, datetime), Collections.singletonList(
+                row(1L, Timestamp.valueOf("2019-03-05 07:08:09.5"))));
+    }
+
+    private void assertGolden(String zone, List<Column> columns, List<Object[]> rows) throws Exception {
+        ResultSet rs = resultSet(columns, rows);
+        QueryAnalysis analysis = QueryAnalysis.of("SELECT * FROM bench_fact");
+        QueryAnalysis.ColumnMapping mapping = analysis.getColumnMapping(rs.getMetaData());
+        boolean[] excluded = mapping.getExcluded(Collections.emptySet());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count;
+        try (CsvExporter exporter = new CsvExporter(out, Charset.defaultCharset(), false)) {
+            count = exporter.writeResultSet(rs, mapping, excluded);
+        }
+        assertEquals(rows.size(), count);
+
+        List<QueryColumn> queryColumns = new ArrayList<>();
+        for (Column column : columns) {
+            queryColumns.add(new QueryColumn(column.label, column.typeName));
+        }
+        List<Map<String, Object>> dataList = new ArrayList<>();
+        for (Object[] row : rows) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (int i = 0; i < columns.size(); i++) {
+                Object value = row[i];
+                map.put(columns.get(i).label, value instanceof byte[] ? new String((byte[]) value) : value);
+            }
+            dataList.add(map);
+        }
+        String expected = CsvUtils.formatCsvWithFirstAsHeader(folder.getRoot().getAbsolutePath(),
+                "golden_" + UUID.randomUUID() + ".csv", queryColumns, dataList);
+
+        byte[] expectedBytes = Files.readAllBytes(Paths.get(expected));
+        byte[] actualBytes = out.toByteArray();
+        assertEquals(zone, new String(expectedBytes, Charset.defaultCharset()), new String(actualBytes, Charset.defaultCharset()));
+        assertArrayEquals(zone, expectedBytes, actualBytes);
+    }
+
+    private static Object[] row(Object... values) {
+        return values;
+    }
+
+    /**
+     * 按 JDBC 语义回放固定数据的只读结果集
+     */
+    private static ResultSet resultSet(List<Column> columns, List<Object[]> rows) {
+        ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(CsvExporterTest.class.getClassLoader(),
+                new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return columns.size();
+                        case "getColumnLabel":
+                        case "getColumnName":
+                            return columns.get((Integer) args[0] - 1).label;
+                        case "getColumnClassName":
+                            return columns.get((Integer) args[0] - 1).type.getName();
+                        case "getColumnType":
+                            return columns.get((Integer) args[0] - 1).sqlType;
+                        case "getColumnTypeName":
+                            return columns.get((Integer) args[0] - 1).typeName;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        int[] cursor = {-1};
+        boolean[] wasNull = {false};
+        return (ResultSet) Proxy.newProxyInstance(CsvExporterTest.class.getClassLoader(),
+                new Class[]{ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++cursor[0] < rows.size();
+                        case "getMetaData":
+                            return metaData;
+                        case "wasNull":
+                            return wasNull[0];
+                        case "close":
+                            return null;
+                        default:
+                            break;
+                    }
+                    Object value = rows.get(cursor[0])[(Integer) args[0] - 1];
+                    wasNull[0] = null == value;
+                    switch (method.getName()) {
+                        case "getObject":
+                            return value;
+                        case "getString":
+                            return null == value ? null : value.toString();
+                        case "getLong":
+                            return null == value ? 0L : ((Number) value).longValue();
+                        case "getDouble":
+                            return null == value ? 0d : ((Number) value).doubleValue();
+                        case "getFloat":
+                            return null == value ? 0f : ((Number) value).floatValue();
+                        case "getTimestamp":
+                        case "getDate":
+                            return value;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static class Column {
+
+        private final String label;
+
+        private final Class<?> type;
+
+        private final int sqlType;
+
+        private final String typeName;
+
+        Column(String label, Class<?> type, int sqlType, String typeName) {
+            this.label = label;
+            this.type = type;
+            this.sqlType = sqlType;
+            this.typeName = typeName;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.bundle;
+
+import com.alibaba.fastjson.JSONObject;
+import edp.davinci.model.Source;
+import edp.davinci.model.View;
+import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 导出条目逐行写出，读回后与导出的实体一致
+ */
+public class ProjectBundleTest {
+
+    @Test
+    public void streamsEntriesRoundTrip() throws Exception {
+        List<View> views = new ArrayList<>();
+        for (long i = 1; i <= 1000; i++) {
+            View view = new View();
+            view.setId(i);
+            view.setName("view" + i);
+            view.setSql("SELECT * FROM t" + i);
+            views.add(view);
+        }
+        Source source = new Source();
+        source.setId(1L);
+        source.setName("mysql");
+        source.setConfig("{\"url\": \"jdbc:mysql://localhost:3306/davinci\", \"password\": \"secret\"}");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zipOutputStream = new ZipOutputStream(out);
+        assertEquals(1, ProjectBundle.writeEntry(zipOutputStream, ProjectBundle.SOURCES,
+                handler -> feed(handler, source), ProjectBundle::toBundleSource));
+        assertEquals(views.size(), ProjectBundle.<View>writeEntry(zipOutputStream, ProjectBundle.VIEWS,
+                handler -> feed(handler, views.toArray(new View[0]))));
+        ProjectBundle.writeManifest(zipOutputStream, new JSONObject());
+        zipOutputStream.finish();
+
+        ProjectBundle bundle = ProjectBundle.read(new ByteArrayInputStream(out.toByteArray()), 10000);
+        assertEquals(1, bundle.getSources().size());
+        assertFalse(bundle.getSources().get(0).getConfig().contains("secret"));
+        assertEquals(views.size(), bundle.getViews().size());
+        for (int i = 0; i < views.size(); i++) {
+            assertEquals(views.get(i).getId(), bundle.getViews().get(i).getId());
+            assertEquals(views.get(i).getSql(), bundle.getViews().get(i).getSql());
+        }
+    }
+
+    @SafeVarargs
+    private static <T> void feed(ResultHandler<T> handler, T... entities) {
+        DefaultResultContext<T> context = new DefaultResultContext<>();
+        for (T entity : entities) {
+            if (context.isStopped()) {
+                return;
+            }
+            context.nextResultObject(entity);
+            handler.handleResult(context);
+        }
+    }
+}
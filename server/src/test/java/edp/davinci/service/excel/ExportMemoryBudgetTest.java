@@ -0,0 +1,70 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.excel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.*;
+
+/**
+ * 默认配置下，大结果的非流式导出超出额度转为异步，流式导出只按SXSSF窗口占用额度
+ */
+public class ExportMemoryBudgetTest {
+
+    private ExportMemoryBudget budget;
+
+    @Before
+    public void setUp() {
+        budget = new ExportMemoryBudget();
+        ReflectionTestUtils.setField(budget, "budgetMb", 256);
+        ReflectionTestUtils.setField(budget, "bytesPerCell", 64);
+        ReflectionTestUtils.setField(budget, "waitSeconds", 0L);
+        budget.init();
+    }
+
+    @Test
+    public void bufferedLargeExportExceedsBudget() {
+        int kb = budget.estimate(1000000L, 10, false);
+
+        assertTrue(kb > 256 * 1024);
+        assertFalse(budget.tryAcquire(kb));
+    }
+
+    @Test
+    public void streamedExportOnlyCountsWindow() {
+        assertEquals(budget.estimate(ExportMemoryBudget.ROW_ACCESS_WINDOW, 10, true), budget.estimate(1000000L, 10, true));
+        assertTrue(budget.estimate(1000000L, 10, true) < budget.estimate(1000000L, 10, false));
+
+        int kb = budget.estimate(1000000L, 10, true);
+        assertTrue(budget.tryAcquire(kb));
+        budget.release(kb);
+        assertEquals(256 * 1024, budget.getAvailableKb());
+    }
+
+    @Test
+    public void smallBufferedExportStaysSynchronous() {
+        int kb = budget.estimate(100L, 10, false);
+
+        assertTrue(budget.tryAcquire(kb));
+        budget.release(kb);
+    }
+}
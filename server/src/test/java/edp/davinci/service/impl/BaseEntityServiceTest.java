@@ -0,0 +1,92 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.impl;
+
+import edp.core.utils.BaseLock;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * 名称锁在事务结束后才释放
+ */
+public class BaseEntityServiceTest {
+
+    private final BaseEntityService service = new BaseEntityService() {
+    };
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void releasesImmediatelyWithoutTransaction() {
+        BaseLock lock = mock(BaseLock.class);
+
+        service.releaseLock(lock);
+
+        verify(lock).release();
+    }
+
+    @Test
+    public void releasesAfterCommit() {
+        BaseLock lock = mock(BaseLock.class);
+        TransactionSynchronizationManager.initSynchronization();
+
+        service.releaseLock(lock);
+        verify(lock, never()).release();
+
+        complete(TransactionSynchronization.STATUS_COMMITTED);
+        verify(lock).release();
+    }
+
+    @Test
+    public void releasesAfterRollback() {
+        BaseLock lock = mock(BaseLock.class);
+        TransactionSynchronizationManager.initSynchronization();
+
+        service.releaseLock(lock);
+        complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        verify(lock).release();
+    }
+
+    @Test
+    public void ignoresNullLock() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        service.releaseLock(null);
+
+        assertTrue(TransactionSynchronizationManager.getSynchronizations().isEmpty());
+    }
+
+    private static void complete(int status) {
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(status);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * <<
+ *  Davinci
+ *  ==
+ *  Copyright (C) 2016 - 2019 EDP
+ *  ==
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *  >>
+ *
+ */
+
+package edp.davinci.service.rollup;
+
+import edp.core.model.PaginateWithQueryColumns;
+import edp.core.model.QueryColumn;
+import edp.core.utils.SqlUtils;
+import edp.davinci.dto.viewDto.Aggregator;
+import edp.davinci.dto.viewDto.ViewExecuteParam;
+import edp.davinci.dto.viewDto.ViewWithSource;
+import edp.davinci.model.Source;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * rollup 命中条件：请求刷新与缓存有效期短于cube时效时回源，并计入未命中
+ */
+public class RollupStoreTest {
+
+    private static final String BASE_SQL = "SELECT city, SUM(amount), COUNT(amount), MIN(amount), MAX(amount) FROM orders GROUP BY city";
+
+    private RollupStore rollupStore;
+
+    private ViewWithSource view;
+
+    private String key;
+
+    @Before
+    public void setUp() throws Exception {
+        PaginateWithQueryColumns base = new PaginateWithQueryColumns();
+        base.setColumns(Arrays.asList(new QueryColumn("city", "VARCHAR"), new QueryColumn("SUM(amount)", "DECIMAL"),
+                new QueryColumn("COUNT(amount)", "BIGINT"), new QueryColumn("MIN(amount)", "DECIMAL"),
+                new QueryColumn("MAX(amount)", "DECIMAL")));
+        base.setResultList(new ArrayList<>(Arrays.asList(row("beijing", 30, 2, 10, 20), row("shanghai", 5, 1, 5, 5))));
+
+        SqlUtils sqlUtils = mock(SqlUtils.class);
+        when(sqlUtils.init(any(Source.class))).thenReturn(sqlUtils);
+        when(sqlUtils.syncQuery4Paginate(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), anySet())).thenReturn(base);
+
+        rollupStore = new RollupStore();
+        ReflectionTestUtils.setField(rollupStore, "sqlUtils", sqlUtils);
+        ReflectionTestUtils.setField(rollupStore, "enable", true);
+        ReflectionTestUtils.setField(rollupStore, "maxCubes", 64);
+        ReflectionTestUtils.setField(rollupStore, "maxRows", 200000);
+        ReflectionTestUtils.setField(rollupStore, "idleSeconds", 86400L);
+        ReflectionTestUtils.setField(rollupStore, "maxStalenessFactor", 2);
+
+        Source source = new Source();
+        source.setId(1L);
+        source.setConfig("{\"url\": \"jdbc:mysql://localhost:3306/davinci\"}");
+        view = new ViewWithSource();
+        view.setId(10L);
+        view.setSource(source);
+        view.setConfig("{\"rollup\": {\"dimensions\": [\"city\"], \"metrics\": [\"amount\"], \"refreshSeconds\": 600}}");
+
+        RollupConfig config = rollupStore.getConfig(view);
+        key = rollupStore.getKey(view, BASE_SQL);
+        rollupStore.register(key, view, config, BASE_SQL);
+
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!rollupStore.getStats(view.getId()).get(0).isReady()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void answersFromCube() {
+        PaginateWithQueryColumns paginate = rollupStore.query(key, param(null, null, false));
+        assertNotNull(paginate);
+        assertEquals(2, paginate.getResultList().size());
+        assertEquals(1L, count("hits"));
+        assertEquals(0L, count("misses"));
+    }
+
+    @Test
+    public void flushBypassesCube() {
+        assertNull(rollupStore.query(key, param(null, null, true)));
+        assertEquals(0L, count("hits"));
+        assertEquals(1L, count("misses"));
+
+        assertNotNull(rollupStore.query(key, param(null, null, false)));
+        assertEquals(1L, count("hits"));
+    }
+
+    @Test
+    public void cacheExpiryBoundsCubeAge() throws Exception {
+        assertNotNull(rollupStore.query(key, param(true, 60L, false)));
+
+        Thread.sleep(1100L);
+        assertNull(rollupStore.query(key, param(true, 1L, false)));
+        assertEquals(1L, count("misses"));
+
+        // 未开启缓存时只受 refreshSeconds * max-staleness-factor 限制
+        assertNotNull(rollupStore.query(key, param(false, 1L, false)));
+        assertEquals(2L, count("hits"));
+    }
+
+    private ViewExecuteParam param(Boolean cache, Long expired, boolean flush) {
+        ViewExecuteParam param = new ViewExecuteParam(new ArrayList<>(Collections.singletonList("city")),
+                new ArrayList<>(Collections.singletonList(new Aggregator("amount", "sum"))), null, null, null, cache, expired, false);
+        param.setFlush(flush);
+        return param;
+    }
+
+    private long count(String field) {
+        return ((AtomicLong) ReflectionTestUtils.getField(rollupStore, field)).get();
+    }
+
+    private static Map<String, Object> row(String city, int sum, int count, int min, int max) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("city", city);
+        row.put("SUM(amount)", sum);
+        row.put("COUNT(amount)", count);
+        row.put("MIN(amount)", min);
+        row.put("MAX(amount)", max);
+        return row;
+    }
+}
@@ -71,10 +71,14 @@ import { ControlPanelTypes } from 'app/components/Control/constants'
 import { RenderType } from '../Widget/components/Widget'
 import { CancelTokenSource } from 'axios'
 import request from 'utils/request'
-import { errorHandler, getErrorMessage } from 'utils/util'
+import { errorHandler, getErrorMessage, uuid } from 'utils/util'
 import { message } from 'antd'
 import api from 'utils/api'
 import { operationWidgetProps } from 'components/DataDrill/abstract/widgetOperating'
+
+// scopes query supersession to this page, so other tabs or sessions of the same user keep their queries
+const QUERY_PAGE_ID = uuid(8, 16)
+
 export function* getDashboardDetail(action: DashboardActionType) {
   if (action.type !== ActionTypes.LOAD_DASHBOARD_DETAIL) {
     return
@@ -242,6 +246,7 @@ function* getData(
       method: 'post',
       url: `${api.view}/${relatedWidget.viewId}/getdata`,
       data: getRequestBody(requestParams),
+      headers: { 'X-Query-Key': `${QUERY_PAGE_ID}:dashboard-item-${itemId}` },
       cancelToken: cancelTokenSource.token
     })
     result.payload = result.payload || {}